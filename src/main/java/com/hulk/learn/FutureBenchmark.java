@@ -0,0 +1,117 @@
+package com.hulk.learn;
+
+import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureDone;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Micro benchmark for the cost of the future core: completing a future, notifying its listeners, polling its state
+ * and handing over the result to a blocked thread. Run it before and after a change in BaseFutureImpl.
+ */
+public class FutureBenchmark {
+    private static final int WARMUP = 2000000;
+    private static final int ITERATIONS = 10000000;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            completeWithListeners(WARMUP);
+            report("complete + 2 listeners", completeWithListeners(ITERATIONS), ITERATIONS);
+            pollCompleted(WARMUP);
+            report("isSuccess on completed", pollCompleted(ITERATIONS), ITERATIONS);
+            report("contended isCompleted (4 threads)", pollContended(4, ITERATIONS / 4), ITERATIONS);
+            report("await handover", awaitHandover(ITERATIONS / 100), ITERATIONS / 100);
+        }
+    }
+
+    private static long completeWithListeners(final int iterations) {
+        final long[] counter = new long[1];
+        final BaseFutureAdapter<FutureDone<Void>> listener = new BaseFutureAdapter<FutureDone<Void>>() {
+            @Override
+            public void operationComplete(FutureDone<Void> future) throws Exception {
+                counter[0]++;
+            }
+        };
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            final FutureDone<Void> future = new FutureDone<Void>();
+            future.addListener(listener);
+            future.addListener(listener);
+            future.done();
+        }
+        final long time = System.nanoTime() - start;
+        sink += counter[0];
+        return time;
+    }
+
+    private static long pollCompleted(final int iterations) {
+        final FutureDone<Void> future = new FutureDone<Void>().done();
+        long count = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (future.isSuccess()) {
+                count++;
+            }
+        }
+        final long time = System.nanoTime() - start;
+        sink += count;
+        return time;
+    }
+
+    private static long pollContended(final int threads, final int iterations) throws InterruptedException {
+        final FutureDone<Void> future = new FutureDone<Void>();
+        final CountDownLatch latch = new CountDownLatch(threads);
+        final long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    for (int i = 0; i < iterations; i++) {
+                        if (!future.isCompleted()) {
+                            count++;
+                        }
+                    }
+                    sink += count;
+                    latch.countDown();
+                }
+            }).start();
+        }
+        latch.await();
+        return System.nanoTime() - start;
+    }
+
+    private static long awaitHandover(final int iterations) throws InterruptedException {
+        final FutureDone<Integer>[] futures = newFutures(iterations);
+        final Thread completer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < iterations; i++) {
+                    futures[i].done(i);
+                }
+            }
+        });
+        final long start = System.nanoTime();
+        completer.start();
+        for (int i = 0; i < iterations; i++) {
+            sink += futures[i].await().object();
+        }
+        return System.nanoTime() - start;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static FutureDone<Integer>[] newFutures(final int size) {
+        final FutureDone<Integer>[] futures = (FutureDone<Integer>[]) new FutureDone<?>[size];
+        for (int i = 0; i < size; i++) {
+            futures[i] = new FutureDone<Integer>();
+        }
+        return futures;
+    }
+
+    private static void report(final String name, final long nanos, final int iterations) {
+        System.out.printf("%-36s %8.1f ns/op%n", name, nanos / (double) iterations);
+    }
+}
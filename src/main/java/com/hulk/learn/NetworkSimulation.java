@@ -0,0 +1,207 @@
+package com.hulk.learn;
+
+import trunk.social.p2p.connection.SimulatedNetwork;
+import trunk.social.p2p.dht.FutureGet;
+import trunk.social.p2p.dht.FuturePut;
+import trunk.social.p2p.dht.PeerBuilderDHT;
+import trunk.social.p2p.dht.PeerDHT;
+import trunk.social.p2p.futures.BaseFuture;
+import trunk.social.p2p.futures.FutureBootstrap;
+import trunk.social.p2p.futures.FutureRouting;
+import trunk.social.p2p.p2p.PeerBuilder;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.storage.Data;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Starts many DHT peers in one JVM that talk over a {@link SimulatedNetwork} with latency, jitter, loss and limited
+ * bandwidth, and drives a scripted workload: bootstrap, convergence of the routing tables and a series of puts and
+ * gets. Reports the latency percentiles, the messages per operation and the peers on the routing path, so that a change
+ * in routing or replication can be compared with the same seed before and after.
+ * <p>
+ * Usage: NetworkSimulation [peers] [operations] [latencyMillis] [lossRate] [recursiveHops]
+ * </p>
+ */
+public class NetworkSimulation {
+    private static final long SEED = 42L;
+    private static final int PORT = 4100;
+    private static final int BOOTSTRAP_PARALLEL = 64;
+    private static final int CONVERGENCE_PROBES = 20;
+    private static final double CONVERGENCE_TARGET = 0.95;
+    private static final int CONVERGENCE_ROUNDS = 20;
+
+    public static void main(String[] args) throws Exception {
+        final int nrPeers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int nrOperations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        final int latencyMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        final double lossRate = args.length > 3 ? Double.parseDouble(args[3]) : 0.01;
+        final int recursiveHops = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        final Random rnd = new Random(SEED);
+        final ScheduledExecutorService timer = Executors.newScheduledThreadPool(4);
+        final SimulatedNetwork network = new SimulatedNetwork(timer, SEED).defaultLink(new SimulatedNetwork.Link(
+                latencyMillis, latencyMillis / 2, lossRate, 1 << 20));
+
+        final PeerDHT[] peers = new PeerDHT[nrPeers];
+        long start = System.nanoTime();
+        peers[0] = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).ports(PORT).start()).start();
+        peers[0].peer().connectionBean().sender().simulatedNetwork(network);
+        for (int i = 1; i < nrPeers; i++) {
+            peers[i] = new PeerBuilderDHT(new PeerBuilder(new Number160(rnd)).masterPeer(peers[0].peer()).start())
+                    .start();
+        }
+        for (PeerDHT peer : peers) {
+            peer.peer().distributedRouting().recursiveHops(recursiveHops);
+        }
+        System.out.printf("started %d peers in %d ms%n", nrPeers, millisSince(start));
+
+        try {
+            start = System.nanoTime();
+            bootstrap(peers, rnd);
+            System.out.printf("bootstrap: %d ms, %s%n", millisSince(start), network);
+
+            for (int round = 0; round < CONVERGENCE_ROUNDS; round++) {
+                final double exact = probe(peers, rnd);
+                System.out.printf("convergence after %d ms: %.0f%% of puts reached the closest peer%n",
+                        millisSince(start), exact * 100);
+                if (exact >= CONVERGENCE_TARGET) {
+                    break;
+                }
+                Thread.sleep(1000);
+            }
+
+            final Number160[] keys = new Number160[nrOperations];
+            final Stats puts = new Stats("put", nrOperations);
+            for (int i = 0; i < nrOperations; i++) {
+                keys[i] = new Number160(rnd);
+                final PeerDHT peer = peers[rnd.nextInt(nrPeers)];
+                final long messages = network.messages();
+                final long t = System.nanoTime();
+                final FuturePut futurePut = peer.put(keys[i]).data(new Data("value " + i)).start();
+                futurePut.awaitUninterruptibly();
+                puts.add(futurePut, System.nanoTime() - t, network.messages() - messages, futurePut.futureRouting());
+            }
+            puts.print();
+
+            final Stats gets = new Stats("get", nrOperations);
+            for (int i = 0; i < nrOperations; i++) {
+                final PeerDHT peer = peers[rnd.nextInt(nrPeers)];
+                final long messages = network.messages();
+                final long t = System.nanoTime();
+                final FutureGet futureGet = peer.get(keys[i]).start();
+                futureGet.awaitUninterruptibly();
+                gets.add(futureGet, System.nanoTime() - t, network.messages() - messages, futureGet.futureRouting());
+            }
+            gets.print();
+            if (recursiveHops > 0) {
+                long recursiveRequests = 0;
+                long recursiveFallbacks = 0;
+                for (PeerDHT peer : peers) {
+                    recursiveRequests += peer.peer().distributedRouting().recursiveRequests();
+                    recursiveFallbacks += peer.peer().distributedRouting().recursiveFallbacks();
+                }
+                System.out.printf("recursive requests %d, fallbacks %d%n", recursiveRequests, recursiveFallbacks);
+            }
+            System.out.println(network);
+        } finally {
+            peers[0].shutdown().awaitUninterruptibly();
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Every peer bootstraps to a random peer that started before, with a limited number of bootstraps in parallel.
+     */
+    private static void bootstrap(final PeerDHT[] peers, final Random rnd) {
+        final List<FutureBootstrap> running = new ArrayList<FutureBootstrap>();
+        for (int i = 1; i < peers.length; i++) {
+            final PeerDHT known = peers[rnd.nextInt(i)];
+            running.add(peers[i].peer().bootstrap().peerAddress(known.peerAddress()).start());
+            if (running.size() >= BOOTSTRAP_PARALLEL) {
+                awaitAll(running);
+            }
+        }
+        awaitAll(running);
+    }
+
+    private static void awaitAll(final List<? extends BaseFuture> futures) {
+        for (BaseFuture future : futures) {
+            future.awaitUninterruptibly();
+        }
+        futures.clear();
+    }
+
+    /**
+     * @return The fraction of puts from random peers that stored the data on the peer closest to the key
+     */
+    private static double probe(final PeerDHT[] peers, final Random rnd) throws IOException {
+        int exact = 0;
+        for (int i = 0; i < CONVERGENCE_PROBES; i++) {
+            final Number160 key = new Number160(rnd);
+            peers[rnd.nextInt(peers.length)].put(key).data(new Data("probe")).start().awaitUninterruptibly();
+            PeerDHT closest = peers[0];
+            for (PeerDHT peer : peers) {
+                if (Number160.compareDistance(key, peer.peerID(), closest.peerID()) < 0) {
+                    closest = peer;
+                }
+            }
+            if (closest.storageLayer().contains(new Number640(key, Number160.ZERO, Number160.ZERO, Number160.ZERO))) {
+                exact++;
+            }
+        }
+        return exact / (double) CONVERGENCE_PROBES;
+    }
+
+    private static long millisSince(final long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    private static final class Stats {
+        private final String name;
+        private final long[] latencies;
+        private int size = 0;
+        private int success = 0;
+        private long messages = 0;
+        private long routingPath = 0;
+
+        private Stats(final String name, final int capacity) {
+            this.name = name;
+            this.latencies = new long[capacity];
+        }
+
+        private void add(final BaseFuture future, final long nanos, final long messages,
+                final FutureRouting futureRouting) {
+            latencies[size++] = nanos;
+            if (future.isSuccess()) {
+                success++;
+            }
+            this.messages += messages;
+            if (futureRouting != null && futureRouting.isSuccess()) {
+                routingPath += futureRouting.routingPath().size();
+            }
+        }
+
+        private void print() {
+            final long[] sorted = Arrays.copyOf(latencies, size);
+            Arrays.sort(sorted);
+            System.out.printf("%-4s ok %d/%d, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, %.1f msg/op, %.1f routing peers/op%n",
+                    name, success, size, percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                    messages / (double) size, routingPath / (double) size);
+        }
+
+        private static double percentile(final long[] sorted, final double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1000000.0;
+        }
+    }
+}
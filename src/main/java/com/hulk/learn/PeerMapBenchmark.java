@@ -0,0 +1,71 @@
+package com.hulk.learn;
+
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.peers.PeerMap;
+import trunk.social.p2p.peers.PeerMapConfiguration;
+import trunk.social.p2p.peers.PeerStatistic;
+
+import java.util.NavigableSet;
+import java.util.Random;
+
+/**
+ * Micro benchmark for the close peer lookup of the PeerMap with many known peers. Compares the sorted set lookup with
+ * the top-k selection into a reusable array.
+ */
+public class PeerMapBenchmark {
+    private static final int PEERS = 20000;
+    private static final int K = 20;
+    private static final int KEYS = 1024;
+    private static final int ITERATIONS_SET = 2000;
+    private static final int ITERATIONS_TOP_K = 20000;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        final Random rnd = new Random(42L);
+        final PeerMap peerMap = new PeerMap(new PeerMapConfiguration(new Number160(rnd)).setFixedVerifiedBagSizes(
+                PEERS).setFixedOverflowBagSizes(1).peerNoVerification());
+        for (int i = 0; i < PEERS; i++) {
+            peerMap.peerFound(PeerAddress.create(new Number160(rnd)), null, null, null);
+        }
+        final Number160[] keys = new Number160[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = new Number160(rnd);
+        }
+        System.out.println("peers in map: " + peerMap.size());
+        for (int round = 0; round < 3; round++) {
+            System.out.println("round " + round);
+            report("closePeers(id, atLeast) sorted set", sortedSet(peerMap, keys), ITERATIONS_SET);
+            report("closePeers(id, array) top-k", topK(peerMap, keys), ITERATIONS_TOP_K);
+        }
+    }
+
+    private static long sortedSet(final PeerMap peerMap, final Number160[] keys) {
+        long count = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS_SET; i++) {
+            final NavigableSet<PeerStatistic> set = peerMap.closePeers(keys[i & (KEYS - 1)], K);
+            count += set.size();
+        }
+        final long time = System.nanoTime() - start;
+        sink += count;
+        return time;
+    }
+
+    private static long topK(final PeerMap peerMap, final Number160[] keys) {
+        final PeerStatistic[] result = new PeerStatistic[K];
+        long count = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS_TOP_K; i++) {
+            count += peerMap.closePeers(keys[i & (KEYS - 1)], result);
+        }
+        final long time = System.nanoTime() - start;
+        sink += count;
+        return time;
+    }
+
+    private static void report(final String name, final long nanos, final int iterations) {
+        System.out.printf("%-38s %10.1f ns/op%n", name, nanos / (double) iterations);
+    }
+}
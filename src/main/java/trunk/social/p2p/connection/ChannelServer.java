@@ -99,7 +99,8 @@ public final class ChannelServer implements DiscoverNetworkListener{
 		
 		this.tcpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxTCPIncomingConnections());
 		this.udpDropConnectionInboundHandler = new DropConnectionInboundHandler(channelServerConfiguration.maxUDPIncomingConnections());
-		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory());
+		this.udpDecoderHandler = new TomP2PSinglePacketUDP(channelServerConfiguration.signatureFactory(),
+				channelServerConfiguration.inboundRateLimiter());
 		
 		discoverNetworks.addDiscoverNetworkListener(this);
 		if(timer!=null) {
@@ -363,7 +364,8 @@ public final class ChannelServer implements DiscoverNetworkListener{
 			        new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutFactory.idleStateHandlerTomP2P()));
 			handlers.put("timeout1", new Pair<EventExecutorGroup, ChannelHandler>(null, timeoutFactory.timeHandler()));
 			handlers.put("decoder", new Pair<EventExecutorGroup, ChannelHandler>(null, new TomP2PCumulationTCP(
-			        channelServerConfiguration.signatureFactory(), channelServerConfiguration.byteBufAllocator())));
+			        channelServerConfiguration.signatureFactory(), channelServerConfiguration.byteBufAllocator(),
+			        channelServerConfiguration.inboundRateLimiter())));
 		} else {
 			// we don't need here a timeout since we receive a packet or
 			// nothing. It is different than with TCP where we
@@ -55,6 +55,14 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
     
     private int heartBeatMillis = PeerConnection.HEART_BEAT_MILLIS;
     
+    // 0 means that the dispatch handlers run on the I/O threads
+    private int dispatchThreads = 0;
+    private int dispatchQueueSize = 1000;
+    private boolean dispatchVirtualThreads = false;
+
+    // null means no rate limiting
+    private InboundRateLimiter inboundRateLimiter = null;
+
     private boolean enablePool = false;
     private boolean enableHeap = false;
 
@@ -295,6 +303,76 @@ public class ChannelServerConfiguration implements ConnectionConfiguration {
 	    return this;
     }
 
+	/**
+	 * @return The number of threads that run the dispatch handlers. If 0, the handlers run on the I/O threads and
+	 *         no admission control is done.
+	 */
+	public int dispatchThreads() {
+		return dispatchThreads;
+	}
+
+	/**
+	 * @param dispatchThreads
+	 *            The number of threads that run the dispatch handlers, see {@link DispatchScheduler}
+	 * @return This class
+	 */
+	public ChannelServerConfiguration dispatchThreads(final int dispatchThreads) {
+		this.dispatchThreads = dispatchThreads;
+		return this;
+	}
+
+	/**
+	 * @return The maximum number of queued requests per priority class before requests are shed
+	 */
+	public int dispatchQueueSize() {
+		return dispatchQueueSize;
+	}
+
+	/**
+	 * @param dispatchQueueSize
+	 *            The maximum number of queued requests per priority class before requests are shed
+	 * @return This class
+	 */
+	public ChannelServerConfiguration dispatchQueueSize(final int dispatchQueueSize) {
+		this.dispatchQueueSize = dispatchQueueSize;
+		return this;
+	}
+
+	/**
+	 * @return True if the dispatch handlers run on virtual threads, if the runtime supports them
+	 */
+	public boolean isDispatchVirtualThreads() {
+		return dispatchVirtualThreads;
+	}
+
+	/**
+	 * @param dispatchVirtualThreads
+	 *            Set to true to run the dispatch handlers on virtual threads, if the runtime supports them. This
+	 *            allows a large number of dispatch threads for handlers that block on storage.
+	 * @return This class
+	 */
+	public ChannelServerConfiguration dispatchVirtualThreads(final boolean dispatchVirtualThreads) {
+		this.dispatchVirtualThreads = dispatchVirtualThreads;
+		return this;
+	}
+
+	/**
+	 * @return The per source rate limiter for incoming requests, or null if requests are not rate limited
+	 */
+	public InboundRateLimiter inboundRateLimiter() {
+		return inboundRateLimiter;
+	}
+
+	/**
+	 * @param inboundRateLimiter
+	 *            The per source rate limiter for incoming requests, null to disable
+	 * @return This class
+	 */
+	public ChannelServerConfiguration inboundRateLimiter(final InboundRateLimiter inboundRateLimiter) {
+		this.inboundRateLimiter = inboundRateLimiter;
+		return this;
+	}
+
 	public ChannelServerConfiguration slowResponseTimeoutSeconds(final int slowResponseTimeoutSeconds) {
 		this.slowResponseTimeoutSeconds = slowResponseTimeoutSeconds;
 		return this;
@@ -0,0 +1,401 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package trunk.social.p2p.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.rpc.RPC;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Admission control for incoming requests. The {@link Dispatcher} classifies each request by its
+ * {@link RPC.Commands} into a priority class and queues it in a bounded queue per class. Worker threads always serve
+ * the highest priority class first. If a queue is full, the request is rejected and the dispatcher answers with
+ * {@link trunk.social.p2p.message.Message.Type#BUSY}. Background requests are shed early, as soon as half of the
+ * capacity of the higher classes is in use.
+ * <p>
+ * The worker threads are either platform threads or, if the runtime supports it, virtual threads, which allows many
+ * more workers for handlers that block on storage. Single commands can be assigned to their own executor with
+ * {@link #assign(Executor, int...)}, e.g. to run storage requests on a separate pool. For every priority class, the
+ * time requests spent waiting for a worker is measured.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class DispatchScheduler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(DispatchScheduler.class);
+
+    public static final String THREAD_NAME = "TOMP2P-DISPATCH - ";
+
+    /**
+     * The priority classes, the lower the ordinal, the higher the priority.
+     */
+    public enum Priority {
+        /**
+         * Routing and maintenance, a late answer causes timeouts in the whole network
+         */
+        CRITICAL,
+        /**
+         * Storage, tracker and direct data requests
+         */
+        NORMAL,
+        /**
+         * Replication, synchronization and broadcasts, these are shed first
+         */
+        BACKGROUND
+    }
+
+    private static final Priority[] COMMAND_PRIORITIES = new Priority[RPC.Commands.values().length];
+
+    static {
+        for (int i = 0; i < COMMAND_PRIORITIES.length; i++) {
+            COMMAND_PRIORITIES[i] = Priority.NORMAL;
+        }
+        COMMAND_PRIORITIES[RPC.Commands.PING.ordinal()] = Priority.CRITICAL;
+        COMMAND_PRIORITIES[RPC.Commands.NEIGHBOR.ordinal()] = Priority.CRITICAL;
+        COMMAND_PRIORITIES[RPC.Commands.QUIT.ordinal()] = Priority.CRITICAL;
+        COMMAND_PRIORITIES[RPC.Commands.RELAY.ordinal()] = Priority.CRITICAL;
+        COMMAND_PRIORITIES[RPC.Commands.RCON.ordinal()] = Priority.CRITICAL;
+        COMMAND_PRIORITIES[RPC.Commands.HOLEP.ordinal()] = Priority.CRITICAL;
+        COMMAND_PRIORITIES[RPC.Commands.SYNC.ordinal()] = Priority.BACKGROUND;
+        COMMAND_PRIORITIES[RPC.Commands.SYNC_INFO.ordinal()] = Priority.BACKGROUND;
+        COMMAND_PRIORITIES[RPC.Commands.REPLICA_PUT.ordinal()] = Priority.BACKGROUND;
+        COMMAND_PRIORITIES[RPC.Commands.PEX.ordinal()] = Priority.BACKGROUND;
+        COMMAND_PRIORITIES[RPC.Commands.BROADCAST.ordinal()] = Priority.BACKGROUND;
+    }
+
+    private final List<BlockingQueue<Task>> queues;
+    private final AtomicLong[] dropped;
+    private final AtomicLong[] processed;
+    private final AtomicLong[] queueTimeNanos;
+    private final AtomicLong[] maxQueueTimeNanos;
+    private final int queueSize;
+
+    // commands that are not run by the workers, but by their own executor
+    private final AtomicReferenceArray<Executor> executors = new AtomicReferenceArray<Executor>(
+            RPC.Commands.values().length);
+
+    // one permit per queued request
+    private final Semaphore pending = new Semaphore(0);
+    private final Thread[] workers;
+    private volatile boolean running = true;
+
+    /**
+     * Creates the scheduler and starts the worker threads as platform threads.
+     *
+     * @param threads
+     *            The number of worker threads that run the dispatch handlers
+     * @param queueSize
+     *            The maximum number of queued requests per priority class
+     */
+    public DispatchScheduler(final int threads, final int queueSize) {
+        this(threads, queueSize, false);
+    }
+
+    /**
+     * Creates the scheduler and starts the worker threads.
+     *
+     * @param threads
+     *            The number of worker threads that run the dispatch handlers
+     * @param queueSize
+     *            The maximum number of queued requests per priority class
+     * @param virtualThreads
+     *            Set to true to use virtual threads as workers. If the runtime does not support virtual threads,
+     *            platform threads are used.
+     */
+    public DispatchScheduler(final int threads, final int queueSize, final boolean virtualThreads) {
+        if (threads <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("Threads and queue size need to be larger than zero.");
+        }
+        final int len = Priority.values().length;
+        this.queueSize = queueSize;
+        this.queues = new ArrayList<BlockingQueue<Task>>(len);
+        this.dropped = new AtomicLong[len];
+        this.processed = new AtomicLong[len];
+        this.queueTimeNanos = new AtomicLong[len];
+        this.maxQueueTimeNanos = new AtomicLong[len];
+        for (int i = 0; i < len; i++) {
+            queues.add(new ArrayBlockingQueue<Task>(queueSize));
+            dropped[i] = new AtomicLong();
+            processed[i] = new AtomicLong();
+            queueTimeNanos[i] = new AtomicLong();
+            maxQueueTimeNanos[i] = new AtomicLong();
+        }
+        if (virtualThreads && !isVirtualThreadSupported()) {
+            LOG.warn("Virtual threads are not supported by this runtime, using platform threads.");
+        }
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = virtualThreads ? newVirtualThread(new Worker(), THREAD_NAME + i) : null;
+            if (workers[i] == null) {
+                workers[i] = new Thread(new Worker(), THREAD_NAME + i);
+                workers[i].setDaemon(true);
+            }
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Assigns commands to their own executor. Requests with these commands bypass the priority queues of the
+     * workers. If the executor rejects a request, e.g. a full bounded thread pool, the sender is told that we are busy.
+     *
+     * @param executor
+     *            The executor that runs the dispatch handlers of these commands, or null to run them on the workers
+     *            again
+     * @param commands
+     *            The commands, see {@link RPC.Commands#getNr()}
+     * @return This class
+     * @throws IllegalArgumentException
+     *             If a command is not a valid command number
+     */
+    public DispatchScheduler assign(final Executor executor, final int... commands) {
+        final int nrCommands = RPC.Commands.values().length;
+        for (int command : commands) {
+            if (command < 0 || command >= nrCommands) {
+                throw new IllegalArgumentException("Unknown command " + command + ", expected 0 to "
+                        + (nrCommands - 1));
+            }
+        }
+        for (int command : commands) {
+            executors.set(command, executor);
+        }
+        return this;
+    }
+
+    /**
+     * @return True if the runtime supports virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an unstarted virtual thread with reflection, as we compile against older runtimes.
+     *
+     * @return The thread or null if virtual threads are not supported
+     */
+    private static Thread newVirtualThread(final Runnable runnable, final String name) {
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builderClass.getMethod("name", String.class).invoke(builder, name);
+            final Method unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            return (Thread) unstarted.invoke(builder, runnable);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param command
+     *            The command of the request, see {@link RPC.Commands#getNr()}
+     * @return The priority class of this command
+     */
+    public static Priority priority(final int command) {
+        if (command < 0 || command >= COMMAND_PRIORITIES.length) {
+            return Priority.NORMAL;
+        }
+        return COMMAND_PRIORITIES[command];
+    }
+
+    /**
+     * Queues a request for execution.
+     *
+     * @param command
+     *            The command of the request
+     * @param task
+     *            The task that calls the dispatch handler
+     * @return True if the request was accepted, false if it was shed and the sender should be told that we are busy
+     */
+    public boolean offer(final int command, final Runnable task) {
+        final Priority priority = priority(command);
+        if (!running) {
+            dropped[priority.ordinal()].incrementAndGet();
+            return false;
+        }
+        final Executor executor = command >= 0 && command < executors.length() ? executors.get(command) : null;
+        if (executor != null) {
+            try {
+                executor.execute(new Task(task, priority.ordinal()));
+                return true;
+            } catch (RejectedExecutionException e) {
+                dropped[priority.ordinal()].incrementAndGet();
+                LOG.debug("Executor rejected request {}.", RPC.Commands.find(command));
+                return false;
+            }
+        }
+        if (priority == Priority.BACKGROUND && isOverloaded()) {
+            dropped[priority.ordinal()].incrementAndGet();
+            LOG.debug("Overloaded, shed background request {}.", RPC.Commands.find(command));
+            return false;
+        }
+        if (!queues.get(priority.ordinal()).offer(new Task(task, priority.ordinal()))) {
+            dropped[priority.ordinal()].incrementAndGet();
+            LOG.debug("Queue {} full, shed request {}.", priority, RPC.Commands.find(command));
+            return false;
+        }
+        pending.release();
+        return true;
+    }
+
+    private boolean isOverloaded() {
+        int queued = 0;
+        for (int i = 0; i < Priority.BACKGROUND.ordinal(); i++) {
+            queued += queues.get(i).size();
+        }
+        return queued >= (queueSize * Priority.BACKGROUND.ordinal()) / 2;
+    }
+
+    /**
+     * @param priority
+     *            The priority class
+     * @return The number of requests currently waiting in this class
+     */
+    public int queueDepth(final Priority priority) {
+        return queues.get(priority.ordinal()).size();
+    }
+
+    /**
+     * @param priority
+     *            The priority class
+     * @return The number of requests that were rejected in this class
+     */
+    public long dropped(final Priority priority) {
+        return dropped[priority.ordinal()].get();
+    }
+
+    /**
+     * @param priority
+     *            The priority class
+     * @return The number of requests that were handed to the dispatch handlers in this class
+     */
+    public long processed(final Priority priority) {
+        return processed[priority.ordinal()].get();
+    }
+
+    /**
+     * @param priority
+     *            The priority class
+     * @return The average time in milliseconds a request of this class waited before its handler was called
+     */
+    public double averageQueueTimeMillis(final Priority priority) {
+        final long count = processed[priority.ordinal()].get();
+        if (count == 0) {
+            return 0;
+        }
+        return queueTimeNanos[priority.ordinal()].get() / (count * 1000000d);
+    }
+
+    /**
+     * @param priority
+     *            The priority class
+     * @return The longest time in milliseconds a request of this class waited before its handler was called
+     */
+    public double maxQueueTimeMillis(final Priority priority) {
+        return maxQueueTimeNanos[priority.ordinal()].get() / 1000000d;
+    }
+
+    /**
+     * Stops the worker threads. Requests that are still queued are not executed anymore.
+     */
+    public void shutdown() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        for (BlockingQueue<Task> queue : queues) {
+            queue.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("DispatchScheduler");
+        for (Priority priority : Priority.values()) {
+            sb.append(" ").append(priority).append(":").append(queueDepth(priority)).append("/")
+                    .append(dropped(priority)).append("/").append(averageQueueTimeMillis(priority)).append("ms");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A request that waits for execution, measures the time it waited.
+     */
+    private class Task implements Runnable {
+        private final Runnable delegate;
+        private final int priority;
+        private final long enqueuedNanos = System.nanoTime();
+
+        private Task(final Runnable delegate, final int priority) {
+            this.delegate = delegate;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            final long waited = System.nanoTime() - enqueuedNanos;
+            processed[priority].incrementAndGet();
+            queueTimeNanos[priority].addAndGet(waited);
+            final AtomicLong max = maxQueueTimeNanos[priority];
+            long current = max.get();
+            while (waited > current && !max.compareAndSet(current, waited)) {
+                current = max.get();
+            }
+            delegate.run();
+        }
+    }
+
+    private class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    pending.acquire();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                for (int i = 0; i < queues.size(); i++) {
+                    final Task task = queues.get(i).poll();
+                    if (task != null) {
+                        try {
+                            task.run();
+                        } catch (Throwable t) {
+                            LOG.error("Exception in dispatch worker.", t);
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
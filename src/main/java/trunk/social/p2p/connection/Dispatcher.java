@@ -73,6 +73,10 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
     final private Map<Integer, FutureResponse> pendingRequests = new ConcurrentHashMap<Integer, FutureResponse>();
 
     final private ChannelServerConfiguration csc;
+
+    // null if the handlers run on the I/O threads
+    final private DispatchScheduler dispatchScheduler;
+
     /**
      * Creates a dispatcher.
      *
@@ -85,6 +89,24 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
         this.p2pID = p2pID;
         this.peerBeanMaster = peerBeanMaster;
         this.csc = csc;
+        this.dispatchScheduler = csc.dispatchThreads() > 0 ? new DispatchScheduler(csc.dispatchThreads(),
+                csc.dispatchQueueSize(), csc.isDispatchVirtualThreads()) : null;
+    }
+
+    /**
+     * @return The scheduler that queues and sheds incoming requests, or null if the handlers run on the I/O threads
+     */
+    public DispatchScheduler dispatchScheduler() {
+        return dispatchScheduler;
+    }
+
+    /**
+     * Stops the dispatch workers, if any.
+     */
+    public void shutdown() {
+        if (dispatchScheduler != null) {
+            dispatchScheduler.shutdown();
+        }
     }
     
     public PeerBean peerBean() {
@@ -191,13 +213,29 @@ public class Dispatcher extends SimpleChannelInboundHandler<Message> {
         	return;
         }
  
-        Responder responder = new DirectResponder(ctx, message);
+        final Responder responder = new DirectResponder(ctx, message);
         final DispatchHandler myHandler = associatedHandler(message);
         if (myHandler != null) {
             boolean isUdp = ctx.channel() instanceof DatagramChannel;
 			LOG.debug("About to respond to request message {}.", message);
-            PeerConnection peerConnection = new PeerConnection(message.sender(), new DefaultChannelPromise(ctx.channel()).setSuccess(), 0, 0);
-            myHandler.forwardMessage(message, isUdp ? null : peerConnection, responder);
+            final PeerConnection peerConnection = isUdp ? null : new PeerConnection(message.sender(),
+                    new DefaultChannelPromise(ctx.channel()).setSuccess(), 0, 0);
+            if (dispatchScheduler == null) {
+                myHandler.forwardMessage(message, peerConnection, responder);
+                return;
+            }
+            final boolean accepted = dispatchScheduler.offer(message.command(), new Runnable() {
+                @Override
+                public void run() {
+                    myHandler.forwardMessage(message, peerConnection, responder);
+                }
+            });
+            if (!accepted) {
+                message.release();
+                Message responseMessage = DispatchHandler.createResponseMessage(message, Message.Type.BUSY,
+                        peerBeanMaster.serverPeerAddress());
+                response(ctx, responseMessage);
+            }
         } else {
         	message.release();
         	if (LOG.isWarnEnabled()) {
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package trunk.social.p2p.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.DispatchScheduler.Priority;
+import trunk.social.p2p.peers.Number160;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per source token bucket rate limiting for incoming requests. Each request is charged against two buckets: one for
+ * the peer ID of the sender and one for its source IP, both per priority class of the command (see
+ * {@link DispatchScheduler#priority(int)}). The IP bucket allows more requests, since several peers may share an IP.
+ * <p>
+ * The buckets are stored in a fixed size table of primitive arrays, so the memory is bounded regardless of the number
+ * of sources. A slot is shared by two candidate positions and the least recently used one is taken over by a new
+ * source. A bucket that was not used for longer than it takes to refill completely is expired and counts as full, so
+ * it can be reused without losing any information. The decoders call this class right after the header has been
+ * decoded, before the payload is processed.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class InboundRateLimiter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InboundRateLimiter.class);
+
+    private static final int LOCK_STRIPES = 64;
+
+    private static final long PEER_KEY = 0x5bd1e995L;
+    private static final long IP_KEY = 0x1b873593L;
+
+    private final int mask;
+    private final long[] keys;
+    private final long[] lastRefillNanos;
+    private final float[] tokens;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final double[] ratePerSecond = new double[Priority.values().length];
+    private final double[] burst = new double[Priority.values().length];
+    private final int ipFactor;
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates a rate limiter with 2^20 buckets (20MB), 100 requests per second for critical, 50 for normal and 10 for
+     * background requests per peer. The IP limit is 4 times the peer limit.
+     */
+    public InboundRateLimiter() {
+        this(1 << 20, 4);
+        limit(Priority.CRITICAL, 100, 200);
+        limit(Priority.NORMAL, 50, 100);
+        limit(Priority.BACKGROUND, 10, 50);
+    }
+
+    /**
+     * Creates a rate limiter without limits. Use {@link #limit(Priority, double, double)} to set them.
+     *
+     * @param buckets
+     *            The number of buckets, rounded up to the next power of two. Each bucket uses 20 bytes.
+     * @param ipFactor
+     *            The IP bucket allows ipFactor times more requests than the peer ID bucket
+     */
+    public InboundRateLimiter(final int buckets, final int ipFactor) {
+        if (buckets <= 0 || ipFactor <= 0) {
+            throw new IllegalArgumentException("Buckets and IP factor need to be larger than zero.");
+        }
+        final int size = Integer.highestOneBit(Math.max(2, buckets - 1)) << 1;
+        this.mask = size - 1;
+        this.keys = new long[size];
+        this.lastRefillNanos = new long[size];
+        this.tokens = new float[size];
+        this.ipFactor = ipFactor;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        Arrays.fill(ratePerSecond, Double.MAX_VALUE);
+        Arrays.fill(burst, Double.MAX_VALUE);
+    }
+
+    /**
+     * Sets the limit for a priority class.
+     *
+     * @param priority
+     *            The priority class
+     * @param ratePerSecond
+     *            The number of requests per second a single peer may send
+     * @param burst
+     *            The number of requests a single peer may send at once
+     * @return This class
+     */
+    public InboundRateLimiter limit(final Priority priority, final double ratePerSecond, final double burst) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate needs to be larger than zero and burst at least one.");
+        }
+        this.ratePerSecond[priority.ordinal()] = ratePerSecond;
+        this.burst[priority.ordinal()] = burst;
+        return this;
+    }
+
+    /**
+     * Checks if a request is allowed and takes a token from the buckets of this source.
+     *
+     * @param peerId
+     *            The peer ID of the sender as found in the header
+     * @param sender
+     *            The socket address the request came from
+     * @param command
+     *            The command of the request
+     * @return True if the request is allowed, false if it should be dropped
+     */
+    public boolean tryAcquire(final Number160 peerId, final InetSocketAddress sender, final int command) {
+        final Priority priority = DispatchScheduler.priority(command);
+        final int p = priority.ordinal();
+        if (ratePerSecond[p] == Double.MAX_VALUE) {
+            return true;
+        }
+        final long now = System.nanoTime();
+        final boolean allowed;
+        final InetAddress inetAddress = sender == null ? null : sender.getAddress();
+        if (inetAddress != null
+                && !tryAcquire(fingerprint(IP_KEY, inetAddress.hashCode(), p), now, ratePerSecond[p] * ipFactor,
+                        burst[p] * ipFactor)) {
+            allowed = false;
+        } else if (peerId != null
+                && !tryAcquire(fingerprint(PEER_KEY, peerId.hashCode() ^ (int) (peerId.longValue() >>> 32), p),
+                        now, ratePerSecond[p], burst[p])) {
+            allowed = false;
+        } else {
+            allowed = true;
+        }
+        if (!allowed) {
+            rejected.incrementAndGet();
+            LOG.debug("Rate limit for {} from {} / {} reached.", priority, peerId, sender);
+        }
+        return allowed;
+    }
+
+    /**
+     * @return The number of requests that were rejected because a limit was reached
+     */
+    public long rejected() {
+        return rejected.get();
+    }
+
+    private boolean tryAcquire(final long key, final long now, final double rate, final double max) {
+        final int hash = (int) (key ^ (key >>> 32));
+        final int slot1 = hash & mask;
+        final int slot2 = slot1 ^ 1;
+        synchronized (locks[(slot1 >>> 1) & (LOCK_STRIPES - 1)]) {
+            final int slot;
+            if (keys[slot1] == key) {
+                slot = slot1;
+            } else if (keys[slot2] == key) {
+                slot = slot2;
+            } else {
+                // take over the least recently used bucket, a new source starts with a full bucket
+                slot = lastRefillNanos[slot1] - lastRefillNanos[slot2] <= 0 ? slot1 : slot2;
+                keys[slot] = key;
+                tokens[slot] = (float) max;
+                lastRefillNanos[slot] = now;
+            }
+            final double elapsedSeconds = (now - lastRefillNanos[slot]) / 1e9d;
+            double available = Math.min(max, tokens[slot] + elapsedSeconds * rate);
+            lastRefillNanos[slot] = now;
+            if (available < 1) {
+                tokens[slot] = (float) available;
+                return false;
+            }
+            tokens[slot] = (float) (available - 1);
+            return true;
+        }
+    }
+
+    private static long fingerprint(final long kind, final int sourceHash, final int priority) {
+        final long key = ((kind << 32) ^ (sourceHash & 0xffffffffL) ^ ((long) priority << 56)) * 0x9e3779b97f4a7c15L;
+        // avoid 0, which marks an empty bucket
+        return key == 0 ? 1 : key;
+    }
+}
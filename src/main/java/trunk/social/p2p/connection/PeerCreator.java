@@ -146,6 +146,7 @@ public class PeerCreator {
 		if (!master) {
 			return futureServerDone.done();
 		}
+		connectionBean.dispatcher().shutdown();
 		// shutdown the timer
 		for(Runnable runner: connectionBean.timer().shutdownNow()) {
 			runner.run();
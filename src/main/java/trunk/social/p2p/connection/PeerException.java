@@ -30,12 +30,13 @@ public class PeerException extends Exception {
      * USER_ABORT means that this peer aborts the communication. PEER_ERROR
      * means that the other peer did not react as expected (e.g., no reply).
      * PEER_ABORT means that the other peer found an error on our side (e.g., if
-     * this peer thinks the other peer is someone else).
+     * this peer thinks the other peer is someone else). PEER_BUSY means that
+     * the other peer is alive, but overloaded and rejected the request.
      * 
      * @author Thomas Bocek
      */
     public enum AbortCause {
-        USER_ABORT, PEER_ERROR, PEER_ABORT, TIMEOUT, SHUTDOWN, PROBABLY_OFFLINE
+        USER_ABORT, PEER_ERROR, PEER_ABORT, TIMEOUT, SHUTDOWN, PROBABLY_OFFLINE, PEER_BUSY
     }
 
     private final AbortCause abortCause;
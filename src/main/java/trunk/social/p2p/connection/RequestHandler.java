@@ -259,6 +259,15 @@ public class RequestHandler<K extends FutureResponse> extends SimpleChannelInbou
             responseMessage.release();
             return;
 		} 
+        if (responseMessage.type() == Message.Type.BUSY) {
+            // the peer is alive, but shed our request, so don't report it as failed to the peer map
+            LOG.debug("Peer {} is busy, request was rejected: {}.", responseMessage.sender(), this.message);
+            futureResponse.failedLater(new PeerException(PeerException.AbortCause.PEER_BUSY,
+                    "Peer is overloaded and rejected the request: " + this.message));
+            responseMessage.release();
+            ctx.close();
+            return;
+        }
         if (responseMessage.type() == Message.Type.EXCEPTION) {
             String msg = "Message caused an exception on the other side, handle as peer_abort: "
                     + this.message;
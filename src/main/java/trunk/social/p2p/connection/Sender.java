@@ -67,6 +67,8 @@ public class Sender {
 
 	private PingBuilderFactory pingBuilderFactory;
 
+	private volatile SimulatedNetwork simulatedNetwork;
+
 	/**
 	 * Creates a new sender with the listeners for offline peers.
 	 * 
@@ -101,6 +103,23 @@ public class Sender {
 		return this;
 	}
 
+	public SimulatedNetwork simulatedNetwork() {
+		return simulatedNetwork;
+	}
+
+	/**
+	 * Sends the messages between peers that share this sender over a simulated network instead of handing them
+	 * directly to the dispatcher.
+	 * 
+	 * @param simulatedNetwork
+	 *            The simulated network, or null to deliver the messages directly
+	 * @return This class
+	 */
+	public Sender simulatedNetwork(SimulatedNetwork simulatedNetwork) {
+		this.simulatedNetwork = simulatedNetwork;
+		return this;
+	}
+
 	/**
 	 * Sends a message via TCP.
 	 * 
@@ -156,7 +175,11 @@ public class Sender {
 						timeoutHandler);
 				break;
 			case SELF:
-				sendSelf(futureResponse, message);
+				if (simulatedNetwork != null && simulatedNetwork.isSimulated(message)) {
+					simulatedNetwork.send(dispatcher, futureResponse, message, idleTCPMillis);
+				} else {
+					sendSelf(futureResponse, message);
+				}
 				break;
 			default:
 				throw new IllegalArgumentException("Illegal sending behavior");
@@ -539,6 +562,10 @@ public class Sender {
                                 doRelayFallbackUDP(futureResponse, message, broadcast, handlers, channelCreator, handler);
                                 return;
 			case SELF:
+				if (simulatedNetwork != null && simulatedNetwork.isSimulated(message)) {
+					simulatedNetwork.send(dispatcher, futureResponse, message, idleUDPMillis);
+					return;
+				}
 				LOG.debug("Send to self");
 				sendSelf(futureResponse, message);
 				return;
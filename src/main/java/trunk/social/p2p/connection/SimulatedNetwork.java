@@ -0,0 +1,355 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.connection;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.futures.FutureDone;
+import trunk.social.p2p.futures.FutureResponse;
+import trunk.social.p2p.message.DataFilter;
+import trunk.social.p2p.message.DataFilterTTL;
+import trunk.social.p2p.message.Message;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number320;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.rpc.DispatchHandler;
+import trunk.social.p2p.rpc.RPC;
+import trunk.social.p2p.storage.Data;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory network for peers that share a master peer, see {@link trunk.social.p2p.p2p.PeerBuilder#masterPeer}.
+ * Such peers already exchange their messages through the dispatcher without touching a socket. If a simulated network
+ * is set in the {@link Sender} of the master peer, these messages are delayed, dropped and limited in bandwidth
+ * according to the {@link Link} between the two peers, so that thousands of peers in one JVM behave like peers on
+ * separate hosts.
+ * <p>
+ * A request that is dropped, or whose reply is dropped, fails after the idle timeout of the request, like a request
+ * over UDP or TCP that is not answered. A reply is reported to the peer map of the requesting peer as first hand
+ * information, the same as the {@link RequestHandler} does for a reply from the network.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class SimulatedNetwork {
+
+	private static final Logger LOG = LoggerFactory.getLogger(SimulatedNetwork.class);
+
+	private static final DataFilter DATA_FILTER_TTL = new DataFilterTTL();
+
+	private final ScheduledExecutorService timer;
+	private final Random random;
+	private final ConcurrentMap<Number320, Link> links = new ConcurrentHashMap<Number320, Link>();
+	// the time in nanoseconds until a link is busy sending previous messages
+	private final ConcurrentMap<Number320, long[]> busyUntil = new ConcurrentHashMap<Number320, long[]>();
+
+	private volatile Link defaultLink = new Link(0, 0, 0, 0);
+
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Creates a simulated network without latency, loss or bandwidth limit, use {@link #defaultLink(Link)} and
+	 * {@link #link(Number160, Number160, Link)} to configure it.
+	 *
+	 * @param timer
+	 *            The timer that delivers the messages after their delay
+	 * @param seed
+	 *            The seed for the random latency and loss, to make runs reproducible
+	 */
+	public SimulatedNetwork(final ScheduledExecutorService timer, final long seed) {
+		this.timer = timer;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Sets the link that is used between peers that have no link of their own.
+	 *
+	 * @param defaultLink
+	 *            The default link
+	 * @return This class
+	 */
+	public SimulatedNetwork defaultLink(final Link defaultLink) {
+		this.defaultLink = defaultLink;
+		return this;
+	}
+
+	public Link defaultLink() {
+		return defaultLink;
+	}
+
+	/**
+	 * Sets the link for messages from one peer to another. The link is directed, the reverse direction needs to be
+	 * set separately.
+	 *
+	 * @param from
+	 *            The sending peer
+	 * @param to
+	 *            The receiving peer
+	 * @param link
+	 *            The link, or null to use the default link again
+	 * @return This class
+	 */
+	public SimulatedNetwork link(final Number160 from, final Number160 to, final Link link) {
+		if (link == null) {
+			links.remove(new Number320(from, to));
+		} else {
+			links.put(new Number320(from, to), link);
+		}
+		return this;
+	}
+
+	/**
+	 * @return True, if the message is exchanged between two different peers sharing this dispatcher and should go
+	 *         over the simulated network
+	 */
+	public boolean isSimulated(final Message message) {
+		return !message.recipient().peerId().equals(message.sender().peerId());
+	}
+
+	/**
+	 * Delivers the request to the recipient after the delay of the link, and the reply back to the sender.
+	 *
+	 * @param dispatcher
+	 *            The dispatcher shared by the peers
+	 * @param futureResponse
+	 *            The future to set the response
+	 * @param message
+	 *            The request
+	 * @param timeoutMillis
+	 *            The time after which an unanswered request fails
+	 */
+	public void send(final Dispatcher dispatcher, final FutureResponse futureResponse, final Message message,
+			final int timeoutMillis) {
+		final PeerAddress sender = message.sender();
+		final PeerAddress recipient = message.recipient();
+		if (timeoutMillis > 0) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (!futureResponse.isCompleted()) {
+						futureResponse.failed("Simulated timeout after " + timeoutMillis + "ms.");
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		// the same as the encoder and decoder would do with the data
+		final Message request = message.duplicate(new DataFilter() {
+			@Override
+			public Data filter(Data data, boolean isConvertMeta, boolean isReply) {
+				if (data.isSigned() && data.signature() == null) {
+					data.protectEntry(message.privateKey());
+				}
+				data.validFromMillis(System.currentTimeMillis());
+				return data.duplicate();
+			}
+		});
+		final long delayNanos = deliveryDelayNanos(sender.peerId(), recipient.peerId(), message.estimateSize());
+		if (delayNanos < 0) {
+			LOG.debug("Simulated loss of request {}.", message);
+			return;
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				deliverRequest(dispatcher, futureResponse, request);
+			}
+		}, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void deliverRequest(final Dispatcher dispatcher, final FutureResponse futureResponse,
+			final Message request) {
+		final DispatchHandler handler = dispatcher.associatedHandler(request);
+		if (handler == null) {
+			// like a closed port, the sender notices this right away
+			futureResponse.failed("Peer " + request.recipient() + " is not in the simulated network.");
+			return;
+		}
+		handler.forwardMessage(request, null, new Responder() {
+			@Override
+			public FutureDone<Void> response(final Message responseMessage) {
+				final Message reply = responseMessage.duplicate(DATA_FILTER_TTL);
+				final long delayNanos = deliveryDelayNanos(request.recipient().peerId(), request.sender().peerId(),
+						responseMessage.estimateSize());
+				if (delayNanos < 0) {
+					LOG.debug("Simulated loss of reply {}.", responseMessage);
+				} else {
+					timer.schedule(new Runnable() {
+						@Override
+						public void run() {
+							deliverReply(dispatcher, futureResponse, request.sender().peerId(), reply);
+						}
+					}, delayNanos, TimeUnit.NANOSECONDS);
+				}
+				return new FutureDone<Void>().done();
+			}
+
+			@Override
+			public void failed(final Message.Type type, final String reason) {
+				futureResponse.failed("Failed with type " + type.name() + ". Reason: " + reason);
+			}
+
+			@Override
+			public void responseFireAndForget() {
+				futureResponse.emptyResponse();
+			}
+		});
+	}
+
+	private void deliverReply(final Dispatcher dispatcher, final FutureResponse futureResponse,
+			final Number160 requesterId, final Message reply) {
+		if (futureResponse.isCompleted()) {
+			return;
+		}
+		futureResponse.stopRTTMeasurement();
+		if (reply.isOk() || reply.isNotOk()) {
+			final DispatchHandler requester = dispatcher.searchHandler(requesterId, requesterId,
+					RPC.Commands.PING.getNr());
+			if (requester != null) {
+				requester.peerBean().notifyPeerFound(reply.sender(), null, null, futureResponse.getRoundTripTime());
+			}
+		}
+		futureResponse.response(reply);
+	}
+
+	/**
+	 * Calculates when a message arrives over the link between two peers. The message first waits until the messages
+	 * sent before over the same link are transmitted, then it is transmitted with the bandwidth of the link, and then
+	 * it takes the latency of the link to arrive.
+	 *
+	 * @return The delay in nanoseconds, or -1 if the message is lost
+	 */
+	private long deliveryDelayNanos(final Number160 from, final Number160 to, final int size) {
+		final Number320 key = new Number320(from, to);
+		Link link = links.get(key);
+		if (link == null) {
+			link = defaultLink;
+		}
+		messages.incrementAndGet();
+		bytes.addAndGet(size);
+		final long latencyNanos;
+		synchronized (random) {
+			if (link.lossRate > 0 && random.nextDouble() < link.lossRate) {
+				dropped.incrementAndGet();
+				return -1;
+			}
+			final int jitter = link.jitterMillis > 0 ? random.nextInt(link.jitterMillis + 1) : 0;
+			latencyNanos = TimeUnit.MILLISECONDS.toNanos(link.latencyMillis + jitter);
+		}
+		if (link.bytesPerSecond <= 0) {
+			return latencyNanos;
+		}
+		final long now = System.nanoTime();
+		final long transmitNanos = size * 1000000000L / link.bytesPerSecond;
+		long[] busy = busyUntil.get(key);
+		if (busy == null) {
+			final long[] newBusy = new long[] { now };
+			busy = busyUntil.putIfAbsent(key, newBusy);
+			if (busy == null) {
+				busy = newBusy;
+			}
+		}
+		final long sent;
+		synchronized (busy) {
+			sent = Math.max(now, busy[0]) + transmitNanos;
+			busy[0] = sent;
+		}
+		return sent - now + latencyNanos;
+	}
+
+	/**
+	 * @return The number of requests and replies sent over the simulated network, including the lost ones
+	 */
+	public long messages() {
+		return messages.get();
+	}
+
+	/**
+	 * @return The estimated number of bytes sent over the simulated network
+	 */
+	public long bytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return The number of lost requests and replies
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder("simnet:");
+		sb.append("msg:").append(messages()).append(",bytes:").append(bytes()).append(",dropped:").append(dropped());
+		return sb.toString();
+	}
+
+	/**
+	 * The properties of a directed link between two peers.
+	 */
+	public static final class Link {
+		private final int latencyMillis;
+		private final int jitterMillis;
+		private final double lossRate;
+		private final int bytesPerSecond;
+
+		/**
+		 * @param latencyMillis
+		 *            The one way latency of the link
+		 * @param jitterMillis
+		 *            A random delay between 0 and this value added to each message
+		 * @param lossRate
+		 *            The probability between 0 and 1 that a message is lost
+		 * @param bytesPerSecond
+		 *            The bandwidth of the link, 0 for unlimited
+		 */
+		public Link(final int latencyMillis, final int jitterMillis, final double lossRate, final int bytesPerSecond) {
+			if (latencyMillis < 0 || jitterMillis < 0 || lossRate < 0 || lossRate > 1 || bytesPerSecond < 0) {
+				throw new IllegalArgumentException("Latency, jitter and bandwidth cannot be negative, loss rate needs to be between 0 and 1.");
+			}
+			this.latencyMillis = latencyMillis;
+			this.jitterMillis = jitterMillis;
+			this.lossRate = lossRate;
+			this.bytesPerSecond = bytesPerSecond;
+		}
+
+		public int latencyMillis() {
+			return latencyMillis;
+		}
+
+		public int jitterMillis() {
+			return jitterMillis;
+		}
+
+		public double lossRate() {
+			return lossRate;
+		}
+
+		public int bytesPerSecond() {
+			return bytesPerSecond;
+		}
+	}
+}
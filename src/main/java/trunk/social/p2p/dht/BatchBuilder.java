@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.futures.FutureChannelCreator;
+import trunk.social.p2p.peers.Number160;
+
+import java.util.Collection;
+
+/**
+ * The common part of the builders that work on many location keys at once. The location keys are routed with
+ * {@link #parallel()} routings at the same time, afterwards the keys are grouped by the peers responsible for them and
+ * each peer gets one request with all its keys.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the builder
+ */
+public abstract class BatchBuilder<K extends BatchBuilder<K>> extends DHTBuilder<K> {
+
+    private int parallel = 8;
+
+    private K self;
+
+    public BatchBuilder(final PeerDHT peer) {
+        super(peer, null);
+    }
+
+    @Override
+    public void self(final K self) {
+        super.self(self);
+        this.self = self;
+    }
+
+    /**
+     * @return The location keys of this batch
+     */
+    public abstract Collection<Number160> locationKeys();
+
+    /**
+     * @return The number of routings and the number of requests to peers that run at the same time
+     */
+    public int parallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel
+     *            The number of routings and the number of requests to peers that run at the same time
+     * @return This class
+     */
+    public K parallel(final int parallel) {
+        if (parallel < 1) {
+            throw new IllegalArgumentException("Need at least one operation in parallel.");
+        }
+        this.parallel = parallel;
+        return self;
+    }
+
+    /**
+     * Reserves the connections for {@link #parallel()} routings and {@link #parallel()} requests.
+     */
+    @Override
+    protected FutureChannelCreator reserve() {
+        final int routingPermits = (routingConfiguration.parallel() + routingConfiguration.maxExtraParallel())
+                * parallel;
+        int permitsUDP = 0;
+        int permitsTCP = 0;
+        if (isForceUDP()) {
+            permitsUDP = parallel;
+        } else {
+            permitsTCP = parallel;
+        }
+        if (!isForceTCP()) {
+            permitsUDP = Math.max(permitsUDP, routingPermits);
+        } else {
+            permitsTCP = Math.max(permitsTCP, routingPermits);
+        }
+        return peer.peer().connectionBean().reservation().create(permitsUDP, permitsTCP);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.storage.Data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Gets data of many location keys with one operation. Each peer responsible for some of the keys gets one get request
+ * with all its keys. The results of the peers are evaluated per location key with the evaluation scheme.
+ *
+ * @author Thomas Bocek
+ */
+public class BatchGetBuilder extends BatchBuilder<BatchGetBuilder> {
+    private final static FutureBatch<Map<Number640, Data>> FUTURE_SHUTDOWN = new FutureBatch<Map<Number640, Data>>(
+            null, Collections.<Number160> emptyList()).failed("batch get builder - peer is shutting down");
+
+    private final NavigableSet<Number640> keys = new TreeSet<Number640>();
+
+    private EvaluatingSchemeDHT evaluationScheme;
+
+    public BatchGetBuilder(final PeerDHT peer) {
+        super(peer);
+        self(this);
+    }
+
+    /**
+     * Adds the key with the content key {@link Number160#ZERO}. The domain and version key need to be set before.
+     *
+     * @param locationKey
+     *            The location key
+     * @return This class
+     */
+    public BatchGetBuilder key(final Number160 locationKey) {
+        return key(locationKey, Number160.ZERO);
+    }
+
+    public BatchGetBuilder key(final Number160 locationKey, final Number160 contentKey) {
+        return key(new Number640(locationKey, domainKey == null ? Number160.ZERO : domainKey, contentKey,
+                versionKey == null ? Number160.ZERO : versionKey));
+    }
+
+    public BatchGetBuilder key(final Number640 key) {
+        keys.add(key);
+        return this;
+    }
+
+    public NavigableSet<Number640> keys() {
+        return keys;
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The keys to get under this location key
+     */
+    public NavigableSet<Number640> keys(final Number160 locationKey) {
+        return keys.subSet(new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO), true,
+                new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE), true);
+    }
+
+    @Override
+    public Collection<Number160> locationKeys() {
+        final Set<Number160> locationKeys = new LinkedHashSet<Number160>();
+        for (Number640 key : keys) {
+            locationKeys.add(key.locationKey());
+        }
+        return locationKeys;
+    }
+
+    public EvaluatingSchemeDHT evaluationScheme() {
+        return evaluationScheme;
+    }
+
+    public BatchGetBuilder evaluationScheme(final EvaluatingSchemeDHT evaluationScheme) {
+        this.evaluationScheme = evaluationScheme;
+        return this;
+    }
+
+    public FutureBatch<Map<Number640, Data>> start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("You must set the keys via key(). Cannot get nothing.");
+        }
+        preBuild("batch-get-builder");
+        if (evaluationScheme == null) {
+            evaluationScheme = new VotingSchemeDHT();
+        }
+        final FutureBatch<Map<Number640, Data>> futureBatch = new FutureBatch<Map<Number640, Data>>(this,
+                locationKeys());
+        return peer.distributedHashTable().batchGet(this, futureBatch);
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.ChannelCreator;
+import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureResponse;
+import trunk.social.p2p.futures.FutureRouting;
+import trunk.social.p2p.message.Message.Type;
+import trunk.social.p2p.p2p.DistributedRouting;
+import trunk.social.p2p.p2p.builder.RoutingBuilder;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.PeerAddress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a batch operation in two phases. First all location keys are routed, with at most {@link BatchBuilder#parallel()}
+ * routings at the same time. Identical routings are shared and cached by {@link DistributedRouting}. Then the keys are
+ * grouped by the closest peers of their routing result, and each of these peers gets one request with all its keys. A
+ * location key is finished as soon as all of its peers replied.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The result per location key
+ */
+abstract class BatchOperation<K> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchOperation.class);
+
+    private final BatchBuilder<?> builder;
+    private final FutureBatch<K> futureBatch;
+    private final DistributedRouting routing;
+    private final ChannelCreator channelCreator;
+
+    private final Iterator<Number160> toRoute;
+    private int routingsRunning = 0;
+    // the location keys per peer, guarded by this
+    private final Map<PeerAddress, List<Number160>> groups = new LinkedHashMap<PeerAddress, List<Number160>>();
+    // the number of peers that did not reply yet per location key, guarded by this
+    private final Map<Number160, Integer> outstanding = new HashMap<Number160, Integer>();
+    private Iterator<Map.Entry<PeerAddress, List<Number160>>> toSend;
+
+    BatchOperation(final BatchBuilder<?> builder, final FutureBatch<K> futureBatch, final DistributedRouting routing,
+            final ChannelCreator channelCreator) {
+        this.builder = builder;
+        this.futureBatch = futureBatch;
+        this.routing = routing;
+        this.channelCreator = channelCreator;
+        this.toRoute = new ArrayList<Number160>(futureBatch.futures().keySet()).iterator();
+    }
+
+    /**
+     * Creates the request with all the keys of the location keys to one peer.
+     */
+    protected abstract FutureResponse create(ChannelCreator channelCreator, PeerAddress address,
+            List<Number160> locationKeys);
+
+    /**
+     * Called for every finished request, successful or not. Needs to be thread-safe.
+     */
+    protected abstract void response(FutureResponse futureResponse, List<Number160> locationKeys);
+
+    /**
+     * Called when all peers of a location key replied, sets the result of the location key.
+     */
+    protected abstract void finished(Number160 locationKey);
+
+    void start() {
+        synchronized (this) {
+            for (int i = 0; i < builder.parallel(); i++) {
+                routeNext();
+            }
+        }
+    }
+
+    /**
+     * Needs to be called with the lock held.
+     */
+    private void routeNext() {
+        if (!toRoute.hasNext()) {
+            if (routingsRunning == 0 && toSend == null) {
+                LOG.debug("batch routed {} keys to {} peers", outstanding.size(), groups.size());
+                toSend = groups.entrySet().iterator();
+                for (int i = 0; i < builder.parallel(); i++) {
+                    sendNext();
+                }
+            }
+            return;
+        }
+        final Number160 locationKey = toRoute.next();
+        final RoutingBuilder routingBuilder = builder.createBuilder(builder.requestP2PConfiguration(),
+                builder.routingConfiguration());
+        routingBuilder.locationKey(locationKey);
+        routingBuilder.domainKey(builder.domainKey());
+        routingBuilder.peerMapFilters(builder.peerMapFilters());
+        routingBuilder.postRoutingFilters(builder.postRoutingFilters());
+        routingsRunning++;
+        final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1, channelCreator);
+        futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting future) throws Exception {
+                boolean found = false;
+                synchronized (BatchOperation.this) {
+                    routingsRunning--;
+                    if (future.isSuccess()) {
+                        found = group(locationKey, future);
+                    }
+                }
+                if (!found) {
+                    if (future.isSuccess()) {
+                        futureBatch.future(locationKey).failed("No peers found for " + locationKey);
+                    } else {
+                        futureBatch.future(locationKey).failed(future);
+                    }
+                }
+                synchronized (BatchOperation.this) {
+                    routeNext();
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds the location key to the closest peers of the routing result. Needs to be called with the lock held.
+     *
+     * @return True if at least one peer was found
+     */
+    private boolean group(final Number160 locationKey, final FutureRouting futureRouting) {
+        final int min = builder.requestP2PConfiguration().minimumResults();
+        int count = 0;
+        for (PeerAddress peerAddress : futureRouting.potentialHits()) {
+            if (count >= min) {
+                break;
+            }
+            List<Number160> locationKeys = groups.get(peerAddress);
+            if (locationKeys == null) {
+                locationKeys = new ArrayList<Number160>();
+                groups.put(peerAddress, locationKeys);
+            }
+            locationKeys.add(locationKey);
+            count++;
+        }
+        if (count > 0) {
+            outstanding.put(locationKey, count);
+        }
+        return count > 0;
+    }
+
+    /**
+     * Needs to be called with the lock held.
+     */
+    private void sendNext() {
+        if (!toSend.hasNext()) {
+            return;
+        }
+        final Map.Entry<PeerAddress, List<Number160>> entry = toSend.next();
+        final List<Number160> locationKeys = entry.getValue();
+        final FutureResponse futureResponse = create(channelCreator, entry.getKey(), locationKeys);
+        futureBatch.addRequests(futureResponse);
+        futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                response(future, locationKeys);
+                final List<Number160> done = new ArrayList<Number160>();
+                synchronized (BatchOperation.this) {
+                    for (Number160 locationKey : locationKeys) {
+                        final int left = outstanding.get(locationKey) - 1;
+                        outstanding.put(locationKey, left);
+                        if (left == 0) {
+                            done.add(locationKey);
+                        }
+                    }
+                    sendNext();
+                }
+                for (Number160 locationKey : done) {
+                    finished(locationKey);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.storage.Data;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Stores data under many location keys with one operation. Each peer responsible for some of the keys gets one put
+ * request with all its keys. The result per location key is the number of peers that stored all entries of this key.
+ *
+ * @author Thomas Bocek
+ */
+public class BatchPutBuilder extends BatchBuilder<BatchPutBuilder> {
+    private final static FutureBatch<Integer> FUTURE_SHUTDOWN = new FutureBatch<Integer>(null,
+            Collections.<Number160> emptyList()).failed("batch put builder - peer is shutting down");
+
+    private final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+
+    public BatchPutBuilder(final PeerDHT peer) {
+        super(peer);
+        self(this);
+    }
+
+    /**
+     * Adds data with the content key {@link Number160#ZERO}. The domain and version key need to be set before.
+     *
+     * @param locationKey
+     *            The location key
+     * @param data
+     *            The data to store
+     * @return This class
+     */
+    public BatchPutBuilder data(final Number160 locationKey, final Data data) {
+        return data(locationKey, Number160.ZERO, data);
+    }
+
+    public BatchPutBuilder data(final Number160 locationKey, final Number160 contentKey, final Data data) {
+        return data(new Number640(locationKey, domainKey == null ? Number160.ZERO : domainKey, contentKey,
+                versionKey == null ? Number160.ZERO : versionKey), data);
+    }
+
+    public BatchPutBuilder data(final Number640 key, final Data data) {
+        dataMap.put(key, data);
+        return this;
+    }
+
+    public NavigableMap<Number640, Data> dataMap() {
+        return dataMap;
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The entries stored under this location key
+     */
+    public NavigableMap<Number640, Data> dataMap(final Number160 locationKey) {
+        return dataMap.subMap(new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO), true,
+                new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE), true);
+    }
+
+    @Override
+    public Collection<Number160> locationKeys() {
+        final Set<Number160> locationKeys = new LinkedHashSet<Number160>();
+        for (Number640 key : dataMap.keySet()) {
+            locationKeys.add(key.locationKey());
+        }
+        return locationKeys;
+    }
+
+    public FutureBatch<Integer> start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if (dataMap.isEmpty()) {
+            throw new IllegalArgumentException("You must set data via data(). Cannot add nothing.");
+        }
+        preBuild("batch-put-builder");
+        final FutureBatch<Integer> futureBatch = new FutureBatch<Integer>(this, locationKeys());
+        return peer.distributedHashTable().batchPut(this, futureBatch);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.peers.Number640;
+
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A bounded log of the changes of a {@link StorageLayer}. Every change gets the next sequence number, starting at 0.
+ * Only the last {@link #capacity()} changes are kept, older changes are overwritten. A reader remembers the sequence
+ * number up to which it processed the changes and asks for the changes since then. If these changes have been
+ * overwritten already, the reader needs to process the whole storage instead.
+ *
+ * @author Thomas Bocek
+ */
+public class ChangeLog {
+
+    public enum Operation {
+        PUT, REMOVE, EXPIRE
+    }
+
+    private final Number640[] keys;
+
+    private final Operation[] operations;
+
+    // the sequence number of the next change
+    private long sequence = 0;
+
+    /**
+     * @param capacity
+     *            The number of changes to keep
+     */
+    public ChangeLog(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity needs to be larger than zero.");
+        }
+        this.keys = new Number640[capacity];
+        this.operations = new Operation[capacity];
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public synchronized void record(final Number640 key, final Operation operation) {
+        final int index = (int) (sequence % keys.length);
+        keys[index] = key;
+        operations[index] = operation;
+        sequence++;
+    }
+
+    /**
+     * @return The sequence number the next change will get, all changes before have been recorded
+     */
+    public synchronized long sequence() {
+        return sequence;
+    }
+
+    /**
+     * @return The sequence number of the oldest change that is still kept
+     */
+    public synchronized long oldest() {
+        return Math.max(0, sequence - keys.length);
+    }
+
+    /**
+     * Returns the changed keys since the given sequence number. A key that changed several times is returned once
+     * with its last operation.
+     *
+     * @param from
+     *            The sequence number of the first change to return
+     * @return The last operation per changed key, or null if changes since this sequence number have been overwritten
+     */
+    public synchronized NavigableMap<Number640, Operation> since(final long from) {
+        if (from < oldest() || from > sequence) {
+            return null;
+        }
+        final NavigableMap<Number640, Operation> changes = new TreeMap<Number640, Operation>();
+        for (long i = from; i < sequence; i++) {
+            final int index = (int) (i % keys.length);
+            changes.put(keys[index], operations[index]);
+        }
+        return changes;
+    }
+}
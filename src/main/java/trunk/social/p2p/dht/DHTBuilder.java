@@ -309,15 +309,25 @@ public abstract class DHTBuilder<K extends DHTBuilder<K>> extends DefaultConnect
         requestP2PConfiguration = requestP2PConfiguration.adjustMinimumResult(size);
         if (futureChannelCreator == null || 
         		(futureChannelCreator.channelCreator()!=null && futureChannelCreator.channelCreator().isShutdown())) {
-            futureChannelCreator = peer.peer().connectionBean().reservation()
-                    .create(routingConfiguration, requestP2PConfiguration, this);
+            futureChannelCreator = reserve();
         }
     }
 
+    /**
+     * Reserves the connections for the routing and the requests to the peers found. Called by {@link #preBuild(String)}
+     * after the configurations are set, if no channel creator was provided.
+     * 
+     * @return The future channel creator with the reserved connections
+     */
+    protected FutureChannelCreator reserve() {
+        return peer.peer().connectionBean().reservation().create(routingConfiguration, requestP2PConfiguration, this);
+    }
+
     public RoutingBuilder createBuilder(RequestP2PConfiguration requestP2PConfiguration,
             RoutingConfiguration routingConfiguration) {
         RoutingBuilder routingBuilder = new RoutingBuilder();
         routingBuilder.parallel(routingConfiguration.parallel());
+        routingBuilder.maxExtraParallel(routingConfiguration.maxExtraParallel());
         routingBuilder.setMaxNoNewInfo(routingConfiguration.maxNoNewInfo(requestP2PConfiguration
                 .minimumResults()));
         routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
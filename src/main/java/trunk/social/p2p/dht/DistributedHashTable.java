@@ -19,15 +19,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import trunk.social.p2p.connection.ChannelCreator;
 import trunk.social.p2p.futures.*;
+import trunk.social.p2p.message.DataMap;
 import trunk.social.p2p.message.KeyMap640Keys;
 import trunk.social.p2p.message.Message.Type;
 import trunk.social.p2p.p2p.DistributedRouting;
 import trunk.social.p2p.p2p.RequestP2PConfiguration;
+import trunk.social.p2p.p2p.RoutingConfiguration;
 import trunk.social.p2p.p2p.builder.BasicBuilder;
 import trunk.social.p2p.p2p.builder.RoutingBuilder;
 import trunk.social.p2p.peers.Number160;
 import trunk.social.p2p.peers.Number640;
 import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.peers.PeerMap;
+import trunk.social.p2p.peers.PeerStatistic;
+import trunk.social.p2p.peers.RTT;
 import trunk.social.p2p.rpc.*;
 import trunk.social.p2p.storage.Data;
 import trunk.social.p2p.storage.DataBuffer;
@@ -35,7 +40,14 @@ import trunk.social.p2p.utils.Utils;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class DistributedHashTable {
@@ -52,6 +64,32 @@ public class DistributedHashTable {
 
     private final DirectDataRPC directDataRPC;
 
+    // get operations that are currently running, identical get requests are attached to them
+    private final ConcurrentMap<List<Object>, FutureGet> pendingGets = new ConcurrentHashMap<List<Object>, FutureGet>();
+
+    private volatile boolean coalesceGets = false;
+
+    private volatile ReadCache readCache = null;
+
+    // puts that wait to be sent together, guarded by itself
+    private final Map<List<Object>, PendingPuts> pendingPuts = new HashMap<List<Object>, PendingPuts>();
+
+    private volatile int coalescePutsMillis = 0;
+
+    private final AtomicLong coalescedPuts = new AtomicLong();
+
+    private volatile int hedgeBudget = 1;
+
+    private volatile double hedgePercentile = 0.9;
+
+    private volatile int hedgeMinDelayMillis = 10;
+
+    private final AtomicLong hedgeableGets = new AtomicLong();
+
+    private final AtomicLong hedges = new AtomicLong();
+
+    private final AtomicLong hedgesWon = new AtomicLong();
+
     public DistributedHashTable(DistributedRouting routing, StorageRPC storeRCP, DirectDataRPC directDataRPC) {
         this.routing = routing;
         this.storeRCP = storeRCP;
@@ -59,6 +97,7 @@ public class DistributedHashTable {
     }
 
     public FuturePut add(final AddBuilder builder, final FuturePut futurePut) {
+        invalidateOnWrite(futurePut, builder.locationKey());
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -67,6 +106,7 @@ public class DistributedHashTable {
                 	final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1, future.channelCreator());
                 	
                 	futurePut.futureRouting(futureRouting);
+                	invalidateOnFailure(futurePut, builder.locationKey());
                     futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                         @Override
                         public void operationComplete(final FutureRouting futureRouting) throws Exception {
@@ -75,7 +115,8 @@ public class DistributedHashTable {
                                         futureRouting.potentialHits());
                                 parallelRequests(builder.requestP2PConfiguration(),
                                 		EMPTY_NAVIGABLE_SET , futureRouting.potentialHits(), futurePut, false,
-                                        future.channelCreator(), new OperationMapper<FuturePut>() {
+                                        future.channelCreator(),
+                                        reroute(futureRouting, routingBuilder, builder.requestP2PConfiguration(), future.channelCreator()), null, new OperationMapper<FuturePut>() {
                                             Map<PeerAddress, Map<Number640, Byte>> rawData = new HashMap<PeerAddress, Map<Number640, Byte>>();
 
                                             @Override
@@ -101,12 +142,14 @@ public class DistributedHashTable {
                                         });
                             } else {
                             	futurePut.failed(futureRouting);
+                            	futurePut.futureReplication().failed(futureRouting);
                             }
                         }
                     });
                     futurePut.addFutureDHTReleaseListener(future.channelCreator());
                 } else {
                 	futurePut.failed(future);
+                	futurePut.futureReplication().failed(future);
                 }
             }
         });
@@ -124,6 +167,7 @@ public class DistributedHashTable {
                 	final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1, future.channelCreator());
 
                 	futureSend.futureRouting(futureRouting);
+                	invalidateOnFailure(futureSend, builder.locationKey());
                     futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                         @Override
                         public void operationComplete(FutureRouting futureRouting) throws Exception {
@@ -133,6 +177,7 @@ public class DistributedHashTable {
                                 parallelRequests(builder.requestP2PConfiguration(),
                                 		EMPTY_NAVIGABLE_SET, futureRouting.potentialHits(), futureSend,
                                         builder.isCancelOnFinish(), future.channelCreator(),
+                                        reroute(futureRouting, routingBuilder, builder.requestP2PConfiguration(), future.channelCreator()), null,
                                         new OperationMapper<FutureSend>() {
                                             Map<PeerAddress, DataBuffer> rawChannels = new HashMap<PeerAddress, DataBuffer>();
 
@@ -196,6 +241,21 @@ public class DistributedHashTable {
     }
 
     public FuturePut put(final PutBuilder putBuilder, final FuturePut futurePut) {
+        invalidateOnWrite(futurePut, putBuilder.locationKey());
+        final int window = coalescePutsMillis;
+        final List<Object> putKey = window > 0 ? putKey(putBuilder) : null;
+        if (putKey != null) {
+            coalescePut(putKey, putBuilder, futurePut, window);
+        } else {
+            put0(putBuilder, futurePut);
+        }
+        if (putBuilder.writeConsistency() == WriteConsistency.ASYNC) {
+            futurePut.acknowledged(new HashMap<PeerAddress, Map<Number640, Byte>>());
+        }
+        return futurePut;
+    }
+
+    private FuturePut put0(final PutBuilder putBuilder, final FuturePut futurePut) {
         putBuilder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
             public void operationComplete(final FutureChannelCreator future) throws Exception {
@@ -205,6 +265,7 @@ public class DistributedHashTable {
                 	final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1, future.channelCreator());
                 	
                     futurePut.futureRouting(futureRouting);
+                    invalidateOnFailure(futurePut, putBuilder.locationKey());
                     futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                         @Override
                         public void operationComplete(final FutureRouting futureRouting) throws Exception {
@@ -214,33 +275,84 @@ public class DistributedHashTable {
 
                                 parallelRequests(putBuilder.requestP2PConfiguration(),
                                 		EMPTY_NAVIGABLE_SET, futureRouting.potentialHits(), futurePut, false,
-                                        future.channelCreator(), new OperationMapper<FuturePut>() {
+                                        future.channelCreator(),
+                                        reroute(futureRouting, routingBuilder, putBuilder.requestP2PConfiguration(), future.channelCreator()), null, new OperationMapper<FuturePut>() {
 
                                             Map<PeerAddress, Map<Number640, Byte>> rawData = new HashMap<PeerAddress, Map<Number640, Byte>>();
 
+                                            // the replicas that stored all the data, with a write consistency level
+                                            final Map<PeerAddress, Map<Number640, Byte>> acknowledged = new HashMap<PeerAddress, Map<Number640, Byte>>();
+
+                                            boolean done = false;
+
                                             @Override
                                             public FutureResponse create(final ChannelCreator channelCreator,
                                                     final PeerAddress address) {
+                                                final FutureResponse futureResponse;
                                                 if (putBuilder.isPutIfAbsent()) {
-                                                    return storeRCP.putIfAbsent(address, putBuilder,
+                                                    futureResponse = storeRCP.putIfAbsent(address, putBuilder,
                                                             channelCreator);
                                                 } else if (putBuilder.isPutMeta()) {
-                                                	return storeRCP.putMeta(address, putBuilder,
+                                                	futureResponse = storeRCP.putMeta(address, putBuilder,
                                                             channelCreator);
                                                 } else if (putBuilder.isPutConfirm()) {
-                                                	return storeRCP.putConfirm(address, putBuilder, channelCreator);
+                                                	futureResponse = storeRCP.putConfirm(address, putBuilder, channelCreator);
                                                 } else {
-                                                    return storeRCP.put(address, putBuilder, channelCreator);
+                                                    futureResponse = storeRCP.put(address, putBuilder, channelCreator);
+                                                }
+                                                if (putBuilder.writeConsistency() != null) {
+                                                    futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                                                        @Override
+                                                        public void operationComplete(final FutureResponse future)
+                                                                throws Exception {
+                                                            acknowledge(future);
+                                                        }
+                                                    });
+                                                }
+                                                return futureResponse;
+                                            }
+
+                                            /**
+                                             * Completes the put as soon as enough replicas stored all the data, the
+                                             * other writes continue.
+                                             */
+                                            private void acknowledge(final FutureResponse future) {
+                                                final Map<PeerAddress, Map<Number640, Byte>> copy;
+                                                synchronized (this) {
+                                                    interMediateResponse(future);
+                                                    final PeerAddress recipient = future.request().recipient();
+                                                    final Map<Number640, Byte> result = rawData.get(recipient);
+                                                    if (done || !futurePut.isAcknowledged(result)) {
+                                                        return;
+                                                    }
+                                                    acknowledged.put(recipient, result);
+                                                    if (acknowledged.size() < putBuilder.acknowledgements()) {
+                                                        return;
+                                                    }
+                                                    done = true;
+                                                    copy = new HashMap<PeerAddress, Map<Number640, Byte>>(acknowledged);
                                                 }
+                                                logger.debug("put lkey={} acknowledged by {}", putBuilder.locationKey(),
+                                                        copy.keySet());
+                                                futurePut.acknowledged(copy);
                                             }
 
                                             @Override
                                             public void response(final FuturePut futureDHT, FutureDone<Void> futuresCompleted) {
+                                                if (putBuilder.writeConsistency() != null) {
+                                                    final Map<PeerAddress, Map<Number640, Byte>> copy;
+                                                    synchronized (this) {
+                                                        done = true;
+                                                        copy = new HashMap<PeerAddress, Map<Number640, Byte>>(acknowledged);
+                                                    }
+                                                    // fails the put if too few replicas acknowledged
+                                                    futureDHT.acknowledged(copy);
+                                                }
                                                 futureDHT.storedKeys(rawData, futuresCompleted);
                                             }
 
                                             @Override
-                                            public void interMediateResponse(final FutureResponse future) {
+                                            public synchronized void interMediateResponse(final FutureResponse future) {
                                                 // the future tells us that the communication was successful, to check
                                                 // the result if we could store it.
                                                 if (future.isSuccess() && future.responseMessage().isOk()) {
@@ -272,7 +384,578 @@ public class DistributedHashTable {
         return futurePut;
     }
 
-    public FutureGet get(final GetBuilder builder,  final FutureGet futureGet) {
+    /**
+     * Puts can be sent together if they only differ in the data. Signed, streamed and filtered puts, as well as put
+     * meta and put confirm, are sent on their own.
+     * 
+     * @return The key of the puts that can be sent together or null if this put needs to be sent on its own
+     */
+    private static List<Object> putKey(final PutBuilder builder) {
+        if (builder.isPutMeta() || builder.isPutConfirm() || builder.isSign() || builder.isStreaming()
+                || builder.peerMapFilters() != null || builder.postRoutingFilters() != null) {
+            return null;
+        }
+        final RequestP2PConfiguration p2pConfiguration = builder.requestP2PConfiguration();
+        final RoutingConfiguration routingConfiguration = builder.routingConfiguration();
+        return Arrays.<Object> asList(builder.locationKey(), builder.isPutIfAbsent(), builder.isProtectDomain(),
+                builder.isForceTCP(), builder.isForceUDP(), builder.writeConsistency(), p2pConfiguration.minimumResults(),
+                p2pConfiguration.maxFailure(), p2pConfiguration.parallelDiff(), routingConfiguration.maxDirectHits(),
+                routingConfiguration.maxNoNewInfoDiff(), routingConfiguration.maxFailures(),
+                routingConfiguration.maxSuccess(), routingConfiguration.parallel(),
+                routingConfiguration.maxExtraParallel(), routingConfiguration.isForceTCP());
+    }
+
+    /**
+     * Adds the put to the puts of its location key that wait to be sent. The first put starts the window, when it is
+     * over, all puts are sent with the routing and the connections of the first put. If a put contains a key that is
+     * already waiting, the waiting puts are sent first, so that the later put overwrites the earlier one.
+     */
+    private void coalescePut(final List<Object> putKey, final PutBuilder putBuilder, final FuturePut futurePut,
+            final int window) {
+        final NavigableMap<Number640, Data> dataMap = putBuilder.dataMap() != null ? putBuilder.dataMap()
+                : new DataMap(putBuilder.locationKey(), putBuilder.domainKey(), putBuilder.versionKey(),
+                        putBuilder.dataMapContent()).dataMap();
+        PendingPuts flush = null;
+        PendingPuts schedule = null;
+        synchronized (pendingPuts) {
+            PendingPuts pending = pendingPuts.get(putKey);
+            if (pending != null && pending.containsAny(dataMap.keySet())) {
+                pendingPuts.remove(putKey);
+                flush = pending;
+                pending = null;
+            }
+            if (pending == null) {
+                pending = new PendingPuts(putKey);
+                pendingPuts.put(putKey, pending);
+                schedule = pending;
+            } else {
+                coalescedPuts.incrementAndGet();
+            }
+            pending.add(putBuilder, futurePut, dataMap);
+        }
+        if (flush != null) {
+            sendPuts(flush);
+        }
+        if (schedule != null) {
+            final PendingPuts pending = schedule;
+            try {
+                storeRCP.connectionBean().timer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (pendingPuts) {
+                            if (pendingPuts.get(pending.putKey) != pending) {
+                                // already sent
+                                return;
+                            }
+                            pendingPuts.remove(pending.putKey);
+                        }
+                        sendPuts(pending);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down, send right away
+                synchronized (pendingPuts) {
+                    pendingPuts.remove(pending.putKey);
+                }
+                sendPuts(pending);
+            }
+        }
+    }
+
+    /**
+     * Sends the waiting puts as one put and sets the results of the keys of each put to its future.
+     */
+    private void sendPuts(final PendingPuts pending) {
+        final PutBuilder first = pending.builders.get(0);
+        if (pending.builders.size() == 1) {
+            put0(first, pending.futures.get(0));
+            return;
+        }
+        logger.debug("send {} puts with {} keys together for lkey={}", pending.builders.size(),
+                pending.dataMap.size(), first.locationKey());
+        for (int i = 1; i < pending.builders.size(); i++) {
+            Utils.addReleaseListener(pending.builders.get(i).futureChannelCreator(), pending.futures.get(i));
+        }
+        // all the data is sent with the connections of the first put, which were reserved for one put
+        final PutBuilder merged = mergedBuilder(first, pending.dataMap);
+        final FuturePut futurePut = new FuturePut(merged, merged.acknowledgements(), pending.dataMap.size());
+        futurePut.addListener(new BaseFutureAdapter<FuturePut>() {
+            @Override
+            public void operationComplete(final FuturePut future) throws Exception {
+                for (int i = 0; i < pending.futures.size(); i++) {
+                    final FuturePut member = pending.futures.get(i);
+                    member.futureRouting(future.futureRouting());
+                    for (FutureResponse futureResponse : future.requests()) {
+                        member.addRequests(futureResponse);
+                    }
+                    if (future.rawResult() == null) {
+                        member.failed(future);
+                    } else {
+                        member.acknowledged(filter(future.rawResult(), pending.keys.get(i)));
+                    }
+                }
+            }
+        });
+        futurePut.futureReplication().addListener(
+                new BaseFutureAdapter<FutureDone<Map<PeerAddress, Map<Number640, Byte>>>>() {
+                    @Override
+                    public void operationComplete(final FutureDone<Map<PeerAddress, Map<Number640, Byte>>> future)
+                            throws Exception {
+                        for (int i = 0; i < pending.futures.size(); i++) {
+                            final FuturePut member = pending.futures.get(i);
+                            if (future.isSuccess()) {
+                                member.storedKeys(filter(future.object(), pending.keys.get(i)),
+                                        futurePut.futuresCompleted());
+                            } else {
+                                member.futureReplication().failed(future);
+                            }
+                        }
+                    }
+                });
+        put0(merged, futurePut);
+    }
+
+    /**
+     * Creates the builder that sends the waiting puts together, so that the builder of the first put is not changed.
+     * Puts are only waiting together if they have the same key, see {@link #putKey(PutBuilder)}, so the settings of
+     * the first put apply to all of them.
+     */
+    private static PutBuilder mergedBuilder(final PutBuilder first, final NavigableMap<Number640, Data> dataMap) {
+        final PutBuilder merged = new PutBuilder(first.peer, first.locationKey());
+        merged.domainKey(first.domainKey()).versionKey(first.versionKey())
+                .routingConfiguration(first.routingConfiguration())
+                .requestP2PConfiguration(first.requestP2PConfiguration())
+                .futureChannelCreator(first.futureChannelCreator()).protectDomain(first.isProtectDomain())
+                .putIfAbsent(first.isPutIfAbsent()).writeConsistency(first.writeConsistency()).dataMap(dataMap);
+        merged.idleTCPMillis(first.idleTCPMillis()).idleUDPMillis(first.idleUDPMillis())
+                .connectionTimeoutTCPMillis(first.connectionTimeoutTCPMillis()).forceTCP(first.isForceTCP())
+                .forceUDP(first.isForceUDP()).slowResponseTimeoutSeconds(first.slowResponseTimeoutSeconds());
+        return merged;
+    }
+
+    /**
+     * @return The results of the given keys only
+     */
+    private static Map<PeerAddress, Map<Number640, Byte>> filter(final Map<PeerAddress, Map<Number640, Byte>> rawResult,
+            final Set<Number640> keys) {
+        final Map<PeerAddress, Map<Number640, Byte>> filtered = new HashMap<PeerAddress, Map<Number640, Byte>>();
+        for (Map.Entry<PeerAddress, Map<Number640, Byte>> entry : rawResult.entrySet()) {
+            final Map<Number640, Byte> result = new HashMap<Number640, Byte>();
+            for (Map.Entry<Number640, Byte> status : entry.getValue().entrySet()) {
+                if (keys.contains(status.getKey())) {
+                    result.put(status.getKey(), status.getValue());
+                }
+            }
+            filtered.put(entry.getKey(), result);
+        }
+        return filtered;
+    }
+
+    /**
+     * @param coalescePutsMillis
+     *            The time in milliseconds a put waits for other puts to the same location key, so that they are sent
+     *            together. 0 disables this, which is the default.
+     * @return This class
+     */
+    public DistributedHashTable coalescePutsMillis(final int coalescePutsMillis) {
+        if (coalescePutsMillis < 0) {
+            throw new IllegalArgumentException("The window cannot be negative.");
+        }
+        this.coalescePutsMillis = coalescePutsMillis;
+        return this;
+    }
+
+    public int coalescePutsMillis() {
+        return coalescePutsMillis;
+    }
+
+    /**
+     * @return The number of puts that were sent together with an earlier put
+     */
+    public long coalescedPuts() {
+        return coalescedPuts.get();
+    }
+
+    /**
+     * The puts of one location key that wait to be sent.
+     */
+    private static final class PendingPuts {
+        private final List<Object> putKey;
+        private final List<PutBuilder> builders = new ArrayList<PutBuilder>();
+        private final List<FuturePut> futures = new ArrayList<FuturePut>();
+        private final List<Set<Number640>> keys = new ArrayList<Set<Number640>>();
+        private final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+
+        private PendingPuts(final List<Object> putKey) {
+            this.putKey = putKey;
+        }
+
+        private void add(final PutBuilder builder, final FuturePut futurePut,
+                final NavigableMap<Number640, Data> data) {
+            builders.add(builder);
+            futures.add(futurePut);
+            keys.add(data.keySet());
+            dataMap.putAll(data);
+        }
+
+        private boolean containsAny(final Set<Number640> data) {
+            for (Number640 key : data) {
+                if (dataMap.containsKey(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Stores the data of many location keys. See {@link BatchOperation} for how the keys are routed and grouped.
+     */
+    public FutureBatch<Integer> batchPut(final BatchPutBuilder builder, final FutureBatch<Integer> futureBatch) {
+        for (Number160 locationKey : builder.locationKeys()) {
+            invalidateOnWrite(futureBatch, locationKey);
+        }
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    new BatchOperation<Integer>(builder, futureBatch, routing, future.channelCreator()) {
+
+                        // the number of peers that stored all entries of a location key
+                        final Map<Number160, Integer> stored = new HashMap<Number160, Integer>();
+
+                        @Override
+                        protected FutureResponse create(final ChannelCreator channelCreator,
+                                final PeerAddress address, final List<Number160> locationKeys) {
+                            final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+                            for (Number160 locationKey : locationKeys) {
+                                dataMap.putAll(builder.dataMap(locationKey));
+                            }
+                            return storeRCP.put(address, builder, dataMap, channelCreator);
+                        }
+
+                        @Override
+                        protected void response(final FutureResponse future, final List<Number160> locationKeys) {
+                            if (!future.isSuccess() || !future.responseMessage().isOk()) {
+                                logger.debug("batch put failed on {}: {}", future.request().recipient(),
+                                        future.failedReason());
+                                return;
+                            }
+                            final Map<Number640, Byte> result = future.responseMessage().keyMapByte(0).keysMap();
+                            synchronized (stored) {
+                                for (Number160 locationKey : locationKeys) {
+                                    if (isStored(builder.dataMap(locationKey).keySet(), result)) {
+                                        final Integer count = stored.get(locationKey);
+                                        stored.put(locationKey, count == null ? 1 : count + 1);
+                                    }
+                                }
+                            }
+                        }
+
+                        @Override
+                        protected void finished(final Number160 locationKey) {
+                            final Integer count;
+                            synchronized (stored) {
+                                count = stored.get(locationKey);
+                            }
+                            if (count == null) {
+                                futureBatch.future(locationKey).failed("Could not store " + locationKey);
+                            } else {
+                                futureBatch.future(locationKey).done(count);
+                            }
+                        }
+                    }.start();
+                    futureBatch.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    failAll(futureBatch, future.failedReason());
+                }
+            }
+        });
+        return futureBatch;
+    }
+
+    static boolean isStored(final Collection<Number640> keys, final Map<Number640, Byte> result) {
+        for (Number640 key : keys) {
+            final Byte status = result.get(key);
+            if (status == null || (status != StorageLayer.PutStatus.OK.ordinal()
+                    && status != StorageLayer.PutStatus.VERSION_FORK.ordinal())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the data of many location keys. See {@link BatchOperation} for how the keys are routed and grouped.
+     */
+    public FutureBatch<Map<Number640, Data>> batchGet(final BatchGetBuilder builder,
+            final FutureBatch<Map<Number640, Data>> futureBatch) {
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    new BatchOperation<Map<Number640, Data>>(builder, futureBatch, routing,
+                            future.channelCreator()) {
+
+                        // the replies per location key, a peer without data is added with an empty map
+                        final Map<Number160, Map<PeerAddress, Map<Number640, Data>>> rawData =
+                                new HashMap<Number160, Map<PeerAddress, Map<Number640, Data>>>();
+
+                        @Override
+                        protected FutureResponse create(final ChannelCreator channelCreator,
+                                final PeerAddress address, final List<Number160> locationKeys) {
+                            final List<Number640> keys = new ArrayList<Number640>();
+                            for (Number160 locationKey : locationKeys) {
+                                keys.addAll(builder.keys(locationKey));
+                            }
+                            return storeRCP.get(address, builder, keys, channelCreator);
+                        }
+
+                        @Override
+                        protected void response(final FutureResponse future, final List<Number160> locationKeys) {
+                            if (!future.isSuccess() || !future.responseMessage().isOk()) {
+                                logger.debug("batch get failed on {}: {}", future.request().recipient(),
+                                        future.failedReason());
+                                return;
+                            }
+                            final PeerAddress recipient = future.request().recipient();
+                            final Map<Number640, Data> data = future.responseMessage().dataMap(0).dataMap();
+                            synchronized (rawData) {
+                                for (Number160 locationKey : locationKeys) {
+                                    final Map<Number640, Data> perKey = new HashMap<Number640, Data>();
+                                    if (data != null) {
+                                        for (Map.Entry<Number640, Data> entry : data.entrySet()) {
+                                            if (entry.getKey().locationKey().equals(locationKey)) {
+                                                perKey.put(entry.getKey(), entry.getValue());
+                                            }
+                                        }
+                                    }
+                                    Map<PeerAddress, Map<Number640, Data>> peers = rawData.get(locationKey);
+                                    if (peers == null) {
+                                        peers = new HashMap<PeerAddress, Map<Number640, Data>>();
+                                        rawData.put(locationKey, peers);
+                                    }
+                                    peers.put(recipient, perKey);
+                                }
+                            }
+                        }
+
+                        @Override
+                        protected void finished(final Number160 locationKey) {
+                            final Map<PeerAddress, Map<Number640, Data>> peers;
+                            synchronized (rawData) {
+                                peers = rawData.remove(locationKey);
+                            }
+                            if (peers == null) {
+                                futureBatch.future(locationKey).failed("No peer replied for " + locationKey);
+                            } else {
+                                futureBatch.future(locationKey).done(builder.evaluationScheme().evaluate2(peers));
+                            }
+                        }
+                    }.start();
+                    futureBatch.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    failAll(futureBatch, future.failedReason());
+                }
+            }
+        });
+        return futureBatch;
+    }
+
+    /**
+     * Stores the fragments of an erasure-coded value. See {@link ErasureOperation} for how the fragments are placed.
+     */
+    public FutureErasure erasurePut(final ErasurePutBuilder builder, final FutureErasure futureErasure) {
+        invalidateOnWrite(futureErasure, builder.locationKey());
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    new ErasureOperation.Put(builder, futureErasure, routing, storeRCP, future.channelCreator())
+                            .start();
+                    futureErasure.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureErasure.failed(future);
+                }
+            }
+        });
+        return futureErasure;
+    }
+
+    /**
+     * Gets the fragments of an erasure-coded value and decodes it. See {@link ErasureOperation}.
+     */
+    public FutureErasure erasureGet(final ErasureGetBuilder builder, final FutureErasure futureErasure) {
+        builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (future.isSuccess()) {
+                    new ErasureOperation.Get(builder, futureErasure, routing, storeRCP, future.channelCreator())
+                            .start();
+                    futureErasure.addFutureDHTReleaseListener(future.channelCreator());
+                } else {
+                    futureErasure.failed(future);
+                }
+            }
+        });
+        return futureErasure;
+    }
+
+    private static void failAll(final FutureBatch<?> futureBatch, final String reason) {
+        for (FutureDone<?> future : futureBatch.futures().values()) {
+            future.failed(reason);
+        }
+    }
+
+    public FutureGet get(final GetBuilder builder, final FutureGet futureGet) {
+        final ReadCache readCache = this.readCache;
+        final List<Object> getKey = coalesceGets || readCache != null ? getKey(builder) : null;
+        if (getKey == null) {
+            return get0(builder, futureGet);
+        }
+        if (readCache != null) {
+            if (readCache.complete(getKey, futureGet)) {
+                logger.debug("get for lkey={} answered from the read cache", builder.locationKey());
+                Utils.addReleaseListener(builder.futureChannelCreator(), futureGet);
+                return futureGet;
+            }
+            final long generation = readCache.generation();
+            futureGet.addListener(new BaseFutureAdapter<FutureGet>() {
+                @Override
+                public void operationComplete(final FutureGet future) throws Exception {
+                    readCache.put(getKey, builder.locationKey(), future, generation);
+                }
+            });
+            if (!coalesceGets) {
+                return get0(builder, futureGet);
+            }
+        }
+        // single-flight: if the same get is already running, attach to it and fan out the result. The reserved
+        // channels of an attached request are not needed.
+        FutureGet pending = pendingGets.get(getKey);
+        if (pending == null) {
+            final FutureGet shared = new FutureGet(builder, builder.requestP2PConfiguration().minimumResults(),
+                    builder.evaluationScheme());
+            pending = pendingGets.putIfAbsent(getKey, shared);
+            if (pending == null) {
+                pending = shared;
+                shared.addListener(new BaseFutureAdapter<FutureGet>() {
+                    @Override
+                    public void operationComplete(final FutureGet future) throws Exception {
+                        pendingGets.remove(getKey, shared);
+                    }
+                });
+                get0(builder, shared);
+            } else {
+                logger.debug("attach to running get for lkey={}", builder.locationKey());
+                Utils.addReleaseListener(builder.futureChannelCreator(), futureGet);
+            }
+        } else {
+            logger.debug("attach to running get for lkey={}", builder.locationKey());
+            Utils.addReleaseListener(builder.futureChannelCreator(), futureGet);
+        }
+        pending.addListener(new BaseFutureAdapter<FutureGet>() {
+            @Override
+            public void operationComplete(final FutureGet future) throws Exception {
+                futureGet.futureRouting(future.futureRouting());
+                for (FutureResponse futureResponse : future.requests()) {
+                    futureGet.addRequests(futureResponse);
+                }
+                if (future.rawStatus() != null) {
+                    futureGet.receivedData(copyRawData(future.rawData()),
+                            new HashMap<PeerAddress, DigestResult>(future.rawDigest()),
+                            new HashMap<PeerAddress, Byte>(future.rawStatus()), future.futuresCompleted());
+                } else {
+                    futureGet.failed(future);
+                }
+            }
+        });
+        return futureGet;
+    }
+
+    /**
+     * Creates the key that identifies identical get requests. Signed requests and requests with bloom filters or
+     * routing filters are never coalesced.
+     * 
+     * @param builder
+     *            The get builder
+     * @return The key or null if this get request cannot be attached to another one
+     */
+    private static List<Object> getKey(final GetBuilder builder) {
+        if (builder.isSign() || builder.isStreaming() || builder.peerMapFilters() != null
+                || builder.postRoutingFilters() != null || builder.contentKeyBloomFilter() != null
+                || builder.versionKeyBloomFilter() != null || builder.contentBloomFilter() != null) {
+            return null;
+        }
+        final RequestP2PConfiguration p2pConfiguration = builder.requestP2PConfiguration();
+        final RoutingConfiguration routingConfiguration = builder.routingConfiguration();
+        return Arrays.<Object> asList(builder.locationKey(), builder.domainKey(),
+                builder.contentKeys() == null ? null : new HashSet<Number160>(builder.contentKeys()),
+                builder.keys() == null ? null : new HashSet<Number640>(builder.keys()),
+                builder.contentKey(), builder.from(), builder.to(), builder.isAll(), builder.isGetLatest(),
+                builder.isWithDigest(), builder.isReturnBloomFilter(), builder.isAscending(), builder.returnNr(),
+                builder.isFastGet(), builder.quorum(), builder.isProtectDomain(), builder.isForceTCP(), builder.isForceUDP(),
+                p2pConfiguration.minimumResults(), p2pConfiguration.maxFailure(), p2pConfiguration.parallelDiff(),
+                routingConfiguration.maxDirectHits(), routingConfiguration.maxNoNewInfoDiff(),
+                routingConfiguration.maxFailures(), routingConfiguration.maxSuccess(),
+                routingConfiguration.parallel(), routingConfiguration.maxExtraParallel(),
+                routingConfiguration.isForceTCP());
+    }
+
+    /**
+     * Copies the per peer data maps of a shared get, so that every attached caller can modify its result without
+     * affecting the others. The data objects themselves are shared.
+     * 
+     * @param rawData
+     *            The raw data of the shared get
+     * @return A copy with new maps for every peer
+     */
+    private static Map<PeerAddress, Map<Number640, Data>> copyRawData(
+            final Map<PeerAddress, Map<Number640, Data>> rawData) {
+        final Map<PeerAddress, Map<Number640, Data>> copy = new HashMap<PeerAddress, Map<Number640, Data>>();
+        for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : rawData.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue() == null ? null : new TreeMap<Number640, Data>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    /**
+     * @param coalesceGets
+     *            Set to true if identical concurrent get requests should share one get operation. The callers then get
+     *            the same {@link Data} objects, which must not be modified. False is the default.
+     * @return This class
+     */
+    public DistributedHashTable coalesceGets(final boolean coalesceGets) {
+        this.coalesceGets = coalesceGets;
+        return this;
+    }
+
+    /**
+     * @return True if identical concurrent get requests share one get operation
+     */
+    public boolean isCoalesceGets() {
+        return coalesceGets;
+    }
+
+    /**
+     * @param readCache
+     *            The cache for the results of get requests of this peer, null disables the cache, which is the
+     *            default
+     * @return This class
+     */
+    public DistributedHashTable readCache(final ReadCache readCache) {
+        this.readCache = readCache;
+        return this;
+    }
+
+    /**
+     * @return The cache for the results of get requests of this peer or null if disabled
+     */
+    public ReadCache readCache() {
+        return readCache;
+    }
+
+    private FutureGet get0(final GetBuilder builder, final FutureGet futureGet) {
 
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
@@ -284,6 +967,7 @@ public class DistributedHashTable {
                 	final FutureRouting futureRouting = routing.route(routingBuilder, builder.isFastGet()? Type.REQUEST_2 : Type.REQUEST_1, future.channelCreator());
 
                 	futureGet.futureRouting(futureRouting);
+                	invalidateOnFailure(futureGet, builder.locationKey());
                     futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                         @Override
                         public void operationComplete(FutureRouting futureRouting) throws Exception {
@@ -299,35 +983,74 @@ public class DistributedHashTable {
                                         builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
                                         futureRouting.potentialHits(),
                                         futureGet, true,
-                                        future.channelCreator(), new OperationMapper<FutureGet>() {
+                                        future.channelCreator(),
+                                        reroute(futureRouting, routingBuilder, p2pConfiguration2, future.channelCreator()), createHedge(builder), new OperationMapper<FutureGet>() {
                                             Map<PeerAddress, Map<Number640, Data>> rawData = new HashMap<PeerAddress, Map<Number640, Data>>();
                                             Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
                                             Map<PeerAddress, Byte> rawStatus = new HashMap<PeerAddress, Byte>();
+                                            // the responses are evaluated when they arrive if a quorum is set, and
+                                            // again when the fork/join of their round finishes
+                                            Set<FutureResponse> evaluated = new HashSet<FutureResponse>();
+                                            QuorumEvaluator quorum = builder.quorum() > 0 ? new QuorumEvaluator(
+                                                    builder.quorum()) : null;
+                                            // once set, the raw maps belong to the future and are not changed anymore
+                                            boolean done = false;
 
                                             @Override
                                             public FutureResponse create(ChannelCreator channelCreator,
                                                     PeerAddress address) {
+                                                final FutureResponse futureResponse;
 												if (builder.isGetLatest()) {
 													if (builder.isWithDigest()) {
-														return storeRCP.getLatest(address, builder,
+														futureResponse = storeRCP.getLatest(address, builder,
 																channelCreator, RPC.Commands.GET_LATEST_WITH_DIGEST);
 													} else {
-														return storeRCP.getLatest(address, builder,
+														futureResponse = storeRCP.getLatest(address, builder,
 																channelCreator,
 																RPC.Commands.GET_LATEST);
 													}
 												} else {
-													return storeRCP.get(address, builder, channelCreator);
+													futureResponse = storeRCP.get(address, builder, channelCreator);
 												}
+                                                if (quorum != null) {
+                                                    futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                                                        @Override
+                                                        public void operationComplete(FutureResponse future)
+                                                                throws Exception {
+                                                            if (evaluate(future)) {
+                                                                logger.debug("quorum of {} reached for get", quorum.quorum());
+                                                                response(futureGet, null);
+                                                                futureGet.cancelRequests();
+                                                            }
+                                                        }
+                                                    });
+                                                }
+                                                return futureResponse;
                                             }
 
                                             @Override
                                             public void response(FutureGet futureDHT, FutureDone<Void> futuresCompleted) {
+                                                synchronized (this) {
+                                                    if (done) {
+                                                        return;
+                                                    }
+                                                    done = true;
+                                                }
                                                 futureDHT.receivedData(rawData, rawDigest, rawStatus, futuresCompleted);
                                             }
 
                                             @Override
                                             public void interMediateResponse(FutureResponse future) {
+                                                evaluate(future);
+                                            }
+
+                                            /**
+                                             * @return True if the quorum has been reached with this response
+                                             */
+                                            private synchronized boolean evaluate(FutureResponse future) {
+                                                if (done || !evaluated.add(future)) {
+                                                    return false;
+                                                }
                                                 // the future tells us that the communication was successful, which is
                                                 // ok for digest
                                                 if (future.isSuccess()) {
@@ -355,8 +1078,10 @@ public class DistributedHashTable {
 
                                                     logger.debug("set data from {}", future.request()
                                                             .recipient());
+                                                    return quorum != null && quorum.add(data);
                                                 } else {
                                                 	rawStatus.put(future.request().recipient(), (byte) StorageLayer.PutStatus.FAILED.ordinal());
+                                                	return false;
                                                 }
                                             }
                                         });
@@ -386,6 +1111,7 @@ public class DistributedHashTable {
                 	final FutureRouting futureRouting = routing.route(routingBuilder, builder.isFastGet()? Type.REQUEST_2 : Type.REQUEST_1, future.channelCreator());
                     
                 	futureDigest.futureRouting(futureRouting);
+                	invalidateOnFailure(futureDigest, builder.locationKey());
                     futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                         @Override
                         public void operationComplete(FutureRouting futureRouting) throws Exception {
@@ -398,7 +1124,9 @@ public class DistributedHashTable {
                                         builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
                                         futureRouting.potentialHits(), 
                                         futureDigest, true,
-                                        future.channelCreator(), new OperationMapper<FutureDigest>() {
+                                        future.channelCreator(),
+                                        reroute(futureRouting, routingBuilder, builder.requestP2PConfiguration(), future.channelCreator()), null,
+                                        new OperationMapper<FutureDigest>() {
                                             Map<PeerAddress, DigestResult> rawDigest = new HashMap<PeerAddress, DigestResult>();
 
                                             @Override
@@ -455,6 +1183,7 @@ public class DistributedHashTable {
     }
 
     public FutureRemove remove(final RemoveBuilder builder, final FutureRemove futureRemove) {
+        invalidateOnWrite(futureRemove, builder.locationKey());
 
         builder.futureChannelCreator().addListener(new BaseFutureAdapter<FutureChannelCreator>() {
             @Override
@@ -466,6 +1195,7 @@ public class DistributedHashTable {
                 	final FutureRouting futureRouting = routing.route(routingBuilder, builder.isFastGet() ? Type.REQUEST_2 : Type.REQUEST_1, future.channelCreator());
 
                 	futureRemove.futureRouting(futureRouting);
+                	invalidateOnFailure(futureRemove, builder.locationKey());
                     futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
                         @Override
                         public void operationComplete(FutureRouting futureRouting) throws Exception {
@@ -481,6 +1211,7 @@ public class DistributedHashTable {
                                 		builder.isFastGet() ? futureRouting.directHits(): EMPTY_NAVIGABLE_SET,
                                         futureRouting.potentialHits(),
                                         futureRemove, false, future.channelCreator(),
+                                        reroute(futureRouting, routingBuilder, p2pConfiguration2, future.channelCreator()), null,
                                         new OperationMapper<FutureRemove>() {
                                             Map<PeerAddress, Map<Number640, Data>> rawDataResult = new HashMap<PeerAddress, Map<Number640, Data>>();
 
@@ -571,6 +1302,25 @@ public class DistributedHashTable {
     private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
     		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelCreator channelCreator,
             OperationMapper<K> operation) {
+        parallelRequests(p2pConfiguration, directHit, potentialHit, future, cancleOnFinish, channelCreator, null,
+                null, operation);
+    }
+
+    private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
+    		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelCreator channelCreator,
+            Reroute reroute, Hedge hedge, OperationMapper<K> operation) {
+        parallelRequests(p2pConfiguration, directHit, potentialHit, future, cancleOnFinish, channelCreator, reroute,
+                hedge, Collections.<FutureResponse> emptyList(), operation);
+    }
+
+    /**
+     * @param running
+     *            The requests of the operation that are still running, they take the first slots and count towards the
+     *            minimum results
+     */
+    private static <K extends FutureDHT<?>> void parallelRequests(RequestP2PConfiguration p2pConfiguration,
+    		NavigableSet<PeerAddress> directHit, NavigableSet<PeerAddress> potentialHit, K future, boolean cancleOnFinish, ChannelCreator channelCreator,
+            Reroute reroute, Hedge hedge, List<FutureResponse> running, OperationMapper<K> operation) {
     	//the potential hits may contain same values as in directHit, so remove it from potentialHit
     	for(PeerAddress peerAddress:directHit) {
     		potentialHit.remove(peerAddress);
@@ -580,22 +1330,33 @@ public class DistributedHashTable {
             operation.response(future, null);
             return;
         }
-        FutureResponse[] futures = new FutureResponse[p2pConfiguration.parallel()];
+        final int parallelDiff = Math.max(p2pConfiguration.parallelDiff(),
+                running.size() - p2pConfiguration.minimumResults());
+        // the hedged requests need their own slots
+        FutureResponse[] futures = new FutureResponse[p2pConfiguration.minimumResults() + parallelDiff
+                + (hedge == null ? 0 : hedge.budget())];
+        for (int i = 0; i < running.size(); i++) {
+            futures[i] = running.get(i);
+        }
         // here we split min and pardiff, par=min+pardiff
         loopRec(directHit, potentialHit, p2pConfiguration.minimumResults(), new AtomicInteger(0),
-                p2pConfiguration.maxFailure(), p2pConfiguration.parallelDiff(),
+                p2pConfiguration.maxFailure(), parallelDiff,
                 new AtomicReferenceArray<FutureResponse>(futures), future, cancleOnFinish, channelCreator,
-                operation);
+                reroute, hedge, false, operation);
     }
 
     private static <K extends FutureDHT<?>> void loopRec(final NavigableSet<PeerAddress> directHit, final NavigableSet<PeerAddress> potentialHit,
             final int min, final AtomicInteger nrFailure, final int maxFailure, final int parallelDiff,
             final AtomicReferenceArray<FutureResponse> futures, final K futureDHT,
-            final boolean cancelOnFinish, final ChannelCreator channelCreator,
-            final OperationMapper<K> operation) {
+            final boolean cancelOnFinish, final ChannelCreator channelCreator, final Reroute reroute,
+            final Hedge hedge, final boolean hedging, final OperationMapper<K> operation) {
         // final int parallel=min+parallelDiff;
         int active = 0;
-        for (int i = 0; i < min + parallelDiff; i++) {
+        // the outstanding requests the hedged request races against
+        final List<FutureResponse> slow = hedging ? new ArrayList<FutureResponse>() : null;
+        FutureResponse hedged = null;
+        final int parallel = min + parallelDiff + (hedge == null ? 0 : hedge.sent());
+        for (int i = 0; i < parallel; i++) {
             if (futures.get(i) == null) {
                 PeerAddress next = directHit.pollFirst();
                 if(next == null) {
@@ -606,12 +1367,30 @@ public class DistributedHashTable {
                     FutureResponse futureResponse = operation.create(channelCreator, next);
                     futures.set(i, futureResponse);
                     futureDHT.addRequests(futureResponse);
+                    if (hedging && hedged == null) {
+                        hedged = futureResponse;
+                    }
                 }
             } else {
                 active++;
             }
         }
+        if (hedged != null) {
+            for (int i = 0; i < futures.length(); i++) {
+                final FutureResponse futureResponse = futures.get(i);
+                if (futureResponse != null && futureResponse != hedged && !futureResponse.isCompleted()) {
+                    slow.add(futureResponse);
+                }
+            }
+            hedge.hedged(hedged, slow);
+        }
         if (active == 0) {
+            if (reroute != null) {
+                // we ran out of cached peers, try once more with a full routing
+                reroute(maxFailure, parallelDiff, futureDHT, cancelOnFinish, channelCreator, reroute, hedge, operation,
+                        null);
+                return;
+            }
             operation.response(futureDHT, null);
             if (cancelOnFinish) {
                 cancel(futures);
@@ -620,29 +1399,404 @@ public class DistributedHashTable {
         }
         logger.debug("fork/join status: {}/{} ({})", min, active, parallelDiff);
         
-        FutureForkJoin<FutureResponse> fp = new FutureForkJoin<FutureResponse>(Math.min(min, active), false,
+        final FutureForkJoin<FutureResponse> fp = new FutureForkJoin<FutureResponse>(Math.min(min, active), false,
                 futures);
+        final ScheduledFuture<?> hedgeCheck = hedge == null || (directHit.isEmpty() && potentialHit.isEmpty()) ? null
+                : hedge.schedule(fp, futures, Math.min(min, active), channelCreator);
         fp.addListener(new BaseFutureAdapter<FutureForkJoin<FutureResponse>>() {
             @Override
             public void operationComplete(final FutureForkJoin<FutureResponse> future) throws Exception {
+                if (hedgeCheck != null) {
+                    hedgeCheck.cancel(false);
+                }
                 for (FutureResponse futureResponse : future.completed()) {
                     operation.interMediateResponse(futureResponse);
                 }
+                if (cancelOnFinish && futureDHT.isCompleted()) {
+                    // finished early, e.g. a get that reached its quorum. A put that completed at its write
+                    // consistency level does not cancel, it continues to write the remaining replicas.
+                    cancel(futures);
+                    return;
+                }
+                final boolean tooManyFailures;
+                if (future.isCanceled()) {
+                    // the responses are late, send a hedged request to the next peer. The late requests stay in the
+                    // array and are evaluated in the next round, whichever answers first counts. The requests that
+                    // failed before the round was canceled are not evaluated again, so they count here.
+                    tooManyFailures = nrFailure.addAndGet(future.completed().size() - future.successCounter())
+                            > maxFailure;
+                    if (!tooManyFailures) {
+                        loopRec(directHit, potentialHit, min - future.successCounter(), nrFailure, maxFailure,
+                                parallelDiff, futures, futureDHT, cancelOnFinish, channelCreator, reroute, hedge, true,
+                                operation);
+                        return;
+                    }
+                } else {
+                    tooManyFailures = !future.isSuccess() && nrFailure.incrementAndGet() > maxFailure;
+                }
                 // we are finished if forkjoin says so or we got too many
                 // failures
-                if (future.isSuccess() || nrFailure.incrementAndGet() > maxFailure) {
+                if (future.isSuccess() || tooManyFailures) {
                     if (cancelOnFinish) {
                         cancel(futures);
                     }
+                    if (!future.isSuccess() && reroute != null) {
+                        // the cached peers failed, try once more with a full routing
+                        reroute(maxFailure, parallelDiff, futureDHT, cancelOnFinish, channelCreator, reroute, hedge,
+                                operation, future.futuresCompleted());
+                        return;
+                    }
                     operation.response(futureDHT, future.futuresCompleted());
                 } else {
                     loopRec(directHit, potentialHit, min - future.successCounter(), nrFailure, maxFailure, parallelDiff,
-                            futures, futureDHT, cancelOnFinish, channelCreator, operation);
+                            futures, futureDHT, cancelOnFinish, channelCreator, reroute, hedge, false, operation);
                 }
             }
         });
     }
     
+    /**
+     * Routes again without the routing cache and continues the operation with the peers found. The peers that have
+     * already been asked are not asked again, a peer that replied successfully counts once towards the minimum
+     * results, and the requests that are still running are kept. If the routing fails, the operation completes with
+     * the results it has.
+     */
+    private static <K extends FutureDHT<?>> void reroute(final int maxFailure, final int parallelDiff,
+            final K futureDHT, final boolean cancelOnFinish, final ChannelCreator channelCreator, final Reroute reroute,
+            final Hedge hedge, final OperationMapper<K> operation, final FutureDone<Void> futuresCompleted) {
+        final Set<PeerAddress> asked = new HashSet<PeerAddress>();
+        final Set<PeerAddress> succeeded = new HashSet<PeerAddress>();
+        final List<FutureResponse> running = new ArrayList<FutureResponse>();
+        for (FutureResponse futureResponse : new ArrayList<FutureResponse>(futureDHT.requests())) {
+            final PeerAddress recipient = futureResponse.request().recipient();
+            asked.add(recipient);
+            if (futureResponse.isSuccess()) {
+                succeeded.add(recipient);
+            } else if (!futureResponse.isCompleted()) {
+                running.add(futureResponse);
+            }
+        }
+        final int min = reroute.minimumResults - succeeded.size();
+        if (min <= 0) {
+            operation.response(futureDHT, futuresCompleted);
+            return;
+        }
+        final FutureRouting futureRouting = reroute.route();
+        futureDHT.futureRouting(futureRouting);
+        futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting futureRouting) throws Exception {
+                if (futureRouting.isSuccess()) {
+                    final NavigableSet<PeerAddress> potentialHit = futureRouting.potentialHits();
+                    potentialHit.removeAll(asked);
+                    parallelRequests(new RequestP2PConfiguration(min, maxFailure, parallelDiff),
+                            new TreeSet<PeerAddress>(), potentialHit, futureDHT, cancelOnFinish, channelCreator, null,
+                            hedge, running, operation);
+                } else {
+                    operation.response(futureDHT, futuresCompleted);
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the state to route again if an operation used a cached routing result.
+     * 
+     * @param futureRouting
+     *            The routing of the operation
+     * @param routingBuilder
+     *            The routing builder of the operation
+     * @param p2pConfiguration
+     *            The configuration of the requests of the operation
+     * @param channelCreator
+     *            The channel creator of the operation
+     * @return The state or null if the routing result was not cached
+     */
+    private Reroute reroute(final FutureRouting futureRouting, final RoutingBuilder routingBuilder,
+            final RequestP2PConfiguration p2pConfiguration, final ChannelCreator channelCreator) {
+        return futureRouting.isCached() ? new Reroute(routingBuilder, p2pConfiguration.minimumResults(),
+                channelCreator) : null;
+    }
+
+    /**
+     * An operation that used a cached routing result and failed invalidates the cached result and routes once more,
+     * instead of failing.
+     */
+    private final class Reroute {
+        private final RoutingBuilder routingBuilder;
+        // the minimum results of the whole operation, counted per peer
+        private final int minimumResults;
+        private final ChannelCreator channelCreator;
+
+        private Reroute(final RoutingBuilder routingBuilder, final int minimumResults,
+                final ChannelCreator channelCreator) {
+            this.routingBuilder = routingBuilder;
+            this.minimumResults = minimumResults;
+            this.channelCreator = channelCreator;
+        }
+
+        private FutureRouting route() {
+            logger.debug("operation on cached peers for lkey={} failed, route again", routingBuilder.locationKey());
+            routing.invalidate(routingBuilder.locationKey());
+            return routing.route(routingBuilder, Type.REQUEST_1, channelCreator);
+        }
+    }
+
+    /**
+     * Creates the hedging state of one get operation.
+     * 
+     * @param builder
+     *            The get builder
+     * @return The hedging state or null if hedging is disabled
+     */
+    private Hedge createHedge(final GetBuilder builder) {
+        final int budget = hedgeBudget;
+        if (budget <= 0) {
+            return null;
+        }
+        hedgeableGets.incrementAndGet();
+        return new Hedge(storeRCP.connectionBean().timer(), storeRCP.peerBean().peerMap(), budget, hedgePercentile,
+                hedgeMinDelayMillis, builder.isForceUDP(), hedges, hedgesWon);
+    }
+
+    /**
+     * @param hedgeBudget
+     *            The number of hedged requests a get operation may send in addition to its regular requests, 0
+     *            disables hedging
+     * @return This class
+     */
+    public DistributedHashTable hedgeBudget(final int hedgeBudget) {
+        if (hedgeBudget < 0) {
+            throw new IllegalArgumentException("The hedge budget cannot be negative.");
+        }
+        this.hedgeBudget = hedgeBudget;
+        return this;
+    }
+
+    public int hedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * @param hedgePercentile
+     *            The percentile of the recent round-trip times of a peer after which its reply is considered late and
+     *            a hedged request is sent, between 0 and 1
+     * @return This class
+     */
+    public DistributedHashTable hedgePercentile(final double hedgePercentile) {
+        if (hedgePercentile <= 0 || hedgePercentile > 1) {
+            throw new IllegalArgumentException("The percentile needs to be between 0 and 1.");
+        }
+        this.hedgePercentile = hedgePercentile;
+        return this;
+    }
+
+    public double hedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @param hedgeMinDelayMillis
+     *            The minimum time to wait for a reply before a hedged request is sent, so that peers with a very short
+     *            round-trip time do not cause hedged requests for every get
+     * @return This class
+     */
+    public DistributedHashTable hedgeMinDelayMillis(final int hedgeMinDelayMillis) {
+        this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+        return this;
+    }
+
+    public int hedgeMinDelayMillis() {
+        return hedgeMinDelayMillis;
+    }
+
+    /**
+     * @return The number of get operations that were allowed to send hedged requests
+     */
+    public long hedgeableGets() {
+        return hedgeableGets.get();
+    }
+
+    /**
+     * @return The number of hedged requests sent, divided by {@link #hedgeableGets()} this is the hedge rate
+     */
+    public long hedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return The number of hedged requests that replied successfully before the late request they were sent for
+     */
+    public long hedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * The hedging state of one get operation. If the replies are not there within the percentile of the recent
+     * round-trip times of the peers asked, the current round of {@link #loopRec} is canceled, which sends one more
+     * request to the next peer without canceling the late ones.
+     */
+    private static final class Hedge {
+        private final ScheduledExecutorService timer;
+        private final PeerMap peerMap;
+        private final int budget;
+        private final double percentile;
+        private final int minDelayMillis;
+        private final boolean forceUDP;
+        private final AtomicLong hedges;
+        private final AtomicLong hedgesWon;
+        private final AtomicInteger sent = new AtomicInteger();
+
+        private Hedge(final ScheduledExecutorService timer, final PeerMap peerMap, final int budget,
+                final double percentile, final int minDelayMillis, final boolean forceUDP, final AtomicLong hedges,
+                final AtomicLong hedgesWon) {
+            this.timer = timer;
+            this.peerMap = peerMap;
+            this.budget = budget;
+            this.percentile = percentile;
+            this.minDelayMillis = minDelayMillis;
+            this.forceUDP = forceUDP;
+            this.hedges = hedges;
+            this.hedgesWon = hedgesWon;
+        }
+
+        private int budget() {
+            return budget;
+        }
+
+        /**
+         * @return The number of hedged requests sent so far, each one is an additional request in parallel
+         */
+        private int sent() {
+            return sent.get();
+        }
+
+        /**
+         * Schedules the check for late replies of the current round.
+         * 
+         * @return The scheduled check or null if the budget is used up or there is no prediction for the peers asked
+         */
+        private ScheduledFuture<?> schedule(final FutureForkJoin<FutureResponse> fp,
+                final AtomicReferenceArray<FutureResponse> futures, final int needed,
+                final ChannelCreator channelCreator) {
+            if (timer == null || sent.get() >= budget || fp.isCompleted()) {
+                return null;
+            }
+            final List<Long> predictions = new ArrayList<Long>();
+            for (int i = 0; i < futures.length(); i++) {
+                final FutureResponse futureResponse = futures.get(i);
+                if (futureResponse == null || futureResponse.isCompleted()) {
+                    continue;
+                }
+                final PeerStatistic peerStatistic = peerMap.getPeerStatistic(futureResponse.request().recipient());
+                if (peerStatistic != null) {
+                    final long prediction = percentile(peerStatistic.getRTTs());
+                    if (prediction >= 0) {
+                        predictions.add(prediction);
+                    }
+                }
+            }
+            if (predictions.isEmpty()) {
+                return null;
+            }
+            // the round finishes with the reply of the needed-th fastest peer
+            Collections.sort(predictions);
+            final long delayMillis = Math.max(minDelayMillis,
+                    predictions.get(Math.min(needed, predictions.size()) - 1));
+            try {
+                return timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        final int permits = forceUDP ? channelCreator.availableUDPPermits() : channelCreator
+                                .availableTCPPermits();
+                        if (permits <= 0) {
+                            return;
+                        }
+                        if (sent.incrementAndGet() > budget) {
+                            sent.decrementAndGet();
+                            return;
+                        }
+                        fp.cancel();
+                        if (!fp.isCanceled()) {
+                            // the round finished in the meantime
+                            sent.decrementAndGet();
+                        }
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                return null;
+            }
+        }
+
+        private long percentile(final List<RTT> rtts) {
+            if (rtts.isEmpty()) {
+                return -1;
+            }
+            final long[] values = new long[rtts.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = rtts.get(i).getRtt();
+            }
+            Arrays.sort(values);
+            final int index = (int) Math.ceil(percentile * values.length) - 1;
+            return values[Math.max(0, Math.min(values.length - 1, index))];
+        }
+
+        /**
+         * Counts the hedged request and whether it replies before the requests it was sent for.
+         */
+        private void hedged(final FutureResponse hedged, final List<FutureResponse> slow) {
+            hedges.incrementAndGet();
+            hedged.addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    if (!future.isSuccess()) {
+                        return;
+                    }
+                    for (FutureResponse futureResponse : slow) {
+                        if (!futureResponse.isCompleted()) {
+                            hedgesWon.incrementAndGet();
+                            return;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * If an operation fails, the routing result may be outdated. Remove it from the routing cache, so that the next
+     * operation on this location key does a full routing.
+     */
+    private void invalidateOnFailure(final BaseFuture futureDHT, final Number160 locationKey) {
+        futureDHT.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(final BaseFuture future) throws Exception {
+                if (future.isFailed()) {
+                    routing.invalidate(locationKey);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the cached get results of a location key that is changed by this peer. This is done before the
+     * operation starts and again when it finished, since a get could read the old data in between.
+     */
+    private void invalidateOnWrite(final BaseFuture futureDHT, final Number160 locationKey) {
+        final ReadCache readCache = this.readCache;
+        if (readCache == null) {
+            return;
+        }
+        readCache.invalidate(locationKey);
+        futureDHT.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(final BaseFuture future) throws Exception {
+                readCache.invalidate(locationKey);
+            }
+        });
+    }
+
     private static RoutingBuilder createBuilder(BasicBuilder<?> builder) {
     	RoutingBuilder routingBuilder = builder.createBuilder(builder.requestP2PConfiguration(),
                 builder.routingConfiguration());
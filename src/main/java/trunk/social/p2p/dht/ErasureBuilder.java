@@ -0,0 +1,205 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.futures.FutureChannelCreator;
+import trunk.social.p2p.p2p.RequestP2PConfiguration;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.storage.Data;
+import trunk.social.p2p.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The common part of the erasure-coded builders. A value is split into {@link #dataFragments()} fragments, and
+ * {@link #parityFragments()} Reed-Solomon parity fragments are added. Each fragment is stored on a different peer close
+ * to the location key, any {@link #dataFragments()} fragments are enough to read the value. With the defaults of 8 + 8
+ * fragments, the value takes twice its size in storage and survives the loss of any 8 peers, while a full copy on 6
+ * peers takes six times its size. If every peer is unavailable with 5%, both lose the value with a probability of about
+ * 1.6e-8.
+ * <p>
+ * The fragments are stored in the domain {@link #FRAGMENT_DOMAIN}. Their content key is derived from the domain key,
+ * the content key and the index of the fragment, the version key is used as is. Indirect replication does not copy
+ * this domain, the fragments are repaired with {@link ErasureGetBuilder#repair(boolean)}.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The type of the builder
+ */
+public abstract class ErasureBuilder<K extends ErasureBuilder<K>> extends DHTBuilder<K> {
+
+    /**
+     * The domain of all fragments.
+     */
+    public static final Number160 FRAGMENT_DOMAIN = Number160.createHash("erasure-fragment");
+
+    private Number160 contentKey = Number160.ZERO;
+
+    private int dataFragments = 8;
+
+    private int parityFragments = 8;
+
+    private K self;
+
+    public ErasureBuilder(final PeerDHT peer, final Number160 locationKey) {
+        super(peer, locationKey);
+    }
+
+    @Override
+    public void self(final K self) {
+        super.self(self);
+        this.self = self;
+    }
+
+    public Number160 contentKey() {
+        return contentKey;
+    }
+
+    public K contentKey(final Number160 contentKey) {
+        this.contentKey = contentKey;
+        return self;
+    }
+
+    /**
+     * @return The number of fragments the value is split into, also the number of fragments needed to read it
+     */
+    public int dataFragments() {
+        return dataFragments;
+    }
+
+    public K dataFragments(final int dataFragments) {
+        if (dataFragments < 1) {
+            throw new IllegalArgumentException("Need at least one data fragment.");
+        }
+        this.dataFragments = dataFragments;
+        return self;
+    }
+
+    /**
+     * @return The number of parity fragments, also the number of fragments that can be lost
+     */
+    public int parityFragments() {
+        return parityFragments;
+    }
+
+    public K parityFragments(final int parityFragments) {
+        if (parityFragments < 0) {
+            throw new IllegalArgumentException("The number of parity fragments cannot be negative.");
+        }
+        this.parityFragments = parityFragments;
+        return self;
+    }
+
+    /**
+     * @return The number of data and parity fragments
+     */
+    public int fragments() {
+        return dataFragments + parityFragments;
+    }
+
+    /**
+     * @param index
+     *            The index of the fragment, the data fragments come first
+     * @return The key the fragment is stored with
+     */
+    public Number640 fragmentKey(final int index) {
+        final byte[] buffer = new byte[Number160.BYTE_ARRAY_SIZE * 2 + 4];
+        System.arraycopy((domainKey == null ? Number160.ZERO : domainKey).toByteArray(), 0, buffer, 0,
+                Number160.BYTE_ARRAY_SIZE);
+        System.arraycopy(contentKey.toByteArray(), 0, buffer, Number160.BYTE_ARRAY_SIZE, Number160.BYTE_ARRAY_SIZE);
+        Utils.intToByteArray(index, buffer, Number160.BYTE_ARRAY_SIZE * 2);
+        return new Number640(locationKey, FRAGMENT_DOMAIN, Utils.makeSHAHash(buffer),
+                versionKey == null ? Number160.ZERO : versionKey);
+    }
+
+    /**
+     * @return The keys of all fragments, in the order of their index
+     */
+    public List<Number640> fragmentKeys() {
+        final List<Number640> keys = new ArrayList<Number640>(fragments());
+        for (int i = 0; i < fragments(); i++) {
+            keys.add(fragmentKey(i));
+        }
+        return keys;
+    }
+
+    /**
+     * @param key
+     *            The key of an entry
+     * @return True if the entry is a fragment of an erasure-coded value
+     */
+    public static boolean isFragment(final Number640 key) {
+        return FRAGMENT_DOMAIN.equals(key.domainKey());
+    }
+
+    /**
+     * @param dataMap
+     *            The entries, e.g. of the storage layer
+     * @return The entries without the fragments of erasure-coded values
+     */
+    public static NavigableMap<Number640, Data> withoutFragments(final NavigableMap<Number640, Data> dataMap) {
+        NavigableMap<Number640, Data> result = dataMap;
+        for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+            if (isFragment(entry.getKey())) {
+                if (result == dataMap) {
+                    result = new TreeMap<Number640, Data>(dataMap);
+                }
+                result.remove(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected void preBuild(final String name) {
+        if (dataFragments + parityFragments > 256) {
+            throw new IllegalArgumentException("At most 256 fragments are supported.");
+        }
+        if (requestP2PConfiguration == null) {
+            requestP2PConfiguration = new RequestP2PConfiguration(fragments(), 5, 0);
+        }
+        super.preBuild(name);
+    }
+
+    /**
+     * Reserves the connections for the routing and one request per fragment, plus one for each peer that may fail.
+     */
+    @Override
+    protected FutureChannelCreator reserve() {
+        final int routingPermits = routingConfiguration.parallel() + routingConfiguration.maxExtraParallel();
+        final int requests = fragments() + requestP2PConfiguration.maxFailure();
+        int permitsUDP = 0;
+        int permitsTCP = 0;
+        if (isForceUDP()) {
+            permitsUDP = requests;
+        } else {
+            permitsTCP = requests;
+        }
+        if (!isForceTCP()) {
+            permitsUDP = Math.max(permitsUDP, routingPermits);
+        } else {
+            permitsTCP = Math.max(permitsTCP, routingPermits);
+        }
+        return peer.peer().connectionBean().reservation().create(permitsUDP, permitsTCP);
+    }
+}
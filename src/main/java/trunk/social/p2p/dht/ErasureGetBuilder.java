@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.peers.Number160;
+
+/**
+ * Gets an erasure-coded value, see {@link ErasureBuilder}. All fragments are requested from the closest peers in
+ * parallel, the value is decoded as soon as {@link #dataFragments()} fragments of the same value arrived and the other
+ * requests are canceled. With {@link #repair(boolean)}, the get waits for all peers and stores the missing fragments
+ * again. Only the missing fragments are sent, each to a close peer that has no fragment of the value.
+ *
+ * @author Thomas Bocek
+ */
+public class ErasureGetBuilder extends ErasureBuilder<ErasureGetBuilder> {
+    private final static FutureErasure FUTURE_SHUTDOWN = new FutureErasure(null)
+            .failed("erasure get builder - peer is shutting down");
+
+    private boolean repair = false;
+
+    public ErasureGetBuilder(final PeerDHT peer, final Number160 locationKey) {
+        super(peer, locationKey);
+        self(this);
+    }
+
+    public boolean isRepair() {
+        return repair;
+    }
+
+    /**
+     * @param repair
+     *            Set to true to wait for all peers and store the missing fragments again
+     * @return This class
+     */
+    public ErasureGetBuilder repair(final boolean repair) {
+        this.repair = repair;
+        return this;
+    }
+
+    public ErasureGetBuilder repair() {
+        this.repair = true;
+        return this;
+    }
+
+    public FutureErasure start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        preBuild("erasure-get-builder");
+        return peer.distributedHashTable().erasureGet(this, new FutureErasure(this));
+    }
+}
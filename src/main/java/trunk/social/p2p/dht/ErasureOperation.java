@@ -0,0 +1,575 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.ChannelCreator;
+import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureResponse;
+import trunk.social.p2p.futures.FutureRouting;
+import trunk.social.p2p.message.Message.Type;
+import trunk.social.p2p.p2p.DistributedRouting;
+import trunk.social.p2p.p2p.builder.RoutingBuilder;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.storage.Data;
+import trunk.social.p2p.utils.ReedSolomon;
+import trunk.social.p2p.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an erasure-coded operation. The location key is routed once, afterwards each fragment is sent to or requested
+ * from the closest peers. A peer that fails is replaced by the next closest peer of the routing result, at most
+ * {@link trunk.social.p2p.p2p.RequestP2PConfiguration#maxFailure()} times.
+ * <p>
+ * A fragment starts with a header: the number of data and parity fragments (1 byte each), the index (1 byte), the
+ * length of the value (4 bytes), and the hash of the value (20 bytes). Fragments are only decoded together if they
+ * belong to the same value, and the decoded value is verified with its hash.
+ *
+ * @author Thomas Bocek
+ */
+abstract class ErasureOperation {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ErasureOperation.class);
+
+    static final int HEADER_SIZE = 3 + 4 + Number160.BYTE_ARRAY_SIZE;
+
+    protected final ErasureBuilder<?> builder;
+    protected final FutureErasure futureErasure;
+    protected final StorageRPC storageRPC;
+    protected final ChannelCreator channelCreator;
+    private final DistributedRouting routing;
+
+    // the closest peers of the routing result, guarded by this
+    protected List<PeerAddress> candidates;
+    // the index of the next candidate that has not been contacted, guarded by this
+    protected int nextCandidate;
+    // the number of peers that replaced a failed peer, guarded by this
+    protected int replaced = 0;
+    // the number of requests that did not finish yet, guarded by this
+    protected int outstanding = 0;
+
+    ErasureOperation(final ErasureBuilder<?> builder, final FutureErasure futureErasure,
+            final DistributedRouting routing, final StorageRPC storageRPC, final ChannelCreator channelCreator) {
+        this.builder = builder;
+        this.futureErasure = futureErasure;
+        this.routing = routing;
+        this.storageRPC = storageRPC;
+        this.channelCreator = channelCreator;
+    }
+
+    /**
+     * Called with the lock held when the closest peers are known.
+     */
+    protected abstract void routed();
+
+    /**
+     * Called once all requests finished, without the lock held.
+     */
+    protected abstract void finished();
+
+    void start() {
+        final RoutingBuilder routingBuilder = builder.createBuilder(builder.requestP2PConfiguration(),
+                builder.routingConfiguration());
+        routingBuilder.locationKey(builder.locationKey());
+        routingBuilder.domainKey(builder.domainKey());
+        routingBuilder.peerMapFilters(builder.peerMapFilters());
+        routingBuilder.postRoutingFilters(builder.postRoutingFilters());
+        final FutureRouting futureRouting = routing.route(routingBuilder, Type.REQUEST_1, channelCreator);
+        futureErasure.futureRouting(futureRouting);
+        futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureErasure.failed(future);
+                    return;
+                }
+                if (future.potentialHits().isEmpty()) {
+                    futureErasure.failed("No peers found for " + builder.locationKey());
+                    return;
+                }
+                final boolean done;
+                synchronized (ErasureOperation.this) {
+                    candidates = new ArrayList<PeerAddress>(future.potentialHits());
+                    // requests that fail right away must not finish the operation before all are sent
+                    outstanding++;
+                    routed();
+                    done = --outstanding == 0;
+                }
+                if (done) {
+                    finished();
+                }
+            }
+        });
+    }
+
+    /**
+     * Needs to be called with the lock held.
+     *
+     * @param exclude
+     *            The peers that must not be returned
+     * @return The closest peer that has not been contacted, or null if there is none or too many peers failed
+     */
+    protected PeerAddress replacement(final Set<PeerAddress> exclude) {
+        if (replaced >= builder.requestP2PConfiguration().maxFailure()) {
+            return null;
+        }
+        while (nextCandidate < candidates.size()) {
+            final PeerAddress candidate = candidates.get(nextCandidate++);
+            if (!exclude.contains(candidate)) {
+                replaced++;
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores one fragment on a peer.
+     */
+    protected FutureResponse putFragment(final PeerAddress peerAddress, final int index, final Data fragment) {
+        final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+        dataMap.put(builder.fragmentKey(index), fragment);
+        final FutureResponse futureResponse = storageRPC.put(peerAddress, builder, dataMap, channelCreator);
+        futureErasure.addRequests(futureResponse);
+        return futureResponse;
+    }
+
+    /**
+     * @return True if the peer stored the fragment
+     */
+    protected boolean isStored(final FutureResponse futureResponse, final int index) {
+        if (!futureResponse.isSuccess() || !futureResponse.responseMessage().isOk()) {
+            return false;
+        }
+        return DistributedHashTable.isStored(Arrays.asList(builder.fragmentKey(index)), futureResponse
+                .responseMessage().keyMapByte(0).keysMap());
+    }
+
+    /**
+     * Splits a value into fragments.
+     *
+     * @param value
+     *            The value
+     * @param dataFragments
+     *            The number of fragments the value is split into
+     * @param parityFragments
+     *            The number of parity fragments
+     * @return The data fragments followed by the parity fragments, with the time-to-live of the value
+     */
+    static Data[] encode(final Data value, final int dataFragments, final int parityFragments) {
+        final byte[] bytes = value.toBytes();
+        final ReedSolomon reedSolomon = new ReedSolomon(dataFragments, parityFragments);
+        final int shardLength = Math.max(1, (bytes.length + dataFragments - 1) / dataFragments);
+        final byte[][] shards = new byte[reedSolomon.totalShards()][shardLength];
+        for (int i = 0; i < dataFragments; i++) {
+            final int offset = i * shardLength;
+            if (offset < bytes.length) {
+                System.arraycopy(bytes, offset, shards[i], 0, Math.min(shardLength, bytes.length - offset));
+            }
+        }
+        reedSolomon.encodeParity(shards);
+        final Number160 hash = Utils.makeSHAHash(bytes);
+        final Data[] fragments = new Data[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            fragments[i] = fragment(dataFragments, parityFragments, i, bytes.length, hash, shards[i])
+                    .ttlSeconds(value.ttlSeconds());
+        }
+        return fragments;
+    }
+
+    static Data fragment(final int dataFragments, final int parityFragments, final int index,
+            final int length, final Number160 hash, final byte[] shard) {
+        final byte[] buffer = new byte[HEADER_SIZE + shard.length];
+        buffer[0] = (byte) (dataFragments - 1);
+        buffer[1] = (byte) parityFragments;
+        buffer[2] = (byte) index;
+        Utils.intToByteArray(length, buffer, 3);
+        System.arraycopy(hash.toByteArray(), 0, buffer, 7, Number160.BYTE_ARRAY_SIZE);
+        System.arraycopy(shard, 0, buffer, HEADER_SIZE, shard.length);
+        return new Data(buffer);
+    }
+
+    /**
+     * Reads the header of a fragment.
+     *
+     * @return The fragment, or null if it does not belong to a value with these fragment numbers
+     */
+    static Fragment fragment(final Data data, final int dataFragments, final int parityFragments) {
+        final byte[] buffer = data.toBytes();
+        if (buffer.length <= HEADER_SIZE || (buffer[0] & 0xff) + 1 != dataFragments
+                || (buffer[1] & 0xff) != parityFragments || (buffer[2] & 0xff) >= dataFragments + parityFragments) {
+            return null;
+        }
+        final int length = Utils.byteArrayToInt(buffer, 3);
+        final byte[] hash = new byte[Number160.BYTE_ARRAY_SIZE];
+        System.arraycopy(buffer, 7, hash, 0, hash.length);
+        return new Fragment(buffer[2] & 0xff, length, new Number160(hash), Arrays.copyOfRange(buffer, HEADER_SIZE,
+                buffer.length), data.ttlSeconds());
+    }
+
+    /**
+     * Decodes a value and computes the missing fragments.
+     *
+     * @param fragments
+     *            At least dataFragments fragments of the same value, by index
+     * @param shards
+     *            Filled with all shards of the value
+     * @return The value, or null if the fragments do not match their hash
+     */
+    static byte[] decode(final Map<Integer, Fragment> fragments, final int dataFragments,
+            final int parityFragments, final byte[][] shards) {
+        final ReedSolomon reedSolomon = new ReedSolomon(dataFragments, parityFragments);
+        final boolean[] present = new boolean[reedSolomon.totalShards()];
+        Fragment any = null;
+        for (Map.Entry<Integer, Fragment> entry : fragments.entrySet()) {
+            shards[entry.getKey()] = entry.getValue().shard;
+            present[entry.getKey()] = true;
+            any = entry.getValue();
+        }
+        final int shardLength = any.shard.length;
+        if (any.length < 0 || any.length > shardLength * dataFragments) {
+            return null;
+        }
+        for (Fragment fragment : fragments.values()) {
+            if (fragment.shard.length != shardLength) {
+                return null;
+            }
+        }
+        reedSolomon.decode(shards, present);
+        final byte[] value = new byte[any.length];
+        for (int i = 0; i < dataFragments; i++) {
+            final int offset = i * shardLength;
+            if (offset < value.length) {
+                System.arraycopy(shards[i], 0, value, offset, Math.min(shardLength, value.length - offset));
+            }
+        }
+        if (!Utils.makeSHAHash(value).equals(any.hash)) {
+            return null;
+        }
+        return value;
+    }
+
+    static final class Fragment {
+        final int index;
+        final int length;
+        final Number160 hash;
+        final byte[] shard;
+        final int ttlSeconds;
+
+        Fragment(final int index, final int length, final Number160 hash, final byte[] shard, final int ttlSeconds) {
+            this.index = index;
+            this.length = length;
+            this.hash = hash;
+            this.shard = shard;
+            this.ttlSeconds = ttlSeconds;
+        }
+    }
+
+    /**
+     * Sends each fragment to its own peer, the i-th fragment to the i-th closest peer. If there are fewer peers than
+     * fragments, some peers get more than one fragment.
+     */
+    static final class Put extends ErasureOperation {
+
+        private final Data[] fragments;
+        // the peer of each stored fragment, guarded by this
+        private final Map<Integer, PeerAddress> stored = new HashMap<Integer, PeerAddress>();
+        private final Set<PeerAddress> used = new HashSet<PeerAddress>();
+
+        Put(final ErasurePutBuilder builder, final FutureErasure futureErasure, final DistributedRouting routing,
+                final StorageRPC storageRPC, final ChannelCreator channelCreator) {
+            super(builder, futureErasure, routing, storageRPC, channelCreator);
+            this.fragments = encode(builder.data(), builder.dataFragments(), builder.parityFragments());
+        }
+
+        @Override
+        protected void routed() {
+            nextCandidate = Math.min(fragments.length, candidates.size());
+            for (int i = 0; i < fragments.length; i++) {
+                final PeerAddress peerAddress = candidates.get(i % nextCandidate);
+                used.add(peerAddress);
+                send(peerAddress, i);
+            }
+        }
+
+        private void send(final PeerAddress peerAddress, final int index) {
+            outstanding++;
+            putFragment(peerAddress, index, fragments[index]).addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    final boolean success = isStored(future, index);
+                    synchronized (Put.this) {
+                        outstanding--;
+                        if (success) {
+                            stored.put(index, peerAddress);
+                        } else {
+                            LOG.debug("fragment {} of {} not stored on {}: {}", index, builder.locationKey(),
+                                    peerAddress, future.failedReason());
+                            final PeerAddress replacement = replacement(used);
+                            if (replacement != null) {
+                                used.add(replacement);
+                                send(replacement, index);
+                            }
+                        }
+                        if (outstanding > 0) {
+                            return;
+                        }
+                    }
+                    finished();
+                }
+            });
+        }
+
+        @Override
+        protected void finished() {
+            final Map<Integer, PeerAddress> result;
+            synchronized (this) {
+                result = new HashMap<Integer, PeerAddress>(stored);
+            }
+            if (result.size() < fragments.length) {
+                futureErasure.failed("Only " + result.size() + " of " + fragments.length + " fragments stored.");
+            } else {
+                futureErasure.done(((ErasurePutBuilder) builder).data(), result, 0);
+            }
+        }
+    }
+
+    /**
+     * Requests all fragment keys from as many closest peers as there are fragments. A peer that fails or has no
+     * fragment is replaced by the next closest peer, until the value can be decoded.
+     */
+    static final class Get extends ErasureOperation {
+
+        private final boolean repair;
+        private final List<Number640> keys;
+        // the fragments by value hash, in the order the values were seen, guarded by this
+        private final Map<Number160, Map<Integer, Fragment>> values =
+                new LinkedHashMap<Number160, Map<Integer, Fragment>>();
+        // the peer of each fragment by value hash, guarded by this
+        private final Map<Number160, Map<Integer, PeerAddress>> holders =
+                new HashMap<Number160, Map<Integer, PeerAddress>>();
+        // the peers that were asked and the peers that replied, guarded by this
+        private final Set<PeerAddress> asked = new HashSet<PeerAddress>();
+        private final Set<PeerAddress> replied = new HashSet<PeerAddress>();
+        private Number160 decodedHash;
+        private byte[] decoded;
+        private byte[][] shards;
+        private boolean done = false;
+
+        Get(final ErasureGetBuilder builder, final FutureErasure futureErasure, final DistributedRouting routing,
+                final StorageRPC storageRPC, final ChannelCreator channelCreator) {
+            super(builder, futureErasure, routing, storageRPC, channelCreator);
+            this.repair = builder.isRepair();
+            this.keys = builder.fragmentKeys();
+        }
+
+        @Override
+        protected void routed() {
+            nextCandidate = Math.min(builder.fragments(), candidates.size());
+            for (int i = 0; i < nextCandidate; i++) {
+                request(candidates.get(i));
+            }
+        }
+
+        private void request(final PeerAddress peerAddress) {
+            asked.add(peerAddress);
+            outstanding++;
+            final FutureResponse futureResponse = storageRPC.get(peerAddress, builder, keys, channelCreator);
+            futureErasure.addRequests(futureResponse);
+            futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                @Override
+                public void operationComplete(final FutureResponse future) throws Exception {
+                    synchronized (Get.this) {
+                        outstanding--;
+                        final boolean found = received(peerAddress, future);
+                        if (decoded == null) {
+                            decode();
+                        }
+                        if (!found && decoded == null) {
+                            final PeerAddress replacement = replacement(asked);
+                            if (replacement != null) {
+                                request(replacement);
+                            }
+                        }
+                        if (outstanding > 0 && (decoded == null || repair)) {
+                            return;
+                        }
+                    }
+                    finished();
+                }
+            });
+        }
+
+        /**
+         * Adds the fragments of a reply. Needs to be called with the lock held.
+         *
+         * @return True if the peer returned at least one fragment
+         */
+        private boolean received(final PeerAddress peerAddress, final FutureResponse future) {
+            if (!future.isSuccess() || !future.responseMessage().isOk()) {
+                LOG.debug("no fragments of {} from {}: {}", builder.locationKey(), peerAddress,
+                        future.failedReason());
+                return false;
+            }
+            replied.add(peerAddress);
+            if (future.responseMessage().dataMap(0) == null) {
+                return false;
+            }
+            boolean found = false;
+            for (Map.Entry<Number640, Data> entry : future.responseMessage().dataMap(0).dataMap().entrySet()) {
+                final Fragment fragment = fragment(entry.getValue(), builder.dataFragments(),
+                        builder.parityFragments());
+                if (fragment == null || !entry.getKey().equals(keys.get(fragment.index))) {
+                    continue;
+                }
+                Map<Integer, Fragment> fragments = values.get(fragment.hash);
+                if (fragments == null) {
+                    fragments = new TreeMap<Integer, Fragment>();
+                    values.put(fragment.hash, fragments);
+                    holders.put(fragment.hash, new TreeMap<Integer, PeerAddress>());
+                }
+                fragments.put(fragment.index, fragment);
+                holders.get(fragment.hash).put(fragment.index, peerAddress);
+                found = true;
+            }
+            return found;
+        }
+
+        /**
+         * Decodes the first value with enough fragments. Needs to be called with the lock held.
+         */
+        private void decode() {
+            for (Map.Entry<Number160, Map<Integer, Fragment>> entry : values.entrySet()) {
+                if (entry.getValue().size() < builder.dataFragments()) {
+                    continue;
+                }
+                final byte[][] shards = new byte[builder.fragments()][];
+                final byte[] value = ErasureOperation.decode(entry.getValue(), builder.dataFragments(),
+                        builder.parityFragments(), shards);
+                if (value == null) {
+                    LOG.warn("fragments of {} do not match their hash {}", builder.locationKey(), entry.getKey());
+                    continue;
+                }
+                this.decodedHash = entry.getKey();
+                this.decoded = value;
+                this.shards = shards;
+                return;
+            }
+        }
+
+        @Override
+        protected void finished() {
+            final Data data;
+            final Map<Integer, PeerAddress> found;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                if (decoded == null) {
+                    int max = 0;
+                    for (Map<Integer, Fragment> fragments : values.values()) {
+                        max = Math.max(max, fragments.size());
+                    }
+                    futureErasure.failed("Only " + max + " of " + builder.dataFragments() + " fragments found.");
+                    return;
+                }
+                data = new Data(decoded);
+                found = new HashMap<Integer, PeerAddress>(holders.get(decodedHash));
+            }
+            if (!repair) {
+                futureErasure.done(data, found, 0);
+                futureErasure.cancelRequests();
+                return;
+            }
+            repair(data, found);
+        }
+
+        /**
+         * Stores the missing fragments on the closest peers that replied or were not asked and have no fragment of
+         * the value. If there are not enough such peers, the peers with a fragment get another one.
+         */
+        private void repair(final Data data, final Map<Integer, PeerAddress> found) {
+            final Map<Integer, PeerAddress> targets = new TreeMap<Integer, PeerAddress>();
+            synchronized (this) {
+                final Set<PeerAddress> holding = new HashSet<PeerAddress>(found.values());
+                final List<PeerAddress> free = new ArrayList<PeerAddress>();
+                final List<PeerAddress> shared = new ArrayList<PeerAddress>();
+                for (PeerAddress candidate : candidates) {
+                    if (holding.contains(candidate)) {
+                        shared.add(candidate);
+                    } else if (replied.contains(candidate) || !asked.contains(candidate)) {
+                        free.add(candidate);
+                    }
+                }
+                // as with the put, a peer gets a second fragment only if there are not enough peers
+                free.addAll(shared);
+                int next = 0;
+                for (int i = 0; i < builder.fragments(); i++) {
+                    if (!found.containsKey(i)) {
+                        targets.put(i, free.get(next++ % free.size()));
+                    }
+                }
+            }
+            if (targets.isEmpty()) {
+                futureErasure.done(data, found, 0);
+                return;
+            }
+            LOG.debug("repairing {} fragments of {}", targets.size(), builder.locationKey());
+            final Map<Integer, PeerAddress> result = new HashMap<Integer, PeerAddress>(found);
+            final AtomicInteger left = new AtomicInteger(targets.size());
+            synchronized (this) {
+                final int ttlSeconds = values.get(decodedHash).values().iterator().next().ttlSeconds;
+                for (final Map.Entry<Integer, PeerAddress> target : targets.entrySet()) {
+                    final int index = target.getKey();
+                    final Data fragment = fragment(builder.dataFragments(), builder.parityFragments(), index,
+                            decoded.length, decodedHash, shards[index]).ttlSeconds(ttlSeconds);
+                    putFragment(target.getValue(), index, fragment).addListener(
+                            new BaseFutureAdapter<FutureResponse>() {
+                                @Override
+                                public void operationComplete(final FutureResponse future) throws Exception {
+                                    if (isStored(future, index)) {
+                                        synchronized (result) {
+                                            result.put(index, target.getValue());
+                                        }
+                                    }
+                                    if (left.decrementAndGet() == 0) {
+                                        synchronized (result) {
+                                            futureErasure.done(data, result, result.size() - found.size());
+                                        }
+                                    }
+                                }
+                            });
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.storage.Data;
+
+/**
+ * Stores a value erasure-coded, see {@link ErasureBuilder}. The closest peers get one fragment each. If a peer fails,
+ * its fragment is stored on the next closest peer, at most
+ * {@link trunk.social.p2p.p2p.RequestP2PConfiguration#maxFailure()} times. The put succeeds if every fragment has been
+ * stored.
+ *
+ * @author Thomas Bocek
+ */
+public class ErasurePutBuilder extends ErasureBuilder<ErasurePutBuilder> {
+    private final static FutureErasure FUTURE_SHUTDOWN = new FutureErasure(null)
+            .failed("erasure put builder - peer is shutting down");
+
+    private Data data;
+
+    public ErasurePutBuilder(final PeerDHT peer, final Number160 locationKey) {
+        super(peer, locationKey);
+        self(this);
+    }
+
+    public Data data() {
+        return data;
+    }
+
+    public ErasurePutBuilder data(final Data data) {
+        this.data = data;
+        return this;
+    }
+
+    public ErasurePutBuilder data(final Number160 contentKey, final Data data) {
+        contentKey(contentKey);
+        this.data = data;
+        return this;
+    }
+
+    public FutureErasure start() {
+        if (peer.peer().isShutdown()) {
+            return FUTURE_SHUTDOWN;
+        }
+        if (data == null) {
+            throw new IllegalArgumentException("You must set data via data(). Cannot add nothing.");
+        }
+        preBuild("erasure-put-builder");
+        return peer.distributedHashTable().erasurePut(this, new FutureErasure(this));
+    }
+}
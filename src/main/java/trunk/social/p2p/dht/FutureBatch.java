@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureDone;
+import trunk.social.p2p.peers.Number160;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The future object for batch operations on many location keys. Every location key has its own future that completes
+ * as soon as all peers responsible for this key replied, so the results can be processed while the requests for other
+ * keys are still running. This future completes when all keys are done.
+ *
+ * @author Thomas Bocek
+ *
+ * @param <K>
+ *            The result per location key
+ */
+public class FutureBatch<K> extends FutureDHT<FutureBatch<K>> {
+
+    private final Map<Number160, FutureDone<K>> futures;
+
+    private int completed = 0;
+
+    private int failed = 0;
+
+    /**
+     * Creates a future with one pending future per location key.
+     *
+     * @param builder
+     *            The builder of this batch
+     * @param locationKeys
+     *            The location keys of the batch
+     */
+    public FutureBatch(final DHTBuilder<?> builder, final Collection<Number160> locationKeys) {
+        super(builder);
+        self(this);
+        final Map<Number160, FutureDone<K>> futures = new LinkedHashMap<Number160, FutureDone<K>>();
+        for (Number160 locationKey : locationKeys) {
+            futures.put(locationKey, new FutureDone<K>());
+        }
+        this.futures = Collections.unmodifiableMap(futures);
+        for (FutureDone<K> future : futures.values()) {
+            future.addListener(new BaseFutureAdapter<FutureDone<K>>() {
+                @Override
+                public void operationComplete(final FutureDone<K> future) throws Exception {
+                    keyCompleted(future.isSuccess());
+                }
+            });
+        }
+    }
+
+    private void keyCompleted(final boolean success) {
+        synchronized (lock) {
+            completed++;
+            if (!success) {
+                failed++;
+            }
+            if (completed < futures.size() || !completedAndNotify()) {
+                return;
+            }
+            this.type = failed == 0 ? FutureType.OK : FutureType.FAILED;
+            this.reason = failed == 0 ? "All keys done" : failed + " of " + futures.size() + " keys failed";
+        }
+        notifyListeners();
+    }
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @return The future of this location key or null if the key is not part of the batch
+     */
+    public FutureDone<K> future(final Number160 locationKey) {
+        return futures.get(locationKey);
+    }
+
+    /**
+     * @return The futures of all location keys, in the order the keys were added
+     */
+    public Map<Number160, FutureDone<K>> futures() {
+        return futures;
+    }
+
+    /**
+     * @return The results of the location keys that completed successfully so far
+     */
+    public Map<Number160, K> results() {
+        final Map<Number160, K> results = new LinkedHashMap<Number160, K>();
+        for (Map.Entry<Number160, FutureDone<K>> entry : futures.entrySet()) {
+            if (entry.getValue().isSuccess()) {
+                results.put(entry.getKey(), entry.getValue().object());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return The number of location keys that failed so far
+     */
+    public int failedKeys() {
+        synchronized (lock) {
+            return failed;
+        }
+    }
+}
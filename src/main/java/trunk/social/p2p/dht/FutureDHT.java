@@ -72,6 +72,21 @@ public abstract class FutureDHT<K extends BaseFuture> extends BaseFutureImpl<K>
     	}
     }
 
+    /**
+     * Cancels the requests that are still running, e.g. because enough results have been received.
+     */
+    public void cancelRequests() {
+        final List<FutureResponse> running;
+        synchronized (lock) {
+            running = new ArrayList<FutureResponse>(requests);
+        }
+        for (FutureResponse futureResponse : running) {
+            if (!futureResponse.isCompleted()) {
+                futureResponse.cancel();
+            }
+        }
+    }
+
     /**
      * Adds a listener to the response future and releases all acquired channels in channel creator.
      * 
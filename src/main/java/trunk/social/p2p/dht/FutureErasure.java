@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.futures.BaseFuture;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.storage.Data;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The future object for erasure-coded puts and gets. A put succeeds if every fragment has been stored on a peer. A get
+ * succeeds as soon as enough fragments of one value arrived to decode it, or, if repair is enabled, when all peers
+ * replied and the missing fragments have been stored again.
+ *
+ * @author Thomas Bocek
+ */
+public class FutureErasure extends FutureDHT<FutureErasure> {
+
+    private Data data;
+
+    private Map<Integer, PeerAddress> fragments = Collections.emptyMap();
+
+    private int repaired = 0;
+
+    public FutureErasure(final DHTBuilder<?> builder) {
+        super(builder);
+        self(this);
+    }
+
+    /**
+     * Finishes the future successfully.
+     *
+     * @param data
+     *            The decoded value for a get, the stored value for a put
+     * @param fragments
+     *            The peer of each fragment index that was stored or found
+     * @param repaired
+     *            The number of fragments that have been stored again
+     * @return This class
+     */
+    public FutureErasure done(final Data data, final Map<Integer, PeerAddress> fragments, final int repaired) {
+        synchronized (lock) {
+            if (!completedAndNotify()) {
+                return this;
+            }
+            this.data = data;
+            this.fragments = Collections.unmodifiableMap(new TreeMap<Integer, PeerAddress>(fragments));
+            this.repaired = repaired;
+            this.type = BaseFuture.FutureType.OK;
+        }
+        notifyListeners();
+        return this;
+    }
+
+    /**
+     * @return The decoded value for a get, the stored value for a put
+     */
+    public Data data() {
+        synchronized (lock) {
+            return data;
+        }
+    }
+
+    /**
+     * @return The peer of each fragment index that was stored or found
+     */
+    public Map<Integer, PeerAddress> fragments() {
+        synchronized (lock) {
+            return fragments;
+        }
+    }
+
+    /**
+     * @return The number of fragments that have been stored again by a get with repair
+     */
+    public int repaired() {
+        synchronized (lock) {
+            return repaired;
+        }
+    }
+}
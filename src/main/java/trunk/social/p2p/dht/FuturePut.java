@@ -15,7 +15,11 @@
  */
 package trunk.social.p2p.dht;
 
+import trunk.social.p2p.connection.ChannelCreator;
+import trunk.social.p2p.futures.BaseFutureAdapter;
 import trunk.social.p2p.futures.FutureDone;
+import trunk.social.p2p.futures.FutureForkJoin;
+import trunk.social.p2p.futures.FutureResponse;
 import trunk.social.p2p.peers.Number640;
 import trunk.social.p2p.peers.PeerAddress;
 
@@ -44,6 +48,9 @@ public class FuturePut extends FutureDHT<FuturePut> {
     
     private Map<Number640, Integer> result;
 
+    // completes when all replicas have been written, which can be later than this future, see WriteConsistency
+    private final FutureDone<Map<PeerAddress, Map<Number640, Byte>>> futureReplication = new FutureDone<Map<PeerAddress, Map<Number640, Byte>>>();
+
     /**
      * Creates a new DHT future object that keeps track of the status of the DHT operations.
      * 
@@ -57,6 +64,15 @@ public class FuturePut extends FutureDHT<FuturePut> {
         this.min = min;
         this.dataSize = dataSize;
         self(this);
+        addListener(new BaseFutureAdapter<FuturePut>() {
+            @Override
+            public void operationComplete(final FuturePut future) throws Exception {
+                if (future.rawResult() == null) {
+                    // failed before any replica has been written
+                    futureReplication.failed(future);
+                }
+            }
+        });
     }
 
     /**
@@ -72,6 +88,24 @@ public class FuturePut extends FutureDHT<FuturePut> {
      *            The keys with locationKey and domainKey Flag if the user requested putIfAbsent
      */
     public void storedKeys(final Map<PeerAddress, Map<Number640, Byte>> rawResult, FutureDone<Void> futuresCompleted) {
+        complete(rawResult, futuresCompleted);
+        futureReplication.done(rawResult);
+    }
+
+    /**
+     * Finish the future before all replicas have been written, since enough replicas stored the data, see
+     * {@link WriteConsistency}. The final result is set with {@link #storedKeys(Map, FutureDone)}, which completes
+     * {@link #futureReplication()}.
+     * 
+     * @param rawResult
+     *            The replicas that stored all the data
+     */
+    public void acknowledged(final Map<PeerAddress, Map<Number640, Byte>> rawResult) {
+        complete(rawResult, null);
+    }
+
+    private void complete(final Map<PeerAddress, Map<Number640, Byte>> rawResult,
+            final FutureDone<Void> futuresCompleted) {
         synchronized (lock) {
             if (!completedAndNotify()) {
                 return;
@@ -87,6 +121,50 @@ public class FuturePut extends FutureDHT<FuturePut> {
         notifyListeners();
     }
 
+    /**
+     * @return The future that completes with the results of all replicas once every replica write finished. If the
+     *         put waits for the minimum number of results, it completes together with this future.
+     */
+    public FutureDone<Map<PeerAddress, Map<Number640, Byte>>> futureReplication() {
+        return futureReplication;
+    }
+
+    /**
+     * @param result
+     *            The result of one replica
+     * @return True if the replica stored all the data
+     */
+    public boolean isAcknowledged(final Map<Number640, Byte> result) {
+        if (result == null || result.size() < dataSize) {
+            return false;
+        }
+        for (Byte status : result.values()) {
+            if (!isStored(status)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The channels are released when all replicas have been written, not when this future completes.
+     */
+    @Override
+    public void addFutureDHTReleaseListener(final ChannelCreator channelCreator) {
+        futureReplication.addListener(new BaseFutureAdapter<FutureDone<Map<PeerAddress, Map<Number640, Byte>>>>() {
+            @Override
+            public void operationComplete(final FutureDone<Map<PeerAddress, Map<Number640, Byte>>> future)
+                    throws Exception {
+                futureRequests().addListener(new BaseFutureAdapter<FutureForkJoin<FutureResponse>>() {
+                    @Override
+                    public void operationComplete(final FutureForkJoin<FutureResponse> future) throws Exception {
+                        channelCreator.shutdown();
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * @return The average keys received from the DHT. Only evaluates rawKeys.
      */
@@ -146,11 +224,7 @@ public class FuturePut extends FutureDHT<FuturePut> {
         Map<Number640, Integer> result = new HashMap<Number640, Integer>();
         for(Map<Number640, Byte> map:rawResult2.values()) {
             for(Map.Entry<Number640, Byte> entry: map.entrySet()) {
-                if(entry.getValue().intValue() == StorageLayer.PutStatus.OK.ordinal()
-                		|| entry.getValue().intValue() == StorageLayer.PutStatus.OK_PREPARED.ordinal()
-                		|| entry.getValue().intValue() == StorageLayer.PutStatus.OK_UNCHANGED.ordinal()
-                		|| entry.getValue().intValue() == StorageLayer.PutStatus.VERSION_FORK.ordinal()
-                		|| entry.getValue().intValue() == StorageLayer.PutStatus.DELETED.ordinal()) {
+                if(isStored(entry.getValue())) {
                     Integer integer = result.get(entry.getKey());
                     if(integer == null) {
                         result.put(entry.getKey(), 1);
@@ -163,11 +237,23 @@ public class FuturePut extends FutureDHT<FuturePut> {
         return result;
     }
 
+    private static boolean isStored(final Byte status) {
+        return status.intValue() == StorageLayer.PutStatus.OK.ordinal()
+                || status.intValue() == StorageLayer.PutStatus.OK_PREPARED.ordinal()
+                || status.intValue() == StorageLayer.PutStatus.OK_UNCHANGED.ordinal()
+                || status.intValue() == StorageLayer.PutStatus.VERSION_FORK.ordinal()
+                || status.intValue() == StorageLayer.PutStatus.DELETED.ordinal();
+    }
+
     @Override
     public boolean isSuccess() {
         if(!super.isSuccess()) {
             return false;
         }
+        if (min == 0) {
+            // asynchronous put, no replica needs to acknowledge
+            return true;
+        }
         return checkResults(result(), rawResult.size(), dataSize);
     }
     
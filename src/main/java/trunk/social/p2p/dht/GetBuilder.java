@@ -16,6 +16,8 @@
 
 package trunk.social.p2p.dht;
 
+import trunk.social.p2p.futures.FutureChannelCreator;
+import trunk.social.p2p.p2p.RequestP2PConfiguration;
 import trunk.social.p2p.peers.Number160;
 import trunk.social.p2p.peers.Number640;
 import trunk.social.p2p.rpc.SimpleBloomFilter;
@@ -66,6 +68,8 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
     
     private boolean fastGet = true;
 
+    private int quorum = 0;
+
     static {
         NUMBER_ZERO_CONTENT_KEYS.add(Number160.ZERO);
     }
@@ -294,6 +298,47 @@ public class GetBuilder extends DHTBuilder<GetBuilder> implements SearchableBuil
         return this;
     }
 
+    /**
+     * @return The number of replicas that need to agree on each content key before the get completes, 0 if the get
+     *         waits for the minimum number of results
+     */
+    public int quorum() {
+        return quorum;
+    }
+
+    /**
+     * Completes the get as soon as, for each content key returned, the given number of replicas returned the same
+     * version or did not return the key, the requests still running are canceled. This way a consistent read finishes
+     * with the reply of the quorum-th fastest replica. If the replicas do not agree, the get waits for the minimum
+     * number of results.
+     * 
+     * @param quorum
+     *            The number of replicas that need to agree, 0 disables the early completion
+     * @return This class
+     */
+    public GetBuilder quorum(final int quorum) {
+        if (quorum < 0) {
+            throw new IllegalArgumentException("The quorum cannot be negative.");
+        }
+        this.quorum = quorum;
+        return this;
+    }
+
+    /**
+     * Reserves additional connections for the hedged requests, see {@link DistributedHashTable#hedgeBudget(int)}.
+     */
+    @Override
+    protected FutureChannelCreator reserve() {
+        final int hedgeBudget = peer.distributedHashTable().hedgeBudget();
+        if (hedgeBudget == 0) {
+            return super.reserve();
+        }
+        final RequestP2PConfiguration hedged = new RequestP2PConfiguration(requestP2PConfiguration.minimumResults(),
+                requestP2PConfiguration.maxFailure(), requestP2PConfiguration.parallelDiff() + hedgeBudget,
+                requestP2PConfiguration.isForceUPD(), requestP2PConfiguration.isForceTCP());
+        return peer.peer().connectionBean().reservation().create(routingConfiguration, hedged, this);
+    }
+
     public FutureGet start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_SHUTDOWN;
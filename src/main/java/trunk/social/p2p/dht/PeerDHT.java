@@ -57,6 +57,47 @@ public class PeerDHT {
         return new GetBuilder(this, locationKey);
     }
 
+    public BatchPutBuilder batchPut() {
+        return new BatchPutBuilder(this);
+    }
+
+    public BatchGetBuilder batchGet() {
+        return new BatchGetBuilder(this);
+    }
+
+    /**
+     * Scans a key range of a location key page by page.
+     *
+     * @param locationKey
+     *            The location key to scan
+     * @return The scan builder that allows to set the range and the page size
+     */
+    public ScanBuilder scan(Number160 locationKey) {
+        return new ScanBuilder(this, locationKey);
+    }
+
+    /**
+     * Stores a value erasure-coded, a fragment on each of the closest peers.
+     *
+     * @param locationKey
+     *            The location key
+     * @return The builder that allows to set the value and the number of fragments
+     */
+    public ErasurePutBuilder erasurePut(Number160 locationKey) {
+        return new ErasurePutBuilder(this, locationKey);
+    }
+
+    /**
+     * Gets and decodes an erasure-coded value, optionally repairs missing fragments.
+     *
+     * @param locationKey
+     *            The location key
+     * @return The builder that allows to set the number of fragments and the repair option
+     */
+    public ErasureGetBuilder erasureGet(Number160 locationKey) {
+        return new ErasureGetBuilder(this, locationKey);
+    }
+
     public DigestBuilder digest(Number160 locationKey) {
         return new DigestBuilder(this, locationKey);
     }
@@ -43,6 +43,8 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
 
     private PublicKey changePublicKey = null;
 
+    private WriteConsistency writeConsistency = null;
+
     public PutBuilder(PeerDHT peer, Number160 locationKey) {
         super(peer, locationKey);
         self(this);
@@ -194,6 +196,36 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
     	return changePublicKey;
     }
 
+    /**
+     * @return The number of replicas that need to store the data before the put completes, null if the put waits
+     *         for the minimum number of results
+     */
+    public WriteConsistency writeConsistency() {
+        return writeConsistency;
+    }
+
+    /**
+     * Completes the put as soon as the given number of replicas stored all the data. The writes to the other
+     * replicas continue, {@link FuturePut#futureReplication()} reports when they are finished.
+     * 
+     * @param writeConsistency
+     *            The number of replicas that need to acknowledge the put, null waits for the minimum number of
+     *            results, which is the default
+     * @return This class
+     */
+    public PutBuilder writeConsistency(final WriteConsistency writeConsistency) {
+        this.writeConsistency = writeConsistency;
+        return this;
+    }
+
+    /**
+     * @return The number of replicas that need to report back for the put to complete
+     */
+    int acknowledgements() {
+        final int replicas = requestP2PConfiguration().minimumResults();
+        return writeConsistency == null ? replicas : writeConsistency.acknowledgements(replicas);
+    }
+
     public FuturePut start() {
         if (peer.peer().isShutdown()) {
             return FUTURE_SHUTDOWN;
@@ -219,7 +251,7 @@ public class PutBuilder extends DHTBuilder<PutBuilder> {
             versionKey = Number160.ZERO;
         }
 
-        final FuturePut futurePut = new FuturePut(this, requestP2PConfiguration().minimumResults(), dataSize());
+        final FuturePut futurePut = new FuturePut(this, acknowledgements(), dataSize());
         return peer.distributedHashTable().put(this, futurePut);
     }
     
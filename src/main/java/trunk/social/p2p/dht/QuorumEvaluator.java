@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.storage.Data;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts the votes of the replicas while their responses arrive. A quorum is reached if at least {@link #quorum()}
+ * replicas answered and every content key that was seen so far either has one version that at least
+ * {@link #quorum()} replicas agree on, or at least {@link #quorum()} replicas did not return it. A replica that does
+ * not return a content key, because it has no data at all or only other keys, votes for the absence of that key. Not
+ * thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+final class QuorumEvaluator {
+
+    private final int quorum;
+
+    private final Map<Number640, Votes> votes = new HashMap<Number640, Votes>();
+
+    private int responses = 0;
+
+    QuorumEvaluator(final int quorum) {
+        this.quorum = quorum;
+    }
+
+    int quorum() {
+        return quorum;
+    }
+
+    /**
+     * Adds the data of one replica. The replica votes for the version it returned of each content key, and for the
+     * absence of every content key seen so far that it did not return.
+     *
+     * @param dataMap
+     *            The data the replica returned, may be null or empty if nothing was found
+     * @return True if the quorum has been reached
+     */
+    boolean add(final Map<Number640, Data> dataMap) {
+        responses++;
+        if (dataMap != null) {
+            for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+                vote(votes, entry.getKey(), entry.getValue());
+            }
+        }
+        return isReached();
+    }
+
+    boolean isReached() {
+        if (responses < quorum) {
+            return false;
+        }
+        for (Votes head : votes.values()) {
+            // the replicas that answered without this content key vote for its absence
+            if (head.max() < quorum && responses - head.total() < quorum) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the vote for one version of a content key. The versions are compared by the hash of the data, the
+     * content key itself is not part of the hash, since each key has its own counters.
+     *
+     * @param votes
+     *            The counters per content key
+     * @param key
+     *            The content key
+     * @param data
+     *            The data of this version
+     * @return The number of votes of this version including this vote
+     */
+    static int vote(final Map<Number640, Votes> votes, final Number640 key, final Data data) {
+        final Number160 hash = data.hash();
+        final Votes head = votes.get(key);
+        for (Votes current = head; current != null; current = current.next) {
+            if (current.hash.equals(hash)) {
+                return ++current.count;
+            }
+        }
+        votes.put(key, new Votes(hash, data, head));
+        return 1;
+    }
+
+    /**
+     * The versions of one content key as a linked list, usually there is only one.
+     */
+    static final class Votes {
+        final Number160 hash;
+        final Data data;
+        final Votes next;
+        int count = 1;
+
+        Votes(final Number160 hash, final Data data, final Votes next) {
+            this.hash = hash;
+            this.data = data;
+            this.next = next;
+        }
+
+        int max() {
+            int max = 0;
+            for (Votes current = this; current != null; current = current.next) {
+                max = Math.max(max, current.count);
+            }
+            return max;
+        }
+
+        int total() {
+            int total = 0;
+            for (Votes current = this; current != null; current = current.next) {
+                total += current.count;
+            }
+            return total;
+        }
+    }
+}
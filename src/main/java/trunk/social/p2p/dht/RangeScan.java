@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureDone;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.storage.Data;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+/**
+ * A pull-based scan over a key range. The entries are fetched with range gets of at most
+ * {@link ScanBuilder#pageSize()} entries per peer. The next page continues after the last key of the current page, the
+ * continuation key. While the current page is consumed, the next page is already requested, unless prefetching is
+ * disabled with {@link ScanBuilder#prefetch(boolean)}. At most one page is fetched ahead of the page the caller
+ * consumes.
+ * <p>
+ * The peers may store different entries, so their pages can end at different keys. A page ends at the smallest last
+ * key of all the peers that returned a full page, since beyond this key entries of these peers may be missing. The
+ * entries of the peers up to this key are merged with the evaluation scheme. If no peer returned a full page, the
+ * range has been scanned completely.
+ * <p>
+ * The methods block until the page is available. If a page cannot be fetched, {@link #hasNext()} throws an
+ * {@link IllegalStateException}. This class is not thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+public class RangeScan implements Iterator<Map.Entry<Number640, Data>> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RangeScan.class);
+
+    private final ScanBuilder builder;
+
+    private Iterator<Map.Entry<Number640, Data>> current = Collections.<Number640, Data> emptyMap().entrySet()
+            .iterator();
+
+    private FutureDone<Page> pending;
+
+    // the key the next page continues after, if it has not been requested yet
+    private Number640 nextAfter;
+
+    private Number640 continuation;
+
+    private int pages = 0;
+
+    private volatile boolean canceled = false;
+
+    RangeScan(final ScanBuilder builder) {
+        this.builder = builder;
+        this.continuation = builder.startAfter();
+    }
+
+    void start() {
+        pending = fetch(builder.startAfter());
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (canceled) {
+                return false;
+            }
+            if (pending == null) {
+                if (nextAfter == null) {
+                    return false;
+                }
+                // without prefetching, the next page is requested when the current page has been consumed
+                pending = fetch(nextAfter);
+                nextAfter = null;
+            }
+            final FutureDone<Page> future = pending.awaitUninterruptibly();
+            if (!future.isSuccess()) {
+                pending = null;
+                throw new IllegalStateException("Range scan failed after " + continuation + ": "
+                        + future.failedReason());
+            }
+            final Page page = future.object();
+            pages++;
+            current = page.entries.entrySet().iterator();
+            pending = null;
+            if (page.continuation != null) {
+                if (builder.isPrefetch()) {
+                    // the caller starts to consume this page, request the next one
+                    pending = fetch(page.continuation);
+                } else {
+                    nextAfter = page.continuation;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Map.Entry<Number640, Data> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Map.Entry<Number640, Data> entry = current.next();
+        continuation = entry.getKey();
+        return entry;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("A range scan is read-only.");
+    }
+
+    /**
+     * Stops the scan, no further pages are requested.
+     */
+    public void cancel() {
+        canceled = true;
+    }
+
+    /**
+     * @return The key of the last entry returned by {@link #next()}, a scan can be continued after this key with
+     *         {@link ScanBuilder#startAfter(Number640)}
+     */
+    public Number640 continuation() {
+        return continuation;
+    }
+
+    /**
+     * @return The number of pages consumed so far
+     */
+    public int pages() {
+        return pages;
+    }
+
+    /**
+     * Requests the page after the given key. The range of the get includes this key, so one more entry is requested
+     * and the key itself is removed afterwards.
+     */
+    private FutureDone<Page> fetch(final Number640 after) {
+        final FutureDone<Page> futurePage = new FutureDone<Page>();
+        final boolean ascending = builder.isAscending();
+        final int limit = builder.pageSize() + (after == null ? 0 : 1);
+        final GetBuilder getBuilder = builder.peer().get(builder.locationKey());
+        if (after == null) {
+            getBuilder.from(builder.from()).to(builder.to());
+        } else if (ascending) {
+            getBuilder.from(after).to(builder.to());
+        } else {
+            getBuilder.from(builder.from()).to(after);
+        }
+        getBuilder.returnNr(limit).ascending(ascending).evaluationScheme(builder.evaluationScheme());
+        if (builder.requestP2PConfiguration() != null) {
+            getBuilder.requestP2PConfiguration(builder.requestP2PConfiguration());
+        }
+        if (builder.routingConfiguration() != null) {
+            getBuilder.routingConfiguration(builder.routingConfiguration());
+        }
+        getBuilder.start().addListener(new BaseFutureAdapter<FutureGet>() {
+            @Override
+            public void operationComplete(final FutureGet future) throws Exception {
+                if (!future.isSuccess()) {
+                    futurePage.failed(future);
+                    return;
+                }
+                final Page page = merge(future.rawData(), after, limit, ascending, builder.evaluationScheme());
+                LOG.debug("range scan page with {} entries, continuation {}", page.entries.size(),
+                        page.continuation);
+                futurePage.done(page);
+            }
+        });
+        return futurePage;
+    }
+
+    /**
+     * Merges the pages of the peers.
+     *
+     * @param rawData
+     *            The page of each peer
+     * @param after
+     *            The key the page continues after, which is not part of the page, or null for the first page
+     * @param limit
+     *            The maximum number of entries requested from each peer
+     * @param ascending
+     *            The scan order
+     * @param evaluationScheme
+     *            The scheme that merges the entries of the peers
+     * @return The merged page
+     */
+    static Page merge(final Map<PeerAddress, Map<Number640, Data>> rawData, final Number640 after, final int limit,
+            final boolean ascending, final EvaluatingSchemeDHT evaluationScheme) {
+        final Map<PeerAddress, NavigableMap<Number640, Data>> sorted = new HashMap<PeerAddress, NavigableMap<Number640, Data>>();
+        Number640 end = null;
+        for (Map.Entry<PeerAddress, Map<Number640, Data>> entry : rawData.entrySet()) {
+            final NavigableMap<Number640, Data> page = new TreeMap<Number640, Data>(entry.getValue());
+            final boolean full = page.size() >= limit;
+            if (after != null) {
+                page.remove(after);
+            }
+            if (full && !page.isEmpty()) {
+                final Number640 last = ascending ? page.lastKey() : page.firstKey();
+                if (end == null || (ascending ? last.compareTo(end) < 0 : last.compareTo(end) > 0)) {
+                    end = last;
+                }
+            }
+            sorted.put(entry.getKey(), page);
+        }
+        final Map<PeerAddress, Map<Number640, Data>> bounded = new HashMap<PeerAddress, Map<Number640, Data>>();
+        for (Map.Entry<PeerAddress, NavigableMap<Number640, Data>> entry : sorted.entrySet()) {
+            final NavigableMap<Number640, Data> page = entry.getValue();
+            if (end == null) {
+                bounded.put(entry.getKey(), page);
+            } else {
+                bounded.put(entry.getKey(), ascending ? page.headMap(end, true) : page.tailMap(end, true));
+            }
+        }
+        final NavigableMap<Number640, Data> entries = new TreeMap<Number640, Data>(evaluationScheme.evaluate2(bounded));
+        return new Page(ascending ? entries : entries.descendingMap(), end);
+    }
+
+    static final class Page {
+        // the entries in scan order
+        final NavigableMap<Number640, Data> entries;
+        // the last key of this page, null if this is the last page
+        final Number640 continuation;
+
+        Page(final NavigableMap<Number640, Data> entries, final Number640 continuation) {
+            this.entries = entries;
+            this.continuation = continuation;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.rpc.DigestResult;
+import trunk.social.p2p.storage.Data;
+import trunk.social.p2p.utils.ConcurrentCacheMap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the results of successful get operations on the requesting peer, so that repeated gets with the same
+ * parameters are answered locally. An entry expires after the time-to-live of the cache or as soon as one of its data
+ * objects expires, whichever comes first. The number of entries is bounded, the least recently used entry is
+ * replaced. Puts, adds and removes of this peer remove the entries of their location key. Changes made by other peers
+ * are only seen once the entry expired, unless the application calls {@link #invalidate(Number160)}, e.g. after it was
+ * notified with a direct message.
+ *
+ * @author Thomas Bocek
+ */
+public class ReadCache {
+    private static final Logger LOG = LoggerFactory.getLogger(ReadCache.class);
+
+    private final ConcurrentCacheMap<List<Object>, CachedGet> cache;
+
+    // incremented with every invalidation, a get that started before must not fill the cache
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a read cache.
+     *
+     * @param timeToLiveSeconds
+     *            The maximum time in seconds a get result can be reused
+     * @param maxEntries
+     *            The maximum number of get results to keep
+     */
+    public ReadCache(final int timeToLiveSeconds, final int maxEntries) {
+        if (timeToLiveSeconds <= 0 || maxEntries < ConcurrentCacheMap.SEGMENT_NR) {
+            throw new IllegalArgumentException("Time-to-live needs to be larger than zero and max entries at least "
+                    + ConcurrentCacheMap.SEGMENT_NR + ".");
+        }
+        this.cache = new ConcurrentCacheMap<List<Object>, CachedGet>(timeToLiveSeconds, maxEntries, false);
+    }
+
+    /**
+     * @return The current generation, needs to be passed to {@link #put(List, Number160, FutureGet, long)}
+     */
+    public long generation() {
+        return generation.get();
+    }
+
+    /**
+     * Completes the future with the cached result.
+     *
+     * @param getKey
+     *            The parameters of the get request
+     * @param futureGet
+     *            The future to complete
+     * @return True if a cached result was found and the future has been completed
+     */
+    public boolean complete(final List<Object> getKey, final FutureGet futureGet) {
+        final CachedGet cachedGet = cache.get(getKey);
+        if (cachedGet == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        if (cachedGet.expirationMillis <= System.currentTimeMillis()) {
+            cache.remove(getKey);
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        // the outer maps are copied, the caller of the future may modify them
+        futureGet.receivedData(new HashMap<PeerAddress, Map<Number640, Data>>(cachedGet.rawData),
+                new HashMap<PeerAddress, DigestResult>(cachedGet.rawDigest),
+                new HashMap<PeerAddress, Byte>(cachedGet.rawStatus), null);
+        return true;
+    }
+
+    /**
+     * Stores the result of a get that found data.
+     *
+     * @param getKey
+     *            The parameters of the get request
+     * @param locationKey
+     *            The location key of the get request
+     * @param futureGet
+     *            The completed future
+     * @param generation
+     *            The generation when the get started, if there was an invalidation since, nothing is stored
+     */
+    public void put(final List<Object> getKey, final Number160 locationKey, final FutureGet futureGet,
+            final long generation) {
+        if (!futureGet.isSuccess() || futureGet.rawStatus() == null || futureGet.isEmpty()) {
+            return;
+        }
+        long expirationMillis = Long.MAX_VALUE;
+        for (Map<Number640, Data> dataMap : futureGet.rawData().values()) {
+            for (Data data : dataMap.values()) {
+                // the remaining time-to-live is sent in seconds rounded down, 0 means it expires within a second
+                expirationMillis = Math.min(expirationMillis, data.ttlSeconds() == 0 ? 0 : data.expirationMillis());
+            }
+        }
+        if (expirationMillis <= System.currentTimeMillis()) {
+            return;
+        }
+        final CachedGet cachedGet = new CachedGet(locationKey, new HashMap<PeerAddress, Map<Number640, Data>>(
+                futureGet.rawData()), new HashMap<PeerAddress, DigestResult>(futureGet.rawDigest()),
+                new HashMap<PeerAddress, Byte>(futureGet.rawStatus()), expirationMillis);
+        cache.put(getKey, cachedGet);
+        if (this.generation.get() != generation) {
+            // an invalidation happened while the get was running or while we stored the result
+            cache.remove(getKey);
+        }
+    }
+
+    /**
+     * Removes all get results for the given location key, e.g. because the data has been changed.
+     *
+     * @param locationKey
+     *            The location key
+     */
+    public void invalidate(final Number160 locationKey) {
+        generation.incrementAndGet();
+        for (Map.Entry<List<Object>, CachedGet> entry : cache.entrySet()) {
+            if (entry.getValue().locationKey.equals(locationKey)) {
+                if (cache.remove(entry.getKey()) != null) {
+                    invalidations.incrementAndGet();
+                    LOG.debug("Read cache entry {} invalidated.", entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all get results.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * @return The number of get results currently cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return The number of get requests that were answered from the cache
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of get requests that were not found in the cache or expired
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of get results that were removed because the data has been changed
+     */
+    public long invalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("gcache:");
+        sb.append(size()).append(",hits:").append(hits()).append(",misses:").append(misses())
+                .append(",inv:").append(invalidations());
+        return sb.toString();
+    }
+
+    private static final class CachedGet {
+        private final Number160 locationKey;
+        private final Map<PeerAddress, Map<Number640, Data>> rawData;
+        private final Map<PeerAddress, DigestResult> rawDigest;
+        private final Map<PeerAddress, Byte> rawStatus;
+        private final long expirationMillis;
+
+        private CachedGet(final Number160 locationKey, final Map<PeerAddress, Map<Number640, Data>> rawData,
+                final Map<PeerAddress, DigestResult> rawDigest, final Map<PeerAddress, Byte> rawStatus,
+                final long expirationMillis) {
+            this.locationKey = locationKey;
+            this.rawData = rawData;
+            this.rawDigest = rawDigest;
+            this.rawStatus = rawStatus;
+            this.expirationMillis = expirationMillis;
+        }
+    }
+}
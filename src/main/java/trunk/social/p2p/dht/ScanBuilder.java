@@ -0,0 +1,210 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+import trunk.social.p2p.p2p.RequestP2PConfiguration;
+import trunk.social.p2p.p2p.RoutingConfiguration;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+
+/**
+ * Scans a key range of a location key page by page, see {@link RangeScan}. Each page is a range get that returns at
+ * most {@link #pageSize()} entries per peer, so large ranges are read without large messages.
+ *
+ * @author Thomas Bocek
+ */
+public class ScanBuilder {
+
+    private final PeerDHT peer;
+
+    private final Number160 locationKey;
+
+    private Number640 from;
+
+    private Number640 to;
+
+    private Number640 startAfter;
+
+    private int pageSize = 100;
+
+    private boolean ascending = true;
+
+    private boolean prefetch = true;
+
+    private EvaluatingSchemeDHT evaluationScheme;
+
+    private RequestP2PConfiguration requestP2PConfiguration;
+
+    private RoutingConfiguration routingConfiguration;
+
+    public ScanBuilder(final PeerDHT peer, final Number160 locationKey) {
+        this.peer = peer;
+        this.locationKey = locationKey;
+    }
+
+    public PeerDHT peer() {
+        return peer;
+    }
+
+    public Number160 locationKey() {
+        return locationKey;
+    }
+
+    /**
+     * @return The first key of the range, by default the smallest key of the location key
+     */
+    public Number640 from() {
+        return from;
+    }
+
+    public ScanBuilder from(final Number640 from) {
+        this.from = from;
+        return this;
+    }
+
+    /**
+     * @return The last key of the range, by default the largest key of the location key
+     */
+    public Number640 to() {
+        return to;
+    }
+
+    public ScanBuilder to(final Number640 to) {
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * @return The key after which the scan starts, null if the scan starts at the beginning of the range
+     */
+    public Number640 startAfter() {
+        return startAfter;
+    }
+
+    /**
+     * Continues an earlier scan, e.g. with the {@link RangeScan#continuation()} of a scan that was stopped.
+     *
+     * @param startAfter
+     *            The key after which the scan starts, in scan order
+     * @return This class
+     */
+    public ScanBuilder startAfter(final Number640 startAfter) {
+        this.startAfter = startAfter;
+        return this;
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @param pageSize
+     *            The maximum number of entries a peer returns per page
+     * @return This class
+     */
+    public ScanBuilder pageSize(final int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("A page needs at least one entry.");
+        }
+        this.pageSize = pageSize;
+        return this;
+    }
+
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public ScanBuilder ascending(final boolean ascending) {
+        this.ascending = ascending;
+        return this;
+    }
+
+    public ScanBuilder descending() {
+        this.ascending = false;
+        return this;
+    }
+
+    public boolean isPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @param prefetch
+     *            Set to true if the next page is requested as soon as the consumption of the current page starts,
+     *            and not when the current page has been consumed
+     * @return This class
+     */
+    public ScanBuilder prefetch(final boolean prefetch) {
+        this.prefetch = prefetch;
+        return this;
+    }
+
+    public EvaluatingSchemeDHT evaluationScheme() {
+        return evaluationScheme;
+    }
+
+    /**
+     * @param evaluationScheme
+     *            The scheme that merges the pages of the replicas, by default {@link VotingSchemeDHT}
+     * @return This class
+     */
+    public ScanBuilder evaluationScheme(final EvaluatingSchemeDHT evaluationScheme) {
+        this.evaluationScheme = evaluationScheme;
+        return this;
+    }
+
+    public RequestP2PConfiguration requestP2PConfiguration() {
+        return requestP2PConfiguration;
+    }
+
+    public ScanBuilder requestP2PConfiguration(final RequestP2PConfiguration requestP2PConfiguration) {
+        this.requestP2PConfiguration = requestP2PConfiguration;
+        return this;
+    }
+
+    public RoutingConfiguration routingConfiguration() {
+        return routingConfiguration;
+    }
+
+    public ScanBuilder routingConfiguration(final RoutingConfiguration routingConfiguration) {
+        this.routingConfiguration = routingConfiguration;
+        return this;
+    }
+
+    /**
+     * Starts the scan and requests the first page.
+     *
+     * @return The scan that returns the entries in scan order
+     */
+    public RangeScan start() {
+        if (from == null) {
+            from = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        }
+        if (to == null) {
+            to = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE);
+        }
+        if (from.compareTo(to) > 0) {
+            throw new IllegalArgumentException("The range needs from <= to.");
+        }
+        if (evaluationScheme == null) {
+            evaluationScheme = new VotingSchemeDHT();
+        }
+        final RangeScan rangeScan = new RangeScan(this);
+        rangeScan.start();
+        return rangeScan;
+    }
+}
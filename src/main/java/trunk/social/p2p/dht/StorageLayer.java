@@ -73,6 +73,8 @@ public class StorageLayer implements DigestStorage {
 	final private Storage backend;
 	final int maxVersions;
 
+	private volatile ChangeLog changeLog = null;
+
 	public StorageLayer(Storage backend) {
 		this.backend = backend;
 		this.maxVersions = -1;
@@ -123,6 +125,25 @@ public class StorageLayer implements DigestStorage {
 		return protectionEntryEnable;
 	}
 
+	/**
+	 * @param changeLog
+	 *            Records the keys of all changes from now on, null disables the recording, which is the default
+	 */
+	public void changeLog(ChangeLog changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	public ChangeLog changeLog() {
+		return changeLog;
+	}
+
+	private void record(Number640 key, ChangeLog.Operation operation) {
+		final ChangeLog changeLog = this.changeLog;
+		if (changeLog != null) {
+			changeLog.record(key, operation);
+		}
+	}
+
 	public void removeDomainProtection(Number160 removeDomain) {
 		removedDomains.add(removeDomain);
 	}
@@ -169,6 +190,16 @@ public class StorageLayer implements DigestStorage {
 	
 	public Map<Number640, Enum<?>> putAll(final NavigableMap<Number640, Data> dataMap, PublicKey publicKey, boolean putIfAbsent,
 	        boolean domainProtection, boolean sendSelf) {
+		return putAll(dataMap, publicKey, putIfAbsent, domainProtection, sendSelf, false);
+	}
+
+	/**
+	 * @param replication
+	 *            True if the data comes from another replica. Such puts are not recorded in the change log, otherwise
+	 *            the data would be sent back to the replica it came from.
+	 */
+	public Map<Number640, Enum<?>> putAll(final NavigableMap<Number640, Data> dataMap, PublicKey publicKey, boolean putIfAbsent,
+	        boolean domainProtection, boolean sendSelf, boolean replication) {
 		if(dataMap.isEmpty()) {
 			return Collections.emptyMap();
 		}
@@ -226,11 +257,16 @@ public class StorageLayer implements DigestStorage {
 					}
 				}
 				
+				// a re-put of the same value is not a change
+				final boolean changed = oldDataGet == null || !oldDataGet.hash().equals(newData.hash());
 				final Data oldDataPut = backend.put(key, newData);
 				
 				long expiration = newData.expirationMillis();
 				// handle timeout
 				backend.addTimeout(key, expiration);
+				if (changed && !replication) {
+					record(key, ChangeLog.Operation.PUT);
+				}
 				
 				if(newData.hasPrepareFlag()) {
 					retVal.put(key, PutStatus.OK_PREPARED);
@@ -273,6 +309,7 @@ public class StorageLayer implements DigestStorage {
 							removed.release();
 						}
 						backend.removeTimeout(entry.getKey());
+						record(entry.getKey(), ChangeLog.Operation.REMOVE);
 					}
 				}
 			}			
@@ -285,9 +322,15 @@ public class StorageLayer implements DigestStorage {
 	
 	public Enum<?> put(final Number640 key, Data newData, PublicKey publicKey, boolean putIfAbsent,
 	        boolean domainProtection, boolean sendSelf) {
+		return put(key, newData, publicKey, putIfAbsent, domainProtection, sendSelf, false);
+	}
+
+	public Enum<?> put(final Number640 key, Data newData, PublicKey publicKey, boolean putIfAbsent,
+	        boolean domainProtection, boolean sendSelf, boolean replication) {
 		final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
 		dataMap.put(key, newData);
-		Map<Number640, Enum<?>> putStatus = putAll(dataMap, publicKey, putIfAbsent, domainProtection, sendSelf);
+		Map<Number640, Enum<?>> putStatus = putAll(dataMap, publicKey, putIfAbsent, domainProtection, sendSelf,
+		        replication);
 		Enum<?> retVal = putStatus.get(key);
 		if(retVal == null) {
 			return PutStatus.FAILED;
@@ -313,6 +356,7 @@ public class StorageLayer implements DigestStorage {
 			if(removed != null && !returnData) {
 				removed.release();
 			}
+			record(key, ChangeLog.Operation.REMOVE);
 			// else -> it will be removed in the encoder 
 			return new Pair<Data, Enum<?>>(removed, PutStatus.OK);
 		} finally {
@@ -529,6 +573,7 @@ public class StorageLayer implements DigestStorage {
 						backend.removeTimeout(key);
 						Data removed = backend.remove(key, true);
 						result.put(key, removed);
+						record(key, ChangeLog.Operation.REMOVE);
 					}
 				}
 			}
@@ -567,6 +612,7 @@ public class StorageLayer implements DigestStorage {
 					oldData.release();
 				}
 				backend.removeTimeout(key);
+				record(key, ChangeLog.Operation.EXPIRE);
 				// remove responsibility if we don't have any data stored under
 				// locationkey
 				Number160 locationKey = key.locationKey();
@@ -817,14 +863,21 @@ public class StorageLayer implements DigestStorage {
 			if (!keepData) {
 				RangeLock<Number640>.Range lock = lock(locationKey);
 				try {
-					final NavigableMap<Number640, Data> removed = backend.remove(
+					final List<Number640> keys = new ArrayList<Number640>(backend.subMap(
 						new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
-						new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE));
-					for(Entry<Number640,Data> entry:removed.entrySet()) {
-						if(entry.getValue() != null) {
-							entry.getValue().release();
+						new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE))
+						.keySet());
+					for(Number640 key:keys) {
+						// erasure fragments are placed on their peers independently of the replication factor
+						if(ErasureBuilder.FRAGMENT_DOMAIN.equals(key.domainKey())) {
+							continue;
 						}
-						backend.removeTimeout(entry.getKey());
+						final Data removed = backend.remove(key, true);
+						if(removed != null) {
+							removed.release();
+						}
+						backend.removeTimeout(key);
+						record(key, ChangeLog.Operation.REMOVE);
 					}
 				} finally {
 					lock.unlock();
@@ -865,15 +918,21 @@ public class StorageLayer implements DigestStorage {
 
 			final Data data = backend.get(key);
 			boolean changed = false;
+			// only a meta data update that differs from the stored one is recorded
+			boolean modified = false;
 			if (data!=null && newData.publicKey() != null) {
+				modified |= !newData.publicKey().equals(data.publicKey());
 				data.publicKey(newData.publicKey());
 				changed = true;
 			}
 			if (data!=null && newData.isSigned()) {
+				modified |= !newData.signature().equals(data.signature());
 				data.signature(newData.signature());
 				changed = true;
 			}
 			if (data!=null) {
+				modified |= data.validFromMillis() != newData.validFromMillis()
+				        || data.ttlSeconds() != newData.ttlSeconds();
 				data.validFromMillis(newData.validFromMillis());
 				data.ttlSeconds(newData.ttlSeconds());
 				changed = true;
@@ -884,6 +943,9 @@ public class StorageLayer implements DigestStorage {
 				backend.addTimeout(key, expiration);
 				// no release of old data, as we just update it
 				backend.put(key, data);
+				if (modified) {
+					record(key, ChangeLog.Operation.PUT);
+				}
 				return PutStatus.OK;
 			} else {
 				return PutStatus.NOT_FOUND;
@@ -908,6 +970,9 @@ public class StorageLayer implements DigestStorage {
 
 			final Data data = backend.get(key);
 			if (data != null) {
+				// a repeated confirmation is not a change
+				final boolean modified = data.hasPrepareFlag() || data.validFromMillis() != newData.validFromMillis()
+				        || data.ttlSeconds() != newData.ttlSeconds();
 				// remove prepare flag
 				data.prepareFlag(false);
 
@@ -918,6 +983,9 @@ public class StorageLayer implements DigestStorage {
 				// handle timeout
 				backend.addTimeout(key, expiration);
 				backend.put(key, data);
+				if (modified) {
+					record(key, ChangeLog.Operation.PUT);
+				}
 				//don't release data as we just update
 				return PutStatus.OK;
 			} else {
@@ -225,6 +225,38 @@ public class StorageRPC extends DispatchHandler {
 
     }
     
+    /**
+     * Stores the entries of several location keys on a remote peer with one message. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to store the data
+     * @param builder
+     *            The builder with the sign and connection options
+     * @param dataMap
+     *            The entries for this peer, can contain several location keys
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse that stores which keys have been stored.
+     */
+    public FutureResponse put(final PeerAddress remotePeer, final DHTBuilder<?> builder,
+            final NavigableMap<Number640, Data> dataMap, final ChannelCreator channelCreator) {
+        Utils.nullCheck(remotePeer);
+        final Type type = builder.isProtectDomain() ? Type.REQUEST_2 : Type.REQUEST_1;
+        final Message message = createMessage(remotePeer, RPC.Commands.PUT.getNr(), type);
+        if (builder.isSign()) {
+            message.publicKeyAndSign(builder.keyPair());
+        }
+        message.setDataMap(new DataMap(dataMap));
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), builder);
+        if (!builder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
     public FutureResponse putMeta(final PeerAddress remotePeer, final PutBuilder putBuilder, 
             final ChannelCreator channelCreator) {
 
@@ -543,6 +575,37 @@ public class StorageRPC extends DispatchHandler {
         }
     }
 
+    /**
+     * Gets the entries of several location keys from a remote peer with one message. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to get the data from
+     * @param builder
+     *            The builder with the sign and connection options
+     * @param keys
+     *            The keys for this peer, can contain several location keys
+     * @param channelCreator
+     *            The channel creator
+     * @return FutureResponse with the data that was found.
+     */
+    public FutureResponse get(final PeerAddress remotePeer, final DHTBuilder<?> builder,
+            final Collection<Number640> keys, final ChannelCreator channelCreator) {
+        final Message message = createMessage(remotePeer, RPC.Commands.GET.getNr(), Type.REQUEST_1);
+        if (builder.isSign()) {
+            message.publicKeyAndSign(builder.keyPair());
+        }
+        // a key collection without a return number gets exactly these keys
+        message.keyCollection(new KeyCollection(keys));
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), builder);
+        if (!builder.isForceUDP()) {
+            return request.sendTCP(channelCreator);
+        } else {
+            return request.sendUDP(channelCreator);
+        }
+    }
+
 	public FutureResponse getLatest(final PeerAddress remotePeer, final GetBuilder getBuilder,
 			final ChannelCreator channelCreator, final RPC.Commands command) {
 		final Type type = Type.REQUEST_1;
@@ -733,7 +796,8 @@ public class StorageRPC extends DispatchHandler {
         final Map<Number640, Byte> result = new HashMap<Number640, Byte>(dataSize);
         
         Map<Number640, Enum<?>> storeRes = 
-        		storageLayer.putAll(toStore.dataMap(), publicKey, putIfAbsent, protectDomain, message.isSendSelf());
+        		storageLayer.putAll(toStore.dataMap(), publicKey, putIfAbsent, protectDomain, message.isSendSelf(),
+        				replicaPut);
         
         Set<Number160> affectedKeys = new HashSet<Number160>();
         for (Map.Entry<Number640, Enum<?>> entry : storeRes.entrySet()) {
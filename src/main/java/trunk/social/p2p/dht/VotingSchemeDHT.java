@@ -89,24 +89,15 @@ public class VotingSchemeDHT implements EvaluatingSchemeDHT {
         if (rawData == null) {
             throw new IllegalArgumentException("cannot evaluate, as no result provided");
         }
-        Map<Number160, Integer> counter = new HashMap<Number160, Integer>();
+        // the counters are per content key, so the hash of the data is enough to tell the versions apart
+        Map<Number640, QuorumEvaluator.Votes> votes = new HashMap<Number640, QuorumEvaluator.Votes>();
         Map<Number640, Data> result = new HashMap<Number640, Data>();
         int size = rawData.size();
         int majority = (size + 1) / 2;
-        for (PeerAddress address : rawData.keySet()) {
-            Map<Number640, Data> data = rawData.get(address);
-            for (Number640 contentKey : data.keySet()) {
-                Data dat = data.get(contentKey);
-                Number160 hash = dat.hash().xor(contentKey.contentKey()).
-                        xor(contentKey.domainKey()).xor(contentKey.locationKey());
-                int c = 1;
-                Integer count = counter.get(hash);
-                if (count != null) {
-                    c = count + 1;
-                }
-                counter.put(hash, c);
-                if (c >= majority) {
-                    result.put(contentKey, dat);
+        for (Map<Number640, Data> data : rawData.values()) {
+            for (Map.Entry<Number640, Data> entry : data.entrySet()) {
+                if (QuorumEvaluator.vote(votes, entry.getKey(), entry.getValue()) >= majority) {
+                    result.put(entry.getKey(), entry.getValue());
                 }
             }
         }
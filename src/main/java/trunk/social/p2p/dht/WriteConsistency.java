@@ -0,0 +1,61 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.dht;
+
+/**
+ * The number of replicas that need to acknowledge a put before its future completes. The number of replicas N is
+ * {@link trunk.social.p2p.p2p.RequestP2PConfiguration#minimumResults()}. The writes to the remaining replicas continue
+ * after the future completed, {@link FuturePut#futureReplication()} completes when all of them finished.
+ *
+ * @author Thomas Bocek
+ */
+public enum WriteConsistency {
+    /**
+     * One replica stored the data.
+     */
+    ONE,
+    /**
+     * A majority of the replicas, N / 2 + 1, stored the data.
+     */
+    QUORUM,
+    /**
+     * All N replicas stored the data.
+     */
+    ALL,
+    /**
+     * The put completes as soon as it has been started, without waiting for any replica.
+     */
+    ASYNC;
+
+    /**
+     * @param replicas
+     *            The number of replicas N
+     * @return The number of replicas that need to store the data
+     */
+    public int acknowledgements(final int replicas) {
+        switch (this) {
+        case ONE:
+            return Math.min(1, replicas);
+        case QUORUM:
+            return replicas / 2 + 1;
+        case ALL:
+            return replicas;
+        default:
+            return 0;
+        }
+    }
+}
@@ -21,13 +21,30 @@ import trunk.social.p2p.connection.ConnectionBean;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The base for all BaseFuture implementations. Be aware of possible deadlocks. Never await from a listener. This class
  * is heavily inspired by MINA and Netty.
+ * <p>
+ * Subclasses complete a future by calling {@link #completedAndNotify()} in synchronized (lock) and
+ * {@link #notifyListeners()} afterwards. The completion is published with a volatile state field in
+ * {@link #notifyListeners()}, so that checking the state of a completed future, adding listeners and notifying them
+ * does not lock. Listeners are kept in a lock-free stack. Threads that block in await*() are parked and only then a
+ * waiter node is allocated.
+ * </p>
+ * <p>
+ * By default, listeners run on the thread that completes the future, which is often a Netty I/O thread. A slow
+ * listener then stalls all connections of this event loop. Listeners can be moved to an executor per future with
+ * {@link #listenerExecutor(Executor)}, or for all futures that complete on an I/O thread with
+ * {@link #defaultListenerExecutor(Executor)}. Listeners that run on an I/O thread longer than
+ * {@link #listenerTimeBudgetMillis(long)} are logged and counted in {@link #slowListeners()}.
+ * </p>
  * 
  * @param <K>
  *            The class that extends BaseFuture and is used to return back the type for method calls. E.g, if K is
@@ -37,16 +54,45 @@ import java.util.concurrent.CountDownLatch;
 public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture {
     private static final Logger LOG = LoggerFactory.getLogger(BaseFutureImpl.class);
 
-    // Listeners that gets notified if the future finished
-    private final List<BaseFutureListener<? extends BaseFuture>> listeners = 
-            new ArrayList<BaseFutureListener<? extends BaseFuture>>(1);
+    // the future is running or completed, but not yet published by notifyListeners()
+    private static final int RUNNING = 0;
+    // the result is published, the listeners are being notified
+    private static final int COMPLETED = 1;
+    // all listeners have been notified
+    private static final int LISTENERS_DONE = 2;
+
+    // marks the listener stack as closed, new listeners are called immediately
+    private static final ListenerNode NOTIFIED = new ListenerNode(null);
+    // marks the waiter stack as closed, nobody needs to wait anymore
+    private static final Waiter RELEASED = new Waiter(null);
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<BaseFutureImpl, ListenerNode> LISTENERS = AtomicReferenceFieldUpdater
+            .newUpdater(BaseFutureImpl.class, ListenerNode.class, "listeners");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<BaseFutureImpl, Waiter> WAITERS = AtomicReferenceFieldUpdater
+            .newUpdater(BaseFutureImpl.class, Waiter.class, "waiters");
+
+    // Listeners that gets notified if the future finished, the last added is on top
+    private volatile ListenerNode listeners = null;
+
+    // Threads that are parked in await*()
+    private volatile Waiter waiters = null;
+
+    private volatile int state = RUNNING;
+
+    // null means inline, on the thread that completes the future
+    private volatile Executor listenerExecutor = null;
+
+    // used for futures without their own executor that complete on an I/O thread, null means inline
+    private static volatile Executor defaultListenerExecutor = null;
+    private static volatile long listenerTimeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final AtomicLong SLOW_LISTENERS = new AtomicLong();
 
     // While a future is running, the process may add cancellations for faster
     // cancel operations, e.g. cancel connection attempt
     private volatile Cancel cancel = null;
 
-    private final CountDownLatch listenersFinished = new CountDownLatch(1);
-
     protected final Object lock;
 
     // set the ready flag if operation completed
@@ -83,28 +129,73 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
         return self;
     }
 
+    /**
+     * Sets the executor that calls the listeners of this future, regardless of the thread that completes it.
+     * 
+     * @param listenerExecutor
+     *            The executor, or null to call the listeners on the thread that completes this future
+     * @return This class
+     */
+    public K listenerExecutor(final Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+        return self;
+    }
+
+    /**
+     * @return The executor that calls the listeners of this future, or null if they are called inline
+     */
+    public Executor listenerExecutor() {
+        return listenerExecutor;
+    }
+
+    /**
+     * Sets the executor that calls the listeners of futures that complete on a Netty I/O thread and have no executor
+     * set with {@link #listenerExecutor(Executor)}. This is a global setting, since the I/O threads are shared by all
+     * peers that use the same master.
+     * 
+     * @param executor
+     *            The executor, or null to call the listeners on the I/O thread
+     */
+    public static void defaultListenerExecutor(final Executor executor) {
+        defaultListenerExecutor = executor;
+    }
+
+    /**
+     * @return The executor that calls the listeners of futures that complete on a Netty I/O thread, or null
+     */
+    public static Executor defaultListenerExecutor() {
+        return defaultListenerExecutor;
+    }
+
+    /**
+     * @param millis
+     *            The time a listener may run on a Netty I/O thread before it is reported as slow
+     */
+    public static void listenerTimeBudgetMillis(final long millis) {
+        listenerTimeBudgetNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * @return The number of listeners that exceeded the time budget on a Netty I/O thread
+     */
+    public static long slowListeners() {
+        return SLOW_LISTENERS.get();
+    }
+
     @Override
     public K await() throws InterruptedException {
-        synchronized (lock) {
-            checkDeadlock();
-            while (!completed) {
-                lock.wait();
-            }
-        }
+        checkDeadlock();
+        park(COMPLETED, 0, true);
         return self;
     }
 
     @Override
     public K awaitUninterruptibly() {
-        synchronized (lock) {
-            checkDeadlock();
-            while (!completed) {
-                try {
-                    lock.wait();
-                } catch (final InterruptedException e) {
-                   LOG.debug("interrupted, but ignoring", e);
-                }
-            }
+        checkDeadlock();
+        try {
+            park(COMPLETED, 0, false);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("This should never ever happen.");
         }
         return self;
     }
@@ -135,37 +226,100 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
      *             If the flag interrupt is true and this thread has been interrupted.
      */
     private boolean await0(final long timeoutMillis, final boolean interrupt) throws InterruptedException {
-        final long startTime = (timeoutMillis <= 0) ? 0 : System.currentTimeMillis();
-        long waitTime = timeoutMillis;
-        synchronized (lock) {
-            if (completed) {
-                return completed;
-            } else if (waitTime <= 0) {
-                return completed;
+        if (state != RUNNING) {
+            return true;
+        } else if (timeoutMillis <= 0) {
+            return isCompleted();
+        }
+        checkDeadlock();
+        return park(COMPLETED, TimeUnit.MILLISECONDS.toNanos(timeoutMillis), interrupt);
+    }
+
+    /**
+     * Parks the current thread until the state is reached.
+     * 
+     * @param target
+     *            The state to wait for
+     * @param timeoutNanos
+     *            The maximum time to wait, 0 to wait forever
+     * @param interrupt
+     *            Flag to indicate if the method can throw an InterruptedException, otherwise interrupts are ignored
+     * @return True if the state has been reached, false if timed out
+     * @throws InterruptedException
+     *             If the flag interrupt is true and this thread has been interrupted.
+     */
+    private boolean park(final int target, final long timeoutNanos, final boolean interrupt)
+            throws InterruptedException {
+        if (state >= target) {
+            return true;
+        }
+        final long deadline = timeoutNanos > 0 ? System.nanoTime() + timeoutNanos : 0;
+        Waiter waiter = null;
+        boolean queued = false;
+        while (state < target) {
+            if (waiter == null) {
+                waiter = new Waiter(Thread.currentThread());
             }
-            checkDeadlock();
-            while (true) {
-                try {
-                    lock.wait(waitTime);
-                } catch (final InterruptedException e) {
-                    if (interrupt) {
-                        throw e;
-                    }
+            if (!queued) {
+                final Waiter head = waiters;
+                if (head == RELEASED) {
+                    // the final state has been set before the stack was released
+                    continue;
                 }
-                if (completed) {
-                    return true;
-                } else {
-                    waitTime = timeoutMillis - (System.currentTimeMillis() - startTime);
-                    if (waitTime <= 0) {
-                        return completed;
-                    }
+                waiter.next = head;
+                queued = WAITERS.compareAndSet(this, head, waiter);
+                // check the state again before parking, it may have changed before we were queued
+                continue;
+            }
+            if (deadline == 0) {
+                LockSupport.park(this);
+            } else {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    waiter.thread = null;
+                    return state >= target;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            if (Thread.interrupted()) {
+                if (interrupt) {
+                    waiter.thread = null;
+                    throw new InterruptedException();
                 }
+                LOG.debug("interrupted, but ignoring");
+            }
+            if (waiter.thread == null) {
+                // released for an earlier state, queue again if we still need to wait
+                waiter = null;
+                queued = false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Publishes a new state and unparks all waiting threads.
+     * 
+     * @param newState
+     *            The new state
+     */
+    private void release(final int newState) {
+        state = newState;
+        Waiter waiter = WAITERS.getAndSet(this, newState == LISTENERS_DONE ? RELEASED : null);
+        for (; waiter != null && waiter != RELEASED; waiter = waiter.next) {
+            final Thread thread = waiter.thread;
+            if (thread != null) {
+                waiter.thread = null;
+                LockSupport.unpark(thread);
             }
         }
     }
 
     @Override
     public boolean isCompleted() {
+        if (state != RUNNING) {
+            return true;
+        }
         synchronized (lock) {
             return completed;
         }
@@ -173,6 +327,9 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public boolean isSuccess() {
+        if (state != RUNNING) {
+            return type == FutureType.OK;
+        }
         synchronized (lock) {
             return completed && (type == FutureType.OK);
         }
@@ -180,6 +337,9 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public boolean isFailed() {
+        if (state != RUNNING) {
+            return type != FutureType.OK;
+        }
         synchronized (lock) {
             // failed means failed or canceled
             return completed && (type != FutureType.OK);
@@ -188,6 +348,9 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     
     @Override
     public boolean isCanceled() {
+        if (state != RUNNING) {
+            return type == FutureType.CANCEL;
+        }
         synchronized (lock) {
             return completed && (type == FutureType.CANCEL);
         }
@@ -250,20 +413,23 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public FutureType type() {
+        if (state != RUNNING) {
+            return type;
+        }
         synchronized (lock) {
             return type;
         }
     }
 
     /**
-     * Make sure that the calling method has synchronized (lock).
+     * Make sure that the calling method has synchronized (lock). The waiting threads are woken up in
+     * {@link #notifyListeners()}.
      * 
      * @return True if notified. It will notify if completed is not set yet.
      */
     protected boolean completedAndNotify() {
         if (!completed) {
             completed = true;
-            lock.notifyAll();
             return true;
         } else {
             return false;
@@ -272,64 +438,43 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
 
     @Override
     public K awaitListeners() throws InterruptedException {
-    	boolean wait = false;
-    	synchronized (lock) {
-            checkDeadlock();
-            while (!completed) {
-                lock.wait();
-            }
-            if(listeners.size() > 0) {
-    			wait = true;
-    		}
-        }
-    	if(wait) {
-    		listenersFinished.await();
-    	}
-    	return self;
+        checkDeadlock();
+        park(LISTENERS_DONE, 0, true);
+        return self;
     }
     
     @Override
     public K awaitListenersUninterruptibly() {
-    	boolean wait = false;
-    	synchronized (lock) {
-            checkDeadlock();
-            while (!completed) {
-                try {
-                    lock.wait();
-                } catch (final InterruptedException e) {
-                   LOG.debug("interrupted, but ignoring", e);
-                }
-            }
-            if(listeners.size() > 0) {
-    			wait = true;
-    		}   
-        }
-    	while(wait) {
-    		try {
-    			listenersFinished.await();
-    			wait = false;
-    		} catch (InterruptedException e) {
-                LOG.debug("interrupted, but ignoring", e);
-            }
-    	}
-    	return self;
+        checkDeadlock();
+        try {
+            park(LISTENERS_DONE, 0, false);
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("This should never ever happen.");
+        }
+        return self;
     }
     
     @Override
     public K addListener(final BaseFutureListener<? extends BaseFuture> listener) {
-        boolean notifyNow = false;
-        synchronized (lock) {
-            if (completed) {
-                notifyNow = true;
-            } else {
-                listeners.add(listener);
+        ListenerNode node = null;
+        while (true) {
+            final ListenerNode head = listeners;
+            if (head == NOTIFIED) {
+                // called only once
+                final Executor executor = executor(isIOThread());
+                if (executor == null || !execute(executor, new ListenerNode(listener), false)) {
+                    callOperationComplete(listener);
+                }
+                return self;
+            }
+            if (node == null) {
+                node = new ListenerNode(listener);
+            }
+            node.next = head;
+            if (LISTENERS.compareAndSet(this, head, node)) {
+                return self;
             }
         }
-        // called only once
-        if (notifyNow) {
-            callOperationComplete(listener);
-        }
-        return self;
     }
 
     /**
@@ -357,8 +502,7 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
      * of this situation.
      */
     private void checkDeadlock() {
-        String currentName = Thread.currentThread().getName();
-        if (currentName.startsWith(ConnectionBean.THREAD_NAME)) {
+        if (isIOThread()) {
             throw new IllegalStateException("await*() in Netty I/O thread causes a dead lock or "
                     + "sudden performance drop. Use addListener() instead or "
                     + "call await*() from a different thread.");
@@ -366,34 +510,99 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     }
 
     /**
-     * Always call this from outside synchronized(lock)!
+     * Always call this from outside synchronized(lock)! Publishes the result, wakes up the waiting threads and calls
+     * the listeners in the order they were added.
      */
     protected void notifyListeners() {
-        // if this is synchronized, it will deadlock, so do not lock this!
-        // There won't be any visibility problem or concurrent modification
-        // because 'ready' flag will be checked against both addListener and
-        // removeListener calls.
-    	//
-    	// This method doesn't need synchronization because:
-        // 1) This method is always called after synchronized (this) block.
-        //    Hence any listener list modification happens-before this method.
-        // 2) This method is called only when 'done' is true.  Once 'done'
-        //    becomes true, the listener list is never modified - see add/removeListener()
-        for (final BaseFutureListener<? extends BaseFuture> listener : listeners) {
-            callOperationComplete(listener);
-        }
-        
-        listeners.clear();
-        listenersFinished.countDown();
+        release(COMPLETED);
+        // closing the stack makes sure that a listener is either called here or in addListener(), but never twice
+        ListenerNode node = LISTENERS.getAndSet(this, NOTIFIED);
+        if (node == NOTIFIED) {
+            return;
+        }
+        // reverse the stack, we own it now
+        ListenerNode ordered = null;
+        while (node != null) {
+            final ListenerNode next = node.next;
+            node.next = ordered;
+            ordered = node;
+            node = next;
+        }
+        final boolean ioThread = isIOThread();
+        final Executor executor = executor(ioThread);
+        if (executor != null && ordered != null && execute(executor, ordered, true)) {
+            return;
+        }
+        callListeners(ordered, ioThread);
+        release(LISTENERS_DONE);
         // all events are one time events. It cannot happen that you get
         // notified twice
     }
 
+    private static boolean isIOThread() {
+        return Thread.currentThread().getName().startsWith(ConnectionBean.THREAD_NAME);
+    }
+
+    private Executor executor(final boolean ioThread) {
+        final Executor executor = listenerExecutor;
+        if (executor != null) {
+            return executor;
+        }
+        return ioThread ? defaultListenerExecutor : null;
+    }
+
+    /**
+     * Hands over the listeners to the executor.
+     * 
+     * @param release
+     *            True if the waiters of awaitListeners*() need to be released afterwards
+     * @return False if the executor rejected the listeners, they need to be called by the caller
+     */
+    private boolean execute(final Executor executor, final ListenerNode ordered, final boolean release) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callListeners(ordered, isIOThread());
+                    if (release) {
+                        release(LISTENERS_DONE);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Listener executor rejected the listeners, calling them inline.", e);
+            return false;
+        }
+    }
+
+    private void callListeners(ListenerNode ordered, final boolean ioThread) {
+        for (; ordered != null; ordered = ordered.next) {
+            if (ordered.removed) {
+                continue;
+            }
+            if (!ioThread) {
+                callOperationComplete(ordered.listener);
+                continue;
+            }
+            final long start = System.nanoTime();
+            callOperationComplete(ordered.listener);
+            final long duration = System.nanoTime() - start;
+            if (duration > listenerTimeBudgetNanos) {
+                SLOW_LISTENERS.incrementAndGet();
+                LOG.warn("Listener {} took {}ms on the I/O thread {}. Use listenerExecutor() to move it off.",
+                        ordered.listener.getClass().getName(), TimeUnit.NANOSECONDS.toMillis(duration),
+                        Thread.currentThread().getName());
+            }
+        }
+    }
+
     @Override
     public K removeListener(final BaseFutureListener<? extends BaseFuture> listener) {
-        synchronized (lock) {
-            if (!completed) {
-                listeners.remove(listener);
+        for (ListenerNode node = listeners; node != null && node != NOTIFIED; node = node.next) {
+            if (node.listener == listener && !node.removed) {
+                node.removed = true;
+                break;
             }
         }
         return self;
@@ -422,4 +631,29 @@ public abstract class BaseFutureImpl<K extends BaseFuture> implements BaseFuture
     	}
         notifyListeners();
     }
+
+    /**
+     * An entry in the lock-free listener stack.
+     */
+    private static final class ListenerNode {
+        private final BaseFutureListener<? extends BaseFuture> listener;
+        private ListenerNode next;
+        private volatile boolean removed = false;
+
+        private ListenerNode(final BaseFutureListener<? extends BaseFuture> listener) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * A thread that is parked in await*(). The thread is set to null once it has been released or gave up waiting.
+     */
+    private static final class Waiter {
+        private volatile Thread thread;
+        private Waiter next;
+
+        private Waiter(final Thread thread) {
+            this.thread = thread;
+        }
+    }
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package trunk.social.p2p.futures;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Conversion between {@link BaseFuture} and {@link CompletableFuture}. The conversion always completes on a
+ * caller-chosen executor, so that the dependent stages of the application never run on a Netty I/O thread.
+ * 
+ * @author Thomas Bocek
+ */
+public class CompletableFutures {
+
+	/**
+	 * The exception of a {@link CompletableFuture} that was created from a failed {@link BaseFuture}.
+	 */
+	public static class FutureFailedException extends RuntimeException {
+		private static final long serialVersionUID = 4613427412378236547L;
+
+		private final BaseFuture future;
+
+		public FutureFailedException(final BaseFuture future) {
+			super(future.failedReason());
+			this.future = future;
+		}
+
+		/**
+		 * @return The future that failed
+		 */
+		public BaseFuture future() {
+			return future;
+		}
+	}
+
+	/**
+	 * Converts a future to a {@link CompletableFuture}. It completes with the future if it succeeded, exceptionally
+	 * with {@link FutureFailedException} if it failed, or is cancelled if the future was cancelled. If the executor
+	 * rejects the completion, it completes exceptionally with the {@link RejectedExecutionException} on the
+	 * {@link ForkJoinPool#commonPool() common pool}. Cancelling the returned future cancels the future.
+	 * 
+	 * @param future
+	 *            The future to convert
+	 * @param executor
+	 *            The executor that completes the returned future
+	 * @return The completable future
+	 */
+	public static <K extends BaseFuture> CompletableFuture<K> toCompletableFuture(final K future,
+	        final Executor executor) {
+		final CompletableFuture<K> completableFuture = new CompletableFuture<K>();
+		future.addListener(new BaseFutureAdapter<K>() {
+			@Override
+			public void operationComplete(final K future) throws Exception {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							if (future.isSuccess()) {
+								completableFuture.complete(future);
+							} else if (future.isCanceled()) {
+								completableFuture.cancel(false);
+							} else {
+								completableFuture.completeExceptionally(new FutureFailedException(future));
+							}
+						}
+					});
+				} catch (final RejectedExecutionException e) {
+					// never complete on this thread, the dependent stages could run on a Netty I/O thread
+					ForkJoinPool.commonPool().execute(new Runnable() {
+						@Override
+						public void run() {
+							completableFuture.completeExceptionally(e);
+						}
+					});
+				}
+			}
+		});
+		completableFuture.whenComplete(new BiConsumer<K, Throwable>() {
+			@Override
+			public void accept(final K result, final Throwable t) {
+				if (completableFuture.isCancelled()) {
+					future.cancel();
+				}
+			}
+		});
+		return completableFuture;
+	}
+
+	/**
+	 * Converts a {@link CompletionStage} to a future. The future fails if the stage completed exceptionally, or is
+	 * cancelled if the stage was cancelled.
+	 * 
+	 * @param stage
+	 *            The stage to convert
+	 * @return The future with the result of the stage as attachment
+	 */
+	public static <T> FutureDone<T> fromCompletionStage(final CompletionStage<T> stage) {
+		final FutureDone<T> futureDone = new FutureDone<T>();
+		stage.whenComplete(new BiConsumer<T, Throwable>() {
+			@Override
+			public void accept(final T result, final Throwable t) {
+				if (t == null) {
+					futureDone.done(result);
+					return;
+				}
+				final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+				if (cause instanceof CancellationException) {
+					futureDone.cancel();
+				} else {
+					futureDone.failed(cause);
+				}
+			}
+		});
+		return futureDone;
+	}
+}
@@ -41,6 +41,8 @@ public class FutureRouting extends BaseFutureImpl<FutureRouting> {
 
     private SortedSet<PeerAddress> routingPath;
 
+    private volatile boolean cached = false;
+
     public FutureRouting() {
     	self(this);
     }
@@ -94,6 +96,23 @@ public class FutureRouting extends BaseFutureImpl<FutureRouting> {
         notifyListeners();
     }
 
+    /**
+     * @param cached
+     *            Set to true if the result is a copy of a previous routing and no neighbor requests were sent
+     * @return This class
+     */
+    public FutureRouting cached(final boolean cached) {
+        this.cached = cached;
+        return this;
+    }
+
+    /**
+     * @return True if the result is a copy of a previous routing and no neighbor requests were sent
+     */
+    public boolean isCached() {
+        return cached;
+    }
+
     /**
      * The potential hits set contains those peers that are in the direct hit
      * and that did report to *not* have the key (Number160) we were looking
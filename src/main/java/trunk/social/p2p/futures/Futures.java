@@ -1,10 +1,210 @@
 package trunk.social.p2p.futures;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Combinators for {@link BaseFuture}. The methods with an {@link Executor} never run user code or the listeners of the
+ * returned future on the thread that completed the original future, which is often a Netty I/O thread. This allows
+ * to chain many DHT operations without blocking or parking any thread. See {@link CompletableFutures} for the bridge
+ * to {@link java.util.concurrent.CompletableFuture}.
+ * 
+ * @author Thomas Bocek
+ */
 public class Futures {
 
+	private static final Logger LOG = LoggerFactory.getLogger(Futures.class);
+
+	/**
+	 * Creates the next future from the result of a successful future.
+	 * 
+	 * @param <K>
+	 *            The type of the future that completed
+	 * @param <R>
+	 *            The type of the next future
+	 */
+	public interface Composer<K extends BaseFuture, R extends BaseFuture> {
+		/**
+		 * @param future
+		 *            The future that completed successfully
+		 * @return The next future, never null
+		 * @throws Exception
+		 *             Fails the returned future
+		 */
+		R compose(K future) throws Exception;
+	}
+
+	/**
+	 * Adds a listener that is called on the given executor. If the executor rejects the listener, e.g. because it has
+	 * been shut down, the listener is not called and an error is logged.
+	 * 
+	 * @param future
+	 *            The future to listen to
+	 * @param executor
+	 *            The executor that calls the listener
+	 * @param listener
+	 *            The listener
+	 * @return The future
+	 */
+	public static <K extends BaseFuture> K addListener(final K future, final Executor executor,
+	        final BaseFutureListener<K> listener) {
+		return addListener(future, executor, listener, null);
+	}
+
+	/**
+	 * Adds a listener that is called on the given executor. If the executor rejects the listener, the derived future
+	 * fails instead, on the {@link ForkJoinPool#commonPool() common pool}. Neither the listener nor the failure run on
+	 * the completing thread.
+	 * 
+	 * @param future
+	 *            The future to listen to
+	 * @param executor
+	 *            The executor that calls the listener
+	 * @param listener
+	 *            The listener
+	 * @param derived
+	 *            The future that fails if the executor rejects the listener, or null to log the rejection
+	 * @return The future
+	 */
+	private static <K extends BaseFuture> K addListener(final K future, final Executor executor,
+	        final BaseFutureListener<K> listener, final FutureDone<?> derived) {
+		future.addListener(new BaseFutureAdapter<K>() {
+			@Override
+			public void operationComplete(final K future) throws Exception {
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								listener.operationComplete(future);
+							} catch (Exception e) {
+								try {
+									listener.exceptionCaught(e);
+								} catch (Exception e1) {
+									LOG.error("Unexpected exception in exceptionCaught()", e1);
+								}
+							}
+						}
+					});
+				} catch (final RejectedExecutionException e) {
+					if (derived != null) {
+						// the listeners of the derived future must not run on the completing thread either
+						ForkJoinPool.commonPool().execute(new Runnable() {
+							@Override
+							public void run() {
+								derived.failed("executor rejected the continuation", e);
+							}
+						});
+					} else {
+						LOG.error("Executor rejected the listener of {}, the listener is not called", future, e);
+					}
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Starts the next operation once this one succeeded. If the future or the composed future fails, the returned
+	 * future fails as well.
+	 * 
+	 * @param future
+	 *            The first future
+	 * @param executor
+	 *            The executor that runs the composer and completes the returned future
+	 * @param composer
+	 *            Creates the next future from the result of the first one
+	 * @return A future that completes with the composed future
+	 */
+	public static <K extends BaseFuture, R extends BaseFuture> FutureDone<R> thenCompose(final K future,
+	        final Executor executor, final Composer<K, R> composer) {
+		final FutureDone<R> futureDone = new FutureDone<R>();
+		addListener(future, executor, new BaseFutureAdapter<K>() {
+			@Override
+			public void operationComplete(final K future) throws Exception {
+				if (future.isFailed()) {
+					futureDone.failed(future);
+					return;
+				}
+				final R next;
+				try {
+					next = composer.compose(future);
+				} catch (Exception e) {
+					futureDone.failed("composer failed", e);
+					return;
+				}
+				if (next == null) {
+					futureDone.failed("composer returned null");
+					return;
+				}
+				addListener(next, executor, new BaseFutureAdapter<R>() {
+					@Override
+					public void operationComplete(final R next) throws Exception {
+						if (next.isSuccess()) {
+							futureDone.done(next);
+						} else {
+							futureDone.failed(next);
+						}
+					}
+				}, futureDone);
+			}
+		}, futureDone);
+		return futureDone;
+	}
+
+	/**
+	 * Like {@link #whenAllSuccess(List)}, but the returned future completes on the executor.
+	 * 
+	 * @param executor
+	 *            The executor that completes the returned future
+	 * @param all
+	 *            The futures to wait for
+	 * @return A future that succeeds if all futures succeeded, or fails with the first failure
+	 */
+	public static <K extends BaseFuture> FutureDone<List<K>> allOf(final Executor executor, final List<K> all) {
+		if (all.isEmpty()) {
+			return completeOn(executor, new FutureDone<List<K>>().done(all));
+		}
+		return completeOn(executor, whenAllSuccess(all));
+	}
+
+	/**
+	 * Like {@link #whenAnySuccess(List)}, but the returned future completes on the executor.
+	 * 
+	 * @param executor
+	 *            The executor that completes the returned future
+	 * @param all
+	 *            The futures to wait for
+	 * @return A future with the first successful future, or failed if none succeeded
+	 */
+	public static <K extends BaseFuture> FutureDone<K> anyOf(final Executor executor, final List<K> all) {
+		if (all.isEmpty()) {
+			return completeOn(executor, new FutureDone<K>().failed("no futures given"));
+		}
+		return completeOn(executor, whenAnySuccess(all));
+	}
+
+	private static <K> FutureDone<K> completeOn(final Executor executor, final FutureDone<K> source) {
+		final FutureDone<K> futureDone = new FutureDone<K>();
+		addListener(source, executor, new BaseFutureAdapter<FutureDone<K>>() {
+			@Override
+			public void operationComplete(final FutureDone<K> source) throws Exception {
+				if (source.isSuccess()) {
+					futureDone.done(source.object());
+				} else {
+					futureDone.failed(source);
+				}
+			}
+		}, futureDone);
+		return futureDone;
+	}
+
 	public static <K extends BaseFuture> FutureDone<K[]> whenAll(final K... all) {
 		final AtomicInteger counter = new AtomicInteger();
 		final int size = all.length;
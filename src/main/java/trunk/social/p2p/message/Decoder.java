@@ -7,6 +7,7 @@ import io.netty.util.Attribute;
 import io.netty.util.AttributeKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.InboundRateLimiter;
 import trunk.social.p2p.connection.SignatureFactory;
 import trunk.social.p2p.connection.TimeoutFactory;
 import trunk.social.p2p.p2p.PeerBuilder;
@@ -71,8 +72,17 @@ public class Decoder {
 
 	private final SignatureFactory signatureFactory;
 
+	// null if incoming requests are not rate limited
+	private final InboundRateLimiter rateLimiter;
+	private boolean rejected = false;
+
 	public Decoder(SignatureFactory signatureFactory) {
+		this(signatureFactory, null);
+	}
+
+	public Decoder(SignatureFactory signatureFactory, InboundRateLimiter rateLimiter) {
 		this.signatureFactory = signatureFactory;
+		this.rateLimiter = rateLimiter;
 	}
 
 	public boolean decode(ChannelHandlerContext ctx, final ByteBuf buf, InetSocketAddress recipient,
@@ -80,6 +90,9 @@ public class Decoder {
 
 		LOG.debug("Decoding of TomP2P starts now. Readable: {}.", buf.readableBytes());
 
+		if (rejected) {
+			return false;
+		}
 		try {
 			final int readerBefore = buf.readerIndex();
 			// set the sender of this message for handling timeout
@@ -96,6 +109,12 @@ public class Decoder {
 					if (message.isFireAndForget() && message.isUdp()) {
 						TimeoutFactory.removeTimeout(ctx);
 					}
+					// check the limits before we spend any effort on the payload
+					if (rateLimiter != null && message.isRequest()
+							&& !rateLimiter.tryAcquire(message.sender().peerId(), sender, message.command())) {
+						rejected = true;
+						return false;
+					}
 				} else {
 					return false;
 				}
@@ -217,9 +236,7 @@ public class Decoder {
 				if (buf.readableBytes() < Number160.BYTE_ARRAY_SIZE) {
 					return false;
 				}
-				byte[] me = new byte[Number160.BYTE_ARRAY_SIZE];
-				buf.readBytes(me);
-				message.key(new Number160(me));
+				message.key(Number160.decode(buf));
 				lastContent = contentTypes.poll();
 				break;
 			case BLOOM_FILTER:
@@ -288,16 +305,7 @@ public class Decoder {
 							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
 						return false;
 					}
-					byte[] me2 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me2);
-					Number160 locationKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 domainKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 contentKey = new Number160(me2);
-					buf.readBytes(me2);
-					Number160 versionKey = new Number160(me2);
-					keyCollection.add(new Number640(locationKey, domainKey, contentKey, versionKey));
+					keyCollection.add(Number640.decode(buf));
 				}
 				message.keyCollection(keyCollection);
 				lastContent = contentTypes.poll();
@@ -330,16 +338,7 @@ public class Decoder {
 								+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE) {
 							return false;
 						}
-						byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-						buf.readBytes(me3);
-						Number160 locationKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 domainKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 contentKey = new Number160(me3);
-						buf.readBytes(me3);
-						Number160 versionKey = new Number160(me3);
-						key = new Number640(locationKey, domainKey, contentKey, versionKey);
+						key = Number640.decode(buf);
 					}
 					LOG.debug("Key decoded in message {}, remaining {}", message, buf.readableBytes());
 					data = Data.decodeHeader(buf, signatureFactory);
@@ -391,25 +390,15 @@ public class Decoder {
 					if (buf.readableBytes() < meta + Utils.BYTE_BYTE_SIZE + (size * Number160.BYTE_ARRAY_SIZE )) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
+					final Number640 key640 = Number640.decode(buf);
 
 					int numBasedOn = buf.readByte();
 					Set<Number160> value = new HashSet<Number160>(numBasedOn);
 					for (int j = 0; j < numBasedOn; j++) {
-						buf.readBytes(me3);
-						Number160 basedOnKey = new Number160(me3);
-						value.add(basedOnKey);
+						value.add(Number160.decode(buf));
 					}
 
-					keyMap640Keys.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMap640Keys.put(key640, value);
 				}
 
 				message.keyMap640Keys(keyMap640Keys);
@@ -433,17 +422,9 @@ public class Decoder {
 							+ Number160.BYTE_ARRAY_SIZE + Number160.BYTE_ARRAY_SIZE + 1) {
 						return false;
 					}
-					byte[] me3 = new byte[Number160.BYTE_ARRAY_SIZE];
-					buf.readBytes(me3);
-					Number160 locationKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 domainKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 contentKey = new Number160(me3);
-					buf.readBytes(me3);
-					Number160 versionKey = new Number160(me3);
+					final Number640 key640 = Number640.decode(buf);
 					byte value = buf.readByte();
-					keyMapByte.put(new Number640(locationKey, domainKey, contentKey, versionKey), value);
+					keyMapByte.put(key640, value);
 				}
 
 				message.keyMapByte(keyMapByte);
@@ -589,6 +570,14 @@ public class Decoder {
 		return message;
 	}
 
+	/**
+	 * @return True if the message was rejected by the rate limiter after decoding the header. The payload is not
+	 *         decoded and this decoder does not decode anything anymore.
+	 */
+	public boolean isRejected() {
+		return rejected;
+	}
+
 	public Message.Content lastContent() {
 		return lastContent;
 	}
@@ -115,10 +115,7 @@ public class Encoder {
                     }
                 } else {
                     for (final Number640 key : keys.keys()) {
-                    	key.locationKey().encode(buf);
-                    	key.domainKey().encode(buf);
-                    	key.contentKey().encode(buf);
-                    	key.versionKey().encode(buf);
+                    	key.encode(buf);
                     }
                 }
                 message.contentReferences().poll();
@@ -137,10 +134,7 @@ public class Encoder {
                     }
                 } else {
                     for (final Entry<Number640, Data> entry : dataMap.dataMap().entrySet()) {
-                    	entry.getKey().locationKey().encode(buf);
-                    	entry.getKey().domainKey().encode(buf);
-                    	entry.getKey().contentKey().encode(buf);
-                    	entry.getKey().versionKey().encode(buf);
+                    	entry.getKey().encode(buf);
                         encodeData(buf, entry.getValue(), dataMap.isConvertMeta(), !message.isRequest(), message.command() == RPC.Commands.REPLICA_PUT.getNr());
                     }
                 }
@@ -151,10 +145,7 @@ public class Encoder {
                 // length
                 buf.writeInt(keyMap640Keys.size());
                 for (final Entry<Number640, Collection<Number160>> entry : keyMap640Keys.keysMap().entrySet()) {
-                	entry.getKey().locationKey().encode(buf);
-                	entry.getKey().domainKey().encode(buf);
-                	entry.getKey().contentKey().encode(buf);
-                	entry.getKey().versionKey().encode(buf);
+                	entry.getKey().encode(buf);
                     // write number of based-on keys
                     buf.writeByte(entry.getValue().size());
                     // write based-on keys
@@ -169,10 +160,7 @@ public class Encoder {
                 // length
                 buf.writeInt(keysMap.size());
                 for (final Entry<Number640, Byte> entry : keysMap.keysMap().entrySet()) {
-                	entry.getKey().locationKey().encode(buf);
-                	entry.getKey().domainKey().encode(buf);
-                	entry.getKey().contentKey().encode(buf);
-                	entry.getKey().versionKey().encode(buf);
+                	entry.getKey().encode(buf);
                     buf.writeByte(entry.getValue());
                 }
                 message.contentReferences().poll();
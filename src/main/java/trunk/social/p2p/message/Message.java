@@ -143,9 +143,10 @@ public class Message {
 		CANCEL,
 		
 		/**
-		 * Still unused
+		 * The peer is overloaded and rejected the request without processing it. The peer is alive, the sender
+		 * should back off or ask another peer.
 		 */
-		RESERVED1
+		BUSY
 	};
 
     // Header:
@@ -6,6 +6,7 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.InboundRateLimiter;
 import trunk.social.p2p.connection.SignatureFactory;
 import trunk.social.p2p.storage.AlternativeCompositeByteBuf;
 
@@ -23,7 +24,12 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
 	private int lastId = 0;
 
 	public TomP2PCumulationTCP(final SignatureFactory signatureFactory, ByteBufAllocator byteBufAllocator) {
-		decoder = new Decoder(signatureFactory);
+		this(signatureFactory, byteBufAllocator, null);
+	}
+
+	public TomP2PCumulationTCP(final SignatureFactory signatureFactory, ByteBufAllocator byteBufAllocator,
+			final InboundRateLimiter rateLimiter) {
+		decoder = new Decoder(signatureFactory, rateLimiter);
 		this.byteBufAllocator = byteBufAllocator;
 	}
 
@@ -66,6 +72,13 @@ public class TomP2PCumulationTCP extends ChannelInboundHandlerAdapter {
 		while (finished && moreData) {
 			finished = decoder.decode(ctx, cumulation, (InetSocketAddress) ctx
 					.channel().localAddress(), sender);
+			if (decoder.isRejected()) {
+				// we cannot skip the payload in a stream, so close the connection to the flooding peer
+				LOG.debug("Closing TCP connection from {}, rate limit reached.", sender);
+				cumulation.skipBytes(cumulation.readableBytes());
+				ctx.close();
+				return;
+			}
 			if (finished) {
 				lastId = decoder.message().messageId();
 				moreData = cumulation.readableBytes() > 0;
@@ -7,6 +7,7 @@ import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.socket.DatagramPacket;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.InboundRateLimiter;
 import trunk.social.p2p.connection.SignatureFactory;
 
 import java.net.InetSocketAddress;
@@ -17,9 +18,16 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
     private static final Logger LOG = LoggerFactory.getLogger(TomP2PSinglePacketUDP.class);
 
     private final SignatureFactory signatureFactory;
+
+    private final InboundRateLimiter rateLimiter;
     
     public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory) {
+        this(signatureFactory, null);
+    }
+
+    public TomP2PSinglePacketUDP(final SignatureFactory signatureFactory, final InboundRateLimiter rateLimiter) {
         this.signatureFactory = signatureFactory;
+        this.rateLimiter = rateLimiter;
     }
 
     @Override
@@ -37,10 +45,14 @@ public class TomP2PSinglePacketUDP extends ChannelInboundHandlerAdapter {
         final InetSocketAddress recipient = d.recipient();
 
         try {
-            Decoder decoder = new Decoder(signatureFactory);
+            Decoder decoder = new Decoder(signatureFactory, rateLimiter);
             boolean finished = decoder.decode(ctx, buf, recipient, sender);
             if (finished) {
                 ctx.fireChannelRead(decoder.prepareFinish());
+            } else if (decoder.isRejected()) {
+                // drop silently, answering would only help a flooding peer
+                LOG.debug("Dropped UDP request from {}, rate limit reached.", sender);
+                decoder.release();
             } else {
                 LOG.warn("Did not get the complete packet!");
             }
@@ -28,6 +28,13 @@ import trunk.social.p2p.rpc.NeighborRPC;
 import trunk.social.p2p.utils.Pair;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles routing of nodes to other nodes.
@@ -46,6 +53,28 @@ public class DistributedRouting {
 
     private final Random rnd;
 
+    // routings that are currently running, identical routing requests are attached to them
+    private final ConcurrentMap<List<Object>, FutureRouting> pendingRoutings = new ConcurrentHashMap<List<Object>, FutureRouting>();
+
+    private volatile boolean coalesceRoutings = true;
+
+    // adaptive parallelism: a request is slow if it takes longer than the mean RTT of the peer times this factor
+    private volatile double slowRequestFactor = 1.5;
+
+    private final AtomicLong extraRequests = new AtomicLong();
+
+    private final AtomicLong slowRequests = new AtomicLong();
+
+    // semi-recursive routing: the number of hops a neighbor request may be forwarded, 0 for iterative routing
+    private volatile int recursiveHops = 0;
+
+    private final AtomicLong recursiveRequests = new AtomicLong();
+
+    private final AtomicLong recursiveFallbacks = new AtomicLong();
+
+    // results of previous routings, repeated operations on hot keys go straight to the close peers found before
+    private volatile RoutingCache routingCache = null;
+
     /**
      * The routing process involves multiple RPCs, mostly UDP based.
      * 
@@ -125,12 +154,172 @@ public class DistributedRouting {
      * @return a FutureRouting object, is set to complete if the route has been found
      */
     public FutureRouting route(final RoutingBuilder routingBuilder, final Message.Type type, final ChannelCreator cc) {
+        final RoutingCache cache = type == Message.Type.REQUEST_1 ? routingCache : null;
+        final List<Object> routingKey = coalesceRoutings || cache != null ? routingKey(routingBuilder, type) : null;
+        if (routingKey == null) {
+            return route0(routingBuilder, type, cc);
+        }
+        final Number160 locationKey = routingBuilder.locationKey();
+        if (cache != null) {
+            final FutureRouting cached = new FutureRouting();
+            if (cache.complete(routingKey, cached)) {
+                LOG.debug("Routing for {} found in cache.", locationKey);
+                return cached;
+            }
+        }
+        if (!coalesceRoutings) {
+            final FutureRouting futureRouting = route0(routingBuilder, type, cc);
+            cacheResult(cache, routingKey, locationKey, futureRouting);
+            return futureRouting;
+        }
+        // single-flight: if the same routing is already running, attach to it instead of sending the same neighbor
+        // requests again. Every caller gets its own copy of the result, as the DHT operations modify the sets.
+        FutureRouting pending = pendingRoutings.get(routingKey);
+        if (pending == null) {
+            final FutureRouting shared = new FutureRouting();
+            pending = pendingRoutings.putIfAbsent(routingKey, shared);
+            if (pending == null) {
+                pending = shared;
+                final FutureRouting futureRouting = route0(routingBuilder, type, cc);
+                cacheResult(cache, routingKey, locationKey, futureRouting);
+                futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+                    @Override
+                    public void operationComplete(final FutureRouting future) throws Exception {
+                        pendingRoutings.remove(routingKey, shared);
+                        if (future.isSuccess()) {
+                            shared.neighbors(future.directHitsDigest(), future.potentialHits(),
+                                    future.routingPath(), false, false);
+                        } else {
+                            shared.failed(future);
+                        }
+                    }
+                });
+            } else {
+                LOG.debug("Attach to running routing for {}.", routingBuilder.locationKey());
+            }
+        } else {
+            LOG.debug("Attach to running routing for {}.", routingBuilder.locationKey());
+        }
+        final FutureRouting futureRouting = new FutureRouting();
+        pending.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting future) throws Exception {
+                if (future.isSuccess()) {
+                    futureRouting.neighbors(new TreeMap<PeerAddress, DigestInfo>(future.directHitsDigest()),
+                            new TreeSet<PeerAddress>(future.potentialHits()),
+                            new TreeSet<PeerAddress>(future.routingPath()), false, false);
+                } else {
+                    futureRouting.failed(future);
+                }
+            }
+        });
+        return futureRouting;
+    }
+
+    private static void cacheResult(final RoutingCache cache, final List<Object> routingKey,
+            final Number160 locationKey, final FutureRouting futureRouting) {
+        if (cache == null) {
+            return;
+        }
+        futureRouting.addListener(new BaseFutureAdapter<FutureRouting>() {
+            @Override
+            public void operationComplete(final FutureRouting future) throws Exception {
+                if (future.isSuccess()) {
+                    cache.put(routingKey, locationKey, future);
+                }
+            }
+        });
+    }
+
+    private FutureRouting route0(final RoutingBuilder routingBuilder, final Message.Type type, final ChannelCreator cc) {
         // for bad distribution, use large NO_NEW_INFORMATION
         Collection<PeerStatistic> startPeers = peerBean.peerMap().closePeers(routingBuilder.locationKey(),
                 routingBuilder.parallel() * 2);
         return routing(startPeers, routingBuilder, type, cc);
     }
 
+    /**
+     * Creates the key that identifies identical routing requests. Random searches, bootstrapping and requests with
+     * filters or bloom filters are never coalesced.
+     * 
+     * @param routingBuilder
+     *            All relevant information for the routing process
+     * @param type
+     *            The type of the routing
+     * @return The key or null if this routing request cannot be attached to another one
+     */
+    private static List<Object> routingKey(final RoutingBuilder routingBuilder, final Message.Type type) {
+        if (routingBuilder.locationKey() == null || routingBuilder.isBootstrap()
+                || routingBuilder.peerMapFilters() != null || routingBuilder.postRoutingFilters() != null
+                || routingBuilder.keyBloomFilter() != null || routingBuilder.contentBloomFilter() != null) {
+            return null;
+        }
+        return Arrays.<Object> asList(type, routingBuilder.locationKey(), routingBuilder.domainKey(),
+                routingBuilder.contentKey(), routingBuilder.from(), routingBuilder.to(),
+                routingBuilder.parallel(), routingBuilder.maxExtraParallel(), routingBuilder.maxDirectHits(),
+                routingBuilder.maxNoNewInfo(), routingBuilder.maxFailures(), routingBuilder.maxSuccess(),
+                routingBuilder.isForceTCP(), routingBuilder.isForceUDP());
+    }
+
+    /**
+     * @param coalesceRoutings
+     *            Set to true if identical concurrent routing requests should share one routing process
+     * @return This class
+     */
+    public DistributedRouting coalesceRoutings(final boolean coalesceRoutings) {
+        this.coalesceRoutings = coalesceRoutings;
+        return this;
+    }
+
+    /**
+     * @return True if identical concurrent routing requests share one routing process
+     */
+    public boolean isCoalesceRoutings() {
+        return coalesceRoutings;
+    }
+
+    /**
+     * Sets the cache for routing results. Only routings of type {@link Message.Type#REQUEST_1} without filters are
+     * cached, the digest based routings depend on the stored data. The cache is registered at the peer map to get
+     * notified about removed and inserted peers.
+     * 
+     * @param routingCache
+     *            The new routing cache or null to disable caching, which is the default
+     * @return This class
+     */
+    public DistributedRouting routingCache(final RoutingCache routingCache) {
+        final RoutingCache old = this.routingCache;
+        if (old != null) {
+            peerMap().removePeerMapChangeListener(old);
+        }
+        if (routingCache != null) {
+            peerMap().addPeerMapChangeListener(routingCache);
+        }
+        this.routingCache = routingCache;
+        return this;
+    }
+
+    /**
+     * @return The cache for routing results or null if caching is disabled
+     */
+    public RoutingCache routingCache() {
+        return routingCache;
+    }
+
+    /**
+     * Removes the cached routing results for a location key. The DHT operations call this if an operation with the
+     * cached peers failed, before they route again.
+     * 
+     * @param locationKey
+     *            The location key
+     */
+    public void invalidate(final Number160 locationKey) {
+        final RoutingCache cache = routingCache;
+        if (cache != null && locationKey != null) {
+            cache.invalidate(locationKey);
+        }
+    }
+
     /**
      * Looks for a route to the given peer address.
      *
@@ -246,16 +435,25 @@ public class DistributedRouting {
 
         final boolean randomSearch = routingBuilder.locationKey() == null;
         int active = 0;
-        for (int i = 0; i < routingMechanism.parallel(); i++) {
+        // requests from a previous round that are still outstanding, e.g. slower than predicted
+        for (int i = 0; i < routingMechanism.maxParallel(); i++) {
+            if (routingMechanism.futureResponse(i) != null) {
+                LOG.debug("Activity on {}.", i);
+                active++;
+            }
+        }
+        for (int i = 0; i < routingMechanism.maxParallel() && active < routingMechanism.parallel(); i++) {
             if (routingMechanism.futureResponse(i) == null && !routingMechanism.isStopCreatingNewFutures()) {
-                final PeerAddress next;
+                final PeerStatistic nextStatistic;
                 if (randomSearch) {
-                    next = routingMechanism.pollRandomInQueueToAsk(rnd);
+                    nextStatistic = routingMechanism.pollRandomStatisticInQueueToAsk(rnd);
                 } else {
-                    next = routingMechanism.pollFirstInQueueToAsk();
+                    nextStatistic = routingMechanism.pollFirstStatisticInQueueToAsk();
                 }
-                if (next != null) {
+                if (nextStatistic != null) {
+                    final PeerAddress next = nextStatistic.peerAddress();
                     routingMechanism.addToAlreadyAsked(next);
+                    final boolean extra = active >= routingMechanism.minParallel();
                     active++;
                     // If we search for a random peer, then the peer should
                     // return the address farest away.
@@ -271,13 +469,20 @@ public class DistributedRouting {
                     		LOG.warn("Sanity check failed TCP: {}, {}.",i,Thread.currentThread().getName());
                     	}
                     }
-                    routingMechanism.futureResponse(i, neighbors.closeNeighbors(next,
-                            routingBuilder.searchValues(), type, channelCreator, routingBuilder));
+                    final int hops = recursiveHops(routingBuilder, routingMechanism, type, randomSearch);
+                    // a forwarded request takes longer than the RTT of the peer, don't treat it as slow
+                    final long predictedRTT = hops > 0 ? -1 : nextStatistic.getMeanRTT();
+                    routingMechanism.requestSent(i, neighbors.closeNeighbors(next,
+                            routingBuilder.searchValues(), type, channelCreator, routingBuilder, hops),
+                            predictedRTT < 0 ? -1 : (long) (predictedRTT * slowRequestFactor), extra);
+                    if (hops > 0) {
+                        recursiveRequests.incrementAndGet();
+                    }
+                    if (extra) {
+                        extraRequests.incrementAndGet();
+                    }
                     LOG.debug("get close neighbors: {} on {}", next, i);
                 }
-            } else if (routingMechanism.futureResponse(i) != null) {
-                LOG.debug("Activity on {}.", i);
-                active++;
             }
         }
         if (active == 0) {
@@ -290,11 +495,29 @@ public class DistributedRouting {
         final boolean last = active == 1;
         final FutureForkJoin<FutureResponse> fp = new FutureForkJoin<FutureResponse>(1, false,
                 routingMechanism.futureResponses());
+        final ScheduledFuture<?> slowRequestCheck = scheduleSlowRequestCheck(routingMechanism, fp);
         fp.addListener(new BaseFutureAdapter<FutureForkJoin<FutureResponse>>() {
             @Override
             public void operationComplete(final FutureForkJoin<FutureResponse> future) throws Exception {
+                if (slowRequestCheck != null) {
+                    slowRequestCheck.cancel(false);
+                }
+                if (future.isCanceled()) {
+                    // a request is slower than predicted, ask the next peer without canceling the slow request. The
+                    // outstanding requests stay in the array and are evaluated in the next round.
+                    if (routingMechanism.widen()) {
+                        slowRequests.incrementAndGet();
+                        LOG.debug("Slow request, parallelism increased to {}.", routingMechanism.parallel());
+                    }
+                    routingRec(routingBuilder, routingMechanism, type, channelCreator);
+                    return;
+                }
                 final boolean finished;
                 if (future.isSuccess()) {
+                    // the recursive requests of the first round brought us close to the location key, verify the
+                    // closest peers with iterative requests
+                    routingMechanism.recursive(false);
+                    routingMechanism.responseReceived(future.last());
                     Message lastResponse = future.last().responseMessage();
                     PeerAddress remotePeer = lastResponse.sender();
                     routingMechanism.addPotentialHits(remotePeer);
@@ -315,6 +538,12 @@ public class DistributedRouting {
                     // if it failed but the failed is the closest one, its good to try again, since the peer might just
                     // be busy
                     LOG.debug("Routing error {}.", future.failedReason());
+                    if (routingMechanism.isRecursive() && recursiveHops > 0) {
+                        // the forwarding may have failed anywhere on the way, continue iteratively
+                        routingMechanism.recursive(false);
+                        recursiveFallbacks.incrementAndGet();
+                        LOG.debug("Recursive routing failed, fall back to iterative routing.");
+                    }
                     finished = routingMechanism.evaluateFailed();
                     routingMechanism.stopCreatingNewFutures(finished);
                 }
@@ -333,6 +562,131 @@ public class DistributedRouting {
         });
     }
 
+    private int recursiveHops(final RoutingBuilder routingBuilder, final RoutingMechanism routingMechanism,
+            final Message.Type type, final boolean randomSearch) {
+        if (type != Message.Type.REQUEST_1 || randomSearch || routingBuilder.isBootstrap()
+                || !routingMechanism.isRecursive()) {
+            return 0;
+        }
+        return recursiveHops;
+    }
+
+    /**
+     * Checks if an outstanding request exceeds its predicted round-trip time. In that case the current round is
+     * canceled, which makes the routing send one more request in parallel.
+     * 
+     * @param routingMechanism
+     *            The routing mechanism with the outstanding requests
+     * @param fp
+     *            The current round that waits for the next reply
+     * @return The scheduled check or null if the parallelism cannot grow or no request has a prediction
+     */
+    private ScheduledFuture<?> scheduleSlowRequestCheck(final RoutingMechanism routingMechanism,
+            final FutureForkJoin<FutureResponse> fp) {
+        if (fp.isCompleted() || !routingMechanism.canWiden()) {
+            return null;
+        }
+        final long delayNanos = routingMechanism.nanosToNextDeadline();
+        final ScheduledExecutorService timer = neighbors.connectionBean().timer();
+        if (delayNanos < 0 || timer == null) {
+            return null;
+        }
+        try {
+            return timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (routingMechanism.canWiden()) {
+                        fp.cancel();
+                    }
+                }
+            }, delayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // shutting down
+            return null;
+        }
+    }
+
+    /**
+     * @param slowRequestFactor
+     *            A request is considered slow if it takes longer than the mean round-trip time of the peer times this
+     *            factor
+     * @return This class
+     */
+    public DistributedRouting slowRequestFactor(final double slowRequestFactor) {
+        if (slowRequestFactor <= 0) {
+            throw new IllegalArgumentException("The factor needs to be larger than zero.");
+        }
+        this.slowRequestFactor = slowRequestFactor;
+        return this;
+    }
+
+    /**
+     * @return A request is considered slow if it takes longer than the mean round-trip time of the peer times this
+     *         factor
+     */
+    public double slowRequestFactor() {
+        return slowRequestFactor;
+    }
+
+    /**
+     * Enables semi-recursive routing for routings of type {@link Message.Type#REQUEST_1}. The neighbor requests are
+     * forwarded by the remote peers towards the location key for at most the given number of hops, and the last hop
+     * sends its close peers directly to this peer, or back along the hops if it does not know this peer. The routing
+     * then continues iteratively with these peers, so the result is the same as with iterative routing, but with fewer
+     * round-trips from this peer. Digest based routings stay iterative, since the digest needs to come from the peer
+     * we asked. If a recursive request fails, the routing falls back to iterative requests.
+     * 
+     * @param recursiveHops
+     *            The number of hops a neighbor request may be forwarded, at most
+     *            {@link NeighborRPC#MAX_RECURSIVE_HOPS}, 0 for iterative routing
+     * @return This class
+     */
+    public DistributedRouting recursiveHops(final int recursiveHops) {
+        if (recursiveHops < 0 || recursiveHops > NeighborRPC.MAX_RECURSIVE_HOPS) {
+            throw new IllegalArgumentException("The number of hops needs to be between 0 and "
+                    + NeighborRPC.MAX_RECURSIVE_HOPS + ".");
+        }
+        this.recursiveHops = recursiveHops;
+        return this;
+    }
+
+    /**
+     * @return The number of hops a neighbor request may be forwarded, 0 for iterative routing
+     */
+    public int recursiveHops() {
+        return recursiveHops;
+    }
+
+    /**
+     * @return The number of neighbor requests that were sent as recursive requests
+     */
+    public long recursiveRequests() {
+        return recursiveRequests.get();
+    }
+
+    /**
+     * @return The number of routings that fell back to iterative requests, because a recursive request failed
+     */
+    public long recursiveFallbacks() {
+        return recursiveFallbacks.get();
+    }
+
+    /**
+     * @return The number of neighbor requests that were sent in addition to the configured parallel requests, because
+     *         other requests were slower than predicted
+     */
+    public long extraRequests() {
+        return extraRequests.get();
+    }
+
+    /**
+     * @return The number of times an outstanding neighbor request exceeded its predicted round-trip time and the
+     *         parallelism was increased
+     */
+    public long slowRequests() {
+        return slowRequests.get();
+    }
+
     public PeerMap peerMap() {
         return peerBean.peerMap();
     }
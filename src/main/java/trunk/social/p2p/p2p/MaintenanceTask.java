@@ -51,25 +51,28 @@ public class MaintenanceTask implements Runnable {
                 return;
             }
             for (Maintainable maintainable : maintainables) {
-                PeerStatistic peerStatistic = maintainable.nextForMaintenance(runningFutures.values());
-                if(peerStatistic == null) {
-                    continue;
-                }
-                BaseFuture future = peer.ping().peerAddress(peerStatistic.peerAddress()).start();
-                LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), peerStatistic.peerAddress());
-            
-                peer.notifyAutomaticFutures(future);
-                runningFutures.put(future, peerStatistic.peerAddress());
-                COUNTER.incrementAndGet();
-                future.addListener(new BaseFutureAdapter<BaseFuture>() {
-                    @Override
-                    public void operationComplete(BaseFuture future) throws Exception {
-                    	synchronized (lock) {
-                            runningFutures.remove(future);
-                            COUNTER.decrementAndGet();
-                        }
+                // send the peers that are due in one batch, but not more than 5 per run
+                for (int i = 0; i < MAX_PING && runningFutures.size() < MAX_PING; i++) {
+                    PeerStatistic peerStatistic = maintainable.nextForMaintenance(runningFutures.values());
+                    if(peerStatistic == null) {
+                        break;
                     }
-                });
+                    BaseFuture future = peer.ping().peerAddress(peerStatistic.peerAddress()).start();
+                    LOG.debug("Maintenance ping from {} to {}.", peer.peerAddress(), peerStatistic.peerAddress());
+                
+                    peer.notifyAutomaticFutures(future);
+                    runningFutures.put(future, peerStatistic.peerAddress());
+                    COUNTER.incrementAndGet();
+                    future.addListener(new BaseFutureAdapter<BaseFuture>() {
+                        @Override
+                        public void operationComplete(BaseFuture future) throws Exception {
+                        	synchronized (lock) {
+                                runningFutures.remove(future);
+                                COUNTER.decrementAndGet();
+                            }
+                        }
+                    });
+                }
             }
         }
     }
@@ -0,0 +1,191 @@
+package trunk.social.p2p.p2p;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.futures.BaseFuture;
+import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureDone;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.peers.PeerMap;
+import trunk.social.p2p.peers.PeerMapSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a snapshot of the peer map periodically to a file and restores it when the peer starts, so that a restarted
+ * peer knows its neighbors without a full bootstrap. The restored peers are pinged in the background, a peer that
+ * replies becomes verified again. Use it with {@link PeerBuilder#init(PeerInit)}:
+ *
+ * <pre>
+ * new PeerBuilder(peerId).init(new PeerMapSnapshotTask(file)).start();
+ * </pre>
+ *
+ * @author Thomas Bocek
+ */
+public class PeerMapSnapshotTask implements PeerInit, Runnable, Shutdown {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PeerMapSnapshotTask.class);
+
+    private final File file;
+
+    private int intervalMillis = 60 * 1000;
+
+    private int verifyParallel = 16;
+
+    private final AtomicInteger verified = new AtomicInteger();
+
+    private final AtomicInteger verifyFailed = new AtomicInteger();
+
+    private final Object lock = new Object();
+
+    private Peer peer;
+
+    private ScheduledFuture<?> scheduledFuture;
+
+    private Iterator<PeerAddress> toVerify;
+
+    private boolean shutdown = false;
+
+    public PeerMapSnapshotTask(final File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void init(final Peer peer) {
+        this.peer = peer;
+        if (file.exists()) {
+            try {
+                final PeerMapSnapshot snapshot = PeerMapSnapshot.load(file);
+                final List<PeerAddress> restored = snapshot.restore(peer.peerBean().peerMap());
+                LOG.debug("Restored {} peers from {}, verifying them.", restored.size(), file);
+                synchronized (lock) {
+                    toVerify = restored.iterator();
+                    for (int i = 0; i < verifyParallel; i++) {
+                        verifyNext();
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not restore the peer map from {}.", file, e);
+            }
+        }
+        synchronized (lock) {
+            scheduledFuture = peer.connectionBean().timer()
+                    .scheduleAtFixedRate(this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+        peer.addShutdownListener(this);
+    }
+
+    /**
+     * Pings the next restored peer, each finished ping starts the next one, so that at most verifyParallel pings are
+     * running. Needs to be called with the lock held.
+     */
+    private void verifyNext() {
+        if (shutdown || toVerify == null) {
+            return;
+        }
+        final PeerMap peerMap = peer.peerBean().peerMap();
+        PeerAddress peerAddress = null;
+        while (toVerify.hasNext()) {
+            final PeerAddress next = toVerify.next();
+            // a peer that already contacted us is verified
+            if (!peerMap.contains(next)) {
+                peerAddress = next;
+                break;
+            }
+        }
+        if (peerAddress == null) {
+            return;
+        }
+        final BaseFuture future = peer.ping().peerAddress(peerAddress).start();
+        peer.notifyAutomaticFutures(future);
+        future.addListener(new BaseFutureAdapter<BaseFuture>() {
+            @Override
+            public void operationComplete(final BaseFuture future) throws Exception {
+                if (future.isSuccess()) {
+                    verified.incrementAndGet();
+                } else {
+                    verifyFailed.incrementAndGet();
+                }
+                synchronized (lock) {
+                    verifyNext();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        synchronized (lock) {
+            if (shutdown) {
+                return;
+            }
+        }
+        save();
+    }
+
+    private void save() {
+        try {
+            PeerMapSnapshot.create(peer.peerBean().peerMap()).save(file);
+        } catch (IOException e) {
+            LOG.warn("Could not write the peer map snapshot to {}.", file, e);
+        }
+    }
+
+    @Override
+    public BaseFuture shutdown() {
+        synchronized (lock) {
+            if (shutdown) {
+                return new FutureDone<Void>().done();
+            }
+            shutdown = true;
+            if (scheduledFuture != null) {
+                scheduledFuture.cancel(false);
+            }
+        }
+        // a final snapshot with the most recent state
+        save();
+        return new FutureDone<Void>().done();
+    }
+
+    /**
+     * @return The number of restored peers that replied to the verification ping
+     */
+    public int verified() {
+        return verified.get();
+    }
+
+    /**
+     * @return The number of restored peers that did not reply to the verification ping
+     */
+    public int verifyFailed() {
+        return verifyFailed.get();
+    }
+
+    public File file() {
+        return file;
+    }
+
+    public int intervalMillis() {
+        return intervalMillis;
+    }
+
+    public PeerMapSnapshotTask intervalMillis(final int intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        return this;
+    }
+
+    public int verifyParallel() {
+        return verifyParallel;
+    }
+
+    public PeerMapSnapshotTask verifyParallel(final int verifyParallel) {
+        this.verifyParallel = verifyParallel;
+        return this;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package trunk.social.p2p.p2p;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.futures.FutureRouting;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.peers.PeerMap;
+import trunk.social.p2p.peers.PeerMapChangeListener;
+import trunk.social.p2p.peers.PeerStatistic;
+import trunk.social.p2p.rpc.DigestInfo;
+import trunk.social.p2p.utils.ConcurrentCacheMap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the result of successful routings, so that repeated operations on the same location key can go straight
+ * to the close peers found before. The entries expire after a time-to-live and the number of entries is bounded, the
+ * least recently used entry is replaced.
+ * <p>
+ * The peers that can be closer to a location key than the peers of an entry are all in a known range of bags of the
+ * peer map. The cache counts the peers inserted into and removed from every bag, and an entry is dropped on lookup if
+ * a count in its range changed since it was stored. Peer map events therefore cost the same, regardless of the number
+ * of entries.
+ *
+ * @author Thomas Bocek
+ */
+public class RoutingCache implements PeerMapChangeListener {
+    private static final Logger LOG = LoggerFactory.getLogger(RoutingCache.class);
+
+    private final Number160 self;
+
+    private final ConcurrentCacheMap<List<Object>, CachedRouting> cache;
+
+    // the number of inserted or removed peers per bag of the peer map
+    private final AtomicLongArray bagVersions = new AtomicLongArray(Number160.BITS);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Creates a routing cache.
+     *
+     * @param self
+     *            The ID of the peer that owns the peer map
+     * @param timeToLiveSeconds
+     *            The time in seconds a routing result can be reused
+     * @param maxEntries
+     *            The maximum number of routing results to keep
+     */
+    public RoutingCache(final Number160 self, final int timeToLiveSeconds, final int maxEntries) {
+        if (timeToLiveSeconds <= 0 || maxEntries < ConcurrentCacheMap.SEGMENT_NR) {
+            throw new IllegalArgumentException("Time-to-live needs to be larger than zero and max entries at least "
+                    + ConcurrentCacheMap.SEGMENT_NR + ".");
+        }
+        this.self = self;
+        // no refresh on access, a hot key needs to be routed again once the time-to-live is over
+        this.cache = new ConcurrentCacheMap<List<Object>, CachedRouting>(timeToLiveSeconds, maxEntries, false);
+    }
+
+    /**
+     * Completes the future with a copy of the cached routing result, as the DHT operations modify the sets.
+     *
+     * @param routingKey
+     *            The key of the routing request
+     * @param futureRouting
+     *            The future to complete
+     * @return True if a cached result was found and the future has been completed
+     */
+    public boolean complete(final List<Object> routingKey, final FutureRouting futureRouting) {
+        final CachedRouting cachedRouting = cache.get(routingKey);
+        if (cachedRouting == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        if (version(cachedRouting.fromBag, cachedRouting.toBag) != cachedRouting.version) {
+            // a peer was inserted or removed in the bags of this entry, route again
+            remove(routingKey);
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        futureRouting.cached(true);
+        futureRouting.neighbors(new TreeMap<PeerAddress, DigestInfo>(cachedRouting.directHits),
+                new TreeSet<PeerAddress>(cachedRouting.potentialHits),
+                new TreeSet<PeerAddress>(cachedRouting.routingPath), false, false);
+        return true;
+    }
+
+    /**
+     * Stores a copy of a successful routing result.
+     *
+     * @param routingKey
+     *            The key of the routing request
+     * @param locationKey
+     *            The location key that was routed to
+     * @param futureRouting
+     *            The successful routing future
+     */
+    public void put(final List<Object> routingKey, final Number160 locationKey, final FutureRouting futureRouting) {
+        if (futureRouting.potentialHits().isEmpty()) {
+            return;
+        }
+        final SortedMap<PeerAddress, DigestInfo> directHits = new TreeMap<PeerAddress, DigestInfo>(
+                futureRouting.directHitsDigest());
+        final NavigableSet<PeerAddress> potentialHits = new TreeSet<PeerAddress>(futureRouting.potentialHits());
+        // a peer closer than the farthest peer of the entry has a distance with at most this bit length
+        int bitLength = Number160.distanceBitLength(locationKey, potentialHits.last().peerId());
+        for (PeerAddress peerAddress : directHits.keySet()) {
+            bitLength = Math.max(bitLength, Number160.distanceBitLength(locationKey, peerAddress.peerId()));
+        }
+        // such a peer shares the leading bits with the location key. If the location key differs from us in a higher
+        // bit, the peer is in the same bag as the location key, otherwise it is in one of the lower bags.
+        final int bag = PeerMap.classMember(self, locationKey);
+        final int fromBag = bag >= bitLength ? bag : 0;
+        final int toBag = bag >= bitLength ? bag : bitLength - 1;
+        cache.put(routingKey, new CachedRouting(locationKey, directHits, potentialHits, new TreeSet<PeerAddress>(
+                futureRouting.routingPath()), fromBag, toBag, version(fromBag, toBag)));
+    }
+
+    private long version(final int fromBag, final int toBag) {
+        long version = 0;
+        for (int i = fromBag; i <= toBag; i++) {
+            version += bagVersions.get(i);
+        }
+        return version;
+    }
+
+    /**
+     * Removes all routing results for the given location key, e.g. if an operation with these peers failed.
+     *
+     * @param locationKey
+     *            The location key
+     */
+    public void invalidate(final Number160 locationKey) {
+        for (Map.Entry<List<Object>, CachedRouting> entry : cache.entrySet()) {
+            if (entry.getValue().locationKey.equals(locationKey)) {
+                remove(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Removes all routing results.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    @Override
+    public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+        if (verified) {
+            // a new peer may be closer than the peers we found, in that case we need to route again
+            changed(peerAddress);
+        }
+    }
+
+    @Override
+    public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        changed(peerAddress);
+    }
+
+    private void changed(final PeerAddress peerAddress) {
+        final int bag = PeerMap.classMember(self, peerAddress.peerId());
+        if (bag >= 0) {
+            bagVersions.incrementAndGet(bag);
+        }
+    }
+
+    @Override
+    public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        // the peer is still there, nothing to do
+    }
+
+    private void remove(final List<Object> routingKey) {
+        if (cache.remove(routingKey) != null) {
+            invalidations.incrementAndGet();
+            LOG.debug("Routing cache entry {} invalidated.", routingKey);
+        }
+    }
+
+    /**
+     * @return The number of routing results currently cached
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return The number of routing requests that were answered from the cache
+     */
+    public long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return The number of routing requests that were not found in the cache
+     */
+    public long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of routing results that were removed because of a change in the peer map or a failed
+     *         operation
+     */
+    public long invalidations() {
+        return invalidations.get();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("rcache:");
+        sb.append(size()).append(",hits:").append(hits()).append(",misses:").append(misses())
+                .append(",inv:").append(invalidations());
+        return sb.toString();
+    }
+
+    private static final class CachedRouting {
+        private final Number160 locationKey;
+        private final SortedMap<PeerAddress, DigestInfo> directHits;
+        private final NavigableSet<PeerAddress> potentialHits;
+        private final SortedSet<PeerAddress> routingPath;
+        // the bags that contain all the peers closer to the location key than the peers of this entry
+        private final int fromBag;
+        private final int toBag;
+        private final long version;
+
+        private CachedRouting(final Number160 locationKey, final SortedMap<PeerAddress, DigestInfo> directHits,
+                final NavigableSet<PeerAddress> potentialHits, final SortedSet<PeerAddress> routingPath,
+                final int fromBag, final int toBag, final long version) {
+            this.locationKey = locationKey;
+            this.directHits = directHits;
+            this.potentialHits = potentialHits;
+            this.routingPath = routingPath;
+            this.fromBag = fromBag;
+            this.toBag = toBag;
+            this.version = version;
+        }
+    }
+}
@@ -16,6 +16,12 @@
 package trunk.social.p2p.p2p;
 
 public class RoutingConfiguration {
+    /**
+     * The default number of requests that can be sent in addition to the parallel requests if a peer responds slower
+     * than predicted.
+     */
+    public static final int DEFAULT_MAX_EXTRA_PARALLEL = 2;
+
     final private int maxDirectHits;
 
     final private int maxNoNewInfoDiff;
@@ -26,6 +32,8 @@ public class RoutingConfiguration {
 
     final private int parallel;
 
+    final private int maxExtraParallel;
+
     final private boolean forceTCP;
 
     public RoutingConfiguration(int maxNoNewInfoDiff, int maxFailures, int parallel) {
@@ -60,7 +68,34 @@ public class RoutingConfiguration {
      */
     public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
             final int maxSuccess, final int parallel, final boolean forceTCP) {
-        if (maxDirectHits < 0 || maxNoNewInfoDiff < 0 || maxFailures < 0 || parallel < 0) {
+        this(maxDirectHits, maxNoNewInfoDiff, maxFailures, maxSuccess, parallel, DEFAULT_MAX_EXTRA_PARALLEL, forceTCP);
+    }
+
+    /**
+     * Sets the routing configuration and its stop conditions.
+     * 
+     * @param maxDirectHits
+     *            Number of direct hits (d): This is used for fetching data. If d peers have been contacted that have
+     *            the data stored, routing stops.
+     * @param maxNoNewInfoDiff
+     *            Number of no new information (n): This is mainly used for storing data. It searches the closest peers
+     *            and if n peers do not report any closer nodes, the routing stops.
+     * @param maxFailures
+     *            Number of failures (f): The routing stops if f peers fail to respond.
+     * @param maxSuccess
+     *            Number of success (s): The routing stops if s peers respond.
+     * @param parallel
+     *            Number of parallel requests (p): This tells the routing how many peers to contact in parallel.
+     * @param maxExtraParallel
+     *            Number of extra parallel requests (e): If a peer does not respond within its predicted round-trip
+     *            time, the routing contacts the next peer without canceling the slow request, up to p+e requests in
+     *            parallel. Set to 0 to always use p requests.
+     * @param forceTCP
+     *            Flag to indicate that routing should be done with TCP instead of UDP
+     */
+    public RoutingConfiguration(final int maxDirectHits, final int maxNoNewInfoDiff, final int maxFailures,
+            final int maxSuccess, final int parallel, final int maxExtraParallel, final boolean forceTCP) {
+        if (maxDirectHits < 0 || maxNoNewInfoDiff < 0 || maxFailures < 0 || parallel < 0 || maxExtraParallel < 0) {
             throw new IllegalArgumentException("Some arguments need to be larger than or equals to zero.");
         }
         this.maxDirectHits = maxDirectHits;
@@ -68,6 +103,7 @@ public class RoutingConfiguration {
         this.maxFailures = maxFailures;
         this.maxSuccess = maxSuccess;
         this.parallel = parallel;
+        this.maxExtraParallel = maxExtraParallel;
         this.forceTCP = forceTCP;
     }
 
@@ -120,6 +156,15 @@ public class RoutingConfiguration {
         return parallel;
     }
 
+    /**
+     * Number of extra parallel requests (e):
+     * If a peer responds slower than predicted, the routing may contact up to e more peers in parallel.
+     * @return
+     */
+    public int maxExtraParallel() {
+        return maxExtraParallel;
+    }
+
     /**
      * Flag to indicate that routing should be done with TCP instead of UDP.
      * @return
@@ -49,6 +49,16 @@ public class RoutingMechanism {
     private int maxSuccess;
     private boolean stopCreatingNewFutures;
 
+    // adaptive parallelism: the width grows if peers respond slower than predicted and shrinks on fast responses
+    private final FutureResponse[] requests;
+    private final long[] deadlineNanos;
+    private final boolean[] late;
+    private int minParallel;
+    private volatile int parallel;
+    private int extraRequests = 0;
+
+    private boolean recursive = true;
+
     /**
      * Creates the routing mechanism. Make sure to set the max* fields.
      * 
@@ -62,6 +72,11 @@ public class RoutingMechanism {
         this.futureResponses = futureResponses;
         this.futureRoutingResponse = futureRoutingResponse;
         this.peerMapFilters = peerMapFilters;
+        this.requests = new FutureResponse[futureResponses.length()];
+        this.deadlineNanos = new long[futureResponses.length()];
+        this.late = new boolean[futureResponses.length()];
+        this.minParallel = futureResponses.length();
+        this.parallel = minParallel;
     }
     
     public FutureRouting futureRoutingResponse() {
@@ -69,12 +84,163 @@ public class RoutingMechanism {
     }
 
     /**
-     * @return The number of parallel requests. The number is determined by the length of the future response array
+     * @return The current number of parallel requests. It is between {@link #minParallel()} and
+     *         {@link #maxParallel()}
      */
     public int parallel() {
+        return parallel;
+    }
+
+    /**
+     * @return The number of parallel requests the routing starts with
+     */
+    public int minParallel() {
+        return minParallel;
+    }
+
+    /**
+     * @param minParallel
+     *            The number of parallel requests the routing starts with, the remaining slots of the future response
+     *            array are used for extra requests if peers respond slower than predicted
+     * @return This class
+     */
+    public RoutingMechanism minParallel(final int minParallel) {
+        this.minParallel = Math.min(minParallel, futureResponses.length());
+        this.parallel = this.minParallel;
+        return this;
+    }
+
+    /**
+     * @return The maximum number of parallel requests. The number is determined by the length of the future response
+     *         array
+     */
+    public int maxParallel() {
         return futureResponses.length();
     }
 
+    /**
+     * @return True if the parallelism can be increased and there are peers left to ask
+     */
+    public boolean canWiden() {
+        synchronized (this) {
+            return parallel < futureResponses.length() && !stopCreatingNewFutures && !queueToAsk.isEmpty();
+        }
+    }
+
+    /**
+     * Allows one more request in parallel, as an outstanding request is slower than predicted. The late requests are
+     * marked, so that each of them causes at most one extra request.
+     * 
+     * @return True if the parallelism was increased
+     */
+    public boolean widen() {
+        synchronized (this) {
+            final long now = System.nanoTime();
+            for (int i = 0; i < deadlineNanos.length; i++) {
+                if (deadlineNanos[i] <= now) {
+                    late[i] = true;
+                }
+            }
+            if (parallel < futureResponses.length()) {
+                parallel++;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Records a request that has been sent.
+     * 
+     * @param i
+     *            The slot of the request
+     * @param futureResponse
+     *            The future of the request
+     * @param predictedRTTMillis
+     *            The time in milliseconds we expect a reply, or a negative value if there is no prediction
+     * @param extra
+     *            True if this request was sent in addition to the minimum parallel requests
+     */
+    public void requestSent(final int i, final FutureResponse futureResponse, final long predictedRTTMillis,
+            final boolean extra) {
+        synchronized (this) {
+            futureResponses.set(i, futureResponse);
+            requests[i] = futureResponse;
+            late[i] = false;
+            deadlineNanos[i] = predictedRTTMillis < 0 ? Long.MAX_VALUE : System.nanoTime()
+                    + predictedRTTMillis * 1000000L;
+            if (extra) {
+                extraRequests++;
+            }
+        }
+    }
+
+    /**
+     * @return The number of nanoseconds until the next outstanding request exceeds its predicted round-trip time, 0 if
+     *         a request is already late, or -1 if no outstanding request has a prediction
+     */
+    public long nanosToNextDeadline() {
+        synchronized (this) {
+            long min = Long.MAX_VALUE;
+            for (int i = 0; i < requests.length; i++) {
+                if (futureResponses.get(i) != null && requests[i] == futureResponses.get(i) && !late[i]
+                        && deadlineNanos[i] < min) {
+                    min = deadlineNanos[i];
+                }
+            }
+            if (min == Long.MAX_VALUE) {
+                return -1;
+            }
+            return Math.max(0, min - System.nanoTime());
+        }
+    }
+
+    /**
+     * Shrinks the parallelism again if a reply arrived within its predicted round-trip time.
+     * 
+     * @param futureResponse
+     *            The future of the reply
+     */
+    public void responseReceived(final FutureResponse futureResponse) {
+        synchronized (this) {
+            for (int i = 0; i < requests.length; i++) {
+                if (requests[i] == futureResponse) {
+                    requests[i] = null;
+                    if (!late[i] && System.nanoTime() <= deadlineNanos[i] && parallel > minParallel) {
+                        parallel--;
+                    }
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return True if the neighbor requests may be forwarded recursively, false if the routing fell back to iterative
+     */
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * @param recursive
+     *            Set to false to send only iterative neighbor requests for the rest of this routing
+     * @return This class
+     */
+    public RoutingMechanism recursive(final boolean recursive) {
+        this.recursive = recursive;
+        return this;
+    }
+
+    /**
+     * @return The number of requests that were sent in addition to the minimum parallel requests
+     */
+    public int extraRequests() {
+        synchronized (this) {
+            return extraRequests;
+        }
+    }
+
     /**
      * @return True if we should stop creating more futures, false otherwise
      */
@@ -210,22 +376,29 @@ public class RoutingMechanism {
     }
 
     public PeerAddress pollFirstInQueueToAsk() {
-        synchronized (this) {
-            PeerStatistic first = queueToAsk.pollFirst();
-            if (first == null)
-                return null;
-            return first.peerAddress();
-        }
+        PeerStatistic first = pollFirstStatisticInQueueToAsk();
+        if (first == null)
+            return null;
+        return first.peerAddress();
     }
 
     public PeerAddress pollRandomInQueueToAsk(Random rnd) {
+        PeerStatistic first = pollRandomStatisticInQueueToAsk(rnd);
+        if (first == null)
+            return null;
+        return first.peerAddress();
+    }
+
+    public PeerStatistic pollFirstStatisticInQueueToAsk() {
         synchronized (this) {
-            PeerStatistic first = Utils.pollRandom(queueToAsk(), rnd);
-            if (first == null)
-                return null;
-            return first.peerAddress();
+            return queueToAsk.pollFirst();
         }
+    }
 
+    public PeerStatistic pollRandomStatisticInQueueToAsk(Random rnd) {
+        synchronized (this) {
+            return Utils.pollRandom(queueToAsk(), rnd);
+        }
     }
 
     public void addToAlreadyAsked(PeerAddress next) {
@@ -219,6 +219,7 @@ public class BootstrapBuilder {
     static RoutingBuilder createBuilder(RoutingConfiguration routingConfiguration, boolean forceRoutingOnlyToSelf) {
         RoutingBuilder routingBuilder = new RoutingBuilder();
         routingBuilder.parallel(routingConfiguration.parallel());
+        routingBuilder.maxExtraParallel(routingConfiguration.maxExtraParallel());
         routingBuilder.setMaxNoNewInfo(routingConfiguration.maxNoNewInfoDiff());
         routingBuilder.maxDirectHits(Integer.MAX_VALUE);
         routingBuilder.maxFailures(routingConfiguration.maxFailures());
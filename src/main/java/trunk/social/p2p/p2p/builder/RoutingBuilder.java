@@ -34,6 +34,7 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     private int maxFailures;
     private int maxSuccess;
     private int parallel;
+    private int maxExtraParallel;
     private boolean isBootstrap;
     private boolean isForceRoutingOnlyToSelf;
     private boolean isRoutingToOthers;
@@ -91,6 +92,18 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
         this.parallel = parallel;
     }
 
+    /**
+     * @return The number of requests that can be sent in addition to the parallel requests if peers respond slower
+     *         than predicted
+     */
+    public int maxExtraParallel() {
+        return maxExtraParallel;
+    }
+
+    public void maxExtraParallel(int maxExtraParallel) {
+        this.maxExtraParallel = maxExtraParallel;
+    }
+
     public boolean isBootstrap() {
         return isBootstrap;
     }
@@ -186,9 +199,10 @@ public class RoutingBuilder extends DefaultConnectionConfiguration {
     }
 
     public RoutingMechanism createRoutingMechanism(FutureRouting futureRouting) {
-        final FutureResponse[] futureResponses = new FutureResponse[parallel()];
+        final FutureResponse[] futureResponses = new FutureResponse[parallel() + maxExtraParallel()];
         RoutingMechanism routingMechanism = new RoutingMechanism(
                 new AtomicReferenceArray<FutureResponse>(futureResponses), futureRouting, peerMapFilters);
+        routingMechanism.minParallel(parallel());
         routingMechanism.maxDirectHits(maxDirectHits());
         routingMechanism.maxFailures(maxFailures());
         routingMechanism.maxNoNewInfo(maxNoNewInfo());
@@ -190,10 +190,24 @@ public class DefaultMaintenance implements Maintenance {
      * @return True if the peer needs a maintenance check
      */
     public static boolean needMaintenance(final PeerStatistic peerStatistic, final int[] intervalSeconds) {
-        final long onlineSec = TimeUnit.MILLISECONDS.toSeconds(peerStatistic.onlineTime());
         final long timeSinceLastCheckMillis = System.currentTimeMillis() - peerStatistic.lastSeenOnline();
+        return timeSinceLastCheckMillis > TimeUnit.SECONDS.toMillis(checkIntervalSeconds(peerStatistic, intervalSeconds));
+    }
+
+    /**
+     * Returns the interval after which a peer needs to be checked again. The longer a peer has been online, the longer
+     * the interval.
+     * 
+     * @param peerStatistic
+     *            The peer with its statistics
+     * @param intervalSeconds
+     *            The increasing intervals
+     * @return The interval in seconds
+     */
+    public static int checkIntervalSeconds(final PeerStatistic peerStatistic, final int[] intervalSeconds) {
+        final long onlineSec = TimeUnit.MILLISECONDS.toSeconds(peerStatistic.onlineTime());
         if (onlineSec <= 0) {
-        	return timeSinceLastCheckMillis > TimeUnit.SECONDS.toMillis(intervalSeconds[0]);
+        	return intervalSeconds[0];
         } else {
         	for(int i=0;i<intervalSeconds.length;i++) {
         		//interval is 2,4,8,16,32,64
@@ -203,10 +217,10 @@ public class DefaultMaintenance implements Maintenance {
         		//I have seen a peer online for 17 sec -> next interval to check is 32
         		//I have seen a peer online for 112321 sec -> next interval to check is 64
         		if(intervalSeconds[i]>=onlineSec) {
-        			return timeSinceLastCheckMillis > TimeUnit.SECONDS.toMillis(intervalSeconds[i]);
+        			return intervalSeconds[i];
         		}
         	}
-        	return timeSinceLastCheckMillis > TimeUnit.SECONDS.toMillis(intervalSeconds[intervalSeconds.length - 1]);
+        	return intervalSeconds[intervalSeconds.length - 1];
         }
     }
 }
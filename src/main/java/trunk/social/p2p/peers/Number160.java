@@ -19,6 +19,11 @@ import io.netty.buffer.ByteBuf;
 import trunk.social.p2p.utils.Pair;
 import trunk.social.p2p.utils.Utils;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.util.Random;
 
 /**
@@ -53,8 +58,17 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     public static final int CHARS_PER_INT = 8;
 
-    // backing integer array
-    private final int[] val;
+    // the 160 bits, from the most significant: high (64 bits), mid (64 bits), low (32 bits). This avoids the array
+    // header and the indirection of an int[5], and lets us XOR and compare with three operations.
+    private final long high;
+    private final long mid;
+    private final int low;
+
+    // keep the serialized form of the former int[] representation
+    private static final ObjectStreamField[] serialPersistentFields = { new ObjectStreamField("val", int[].class) };
+
+    // only used during deserialization, see readResolve()
+    private transient int[] deserialized;
 
     // constants
     public static final Number160 ZERO = new Number160(0);
@@ -67,7 +81,13 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * Create a Key with value 0.
      */
     public Number160() {
-        this.val = new int[INT_ARRAY_SIZE];
+        this(0L, 0L, 0);
+    }
+
+    private Number160(final long high, final long mid, final int low) {
+        this.high = high;
+        this.mid = mid;
+        this.low = low;
     }
 
     /**
@@ -81,11 +101,10 @@ public final class Number160 extends Number implements Comparable<Number160> {
         if (val.length > INT_ARRAY_SIZE) {
             throw new IllegalArgumentException(String.format("Can only deal with arrays of size smaller or equal to %s. Provided array has %s length.", INT_ARRAY_SIZE, val.length));
         }
-        this.val = new int[INT_ARRAY_SIZE];
-        final int len = val.length;
-        for (int i = len - 1, j = INT_ARRAY_SIZE - 1; i >= 0; i--, j--) {
-            this.val[j] = val[i];
-        }
+        final int offset = INT_ARRAY_SIZE - val.length;
+        this.high = toLong(word(val, 0 - offset), word(val, 1 - offset));
+        this.mid = toLong(word(val, 2 - offset), word(val, 3 - offset));
+        this.low = word(val, 4 - offset);
     }
 
     /**
@@ -103,11 +122,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
             throw new IllegalArgumentException(val
                     + " is not in hexadecimal form. Decimal form is not supported yet");
         }
-        this.val = new int[INT_ARRAY_SIZE];
+        final int[] tmpVal = new int[INT_ARRAY_SIZE];
         final char[] tmp = val.toCharArray();
         final int len = tmp.length;
         for (int i = STRING_LENGTH - len, j = 2; i < (STRING_LENGTH - 2); i++, j++) {
-            this.val[i >> 3] <<= 4;
+            tmpVal[i >> 3] <<= 4;
 
             int digit = Character.digit(tmp[j], 16);
             if (digit < 0) {
@@ -115,8 +134,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
                         + "\". The range is [0-9a-f]");
             }
             // += or |= does not matter here
-            this.val[i >> 3] += digit & CHAR_MASK;
+            tmpVal[i >> 3] += digit & CHAR_MASK;
         }
+        this.high = toLong(tmpVal[0], tmpVal[1]);
+        this.mid = toLong(tmpVal[2], tmpVal[3]);
+        this.low = tmpVal[4];
     }
 
     /**
@@ -126,8 +148,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            integer value
      */
     public Number160(final int val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = val;
+        this(0L, 0L, val);
     }
 
     /**
@@ -137,9 +158,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            long value
      */
     public Number160(final long val) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[INT_ARRAY_SIZE - 1] = (int) val;
-        this.val[INT_ARRAY_SIZE - 2] = (int) (val >> Integer.SIZE);
+        this(0L, val >>> Integer.SIZE, (int) val);
     }
 
     /**
@@ -166,11 +185,11 @@ public final class Number160 extends Number implements Comparable<Number160> {
         if (length > BYTE_ARRAY_SIZE) {
             throw new IllegalArgumentException(String.format("Can only deal with byte arrays of size smaller or equal to %s. Provided array has %s length.", BYTE_ARRAY_SIZE, length));
         }
-        this.val = new int[INT_ARRAY_SIZE];
-        for (int i = length + offset - 1, j = BYTE_ARRAY_SIZE - 1, k = 0; i >= offset; i--, j--, k++) {
-            // += or |= does not matter here
-            this.val[j >> 2] |= (val[i] & BYTE_MASK) << ((k % 4) << 3);
-        }
+        // the bytes are right aligned, missing leading bytes are zero
+        final int start = offset + length - BYTE_ARRAY_SIZE;
+        this.high = readLong(val, start, offset);
+        this.mid = readLong(val, start + 8, offset);
+        this.low = (int) readBytes(val, start + 16, offset, 4);
     }
 
     /**
@@ -181,10 +200,15 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            can be set to make the random values repeatable.
      */
     public Number160(final Random random) {
-        this.val = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            this.val[i] = random.nextInt();
-        }
+        // same order of random numbers as with the former int[] representation
+        final int i0 = random.nextInt();
+        final int i1 = random.nextInt();
+        final int i2 = random.nextInt();
+        final int i3 = random.nextInt();
+        final int i4 = random.nextInt();
+        this.high = toLong(i0, i1);
+        this.mid = toLong(i2, i3);
+        this.low = i4;
     }
 
     /**
@@ -196,26 +220,21 @@ public final class Number160 extends Number implements Comparable<Number160> {
      *            The rest will be filled with this number
      */
     public Number160(final long timestamp, Number160 number96) {
-        this.val = new int[INT_ARRAY_SIZE];
-        this.val[0] = (int) (timestamp >> Integer.SIZE);
-        this.val[1] = (int) timestamp;
-        this.val[2] = number96.val[2];
-        this.val[3] = number96.val[3];
-        this.val[4] = number96.val[4];
+        this(timestamp, number96.mid, number96.low);
     }
 
     /**
      * @return The first (most significant) 64bits
      */
     public long timestamp() {
-        return ((this.val[0] & LONG_MASK) << Integer.SIZE) + (this.val[1] & LONG_MASK);
+        return high;
     }
     
     /**
      * @return The lower (least significant) 96 bits
      */
     public Number160 number96() {
-        return new Number160(0, 0, this.val[2], this.val[3], this.val[4]);
+        return new Number160(0L, mid, low);
     }
 
     /**
@@ -226,11 +245,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return A new key with the result of the xor operation
      */
     public Number160 xor(final Number160 key) {
-        final int[] result = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            result[i] = this.val[i] ^ key.val[i];
-        }
-        return new Number160(result);
+        return new Number160(this.high ^ key.high, this.mid ^ key.mid, this.low ^ key.low);
     }
 
     /**
@@ -239,11 +254,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return a copy of the backing array
      */
     public int[] toIntArray() {
-        final int[] retVal = new int[INT_ARRAY_SIZE];
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            retVal[i] = this.val[i];
-        }
-        return retVal;
+        return new int[] { (int) (high >>> Integer.SIZE), (int) high, (int) (mid >>> Integer.SIZE), (int) mid, low };
     }
 
     /**
@@ -260,14 +271,12 @@ public final class Number160 extends Number implements Comparable<Number160> {
         if (offset + BYTE_ARRAY_SIZE > me.length) {
             throw new RuntimeException("array too small");
         }
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            // multiply by four
-            final int idx = offset + (i << 2);
-            me[idx] = (byte) (val[i] >> 24);
-            me[idx + 1] = (byte) (val[i] >> 16);
-            me[idx + 2] = (byte) (val[i] >> 8);
-            me[idx + 3] = (byte) (val[i]);
-        }
+        writeLong(me, offset, high);
+        writeLong(me, offset + 8, mid);
+        me[offset + 16] = (byte) (low >> 24);
+        me[offset + 17] = (byte) (low >> 16);
+        me[offset + 18] = (byte) (low >> 8);
+        me[offset + 19] = (byte) low;
         return offset + BYTE_ARRAY_SIZE;
     }
 
@@ -293,8 +302,9 @@ public final class Number160 extends Number implements Comparable<Number160> {
         boolean removeZero = removeLeadingZero;
         final StringBuilder sb = new StringBuilder("0x");
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            toHex(val[i], removeZero, sb);
-            if (removeZero && val[i] != 0) {
+            final int word = word(i);
+            toHex(word, removeZero, sb);
+            if (removeZero && word != 0) {
                 removeZero = false;
             }
         }
@@ -307,12 +317,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return True if this number is zero, false otherwise
      */
     public boolean isZero() {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                return false;
-            }
-        }
-        return true;
+        return high == 0 && mid == 0 && low == 0;
     }
 
     /**
@@ -321,15 +326,62 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return The bits used
      */
     public int bitLength() {
-        int bits = 0;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (this.val[i] != 0) {
-                bits += Integer.SIZE - Integer.numberOfLeadingZeros(this.val[i]);
-                bits += Integer.SIZE * (INT_ARRAY_SIZE - ++i);
-                break;
-            }
+        return bitLength(high, mid, low);
+    }
+
+    /**
+     * Compares the XOR distance of two numbers to a key without creating the XOR results.
+     * 
+     * @param key
+     *            The key that is the distance reference
+     * @param number1
+     *            The first number
+     * @param number2
+     *            The second number
+     * @return -1 if the first number is closer to the key, 1 if the second is closer, 0 if both are equal
+     */
+    public static int compareDistance(final Number160 key, final Number160 number1, final Number160 number2) {
+        // flipping the sign bit makes the signed comparison unsigned
+        final long h1 = (key.high ^ number1.high) ^ Long.MIN_VALUE;
+        final long h2 = (key.high ^ number2.high) ^ Long.MIN_VALUE;
+        if (h1 != h2) {
+            return h1 < h2 ? -1 : 1;
+        }
+        final long m1 = (key.mid ^ number1.mid) ^ Long.MIN_VALUE;
+        final long m2 = (key.mid ^ number2.mid) ^ Long.MIN_VALUE;
+        if (m1 != m2) {
+            return m1 < m2 ? -1 : 1;
+        }
+        final int l1 = (key.low ^ number1.low) ^ Integer.MIN_VALUE;
+        final int l2 = (key.low ^ number2.low) ^ Integer.MIN_VALUE;
+        if (l1 != l2) {
+            return l1 < l2 ? -1 : 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Calculates the bit length of the XOR distance of two numbers without creating the XOR result.
+     * 
+     * @param number1
+     *            The first number
+     * @param number2
+     *            The second number
+     * @return The bits used by number1.xor(number2)
+     */
+    public static int distanceBitLength(final Number160 number1, final Number160 number2) {
+        return bitLength(number1.high ^ number2.high, number1.mid ^ number2.mid, number1.low ^ number2.low);
+    }
+
+    private static int bitLength(final long high, final long mid, final int low) {
+        if (high != 0) {
+            return BITS - Long.numberOfLeadingZeros(high);
+        } else if (mid != 0) {
+            return Long.SIZE + Integer.SIZE - Long.numberOfLeadingZeros(mid);
+        } else if (low != 0) {
+            return Integer.SIZE - Integer.numberOfLeadingZeros(low);
         }
-        return bits;
+        return 0;
     }
 
     @Override
@@ -342,7 +394,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
         double d = 0;
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
             d *= LONG_MASK + 1;
-            d += this.val[i] & LONG_MASK;
+            d += word(i) & LONG_MASK;
         }
         return d;
     }
@@ -354,7 +406,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
 
     @Override
     public int intValue() {
-        return this.val[INT_ARRAY_SIZE - 1];
+        return low;
     }
 
     /**
@@ -365,25 +417,24 @@ public final class Number160 extends Number implements Comparable<Number160> {
      * @return the long of the unsigned int
      */
     long unsignedInt(final int pos) {
-        return this.val[pos] & LONG_MASK;
+        return word(pos) & LONG_MASK;
     }
 
     @Override
     public long longValue() {
-        return ((this.val[INT_ARRAY_SIZE - 1] & LONG_MASK) << Integer.SIZE)
-                + (this.val[INT_ARRAY_SIZE - 2] & LONG_MASK);
+        return ((low & LONG_MASK) << Integer.SIZE) + (mid & LONG_MASK);
     }
 
     @Override
     public int compareTo(final Number160 o) {
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            long b1 = val[i] & LONG_MASK;
-            long b2 = o.val[i] & LONG_MASK;
-            if (b1 < b2) {
-                return -1;
-            } else if (b1 > b2) {
-                return 1;
-            }
+        if (high != o.high) {
+            return (high ^ Long.MIN_VALUE) < (o.high ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        if (mid != o.mid) {
+            return (mid ^ Long.MIN_VALUE) < (o.mid ^ Long.MIN_VALUE) ? -1 : 1;
+        }
+        if (low != o.low) {
+            return (low ^ Integer.MIN_VALUE) < (o.low ^ Integer.MIN_VALUE) ? -1 : 1;
         }
         return 0;
     }
@@ -397,23 +448,86 @@ public final class Number160 extends Number implements Comparable<Number160> {
             return true;
         }
         final Number160 key = (Number160) obj;
-        for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            if (key.val[i] != val[i]) {
-                return false;
-            }
-        }
-        return true;
+        return key.high == high && key.mid == mid && key.low == low;
     }
 
     @Override
     public int hashCode() {
+        // same hash code as with the former int[] representation
         int hashCode = 0;
         for (int i = 0; i < INT_ARRAY_SIZE; i++) {
-            hashCode = (int) (31 * hashCode + (val[i] & LONG_MASK));
+            hashCode = (int) (31 * hashCode + (word(i) & LONG_MASK));
         }
         return hashCode;
     }
 
+    /**
+     * @param i
+     *            The index of the 32 bit word, 0 is the most significant
+     * @return The word as it was stored in the former int[] representation
+     */
+    private int word(final int i) {
+        switch (i) {
+        case 0:
+            return (int) (high >>> Integer.SIZE);
+        case 1:
+            return (int) high;
+        case 2:
+            return (int) (mid >>> Integer.SIZE);
+        case 3:
+            return (int) mid;
+        default:
+            return low;
+        }
+    }
+
+    private static int word(final int[] val, final int i) {
+        return i < 0 ? 0 : val[i];
+    }
+
+    private static long toLong(final int high, final int low) {
+        return ((long) high << Integer.SIZE) | (low & LONG_MASK);
+    }
+
+    private static long readLong(final byte[] val, final int start, final int offset) {
+        return readBytes(val, start, offset, 8);
+    }
+
+    /**
+     * Reads big endian bytes, positions before the offset are treated as leading zeros.
+     */
+    private static long readBytes(final byte[] val, final int start, final int offset, final int len) {
+        long result = 0;
+        for (int i = start; i < start + len; i++) {
+            result = (result << Byte.SIZE) | (i < offset ? 0 : (val[i] & BYTE_MASK));
+        }
+        return result;
+    }
+
+    private static void writeLong(final byte[] me, final int offset, final long value) {
+        for (int i = 0; i < 8; i++) {
+            me[offset + i] = (byte) (value >>> (56 - (i << 3)));
+        }
+    }
+
+    private void writeObject(final ObjectOutputStream out) throws IOException {
+        final ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("val", toIntArray());
+        out.writeFields();
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        final ObjectInputStream.GetField fields = in.readFields();
+        deserialized = (int[]) fields.get("val", null);
+        if (deserialized == null || deserialized.length != INT_ARRAY_SIZE) {
+            throw new InvalidObjectException("Number160 needs 5 integers");
+        }
+    }
+
+    private Object readResolve() {
+        return new Number160(deserialized);
+    }
+
     /**
      * Convert an integer to hex value.
      * 
@@ -482,7 +596,9 @@ public final class Number160 extends Number implements Comparable<Number160> {
 	}
 
 	public static Number160 decode(ByteBuf buf) {
-		return new Number160(buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt(), buf.readInt());
+		final long high = buf.readLong();
+		final long mid = buf.readLong();
+		return new Number160(high, mid, buf.readInt());
 	}
 
 	public int encode(byte[] me, int offset) {
@@ -490,7 +606,7 @@ public final class Number160 extends Number implements Comparable<Number160> {
 	}
 
 	public Number160 encode(ByteBuf buf) {
-		buf.writeInt(val[0]).writeInt(val[1]).writeInt(val[2]).writeInt(val[3]).writeInt(val[4]);
+		buf.writeLong(high).writeLong(mid).writeInt(low);
 		return this;
 	}
 }
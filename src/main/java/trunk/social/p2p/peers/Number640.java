@@ -16,6 +16,8 @@
 
 package trunk.social.p2p.peers;
 
+import io.netty.buffer.ByteBuf;
+
 import java.util.Random;
 
 /**
@@ -148,13 +150,9 @@ public final class Number640 extends Number implements Comparable<Number640> {
             return true;
         }
         Number640 cmp = (Number640) obj;
-        
-        boolean t1 = locationKey.equals(cmp.locationKey);
-        boolean t2 = domainKey.equals(cmp.domainKey);
-        boolean t3 = contentKey.equals(cmp.contentKey);
-        boolean t4 = versionKey.equals(cmp.versionKey);
-        
-        return t1 && t2 && t3 && t4;
+        // the version and content keys differ most often between keys of the same location
+        return versionKey.equals(cmp.versionKey) && contentKey.equals(cmp.contentKey)
+                && locationKey.equals(cmp.locationKey) && domainKey.equals(cmp.domainKey);
     }
 
     @Override
@@ -230,4 +228,33 @@ public final class Number640 extends Number implements Comparable<Number640> {
     public Number480 locationAndDomainAndContentKey() {
         return new Number480(locationKey, domainKey, contentKey);
     }
+
+    /**
+     * Reads the four keys directly from the buffer.
+     * 
+     * @param buf
+     *            The buffer to read from, needs at least {@link #BYTE_ARRAY_SIZE} readable bytes
+     * @return The decoded key
+     */
+    public static Number640 decode(final ByteBuf buf) {
+        final Number160 locationKey = Number160.decode(buf);
+        final Number160 domainKey = Number160.decode(buf);
+        final Number160 contentKey = Number160.decode(buf);
+        return new Number640(locationKey, domainKey, contentKey, Number160.decode(buf));
+    }
+
+    /**
+     * Writes the four keys directly to the buffer.
+     * 
+     * @param buf
+     *            The buffer to write to
+     * @return This class
+     */
+    public Number640 encode(final ByteBuf buf) {
+        locationKey.encode(buf);
+        domainKey.encode(buf);
+        contentKey.encode(buf);
+        versionKey.encode(buf);
+        return this;
+    }
 }
@@ -19,16 +19,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import trunk.social.p2p.connection.PeerConnection;
 import trunk.social.p2p.connection.PeerException;
+import trunk.social.p2p.p2p.DefaultPeerStatisticComparator;
 import trunk.social.p2p.p2p.PeerStatisticComparator;
 import trunk.social.p2p.utils.CacheMap;
 import trunk.social.p2p.utils.ConcurrentCacheMap;
 import trunk.social.p2p.utils.Pair;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This routing implementation uses is based on Kademlia. However, many changes have been applied to make it faster and
  * more flexible. This class is partially thread-safe.
+ * <p>
+ * The verified bags are concurrent maps. Modifications of a bag are still synchronized on the bag, since they need to
+ * check the size first, but lookups and {@link #closePeers(Number160, PeerStatistic[])} do not lock.
+ * </p>
  * 
  * @author Thomas Bocek
  */
@@ -61,6 +67,10 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     // the number of failures until a peer is considered offline
     private final int offlineCount;
 
+    private final int offlineTimeout;
+    private final int shutdownTimeout;
+    private final int exceptionTimeout;
+
     private final Maintenance maintenance;
     
     private final boolean peerVerification;
@@ -84,6 +94,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         this.bagSizesVerified = peerMapConfiguration.getVerifiedBagSizes();
         this.bagSizesOverflow = peerMapConfiguration.getOverflowBagSizes();
         this.offlineCount = peerMapConfiguration.offlineCount();
+        this.offlineTimeout = peerMapConfiguration.offlineTimeout();
+        this.shutdownTimeout = peerMapConfiguration.shutdownTimeout();
+        this.exceptionTimeout = peerMapConfiguration.exceptionTimeout();
         this.peerMapFilters = peerMapConfiguration.peerMapFilters();
         this.peerMapVerified = initMap(bagSizesVerified, false);
         this.peerMapOverflow = initMap(bagSizesOverflow, true);
@@ -96,6 +109,10 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                 peerMapConfiguration.exceptionTimeout(), totalNumberOfVerifiedBags());
         this.maintenance = peerMapConfiguration.maintenance().init(peerMapVerified, peerMapOverflow,
                 offlineMap, shutdownMap, exceptionMap);
+        if (maintenance instanceof PeerMapChangeListener) {
+            // e.g. to keep the peers in the order of their next check
+            addPeerMapChangeListener((PeerMapChangeListener) maintenance);
+        }
         this.peerVerification = peerMapConfiguration.isPeerVerification();
         this.peerStatisticComparator = peerMapConfiguration.getPeerStatisticComparator();
 
@@ -130,11 +147,14 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // closer to 160 will see more writes than reads.
             //
             // We also only allocate memory for the bags far away, as they are likely to be filled first.
+            //
+            // The verified bags are read on every routing step and neighbor request, so they are concurrent maps that
+            // can be read without the lock of the bag. Writes still synchronize on the bag.
             if (caching) {
                 tmp.add(new CacheMap<Number160, PeerStatistic>(bagSizes[i], true));
             } else {
                 final int memAlloc = bagSizes[i] / 8;
-                tmp.add(new HashMap<Number160, PeerStatistic>(memAlloc));
+                tmp.add(new ConcurrentHashMap<Number160, PeerStatistic>(Math.max(memAlloc, 1), 0.75f, 1));
             }
         }
         return Collections.unmodifiableList(tmp);
@@ -221,9 +241,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     public int size() {
         int size = 0;
         for (Map<Number160, PeerStatistic> map : peerMapVerified) {
-            synchronized (map) {
-                size += map.size();
-            }
+            size += map.size();
         }
         return size;
     }
@@ -455,10 +473,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
             // -1 means we searched for ourself and we never are our neighbor
             return false;
         }
-        final Map<Number160, PeerStatistic> tmp = peerMapVerified.get(classMember);
-        synchronized (tmp) {
-            return tmp.containsKey(peerAddress.peerId());
-        }
+        return peerMapVerified.get(classMember).containsKey(peerAddress.peerId());
     }
 
     /**
@@ -497,9 +512,12 @@ public class PeerMap implements PeerStatusListener, Maintainable {
         // Try to find PeerStatistic in verified Map
         peerStatistic = peerMapVerified().get(classMember).get(peerAddress.peerId());
 
-        // If that failed, look in the overflow map
+        // If that failed, look in the overflow map, which is not concurrent
         if (peerStatistic == null) {
-            peerStatistic = peerMapOverflow().get(classMember).get(peerAddress.peerId());
+            final Map<Number160, PeerStatistic> tmp = peerMapOverflow().get(classMember);
+            synchronized (tmp) {
+                peerStatistic = tmp.get(peerAddress.peerId());
+            }
         }
 
         return peerStatistic;
@@ -529,6 +547,160 @@ public class PeerMap implements PeerStatusListener, Maintainable {
     	return closePeers(self, id, atLeast, peerMapVerified, peerStatisticComparator.getComparator(id));
     }
 
+    /**
+     * Returns the peers closest to a given key by XOR distance. This is an exact top-k selection, where k is the length
+     * of the result array: the bags are visited from the closest to the farthest distance range and the search stops
+     * as soon as a range completes with k peers. The selection is done with a bounded heap in the result array, so no
+     * set or comparator is created and the array can be reused. Unlike {@link #closePeers(Number160, int)}, this method
+     * always uses the XOR distance, regardless of the configured {@link PeerStatisticComparator}.
+     * 
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param result
+     *            The array to store the peers in, the closest first
+     * @return The number of peers stored in the result array
+     */
+    public int closePeers(final Number160 id, final PeerStatistic[] result) {
+        return closePeers(self, id, result, peerMapVerified);
+    }
+
+    /**
+     * Returns the number of peers that {@link #closePeers(Number160, int)} returns for a key, which are all the peers
+     * of the distance ranges needed to find at least the given number of peers. Use it as the length of the result
+     * array of {@link #closePeers(Number160, PeerStatistic[])} to select the same peers without building a set.
+     * 
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param atLeast
+     *            The number we want to find at least
+     * @return The number of peers in the distance ranges that are visited
+     */
+    public int closePeersSize(final Number160 id, final int atLeast) {
+        final int classMember = classMember(self, id);
+        int size = 0;
+        if (classMember == -1) {
+            for (int i = 0; i < Number160.BITS && size < atLeast; i++) {
+                size += peerMapVerified.get(i).size();
+            }
+            return size;
+        }
+        size = peerMapVerified.get(classMember).size();
+        if (size < atLeast) {
+            for (int i = 0; i < classMember; i++) {
+                size += peerMapVerified.get(i).size();
+            }
+        }
+        for (int i = classMember + 1; i < Number160.BITS && size < atLeast; i++) {
+            size += peerMapVerified.get(i).size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the peers closest to a given key by XOR distance from a list of bags, see
+     * {@link #closePeers(Number160, PeerStatistic[])}.
+     * 
+     * @param self
+     *            The ID of the owner of the bags
+     * @param id
+     *            The key that should be close to the keys in the map
+     * @param result
+     *            The array to store the peers in, the closest first
+     * @param peerMap
+     *            The bags, the index of a bag is the bit length of the distance to self minus one
+     * @return The number of peers stored in the result array
+     */
+    public static int closePeers(final Number160 self, final Number160 id, final PeerStatistic[] result,
+            final List<Map<Number160, PeerStatistic>> peerMap) {
+        final int k = result.length;
+        if (k == 0) {
+            return 0;
+        }
+        int size = 0;
+        final int classMember = classMember(self, id);
+        // Peers in the bag of the class member are closer to the id than any other peer. Next are all the peers in
+        // the smaller bags, as their distance to the id has the same bit length. Each larger bag is a range on its
+        // own. Once a range is complete and we have k peers, the remaining ranges cannot contain closer peers.
+        if (classMember == -1) {
+            for (int i = 0; i < Number160.BITS && size < k; i++) {
+                size = offerAll(id, peerMap.get(i), result, size);
+            }
+        } else {
+            size = offerAll(id, peerMap.get(classMember), result, size);
+            if (size < k) {
+                for (int i = 0; i < classMember; i++) {
+                    size = offerAll(id, peerMap.get(i), result, size);
+                }
+            }
+            for (int i = classMember + 1; i < Number160.BITS && size < k; i++) {
+                size = offerAll(id, peerMap.get(i), result, size);
+            }
+        }
+        // heap sort in place, the farthest peer is on top of the heap
+        for (int end = size - 1; end > 0; end--) {
+            final PeerStatistic tmp = result[0];
+            result[0] = result[end];
+            result[end] = tmp;
+            siftDown(id, result, 0, end);
+        }
+        return size;
+    }
+
+    private static int offerAll(final Number160 id, final Map<Number160, PeerStatistic> bag,
+            final PeerStatistic[] heap, int size) {
+        if (bag.isEmpty()) {
+            return size;
+        }
+        for (final PeerStatistic peerStatistic : bag.values()) {
+            if (peerStatistic.peerAddress() == null) {
+                continue;
+            }
+            if (size < heap.length) {
+                // sift up
+                int i = size++;
+                while (i > 0) {
+                    final int parent = (i - 1) >>> 1;
+                    if (isKadCloser(id, heap[parent].peerAddress(), peerStatistic.peerAddress()) >= 0) {
+                        break;
+                    }
+                    heap[i] = heap[parent];
+                    i = parent;
+                }
+                heap[i] = peerStatistic;
+            } else if (isKadCloser(id, peerStatistic.peerAddress(), heap[0].peerAddress()) < 0) {
+                heap[0] = peerStatistic;
+                siftDown(id, heap, 0, size);
+            }
+        }
+        return size;
+    }
+
+    private static void siftDown(final Number160 id, final PeerStatistic[] heap, int i, final int size) {
+        final PeerStatistic peerStatistic = heap[i];
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && isKadCloser(id, heap[child].peerAddress(), heap[child + 1].peerAddress()) < 0) {
+                child++;
+            }
+            if (isKadCloser(id, peerStatistic.peerAddress(), heap[child].peerAddress()) >= 0) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = peerStatistic;
+    }
+
+    /**
+     * @return True if the close peers are sorted by XOR distance only, see {@link DefaultPeerStatisticComparator}
+     */
+    public boolean isXORComparator() {
+        return peerStatisticComparator == null || peerStatisticComparator instanceof DefaultPeerStatisticComparator;
+    }
+
     public static NavigableSet<PeerStatistic> closePeers(final Number160 self, final Number160 other,
                                                          final int atLeast,
                                                          List<Map<Number160, PeerStatistic>> peerMap,
@@ -682,6 +854,42 @@ public class PeerMap implements PeerStatusListener, Maintainable {
                 || exceptionMap.containsKey(peerAddress.peerId());
     }
 
+    /**
+     * Returns the peers that are temporarily removed for the given reason. The collection is a copy.
+     * 
+     * @param abortCause
+     *            {@link PeerException.AbortCause#PROBABLY_OFFLINE} for the offline peers,
+     *            {@link PeerException.AbortCause#SHUTDOWN} for peers that announced their shutdown, any other cause for
+     *            the peers that caused an exception
+     * @return The temporarily removed peers
+     */
+    public Collection<PeerAddress> removedPeers(final PeerException.AbortCause abortCause) {
+        return new ArrayList<PeerAddress>(removedMap(abortCause).values());
+    }
+
+    /**
+     * @param abortCause
+     *            The reason the peers were removed, see {@link #removedPeers(PeerException.AbortCause)}
+     * @return The time in seconds a peer is kept as removed for the given reason
+     */
+    public int removedTimeoutSeconds(final PeerException.AbortCause abortCause) {
+        if (abortCause == PeerException.AbortCause.PROBABLY_OFFLINE) {
+            return offlineTimeout;
+        } else if (abortCause == PeerException.AbortCause.SHUTDOWN) {
+            return shutdownTimeout;
+        }
+        return exceptionTimeout;
+    }
+
+    private ConcurrentCacheMap<Number160, PeerAddress> removedMap(final PeerException.AbortCause abortCause) {
+        if (abortCause == PeerException.AbortCause.PROBABLY_OFFLINE) {
+            return offlineMap;
+        } else if (abortCause == PeerException.AbortCause.SHUTDOWN) {
+            return shutdownMap;
+        }
+        return exceptionMap;
+    }
+
     /**
      * Finds the next peer that should have a maintenance check. Returns null if no maintenance is needed at the moment.
      * It will return the most important peers first. Importance is as follows: The most important peers are the close
@@ -718,11 +926,11 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return -1 if first peer is closer, 1 otherwise, 0 if both are equal
      */
     public static int isKadCloser(final Number160 id, final PeerAddress rn, final PeerAddress rn2) {
-        return distance(id, rn.peerId()).compareTo(distance(id, rn2.peerId()));
+        return Number160.compareDistance(id, rn.peerId(), rn2.peerId());
     }
     
     public static int isKadCloser(final Number160 id, final Number160 rn, final Number160 rn2) {
-        return distance(id, rn).compareTo(distance(id, rn2));
+        return Number160.compareDistance(id, rn, rn2);
     }
 
     /**
@@ -811,7 +1019,7 @@ public class PeerMap implements PeerStatusListener, Maintainable {
      * @return The bit difference and -1 if they are equal
      */
     public static int classMember(final Number160 id1, final Number160 id2) {
-        return distance(id1, id2).bitLength() - 1;
+        return Number160.distanceBitLength(id1, id2) - 1;
     }
 
     /**
@@ -917,11 +1125,9 @@ public class PeerMap implements PeerStatusListener, Maintainable {
 	public int nrFilledBags() {
 		int counter = 0;
 		for (final Map<Number160, PeerStatistic> map : peerMapVerified) {
-            synchronized (map) {
-            	if(map.size() > 0) {
-            		counter++;
-            	}
-            }
+			if (!map.isEmpty()) {
+				counter++;
+			}
         }
 		return counter;
 	}
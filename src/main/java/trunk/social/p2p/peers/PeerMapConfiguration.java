@@ -56,7 +56,7 @@ public class PeerMapConfiguration {
         shutdownTimeout = 20;
         exceptionTimeout = 120;
         offlineCount = 3;
-        maintenance = new DefaultMaintenance(4, new int[] { 2, 4, 8, 16, 32, 64 });
+        maintenance = new ScheduledMaintenance(self, 4, new int[] { 2, 4, 8, 16, 32, 64 }, 0.2);
         peerVerification = true;
         setPeerStatisticComparator(new DefaultPeerStatisticComparator());
     }
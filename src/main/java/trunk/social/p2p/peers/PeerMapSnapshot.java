@@ -0,0 +1,295 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package trunk.social.p2p.peers;
+
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.PeerException;
+import trunk.social.p2p.connection.PeerException.AbortCause;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the peer map that can be written to a file and restored after a restart. It contains the verified and
+ * the overflow peers with their RTT history, and the peers that are temporarily removed because they were offline, shut
+ * down or caused an exception.
+ * <p>
+ * Restored peers are added as unverified peers, since they may have gone offline in the meantime. They need to be
+ * contacted to become verified, see {@link #restore(PeerMap)}. The RTTs are restored as estimates, so the first real
+ * measurement replaces them.
+ * </p>
+ *
+ * @author Thomas Bocek
+ */
+public class PeerMapSnapshot {
+    private static final Logger LOG = LoggerFactory.getLogger(PeerMapSnapshot.class);
+
+    // "PMS1"
+    private static final int MAGIC = 0x504d5331;
+    private static final int VERSION = 1;
+
+    private static final byte VERIFIED = 0;
+    private static final byte OVERFLOW = 1;
+    private static final byte OFFLINE = 2;
+    private static final byte SHUTDOWN = 3;
+    private static final byte EXCEPTION = 4;
+
+    private final Number160 self;
+    private final long created;
+    private final List<Entry> entries;
+
+    private PeerMapSnapshot(final Number160 self, final long created, final List<Entry> entries) {
+        this.self = self;
+        this.created = created;
+        this.entries = entries;
+    }
+
+    /**
+     * Creates a snapshot of the current state of the peer map.
+     *
+     * @param peerMap
+     *            The peer map
+     * @return The snapshot
+     */
+    public static PeerMapSnapshot create(final PeerMap peerMap) {
+        final List<Entry> entries = new ArrayList<Entry>();
+        for (Map<Number160, PeerStatistic> map : peerMap.peerMapVerified()) {
+            synchronized (map) {
+                for (PeerStatistic peerStatistic : map.values()) {
+                    entries.add(new Entry(peerStatistic, VERIFIED));
+                }
+            }
+        }
+        for (Map<Number160, PeerStatistic> map : peerMap.peerMapOverflow()) {
+            synchronized (map) {
+                for (PeerStatistic peerStatistic : map.values()) {
+                    entries.add(new Entry(peerStatistic, OVERFLOW));
+                }
+            }
+        }
+        addRemoved(entries, peerMap, AbortCause.PROBABLY_OFFLINE, OFFLINE);
+        addRemoved(entries, peerMap, AbortCause.SHUTDOWN, SHUTDOWN);
+        addRemoved(entries, peerMap, AbortCause.PEER_ERROR, EXCEPTION);
+        return new PeerMapSnapshot(peerMap.self(), System.currentTimeMillis(), entries);
+    }
+
+    private static void addRemoved(final List<Entry> entries, final PeerMap peerMap, final AbortCause abortCause,
+            final byte kind) {
+        for (PeerAddress peerAddress : peerMap.removedPeers(abortCause)) {
+            entries.add(new Entry(peerAddress, kind, 0, new long[0]));
+        }
+    }
+
+    /**
+     * Writes the snapshot to a file. The snapshot is first written to a temporary file, which then replaces the old
+     * snapshot, so that a crash while writing does not destroy the previous snapshot.
+     *
+     * @param file
+     *            The file to write to
+     * @throws IOException
+     *             If the file cannot be written
+     */
+    public void save(final File file) throws IOException {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(self.toByteArray());
+            out.writeLong(created);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeByte(entry.kind);
+                out.writeLong(entry.lastSeenOnline);
+                out.writeByte(entry.rtts.length);
+                for (long rtt : entry.rtts) {
+                    out.writeLong(rtt);
+                }
+                final byte[] address = entry.peerAddress.encode();
+                out.writeShort(address.length);
+                out.write(address);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // some platforms cannot rename to an existing file
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file + " with " + tmp + ".");
+            }
+        }
+        LOG.debug("Peer map snapshot with {} peers written to {}.", entries.size(), file);
+    }
+
+    /**
+     * Reads a snapshot from a file.
+     *
+     * @param file
+     *            The file to read from
+     * @return The snapshot
+     * @throws IOException
+     *             If the file cannot be read or is not a snapshot
+     */
+    public static PeerMapSnapshot load(final File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a peer map snapshot.");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported peer map snapshot version " + version + ".");
+            }
+            final byte[] selfBytes = new byte[Number160.BYTE_ARRAY_SIZE];
+            in.readFully(selfBytes);
+            final long created = in.readLong();
+            final int size = in.readInt();
+            if (size < 0) {
+                throw new IOException("Corrupt peer map snapshot, size " + size + ".");
+            }
+            final List<Entry> entries = new ArrayList<Entry>(Math.min(size, 1 << 16));
+            for (int i = 0; i < size; i++) {
+                final byte kind = in.readByte();
+                final long lastSeenOnline = in.readLong();
+                final long[] rtts = new long[in.readUnsignedByte()];
+                for (int j = 0; j < rtts.length; j++) {
+                    rtts[j] = in.readLong();
+                }
+                final byte[] address = new byte[in.readUnsignedShort()];
+                in.readFully(address);
+                entries.add(new Entry(PeerAddress.decode(Unpooled.wrappedBuffer(address)), kind, lastSeenOnline,
+                        rtts));
+            }
+            return new PeerMapSnapshot(new Number160(selfBytes), created, entries);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds the peers of this snapshot to the peer map. The peers are added as unverified peers with their RTT history
+     * as estimates. Peers that were temporarily removed are removed again, if the snapshot is younger than the time
+     * they would be kept as removed.
+     *
+     * @param peerMap
+     *            The peer map to fill
+     * @return The restored peers that should be contacted to verify them, the peers that were verified before first,
+     *         the most recently seen first
+     */
+    public List<PeerAddress> restore(final PeerMap peerMap) {
+        if (!self.equals(peerMap.self())) {
+            LOG.debug("Snapshot was taken by {}, restoring for {}.", self, peerMap.self());
+        }
+        final long ageSeconds = (System.currentTimeMillis() - created) / 1000;
+        final List<Entry> restored = new ArrayList<Entry>();
+        // the reporter of the peers is ourself, which makes them third hand information that needs to be verified
+        final PeerAddress reporter = PeerAddress.create(peerMap.self());
+        for (Entry entry : entries) {
+            if (entry.kind == VERIFIED || entry.kind == OVERFLOW) {
+                if (!peerMap.peerFound(entry.peerAddress, reporter, null, null)) {
+                    continue;
+                }
+                final PeerStatistic peerStatistic = peerMap.getPeerStatistic(entry.peerAddress);
+                if (peerStatistic != null) {
+                    for (long rtt : entry.rtts) {
+                        peerStatistic.addRTT(new RTT(rtt, true).setEstimated());
+                    }
+                }
+                restored.add(entry);
+            } else {
+                final AbortCause abortCause = entry.kind == OFFLINE ? AbortCause.PROBABLY_OFFLINE
+                        : entry.kind == SHUTDOWN ? AbortCause.SHUTDOWN : AbortCause.PEER_ERROR;
+                if (ageSeconds < peerMap.removedTimeoutSeconds(abortCause)) {
+                    peerMap.peerFailed(entry.peerAddress, new PeerException(abortCause, "Restored from snapshot."));
+                }
+            }
+        }
+        Collections.sort(restored, new Comparator<Entry>() {
+            @Override
+            public int compare(final Entry o1, final Entry o2) {
+                if (o1.kind != o2.kind) {
+                    return o1.kind < o2.kind ? -1 : 1;
+                }
+                return o1.lastSeenOnline > o2.lastSeenOnline ? -1 : o1.lastSeenOnline < o2.lastSeenOnline ? 1 : 0;
+            }
+        });
+        final List<PeerAddress> result = new ArrayList<PeerAddress>(restored.size());
+        for (Entry entry : restored) {
+            result.add(entry.peerAddress);
+        }
+        LOG.debug("Restored {} of {} peers from snapshot of age {}s.", result.size(), entries.size(), ageSeconds);
+        return result;
+    }
+
+    /**
+     * @return The peer ID of the peer that took this snapshot
+     */
+    public Number160 self() {
+        return self;
+    }
+
+    /**
+     * @return The time in milliseconds when this snapshot was taken
+     */
+    public long created() {
+        return created;
+    }
+
+    /**
+     * @return The number of peers in this snapshot, including the temporarily removed ones
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static final class Entry {
+        private final PeerAddress peerAddress;
+        private final byte kind;
+        private final long lastSeenOnline;
+        private final long[] rtts;
+
+        private Entry(final PeerStatistic peerStatistic, final byte kind) {
+            this.peerAddress = peerStatistic.peerAddress();
+            this.kind = kind;
+            this.lastSeenOnline = peerStatistic.lastSeenOnline();
+            final List<RTT> list = peerStatistic.getRTTs();
+            this.rtts = new long[list.size()];
+            for (int i = 0; i < rtts.length; i++) {
+                rtts[i] = list.get(i).getRtt();
+            }
+        }
+
+        private Entry(final PeerAddress peerAddress, final byte kind, final long lastSeenOnline, final long[] rtts) {
+            this.peerAddress = peerAddress;
+            this.kind = kind;
+            this.lastSeenOnline = lastSeenOnline;
+            this.rtts = rtts;
+        }
+    }
+}
@@ -17,7 +17,9 @@ package trunk.social.p2p.peers;
 
 import trunk.social.p2p.utils.FIFOCache;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -228,6 +230,13 @@ public class PeerStatistic {
         return sum / rttCache.size();
     }
 
+    /**
+     * @return A copy of the RTTs in the cache, the oldest first
+     */
+    public List<RTT> getRTTs() {
+        return new ArrayList<RTT>(rttCache);
+    }
+
     /**
      * How many RTT measurements are in the cache
      *
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.peers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.utils.ConcurrentCacheMap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A maintenance that keeps the peers in a queue ordered by the time of their next check, instead of walking all bags
+ * for every check as {@link DefaultMaintenance} does. Finding the next peer is a look at the head of the queue.
+ * <p>
+ * The time of the next check is the time the peer was last seen online plus the check interval of
+ * {@link DefaultMaintenance#checkIntervalSeconds(PeerStatistic, int[])}, shortened by a random jitter so that the checks
+ * are spread out. If a peer answered a regular request in the meantime, its last seen time moved forward and the check
+ * is postponed instead of sending a ping. A peer that does not answer is checked again with increasing intervals. Peers
+ * with the same deadline are checked in the order of their bag, close peers first.
+ * </p>
+ * <p>
+ * Non-verified peers are only checked while their bag has fewer verified peers than the peer urgency. When a verified
+ * peer is removed, the non-verified peers of its bag are queued again, so that the number of checks follows the churn
+ * and not the size of the peer map.
+ * </p>
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ScheduledMaintenance implements Maintenance, PeerMapChangeListener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScheduledMaintenance.class);
+
+    private final Number160 self;
+    private final int peerUrgency;
+    private final int[] intervalSeconds;
+    private final double jitter;
+
+    private final List<Map<Number160, PeerStatistic>> peerMapVerified;
+    private final List<Map<Number160, PeerStatistic>> peerMapNonVerified;
+
+    private final Random random;
+    // ordered by deadline, guarded by itself
+    private final TreeSet<Entry> queue = new TreeSet<Entry>();
+    private final Map<Number160, Entry> scheduled = new HashMap<Number160, Entry>();
+    private long sequence = 0;
+    private long postponed = 0;
+
+    private ScheduledMaintenance(final Number160 self, final int peerUrgency, final int[] intervalSeconds,
+            final double jitter, final List<Map<Number160, PeerStatistic>> peerMapVerified,
+            final List<Map<Number160, PeerStatistic>> peerMapNonVerified) {
+        this.self = self;
+        this.peerUrgency = peerUrgency;
+        this.intervalSeconds = intervalSeconds;
+        this.jitter = jitter;
+        this.peerMapVerified = peerMapVerified;
+        this.peerMapNonVerified = peerMapNonVerified;
+        this.random = new Random(self.hashCode());
+        for (int i = 0; i < Number160.BITS; i++) {
+            scheduleAll(peerMapVerified.get(i), i, true);
+            scheduleAll(peerMapNonVerified.get(i), i, false);
+        }
+    }
+
+    /**
+     * Constructor that initializes the maps as null references. To use this class init must be called that creates a
+     * new class with the private constructor.
+     *
+     * @param self
+     *            The peer ID of this peer, to find the bag of a peer
+     * @param peerUrgency
+     *            The number of peers that should be in the verified map. If the number is lower, we are looking for
+     *            peers in the non verified map
+     * @param intervalSeconds
+     *            The number of intervals to test a peer. The longer a peer is available the less often we need to check
+     * @param jitter
+     *            The fraction between 0 and 1 by which a check interval is randomly shortened
+     */
+    public ScheduledMaintenance(final Number160 self, final int peerUrgency, final int[] intervalSeconds,
+            final double jitter) {
+        if (jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("Jitter needs to be between 0 and 1.");
+        }
+        this.self = self;
+        this.peerUrgency = peerUrgency;
+        this.intervalSeconds = intervalSeconds;
+        this.jitter = jitter;
+        this.peerMapVerified = null;
+        this.peerMapNonVerified = null;
+        this.random = null;
+    }
+
+    @Override
+    public Maintenance init(final List<Map<Number160, PeerStatistic>> peerMapVerified,
+            final List<Map<Number160, PeerStatistic>> peerMapNonVerified,
+            final ConcurrentCacheMap<Number160, PeerAddress> offlineMap,
+            final ConcurrentCacheMap<Number160, PeerAddress> shutdownMap,
+            final ConcurrentCacheMap<Number160, PeerAddress> exceptionMap) {
+        return new ScheduledMaintenance(self, peerUrgency, intervalSeconds, jitter, peerMapVerified,
+                peerMapNonVerified);
+    }
+
+    @Override
+    public PeerStatistic nextForMaintenance(final Collection<PeerAddress> notInterestedAddresses) {
+        if (peerMapVerified == null || peerMapNonVerified == null) {
+            throw new IllegalArgumentException("Did not initialize the maintenance maps.");
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (queue) {
+            while (!queue.isEmpty()) {
+                final Entry entry = queue.first();
+                if (entry.deadline > now) {
+                    return null;
+                }
+                queue.pollFirst();
+                scheduled.remove(entry.peerId);
+                if (!isStillWanted(entry)) {
+                    continue;
+                }
+                final long deadline = deadline(entry);
+                if (deadline > now) {
+                    // we have seen the peer since we scheduled it, no need for a ping
+                    entry.attempts = 0;
+                    postponed++;
+                    schedule(entry, deadline);
+                    continue;
+                }
+                // check again if the ping does not change anything, with an increasing interval
+                final int retrySeconds = intervalSeconds[Math.min(entry.attempts, intervalSeconds.length - 1)];
+                entry.attempts++;
+                schedule(entry, now + TimeUnit.SECONDS.toMillis(retrySeconds));
+                if (notInterestedAddresses.contains(entry.peerStatistic.peerAddress())) {
+                    continue;
+                }
+                LOG.debug("check peer {}, verified {}.", entry.peerStatistic.peerAddress(), entry.verified);
+                return entry.peerStatistic;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void peerInserted(final PeerAddress peerAddress, final boolean verified) {
+        final int bag = PeerMap.classMember(self, peerAddress.peerId());
+        final Map<Number160, PeerStatistic> map = verified ? peerMapVerified.get(bag) : peerMapNonVerified.get(bag);
+        final PeerStatistic peerStatistic;
+        synchronized (map) {
+            peerStatistic = map.get(peerAddress.peerId());
+        }
+        if (peerStatistic != null) {
+            synchronized (queue) {
+                final Entry old = scheduled.get(peerAddress.peerId());
+                if (old != null && old.peerStatistic == peerStatistic && old.verified == verified) {
+                    // already queued, the deadline is recalculated when it is due
+                    return;
+                }
+                final Entry entry = new Entry(peerStatistic, bag, verified, 1 - jitter * random.nextDouble());
+                schedule(entry, deadline(entry));
+            }
+        }
+    }
+
+    @Override
+    public void peerRemoved(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        final int bag = PeerMap.classMember(self, peerAddress.peerId());
+        synchronized (queue) {
+            unschedule(peerAddress.peerId());
+        }
+        // the bag may need peers from the non-verified map now
+        final Map<Number160, PeerStatistic> mapVerified = peerMapVerified.get(bag);
+        final int size;
+        synchronized (mapVerified) {
+            size = mapVerified.size();
+        }
+        if (size < peerUrgency) {
+            scheduleAll(peerMapNonVerified.get(bag), bag, false);
+        }
+    }
+
+    @Override
+    public void peerUpdated(final PeerAddress peerAddress, final PeerStatistic storedPeerAddress) {
+        // the last seen time is read when the peer is due, so an update postpones the check without touching the queue
+    }
+
+    private void scheduleAll(final Map<Number160, PeerStatistic> map, final int bag, final boolean verified) {
+        final List<PeerStatistic> peerStatistics;
+        synchronized (map) {
+            peerStatistics = new ArrayList<PeerStatistic>(map.values());
+        }
+        synchronized (queue) {
+            for (PeerStatistic peerStatistic : peerStatistics) {
+                if (!scheduled.containsKey(peerStatistic.peerAddress().peerId())) {
+                    final Entry entry = new Entry(peerStatistic, bag, verified, 1 - jitter * random.nextDouble());
+                    schedule(entry, deadline(entry));
+                }
+            }
+        }
+    }
+
+    /**
+     * Needs to be called with the queue lock held.
+     */
+    private void schedule(final Entry entry, final long deadline) {
+        unschedule(entry.peerId);
+        entry.deadline = deadline;
+        entry.sequence = sequence++;
+        queue.add(entry);
+        scheduled.put(entry.peerId, entry);
+    }
+
+    /**
+     * Needs to be called with the queue lock held.
+     */
+    private void unschedule(final Number160 peerId) {
+        final Entry old = scheduled.remove(peerId);
+        if (old != null) {
+            queue.remove(old);
+        }
+    }
+
+    private long deadline(final Entry entry) {
+        final long intervalMillis = TimeUnit.SECONDS.toMillis(DefaultMaintenance.checkIntervalSeconds(
+                entry.peerStatistic, intervalSeconds));
+        return entry.peerStatistic.lastSeenOnline() + (long) (intervalMillis * entry.jitterFactor);
+    }
+
+    /**
+     * @return True, if the peer is still in the map and, for a non-verified peer, its bag needs more verified peers
+     */
+    private boolean isStillWanted(final Entry entry) {
+        final Number160 peerId = entry.peerId;
+        if (entry.verified) {
+            final Map<Number160, PeerStatistic> map = peerMapVerified.get(entry.bag);
+            synchronized (map) {
+                return map.get(peerId) == entry.peerStatistic;
+            }
+        }
+        final Map<Number160, PeerStatistic> mapVerified = peerMapVerified.get(entry.bag);
+        synchronized (mapVerified) {
+            if (mapVerified.size() >= peerUrgency || mapVerified.containsKey(peerId)) {
+                return false;
+            }
+        }
+        final Map<Number160, PeerStatistic> mapNonVerified = peerMapNonVerified.get(entry.bag);
+        synchronized (mapNonVerified) {
+            return mapNonVerified.containsKey(peerId);
+        }
+    }
+
+    /**
+     * @return The number of peers waiting for their next check
+     */
+    public int size() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    /**
+     * @return The number of checks that were not needed, because the peer was seen online in the meantime
+     */
+    public long postponed() {
+        synchronized (queue) {
+            return postponed;
+        }
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        private final PeerStatistic peerStatistic;
+        private final Number160 peerId;
+        private final int bag;
+        private final boolean verified;
+        private final double jitterFactor;
+        private long deadline;
+        private long sequence;
+        private int attempts;
+
+        private Entry(final PeerStatistic peerStatistic, final int bag, final boolean verified,
+                final double jitterFactor) {
+            this.peerStatistic = peerStatistic;
+            this.peerId = peerStatistic.peerAddress().peerId();
+            this.bag = bag;
+            this.verified = verified;
+            this.jitterFactor = jitterFactor;
+        }
+
+        @Override
+        public int compareTo(final Entry o) {
+            if (deadline != o.deadline) {
+                return deadline < o.deadline ? -1 : 1;
+            }
+            // close peers first
+            if (bag != o.bag) {
+                return bag < o.bag ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : sequence > o.sequence ? 1 : 0;
+        }
+    }
+}
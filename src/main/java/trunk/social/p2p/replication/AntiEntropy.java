@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.replication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.ChannelCreator;
+import trunk.social.p2p.dht.PeerDHT;
+import trunk.social.p2p.dht.PutBuilder;
+import trunk.social.p2p.dht.ReplicationListener;
+import trunk.social.p2p.dht.StorageLayer;
+import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureChannelCreator;
+import trunk.social.p2p.futures.FutureDone;
+import trunk.social.p2p.futures.FutureResponse;
+import trunk.social.p2p.message.DataMap;
+import trunk.social.p2p.message.KeyCollection;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.storage.Data;
+import trunk.social.p2p.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Synchronizes the location keys this peer is responsible for with a replica by comparing their {@link HashTree}s.
+ * The roots of all location keys are sent in one message. Only for the nodes that differ, the hashes of the children
+ * are sent in the next message, until the nodes are small enough to compare their entries. Then the entries the
+ * replica misses or stores in a different version are sent with a replica put, and the entries only the replica has
+ * are stored on this peer if absent. If the replicas agree, one small message per replica is sent.
+ * 
+ * @author Thomas Bocek
+ */
+public class AntiEntropy {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AntiEntropy.class);
+
+    private final PeerDHT peer;
+
+    private final AntiEntropyRPC antiEntropyRPC;
+
+    private final ReplicationListener replicationListener;
+
+    /**
+     * Creates the anti-entropy synchronization and registers its RPC. All peers need to register the RPC to answer
+     * the requests.
+     * 
+     * @param peer
+     *            The peer
+     * @param replicationListener
+     *            Notified if entries of the replica are stored on this peer, may be null
+     */
+    public AntiEntropy(final PeerDHT peer, final ReplicationListener replicationListener) {
+        this.peer = peer;
+        this.replicationListener = replicationListener;
+        this.antiEntropyRPC = new AntiEntropyRPC(peer.peerBean(), peer.peer().connectionBean(), peer.storageLayer());
+    }
+
+    public AntiEntropyRPC antiEntropyRPC() {
+        return antiEntropyRPC;
+    }
+
+    /**
+     * Synchronizes the location keys with a replica.
+     * 
+     * @param other
+     *            The replica
+     * @param locationKeys
+     *            The location keys this peer is responsible for and the replica should store
+     * @return The future that completes with the number of entries sent and received
+     */
+    public FutureDone<Integer> synchronize(final PeerAddress other, final Collection<Number160> locationKeys) {
+        final Session session = new Session(other);
+        final NavigableMap<Number640, Collection<Number160>> roots = new TreeMap<Number640, Collection<Number160>>();
+        for (Number160 locationKey : locationKeys) {
+            final HashTree tree = new HashTree(locationKey, peer.storageLayer().get(
+                    new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
+                    new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE), -1,
+                    true));
+            session.trees.put(locationKey, tree);
+            final Number640 root = HashTree.root(locationKey);
+            roots.put(root, Collections.singleton(tree.hash(root)));
+        }
+        if (roots.isEmpty()) {
+            return session.futureDone.done(0);
+        }
+        session.compareNodes(roots);
+        peer.peer().notifyAutomaticFutures(session.futureDone);
+        return session.futureDone;
+    }
+
+    /**
+     * Sends one request with its own connection, which is released when the response arrived.
+     */
+    private void request(final Request request, final FutureDone<Integer> futureDone) {
+        final FutureChannelCreator futureChannelCreator = peer.peer().connectionBean().reservation().create(0, 1);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    futureDone.failed(future);
+                    return;
+                }
+                final FutureResponse futureResponse = request.send(future.channelCreator());
+                Utils.addReleaseListener(future.channelCreator(), futureResponse);
+                futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
+                    @Override
+                    public void operationComplete(final FutureResponse future) throws Exception {
+                        if (!future.isSuccess() || !future.responseMessage().isOk()) {
+                            futureDone.failed(future);
+                            return;
+                        }
+                        request.response(future);
+                    }
+                });
+            }
+        });
+    }
+
+    private interface Request {
+        FutureResponse send(ChannelCreator channelCreator);
+
+        void response(FutureResponse futureResponse);
+    }
+
+    /**
+     * The state of the synchronization with one replica, the requests are sent one after the other.
+     */
+    private final class Session {
+        private final PeerAddress other;
+        private final FutureDone<Integer> futureDone = new FutureDone<Integer>();
+        private final Map<Number160, HashTree> trees = new HashMap<Number160, HashTree>();
+        // the nodes whose entries need to be compared
+        private final Set<Number640> leaves = new HashSet<Number640>();
+        // the entries the replica needs
+        private final NavigableMap<Number640, Data> toSend = new TreeMap<Number640, Data>();
+        private int received = 0;
+
+        private Session(final PeerAddress other) {
+            this.other = other;
+        }
+
+        private void compareNodes(final NavigableMap<Number640, Collection<Number160>> nodeHashes) {
+            request(new Request() {
+                @Override
+                public FutureResponse send(final ChannelCreator channelCreator) {
+                    return antiEntropyRPC.compareNodes(other, nodeHashes, channelCreator);
+                }
+
+                @Override
+                public void response(final FutureResponse futureResponse) {
+                    final KeyCollection differ = futureResponse.responseMessage().keyCollection(0);
+                    final KeyCollection empty = futureResponse.responseMessage().keyCollection(1);
+                    final Set<Number640> emptyNodes = empty == null ? Collections.<Number640> emptySet()
+                            : new HashSet<Number640>(empty.keys());
+                    final NavigableMap<Number640, Collection<Number160>> next = new TreeMap<Number640, Collection<Number160>>();
+                    for (Number640 node : differ == null ? Collections.<Number640> emptyList() : differ.keys()) {
+                        final HashTree tree = trees.get(node.locationKey());
+                        if (tree == null) {
+                            continue;
+                        }
+                        if (emptyNodes.contains(node)) {
+                            // the replica has nothing, no need to compare
+                            toSend.putAll(tree.entries(node));
+                        } else if (tree.isLeaf(node)) {
+                            leaves.add(node);
+                        } else {
+                            for (Number640 child : HashTree.children(node)) {
+                                next.put(child, Collections.singleton(tree.hash(child)));
+                            }
+                        }
+                    }
+                    if (!next.isEmpty()) {
+                        compareNodes(next);
+                    } else {
+                        compareEntries();
+                    }
+                }
+            }, futureDone);
+        }
+
+        private void compareEntries() {
+            if (leaves.isEmpty()) {
+                sendEntries();
+                return;
+            }
+            final NavigableMap<Number640, Collection<Number160>> entryHashes = new TreeMap<Number640, Collection<Number160>>();
+            for (Number640 leaf : leaves) {
+                for (Map.Entry<Number640, Data> entry : trees.get(leaf.locationKey()).entries(leaf).entrySet()) {
+                    entryHashes.put(entry.getKey(), Collections.singleton(entry.getValue().hash()));
+                }
+            }
+            request(new Request() {
+                @Override
+                public FutureResponse send(final ChannelCreator channelCreator) {
+                    return antiEntropyRPC.compareEntries(other, leaves, entryHashes, channelCreator);
+                }
+
+                @Override
+                public void response(final FutureResponse futureResponse) {
+                    final KeyCollection needed = futureResponse.responseMessage().keyCollection(0);
+                    if (needed != null) {
+                        for (Number640 key : needed.keys()) {
+                            final Data data = trees.get(key.locationKey()).data(key);
+                            if (data != null) {
+                                toSend.put(key, data);
+                            }
+                        }
+                    }
+                    final DataMap extra = futureResponse.responseMessage().dataMap(0);
+                    if (extra != null && extra.size() > 0) {
+                        store(extra.dataMap());
+                    }
+                    sendEntries();
+                }
+            }, futureDone);
+        }
+
+        private void store(final NavigableMap<Number640, Data> extra) {
+            final Map<Number640, Enum<?>> result = peer.storageLayer().putAll(extra, null, true, false, false);
+            final Set<Number160> locationKeys = new HashSet<Number160>();
+            for (Map.Entry<Number640, Enum<?>> entry : result.entrySet()) {
+                if (entry.getValue() == StorageLayer.PutStatus.OK) {
+                    received++;
+                    locationKeys.add(entry.getKey().locationKey());
+                }
+            }
+            if (replicationListener != null) {
+                for (Number160 locationKey : locationKeys) {
+                    replicationListener.dataInserted(locationKey);
+                }
+            }
+        }
+
+        private void sendEntries() {
+            if (toSend.isEmpty()) {
+                LOG.debug("anti-entropy with {}: {} entries received", other, received);
+                futureDone.done(received);
+                return;
+            }
+            final List<Number160> locationKeys = new ArrayList<Number160>(trees.keySet());
+            request(new Request() {
+                @Override
+                public FutureResponse send(final ChannelCreator channelCreator) {
+                    // the entries of all location keys are sent together, each entry carries its location key
+                    final PutBuilder putBuilder = new PutBuilder(peer, locationKeys.get(0));
+                    putBuilder.dataMap(toSend);
+                    return peer.storeRPC().putReplica(other, putBuilder, channelCreator);
+                }
+
+                @Override
+                public void response(final FutureResponse futureResponse) {
+                    LOG.debug("anti-entropy with {}: {} entries sent, {} received", other, toSend.size(), received);
+                    futureDone.done(toSend.size() + received);
+                }
+            }, futureDone);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.replication;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import trunk.social.p2p.connection.ChannelCreator;
+import trunk.social.p2p.connection.ConnectionBean;
+import trunk.social.p2p.connection.DefaultConnectionConfiguration;
+import trunk.social.p2p.connection.PeerBean;
+import trunk.social.p2p.connection.PeerConnection;
+import trunk.social.p2p.connection.RequestHandler;
+import trunk.social.p2p.connection.Responder;
+import trunk.social.p2p.dht.StorageLayer;
+import trunk.social.p2p.futures.FutureResponse;
+import trunk.social.p2p.message.DataMap;
+import trunk.social.p2p.message.KeyCollection;
+import trunk.social.p2p.message.KeyMap640Keys;
+import trunk.social.p2p.message.Message;
+import trunk.social.p2p.message.Message.Type;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.peers.PeerAddress;
+import trunk.social.p2p.rpc.DispatchHandler;
+import trunk.social.p2p.rpc.RPC;
+import trunk.social.p2p.storage.Data;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Compares the {@link HashTree} of a responsible peer with the tree of a replica. The responsible peer sends the
+ * hashes of some nodes and the replica replies with the nodes that differ. For the leaves, the responsible peer sends
+ * the hashes of its entries and the replica replies with the entries it needs and the entries only it has.
+ * 
+ * @author Thomas Bocek
+ */
+public class AntiEntropyRPC extends DispatchHandler {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AntiEntropyRPC.class);
+
+    public static final byte ANTI_ENTROPY_COMMAND = RPC.Commands.ANTI_ENTROPY.getNr();
+
+    private final StorageLayer storageLayer;
+
+    public AntiEntropyRPC(final PeerBean peerBean, final ConnectionBean connectionBean,
+            final StorageLayer storageLayer) {
+        super(peerBean, connectionBean);
+        register(ANTI_ENTROPY_COMMAND);
+        this.storageLayer = storageLayer;
+    }
+
+    /**
+     * Sends the hashes of tree nodes. The response contains the nodes that differ in the first key collection and the
+     * nodes the remote peer has no entries for in the second key collection. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The replica
+     * @param nodeHashes
+     *            The hash of each node
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse compareNodes(final PeerAddress remotePeer,
+            final NavigableMap<Number640, Collection<Number160>> nodeHashes, final ChannelCreator channelCreator) {
+        final Message message = createMessage(remotePeer, ANTI_ENTROPY_COMMAND, Type.REQUEST_1);
+        message.keyMap640Keys(new KeyMap640Keys(nodeHashes));
+        return send(message, channelCreator);
+    }
+
+    /**
+     * Sends the hashes of the entries of leaf nodes. The response contains the keys the remote peer needs in the key
+     * collection and the entries of these nodes that only the remote peer has in the data map. This is an RPC.
+     * 
+     * @param remotePeer
+     *            The replica
+     * @param leaves
+     *            The leaf nodes
+     * @param entryHashes
+     *            The hash of the data of each entry in the leaf nodes
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse compareEntries(final PeerAddress remotePeer, final Collection<Number640> leaves,
+            final NavigableMap<Number640, Collection<Number160>> entryHashes, final ChannelCreator channelCreator) {
+        final Message message = createMessage(remotePeer, ANTI_ENTROPY_COMMAND, Type.REQUEST_2);
+        message.keyCollection(new KeyCollection(leaves));
+        message.keyMap640Keys(new KeyMap640Keys(entryHashes));
+        return send(message, channelCreator);
+    }
+
+    private FutureResponse send(final Message message, final ChannelCreator channelCreator) {
+        final FutureResponse futureResponse = new FutureResponse(message);
+        final RequestHandler<FutureResponse> requestHandler = new RequestHandler<FutureResponse>(futureResponse,
+                peerBean(), connectionBean(), new DefaultConnectionConfiguration());
+        LOG.debug("Anti-entropy sent {}", message);
+        return requestHandler.sendTCP(channelCreator);
+    }
+
+    @Override
+    public void handleResponse(final Message message, final PeerConnection peerConnection, final boolean sign,
+            final Responder responder) throws Exception {
+        if (message.command() != ANTI_ENTROPY_COMMAND || message.keyMap640Keys(0) == null) {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        final Message responseMessage = createResponseMessage(message, Type.OK);
+        if (message.type() == Type.REQUEST_1) {
+            handleNodes(message, responseMessage);
+        } else if (message.type() == Type.REQUEST_2 && message.keyCollection(0) != null) {
+            handleEntries(message, responseMessage);
+        } else {
+            throw new IllegalArgumentException("Message content is wrong");
+        }
+        responder.response(responseMessage);
+    }
+
+    private void handleNodes(final Message message, final Message responseMessage) {
+        final Map<Number160, HashTree> trees = new HashMap<Number160, HashTree>();
+        final List<Number640> differ = new ArrayList<Number640>();
+        final List<Number640> empty = new ArrayList<Number640>();
+        for (Map.Entry<Number640, Collection<Number160>> entry : message.keyMap640Keys(0).keysMap().entrySet()) {
+            final HashTree tree = tree(trees, entry.getKey().locationKey());
+            final Number160 hash = entry.getValue().isEmpty() ? Number160.ZERO : entry.getValue().iterator().next();
+            if (!hash.equals(tree.hash(entry.getKey()))) {
+                differ.add(entry.getKey());
+                if (tree.count(entry.getKey()) == 0) {
+                    empty.add(entry.getKey());
+                }
+            }
+        }
+        LOG.debug("{} of {} nodes differ", differ.size(), message.keyMap640Keys(0).size());
+        responseMessage.keyCollection(new KeyCollection(differ));
+        responseMessage.keyCollection(new KeyCollection(empty));
+    }
+
+    private void handleEntries(final Message message, final Message responseMessage) {
+        final Map<Number160, HashTree> trees = new HashMap<Number160, HashTree>();
+        final NavigableMap<Number640, Collection<Number160>> entryHashes = message.keyMap640Keys(0).keysMap();
+        final List<Number640> needed = new ArrayList<Number640>();
+        final NavigableMap<Number640, Data> extra = new TreeMap<Number640, Data>();
+        for (Number640 leaf : message.keyCollection(0).keys()) {
+            final NavigableMap<Number640, Data> entries = tree(trees, leaf.locationKey()).entries(leaf);
+            for (Map.Entry<Number640, Data> entry : entries.entrySet()) {
+                if (!entryHashes.containsKey(entry.getKey())) {
+                    extra.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<Number640, Collection<Number160>> entry : entryHashes.entrySet()) {
+            final HashTree tree = tree(trees, entry.getKey().locationKey());
+            final Data data = tree.data(entry.getKey());
+            if (data == null || entry.getValue().isEmpty() || !entry.getValue().iterator().next().equals(data.hash())) {
+                needed.add(entry.getKey());
+            }
+        }
+        LOG.debug("needs {} of {} entries, has {} other entries", needed.size(), entryHashes.size(), extra.size());
+        responseMessage.keyCollection(new KeyCollection(needed));
+        responseMessage.setDataMap(new DataMap(extra));
+    }
+
+    private HashTree tree(final Map<Number160, HashTree> trees, final Number160 locationKey) {
+        HashTree tree = trees.get(locationKey);
+        if (tree == null) {
+            tree = new HashTree(locationKey, storageLayer.get(
+                    new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO),
+                    new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE, Number160.MAX_VALUE), -1,
+                    true));
+            trees.put(locationKey, tree);
+        }
+        return tree;
+    }
+}
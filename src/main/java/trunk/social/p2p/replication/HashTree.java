@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.replication;
+
+import trunk.social.p2p.dht.ErasureBuilder;
+import trunk.social.p2p.peers.Number160;
+import trunk.social.p2p.peers.Number640;
+import trunk.social.p2p.storage.Data;
+import trunk.social.p2p.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A hash tree over the entries of one location key. Each entry is placed by the hash of its key, every node covers
+ * the entries with the same prefix of {@link #FANOUT_BITS} bits per level. The hash of a node is the xor of the hashes
+ * of its entries, where the hash of an entry covers its key and the hash of its data. Two replicas with the same hash
+ * for a node store the same entries in this node, so only nodes with different hashes need to be compared further.
+ * <p>
+ * A node is identified by a {@link Number640} with the location key, the level as domain key and the prefix as content
+ * key, so that nodes of different location keys can be compared in one message. Not thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+final class HashTree {
+
+    static final int FANOUT_BITS = 4;
+
+    static final int MAX_DEPTH = 7;
+
+    // a node with at most this many entries is not split further, its entries are compared directly
+    static final int LEAF_SIZE = 16;
+
+    private static final int PATH_BITS = FANOUT_BITS * MAX_DEPTH;
+
+    private final Number160 locationKey;
+
+    private final NavigableMap<Number640, Data> dataMap;
+
+    private final Map<Number640, Integer> paths = new HashMap<Number640, Integer>();
+
+    private final Map<Number640, Node> nodes = new HashMap<Number640, Node>();
+
+    /**
+     * @param locationKey
+     *            The location key
+     * @param dataMap
+     *            All entries of this peer for the location key, the fragments of erasure-coded values are left out
+     */
+    HashTree(final Number160 locationKey, final NavigableMap<Number640, Data> dataMap) {
+        this.locationKey = locationKey;
+        this.dataMap = ErasureBuilder.withoutFragments(dataMap);
+        for (Map.Entry<Number640, Data> entry : this.dataMap.entrySet()) {
+            final Number160 keyHash = Utils.makeSHAHash(concat(entry.getKey().locationKey(),
+                    entry.getKey().domainKey(), entry.getKey().contentKey(), entry.getKey().versionKey()));
+            final Number160 entryHash = Utils.makeSHAHash(concat(keyHash, entry.getValue().hash()));
+            final int path = keyHash.intValue() >>> (Integer.SIZE - PATH_BITS);
+            paths.put(entry.getKey(), path);
+            for (int level = 0; level <= MAX_DEPTH; level++) {
+                final Number640 nodeId = nodeId(locationKey, level, path >>> (FANOUT_BITS * (MAX_DEPTH - level)));
+                Node node = nodes.get(nodeId);
+                if (node == null) {
+                    node = new Node();
+                    nodes.put(nodeId, node);
+                }
+                node.hash = node.hash.xor(entryHash);
+                node.count++;
+            }
+        }
+    }
+
+    Number160 locationKey() {
+        return locationKey;
+    }
+
+    /**
+     * @return The node that covers all entries of the location key
+     */
+    static Number640 root(final Number160 locationKey) {
+        return nodeId(locationKey, 0, 0);
+    }
+
+    static Number640 nodeId(final Number160 locationKey, final int level, final int prefix) {
+        return new Number640(locationKey, new Number160(level), new Number160(prefix), Number160.ZERO);
+    }
+
+    static int level(final Number640 nodeId) {
+        return nodeId.domainKey().intValue();
+    }
+
+    static List<Number640> children(final Number640 nodeId) {
+        final int level = level(nodeId) + 1;
+        final int prefix = nodeId.contentKey().intValue() << FANOUT_BITS;
+        final List<Number640> children = new ArrayList<Number640>(1 << FANOUT_BITS);
+        for (int i = 0; i < 1 << FANOUT_BITS; i++) {
+            children.add(nodeId(nodeId.locationKey(), level, prefix | i));
+        }
+        return children;
+    }
+
+    /**
+     * @return The hash of the node, {@link Number160#ZERO} if the node has no entries
+     */
+    Number160 hash(final Number640 nodeId) {
+        final Node node = nodes.get(nodeId);
+        return node == null ? Number160.ZERO : node.hash;
+    }
+
+    int count(final Number640 nodeId) {
+        final Node node = nodes.get(nodeId);
+        return node == null ? 0 : node.count;
+    }
+
+    /**
+     * @return True if the entries of this node are compared directly instead of its children
+     */
+    boolean isLeaf(final Number640 nodeId) {
+        return level(nodeId) >= MAX_DEPTH || count(nodeId) <= LEAF_SIZE;
+    }
+
+    /**
+     * @return The data of the entry, null if this peer does not have it
+     */
+    Data data(final Number640 key) {
+        return dataMap.get(key);
+    }
+
+    /**
+     * @return The entries of this peer in the node
+     */
+    NavigableMap<Number640, Data> entries(final Number640 nodeId) {
+        final NavigableMap<Number640, Data> entries = new TreeMap<Number640, Data>();
+        if (count(nodeId) == 0) {
+            return entries;
+        }
+        final int shift = FANOUT_BITS * (MAX_DEPTH - level(nodeId));
+        final int prefix = nodeId.contentKey().intValue();
+        for (Map.Entry<Number640, Data> entry : dataMap.entrySet()) {
+            if (paths.get(entry.getKey()) >>> shift == prefix) {
+                entries.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    private static byte[] concat(final Number160... numbers) {
+        final byte[] bytes = new byte[numbers.length * Number160.BYTE_ARRAY_SIZE];
+        for (int i = 0; i < numbers.length; i++) {
+            System.arraycopy(numbers[i].toByteArray(), 0, bytes, i * Number160.BYTE_ARRAY_SIZE,
+                    Number160.BYTE_ARRAY_SIZE);
+        }
+        return bytes;
+    }
+
+    private static final class Node {
+        private Number160 hash = Number160.ZERO;
+        private int count = 0;
+    }
+}
@@ -18,6 +18,8 @@ package trunk.social.p2p.replication;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import trunk.social.p2p.dht.ChangeLog;
+import trunk.social.p2p.dht.ErasureBuilder;
 import trunk.social.p2p.dht.PeerDHT;
 import trunk.social.p2p.dht.PutBuilder;
 import trunk.social.p2p.dht.StorageRPC;
@@ -52,11 +54,17 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     private int delayMillis = -1;
     private int intervalMillis = -1;
     private boolean rsync = false;
+    private boolean antiEntropy = false;
+    private int changeLogSize = 0;
     private int blockSize = -1;
     private ReplicationSender replicationSender;
     private boolean nRoot = false;
     private boolean keepData = false;
     private Replication replication;
+    private AntiEntropy antiEntropySync;
+    private ChangeLog changeLog;
+    // what each replica has acknowledged, for the incremental replication
+    private final Map<PeerAddress, ReplicaState> replicaStates = new HashMap<PeerAddress, ReplicaState>();
     private Collection<ReplicationFilter> replicationFilters = new HashSet<ReplicationFilter>();
 
     private ScheduledFuture<?> scheduledFuture;
@@ -103,6 +111,46 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
         return this;
     }
 
+    public boolean isAntiEntropy() {
+        return antiEntropy;
+    }
+
+    /**
+     * @param antiEntropy
+     *            Set to true if the periodic replication compares hash trees with the replicas and only transfers the
+     *            entries that differ, see {@link AntiEntropy}. Otherwise all data is sent to the replicas in every
+     *            interval. All peers need to enable it.
+     * @return This class
+     */
+    public IndirectReplication antiEntropy(boolean antiEntropy) {
+        this.antiEntropy = antiEntropy;
+        return this;
+    }
+
+    public IndirectReplication antiEntropy() {
+        this.antiEntropy = true;
+        return this;
+    }
+
+    public int changeLogSize() {
+        return changeLogSize;
+    }
+
+    /**
+     * @param changeLogSize
+     *            The number of changes the storage remembers. If larger than zero, the periodic replication only sends
+     *            the entries that changed since the last replication to a replica. A replica that is new or missed
+     *            more changes than the log keeps is synchronized completely. 0 disables this, which is the default.
+     * @return This class
+     */
+    public IndirectReplication changeLogSize(int changeLogSize) {
+        if (changeLogSize < 0) {
+            throw new IllegalArgumentException("The size of the change log cannot be negative.");
+        }
+        this.changeLogSize = changeLogSize;
+        return this;
+    }
+
     public boolean isNRoot() {
         return nRoot;
     }
@@ -239,6 +287,13 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
         } else if (replicationSender == null) {
             replicationSender = new DefaultReplicationSender(peer);
         }
+        if (antiEntropy) {
+            antiEntropySync = new AntiEntropy(peer, replication);
+        }
+        if (changeLogSize > 0) {
+            changeLog = new ChangeLog(changeLogSize);
+            peer.storageLayer().changeLog(changeLog);
+        }
 
         scheduledFuture = peer.peer().connectionBean().timer().scheduleAtFixedRate(
                 this, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
@@ -274,10 +329,7 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
 
         LOG.debug("Other peer {} is responsible for {}. I'm {}", other, locationKey, peer.peerAddress());
 
-        Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-        Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
-                Number160.MAX_VALUE);
-        final NavigableMap<Number640, Data> dataMap = peer.storageLayer().get(min, max, -1, true);
+        final NavigableMap<Number640, Data> dataMap = dataMap(locationKey);
         LOG.debug("transfer from {} to {} for key {}", peer.peerAddress(), other, locationKey);
         return replicationSender.sendDirect(other, locationKey, dataMap);
     }
@@ -291,10 +343,7 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
     @Override
     public FutureDone<?> meResponsible(final Number160 locationKey, PeerAddress newPeer) {
         LOG.debug("I ({}) sync {} to {}", peer.peerAddress(), locationKey, newPeer);
-        Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-        Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
-                Number160.MAX_VALUE);
-        final NavigableMap<Number640, Data> dataMap = peer.storageLayer().get(min, max, -1, true);
+        final NavigableMap<Number640, Data> dataMap = dataMap(locationKey);
         return replicationSender.sendDirect(newPeer, locationKey, dataMap);
     }
 
@@ -306,8 +355,14 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
             // publish it again... The good way is to do a diff
             Collection<Number160> locationKeys = peer.storageLayer().findContentForResponsiblePeerID(peer.peerID());
 
-            for (Number160 locationKey : locationKeys) {
-                synchronizeData(locationKey);
+            if (changeLog != null) {
+                synchronizeChanges(locationKeys);
+            } else if (antiEntropySync != null) {
+                synchronizeTrees(locationKeys);
+            } else {
+                for (Number160 locationKey : locationKeys) {
+                    synchronizeData(locationKey);
+                }
             }
             // recalculate replication factor
             int replicationFactor = IndirectReplication.this.replicationFactor.replicationFactor();
@@ -358,10 +413,7 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
             closePeers.add(peerStatistic.peerAddress());
             //this must be inside the loop as we need to retain the data for every peer
 
-            Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
-            Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
-                    Number160.MAX_VALUE);
-            final NavigableMap<Number640, Data> dataMap = peer.storageLayer().get(min, max, -1, true);
+            final NavigableMap<Number640, Data> dataMap = dataMap(locationKey);
 
             retVal.add(replicationSender.sendDirect(peerStatistic.peerAddress(), locationKey, dataMap));
             if (count == replicationFactor) {
@@ -373,12 +425,212 @@ public class IndirectReplication implements ResponsibilityListener, Runnable {
         return FutureDone.whenAll(retVal);
     }
 
+    /**
+     * Sends each replica the entries that changed since the last change it acknowledged. The location keys that are
+     * new for a replica, or all location keys if the replica missed more changes than the log keeps, are
+     * synchronized completely. Removals are not sent, the replicas get them from the remove itself and expire entries
+     * on their own.
+     *
+     * @param locationKeys The location keys I'm responsible for
+     */
+    private void synchronizeChanges(final Collection<Number160> locationKeys) {
+        // read before the data is read, later changes are sent in the next interval
+        final long sequence = changeLog.sequence();
+        final Map<PeerAddress, List<Number160>> replicas = replicas(locationKeys);
+        synchronized (replicaStates) {
+            replicaStates.keySet().retainAll(replicas.keySet());
+        }
+        for (final Map.Entry<PeerAddress, List<Number160>> entry : replicas.entrySet()) {
+            final PeerAddress replica = entry.getKey();
+            final ReplicaState state;
+            final Set<Number160> incremental = new HashSet<Number160>();
+            final List<Number160> full = new ArrayList<Number160>();
+            final NavigableMap<Number640, ChangeLog.Operation> changes;
+            synchronized (replicaStates) {
+                ReplicaState replicaState = replicaStates.get(replica);
+                if (replicaState == null) {
+                    replicaState = new ReplicaState();
+                    replicaStates.put(replica, replicaState);
+                } else if (replicaState.running) {
+                    continue;
+                }
+                replicaState.running = true;
+                state = replicaState;
+                changes = state.acknowledged < 0 ? null : changeLog.since(state.acknowledged);
+                for (Number160 locationKey : entry.getValue()) {
+                    if (changes != null && state.locationKeys.contains(locationKey)) {
+                        incremental.add(locationKey);
+                    } else {
+                        full.add(locationKey);
+                    }
+                }
+            }
+            final List<FutureDone<?>> futures = new ArrayList<FutureDone<?>>(2);
+            if (!full.isEmpty()) {
+                futures.add(synchronizeAll(replica, full));
+            }
+            if (!incremental.isEmpty()) {
+                final NavigableMap<Number640, Data> dataMap = new TreeMap<Number640, Data>();
+                for (Map.Entry<Number640, ChangeLog.Operation> change : changes.entrySet()) {
+                    if (change.getValue() == ChangeLog.Operation.PUT && !ErasureBuilder.isFragment(change.getKey())
+                            && incremental.contains(change.getKey().locationKey())) {
+                        final Data data = peer.storageLayer().get(change.getKey());
+                        if (data != null) {
+                            dataMap.put(change.getKey(), data);
+                        }
+                    }
+                }
+                if (!dataMap.isEmpty()) {
+                    futures.add(replicationSender.sendDirect(replica, dataMap.firstKey().locationKey(), dataMap));
+                }
+            }
+            LOG.debug("[incremental] I ({}) send {} location keys completely and {} by changes to {}",
+                    peer.peerAddress(), full.size(), incremental.size(), replica);
+            if (futures.isEmpty()) {
+                acknowledged(state, sequence, entry.getValue());
+                continue;
+            }
+            FutureDone.whenAll(futures).addListener(new BaseFutureAdapter<FutureDone<List<FutureDone<?>>>>() {
+                @Override
+                public void operationComplete(final FutureDone<List<FutureDone<?>>> future) throws Exception {
+                    for (FutureDone<?> futureDone : future.object()) {
+                        if (!futureDone.isSuccess()) {
+                            LOG.debug("replication to {} failed: {}", replica, futureDone.failedReason());
+                            synchronized (replicaStates) {
+                                state.running = false;
+                            }
+                            return;
+                        }
+                    }
+                    acknowledged(state, sequence, entry.getValue());
+                }
+            });
+        }
+    }
+
+    private void acknowledged(final ReplicaState state, final long sequence, final List<Number160> locationKeys) {
+        synchronized (replicaStates) {
+            state.running = false;
+            state.acknowledged = sequence;
+            state.locationKeys = new HashSet<Number160>(locationKeys);
+        }
+    }
+
+    /**
+     * Groups the location keys by their replicas and runs the anti-entropy synchronization once per replica. If a
+     * replica cannot be synchronized, e.g. since it does not support it, its data is sent as a whole.
+     *
+     * @param locationKeys The location keys I'm responsible for
+     */
+    private void synchronizeTrees(final Collection<Number160> locationKeys) {
+        for (final Map.Entry<PeerAddress, List<Number160>> entry : replicas(locationKeys).entrySet()) {
+            antiEntropySync.synchronize(entry.getKey(), entry.getValue()).addListener(
+                    new BaseFutureAdapter<FutureDone<Integer>>() {
+                        @Override
+                        public void operationComplete(final FutureDone<Integer> future) throws Exception {
+                            if (!future.isSuccess()) {
+                                LOG.debug("anti-entropy with {} failed, sending all data: {}", entry.getKey(),
+                                        future.failedReason());
+                                sendAll(entry.getKey(), entry.getValue());
+                            }
+                        }
+                    });
+        }
+    }
+
+    /**
+     * Synchronizes the location keys completely, with the anti-entropy synchronization if enabled.
+     */
+    private FutureDone<?> synchronizeAll(final PeerAddress replica, final List<Number160> locationKeys) {
+        if (antiEntropySync != null) {
+            return antiEntropySync.synchronize(replica, locationKeys);
+        }
+        return sendAll(replica, locationKeys);
+    }
+
+    private FutureDone<?> sendAll(final PeerAddress replica, final List<Number160> locationKeys) {
+        final List<FutureDone<?>> futures = new ArrayList<FutureDone<?>>(locationKeys.size());
+        for (Number160 locationKey : locationKeys) {
+            futures.add(replicationSender.sendDirect(replica, locationKey, dataMap(locationKey)));
+        }
+        final FutureDone<Void> futureDone = new FutureDone<Void>();
+        FutureDone.whenAll(futures).addListener(new BaseFutureAdapter<FutureDone<List<FutureDone<?>>>>() {
+            @Override
+            public void operationComplete(final FutureDone<List<FutureDone<?>>> future) throws Exception {
+                for (FutureDone<?> futureDone2 : future.object()) {
+                    if (!futureDone2.isSuccess()) {
+                        futureDone.failed(futureDone2);
+                        return;
+                    }
+                }
+                futureDone.done();
+            }
+        });
+        return futureDone;
+    }
+
+    /**
+     * @return The entries of the location key that are replicated as full copies, the fragments of erasure-coded
+     *         values are repaired by their readers
+     */
+    private NavigableMap<Number640, Data> dataMap(final Number160 locationKey) {
+        final Number640 min = new Number640(locationKey, Number160.ZERO, Number160.ZERO, Number160.ZERO);
+        final Number640 max = new Number640(locationKey, Number160.MAX_VALUE, Number160.MAX_VALUE,
+                Number160.MAX_VALUE);
+        return ErasureBuilder.withoutFragments(peer.storageLayer().get(min, max, -1, true));
+    }
+
+    /**
+     * @return The location keys grouped by the replicas that should store them
+     */
+    private Map<PeerAddress, List<Number160>> replicas(final Collection<Number160> locationKeys) {
+        final Map<PeerAddress, List<Number160>> replicas = new HashMap<PeerAddress, List<Number160>>();
+        for (Number160 locationKey : locationKeys) {
+            for (PeerAddress replica : replicas(locationKey)) {
+                List<Number160> keys = replicas.get(replica);
+                if (keys == null) {
+                    keys = new ArrayList<Number160>();
+                    replicas.put(replica, keys);
+                }
+                keys.add(locationKey);
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * @param locationKey The location key
+     * @return The close peers that should store a replica of the location key
+     */
+    private List<PeerAddress> replicas(final Number160 locationKey) {
+        int replicationFactor = replication.replicationFactor() - 1;
+        List<PeerAddress> closePeers = new ArrayList<PeerAddress>(replicationFactor);
+        for (PeerStatistic peerStatistic : peer.peerBean().peerMap().closePeers(locationKey, replicationFactor)) {
+            if (closePeers.size() == replicationFactor) {
+                break;
+            }
+            if (!replication.rejectReplication(peerStatistic.peerAddress())) {
+                closePeers.add(peerStatistic.peerAddress());
+            }
+        }
+        return closePeers;
+    }
+
     public void shutdown() {
         if (scheduledFuture != null) {
             scheduledFuture.cancel(false);
         }
     }
 
+    /**
+     * The last change a replica acknowledged and the location keys it has been synchronized for.
+     */
+    private static final class ReplicaState {
+        private long acknowledged = -1;
+        private Set<Number160> locationKeys = new HashSet<Number160>();
+        private boolean running = false;
+    }
+
     private static class DefaultReplicationSender implements ReplicationSender {
         private StorageRPC storageRPC;
         private PeerDHT peer;
@@ -18,15 +18,25 @@ package trunk.social.p2p.rpc;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import trunk.social.p2p.connection.*;
+import trunk.social.p2p.futures.BaseFuture;
 import trunk.social.p2p.futures.BaseFutureAdapter;
+import trunk.social.p2p.futures.FutureChannelCreator;
 import trunk.social.p2p.futures.FutureResponse;
+import trunk.social.p2p.futures.FutureSuccessEvaluator;
+import trunk.social.p2p.futures.FutureSuccessEvaluatorCommunication;
 import trunk.social.p2p.message.KeyCollection;
 import trunk.social.p2p.message.Message;
 import trunk.social.p2p.message.NeighborSet;
 import trunk.social.p2p.peers.*;
+import trunk.social.p2p.utils.ConcurrentCacheMap;
+import trunk.social.p2p.utils.Utils;
 
 import java.io.IOException;
+import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Handles the neighbor requests and replies.
@@ -40,6 +50,39 @@ public class NeighborRPC extends DispatchHandler {
 
     public static final int NEIGHBOR_SIZE = 30;
     public static final int NEIGHBOR_LIMIT = 1000;
+
+    /**
+     * The maximum number of hops a recursive neighbor request is forwarded, regardless of what the sender asks for.
+     */
+    public static final int MAX_RECURSIVE_HOPS = 4;
+
+    /**
+     * The maximum time per hop the originator of a recursive request waits for the reply of the last hop, after the
+     * first peer replied that it forwarded the request. The originator waits twice the round-trip time to the first
+     * peer per hop, if that is shorter. After that, the reply of the first peer is used.
+     */
+    public static final int RECURSIVE_HOP_TIMEOUT_MILLIS = 1000;
+
+    // the reply of the last hop is a fire-and-forget request to the originator
+    private static final FutureSuccessEvaluator RECURSIVE_EVALUATOR = new FutureSuccessEvaluator() {
+        private final FutureSuccessEvaluator communication = new FutureSuccessEvaluatorCommunication();
+
+        @Override
+        public BaseFuture.FutureType evaluate(final Message requestMessage, final Message responseMessage) {
+            return responseMessage.type() == Message.Type.REQUEST_FF_1 ? BaseFuture.FutureType.OK : communication
+                    .evaluate(requestMessage, responseMessage);
+        }
+    };
+
+    // the nonces of recursive requests, the reply of the last hop has to echo it
+    private static final Random RND = new SecureRandom();
+
+    // recursive requests of this peer that wait for the reply of the last hop, by message ID
+    private final ConcurrentMap<Integer, PendingRecursive> pendingRecursive = new ConcurrentHashMap<Integer, PendingRecursive>();
+
+    // recursive requests this peer forwarded, by nonce, to relay the reply back to the peer the request came from
+    private final ConcurrentCacheMap<Long, Relay> relays = new ConcurrentCacheMap<Long, Relay>(
+            MAX_RECURSIVE_HOPS * RECURSIVE_HOP_TIMEOUT_MILLIS / 1000, 1024);
     
     public NeighborRPC(final PeerBean peerBean, final ConnectionBean connectionBean) {
         this(peerBean, connectionBean, true);
@@ -88,10 +131,46 @@ public class NeighborRPC extends DispatchHandler {
      */
     public FutureResponse closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
                                          final Message.Type type, final ChannelCreator channelCreator, final ConnectionConfiguration configuration) {
+        return closeNeighbors(remotePeer, searchValues, type, channelCreator, configuration, 0);
+    }
+
+    /**
+     * Requests close neighbors from the remote peer, which may forward the request towards the location key. If
+     * recursiveHops is larger than zero and the type is REQUEST_1, the remote peer forwards the request to its closest
+     * neighbor if that one is closer to the location key than itself, and so on, for at most recursiveHops hops. The
+     * remote peer replies right away with its own neighbors, and the last hop sends its neighbors directly to us if it
+     * knows us, otherwise the reply is relayed back along the hops. The reply has to echo a random nonce. The
+     * returned future completes with the reply of the last hop, or with the reply of the remote peer if the request
+     * was not forwarded or the last hop did not answer in time. A peer that does not know about recursive requests
+     * ignores the hop count and replies with its own neighbors.
+     * This is an RPC.
+     * 
+     * @param remotePeer
+     *            The remote peer to send this request to
+     * @param searchValues
+     *            The values to search for in the storage
+     * @param type
+     *            The type of the neighbor request, see
+     *            {@link #closeNeighbors(PeerAddress, SearchValues, Message.Type, ChannelCreator, ConnectionConfiguration)}
+     * @param channelCreator
+     *            The channel creator that creates connections
+     * @param configuration
+     *            The client-side connection configuration
+     * @param recursiveHops
+     *            The number of hops the request may be forwarded, 0 for an iterative request
+     * @return The future response to keep track of future events
+     */
+    public FutureResponse closeNeighbors(final PeerAddress remotePeer, final SearchValues searchValues,
+            final Message.Type type, final ChannelCreator channelCreator, final ConnectionConfiguration configuration,
+            final int recursiveHops) {
         Message message = createMessage(remotePeer, RPC.Commands.NEIGHBOR.getNr(), type);
         if (!message.isRequest()) {
             throw new IllegalArgumentException("The type must be a request");
         }
+        final boolean recursive = recursiveHops > 0 && type == Message.Type.REQUEST_1;
+        if (recursive) {
+            message.intValue(Math.min(recursiveHops, MAX_RECURSIVE_HOPS));
+        }
         
         message.key(searchValues.locationKey());
         message.key(searchValues.domainKey() == null ? Number160.ZERO : searchValues.domainKey());
@@ -115,9 +194,57 @@ public class NeighborRPC extends DispatchHandler {
         	}
         }
         LOG.debug("Ask remote peer for neighbors with msg {}", message);
+        if (recursive) {
+            return sendRecursive(message, configuration, channelCreator);
+        }
         return send(message, configuration, channelCreator);
     }
 
+    private FutureResponse sendRecursive(final Message message, final ConnectionConfiguration configuration,
+            final ChannelCreator channelCreator) {
+        final int messageId = message.messageId();
+        final FutureResponse futureResult = new FutureResponse(message, RECURSIVE_EVALUATOR);
+        final PendingRecursive pending = new PendingRecursive(futureResult, RND.nextLong());
+        message.longValue(pending.nonce);
+        futureResult.startRTTMeasurement(!configuration.isForceTCP());
+        pendingRecursive.put(messageId, pending);
+        send(message, configuration, channelCreator).addListener(new BaseFutureAdapter<FutureResponse>() {
+            @Override
+            public void operationComplete(final FutureResponse future) throws Exception {
+                if (!future.isSuccess()) {
+                    if (pendingRecursive.remove(messageId, pending)) {
+                        futureResult.failed(future);
+                    }
+                    return;
+                }
+                final Long forwardedHops = future.responseMessage().longAt(0);
+                if (forwardedHops == null || forwardedHops <= 0) {
+                    // the remote peer is the closest one it knows, or it does not forward requests
+                    if (pendingRecursive.remove(messageId, pending)) {
+                        futureResult.response(future.responseMessage());
+                    }
+                    return;
+                }
+                connectionBean().timer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (pendingRecursive.remove(messageId, pending)) {
+                            LOG.debug("No reply from the last hop for {}, use the reply of {}.", message,
+                                    future.responseMessage().sender());
+                            futureResult.response(future.responseMessage());
+                        }
+                    }
+                }, forwardedHops * hopTimeoutMillis(future.getRoundTripTime().getRtt()), TimeUnit.MILLISECONDS);
+            }
+        });
+        return futureResult;
+    }
+
+    private static long hopTimeoutMillis(final long roundTripTime) {
+        return roundTripTime > 0 ? Math.min(2 * roundTripTime, RECURSIVE_HOP_TIMEOUT_MILLIS)
+                : RECURSIVE_HOP_TIMEOUT_MILLIS;
+    }
+
     private FutureResponse send(final Message message, final ConnectionConfiguration configuration, final ChannelCreator channelCreator) {
         final FutureResponse futureResponse = new FutureResponse(message);
         futureResponse.addListener(new BaseFutureAdapter<FutureResponse>() {
@@ -150,6 +277,15 @@ public class NeighborRPC extends DispatchHandler {
 
     @Override
     public void handleResponse(final Message message, PeerConnection peerConnection, final boolean sign, Responder responder) throws IOException {
+        if (message.type() == Message.Type.REQUEST_FF_1 || message.type() == Message.Type.REQUEST_FF_2) {
+            handleRecursive(message);
+            if (message.isUdp()) {
+                responder.responseFireAndForget();
+            } else {
+                responder.response(createResponseMessage(message, Message.Type.OK));
+            }
+            return;
+        }
         if (message.keyList().size() < 2) {
 			throw new IllegalArgumentException("At least location and domain keys are needed.");
         }
@@ -172,6 +308,18 @@ public class NeighborRPC extends DispatchHandler {
         
         // Create response message and set neighbors
         final Message responseMessage = createResponseMessage(message, Message.Type.OK);
+
+        // recursive request: forward it towards the location key. The chain is bound to the sender of this request,
+        // the reply of the last hop comes back to us if the last hop does not know the sender.
+        final Integer recursiveHops = message.intAt(0);
+        final Long nonce = message.longAt(0);
+        if (message.type() == Message.Type.REQUEST_1 && recursiveHops != null && recursiveHops > 0 && nonce != null) {
+            final int hops = Math.min(recursiveHops, MAX_RECURSIVE_HOPS);
+            if (forward(message.sender(), message.sender(), message.messageId(), nonce, locationKey, domainKey,
+                    neighbors, hops - 1, message.isUdp())) {
+                responseMessage.longValue(hops);
+            }
+        }
         
 		LOG.debug("Found the following neighbors: {}.", neighbors);
         NeighborSet neighborSet = new NeighborSet(NEIGHBOR_LIMIT, neighbors);
@@ -245,11 +393,157 @@ public class NeighborRPC extends DispatchHandler {
         responder.response(responseMessage);
     }
 
+    /**
+     * Handles the messages of a recursive request between peers: a forwarded request (REQUEST_FF_2) and the reply of
+     * the last hop (REQUEST_FF_1). A forwarded request contains the hops left, the message ID and the nonce of the
+     * original request and the originator. The first hop sets the originator from the sender of the original request.
+     * The address in the payload is not trusted, the last hop replies directly only to an originator it has verified
+     * in its peer map. Otherwise it replies to the peer the request came from, which relays the reply back the same
+     * way. The reply has to echo the nonce of the original request.
+     */
+    private void handleRecursive(final Message message) {
+        final Long messageId = message.longAt(0);
+        final Long nonce = message.longAt(1);
+        final NeighborSet neighborSet = message.neighborsSet(0);
+        if (messageId == null || nonce == null || neighborSet == null) {
+            LOG.debug("Recursive message without message ID, nonce or neighbors: {}.", message);
+            return;
+        }
+        if (message.type() == Message.Type.REQUEST_FF_1) {
+            final PendingRecursive pending = pendingRecursive.get(messageId.intValue());
+            if (pending != null && pending.nonce == nonce && pendingRecursive.remove(messageId.intValue(), pending)) {
+                final FutureResponse futureResult = pending.futureResult;
+                futureResult.stopRTTMeasurement();
+                for (PeerAddress neighbor : neighborSet.neighbors()) {
+                    peerBean().notifyPeerFound(neighbor, message.sender(), null,
+                            futureResult.getRoundTripTime().setEstimated());
+                }
+                futureResult.response(message);
+                return;
+            }
+            final Relay relay = relays.remove(nonce);
+            if (relay == null || relay.messageId != messageId.intValue()) {
+                LOG.debug("Late, unknown or forged reply of a recursive request: {}.", message);
+                return;
+            }
+            reply(relay.previous, relay.messageId, nonce, neighborSet.neighbors(), message.isUdp());
+            return;
+        }
+        final Integer hops = message.intAt(0);
+        if (message.keyList().size() < 2 || hops == null || neighborSet.size() != 1) {
+            LOG.debug("Forwarded recursive request is incomplete: {}.", message);
+            return;
+        }
+        final Number160 locationKey = message.key(0);
+        final PeerAddress originator = neighborSet.neighbors().iterator().next();
+        final List<PeerAddress> neighbors = getNeighbors(locationKey, NEIGHBOR_SIZE);
+        if (neighbors == null || forward(originator, message.sender(), messageId.intValue(), nonce, locationKey,
+                message.key(1), neighbors, Math.min(hops, MAX_RECURSIVE_HOPS) - 1, message.isUdp())) {
+            return;
+        }
+        // we are the last hop
+        final PeerAddress recipient = peerBean().peerMap().contains(originator) ? originator : message.sender();
+        LOG.debug("Last hop for {}, reply to {}.", locationKey, recipient);
+        reply(recipient, messageId.intValue(), nonce, neighbors, message.isUdp());
+    }
+
+    private void reply(final PeerAddress recipient, final int messageId, final long nonce,
+            final Collection<PeerAddress> neighbors, final boolean udp) {
+        final List<PeerAddress> result = new ArrayList<PeerAddress>(neighbors.size());
+        for (PeerAddress neighbor : neighbors) {
+            if (!neighbor.equals(recipient)) {
+                result.add(neighbor);
+            }
+        }
+        final Message reply = createMessage(recipient, RPC.Commands.NEIGHBOR.getNr(), Message.Type.REQUEST_FF_1);
+        reply.longValue(messageId);
+        reply.longValue(nonce);
+        reply.neighborsSet(new NeighborSet(NEIGHBOR_LIMIT, result));
+        sendFireAndForget(reply, udp);
+    }
+
+    /**
+     * Forwards a recursive neighbor request to the closest known peer, if that peer is closer to the location key than
+     * this peer. The request is sent as fire-and-forget, so no channel is kept open while the request travels on. The
+     * peer the request came from is remembered to relay the reply back.
+     * 
+     * @return True if the request has been forwarded, false if this peer is the closest one it knows or no hops are
+     *         left
+     */
+    private boolean forward(final PeerAddress originator, final PeerAddress previous, final int messageId,
+            final long nonce, final Number160 locationKey, final Number160 domainKey,
+            final List<PeerAddress> neighbors, final int hopsLeft, final boolean udp) {
+        if (hopsLeft < 0) {
+            return false;
+        }
+        final Number160 self = peerBean().serverPeerAddress().peerId();
+        PeerAddress next = null;
+        for (PeerAddress neighbor : neighbors) {
+            if (neighbor.peerId().equals(originator.peerId()) || neighbor.peerId().equals(previous.peerId())
+                    || Number160.compareDistance(locationKey, neighbor.peerId(), self) >= 0) {
+                continue;
+            }
+            if (next == null || Number160.compareDistance(locationKey, neighbor.peerId(), next.peerId()) < 0) {
+                next = neighbor;
+            }
+        }
+        if (next == null) {
+            return false;
+        }
+        LOG.debug("Forward recursive request for {} to {}, {} hops left.", locationKey, next, hopsLeft);
+        relays.put(nonce, new Relay(previous, messageId));
+        final Message message = createMessage(next, RPC.Commands.NEIGHBOR.getNr(), Message.Type.REQUEST_FF_2);
+        message.intValue(hopsLeft);
+        message.longValue(messageId);
+        message.longValue(nonce);
+        message.key(locationKey);
+        message.key(domainKey);
+        message.neighborsSet(new NeighborSet(NEIGHBOR_LIMIT, Collections.singletonList(originator)));
+        sendFireAndForget(message, udp);
+        return true;
+    }
+
+    private void sendFireAndForget(final Message message, final boolean udp) {
+        final FutureChannelCreator futureChannelCreator = connectionBean().reservation().create(udp ? 1 : 0,
+                udp ? 0 : 1);
+        futureChannelCreator.addListener(new BaseFutureAdapter<FutureChannelCreator>() {
+            @Override
+            public void operationComplete(final FutureChannelCreator future) throws Exception {
+                if (!future.isSuccess()) {
+                    LOG.debug("Could not send recursive message {}: {}.", message, future.failedReason());
+                    return;
+                }
+                final DefaultConnectionConfiguration configuration = new DefaultConnectionConfiguration()
+                        .idleUDPMillis(RECURSIVE_HOP_TIMEOUT_MILLIS).idleTCPMillis(RECURSIVE_HOP_TIMEOUT_MILLIS);
+                if (!udp) {
+                    configuration.forceTCP();
+                }
+                final RequestHandler<FutureResponse> request = new RequestHandler<FutureResponse>(
+                        new FutureResponse(message), peerBean(), connectionBean(), configuration);
+                final FutureResponse futureResponse = udp ? request.fireAndForgetUDP(future.channelCreator())
+                        : request.sendTCP(future.channelCreator());
+                Utils.addReleaseListener(future.channelCreator(), futureResponse);
+            }
+        });
+    }
+
     /**
      * TODO: explain why protected method here.
      */
     protected List<PeerAddress> getNeighbors(Number160 id, int atLeast) {
-        NavigableSet<PeerStatistic> closePeers = peerBean().peerMap().closePeers(id, atLeast);
+        final PeerMap peerMap = peerBean().peerMap();
+        if (peerMap.isXORComparator()) {
+            // top-k selection without building a sorted set. Like the sorted set, the reply contains all the peers
+            // of the distance ranges that are needed, so it can be larger than atLeast
+            final PeerStatistic[] closePeers = new PeerStatistic[peerMap.closePeersSize(id, atLeast)];
+            final int size = peerMap.closePeers(id, closePeers);
+            final ArrayList<PeerAddress> result = new ArrayList<PeerAddress>(size);
+            for (int i = 0; i < size; i++) {
+                result.add(closePeers[i].peerAddress());
+            }
+            return result;
+        }
+        NavigableSet<PeerStatistic> closePeers = peerMap.closePeers(id, atLeast);
 
         ArrayList<PeerAddress> result = new ArrayList<PeerAddress>();
         for (PeerStatistic ps : closePeers) {
@@ -259,6 +553,32 @@ public class NeighborRPC extends DispatchHandler {
         return result;
     }
 
+    /**
+     * A recursive request of this peer that waits for the reply of the last hop.
+     */
+    private static final class PendingRecursive {
+        private final FutureResponse futureResult;
+        private final long nonce;
+
+        private PendingRecursive(final FutureResponse futureResult, final long nonce) {
+            this.futureResult = futureResult;
+            this.nonce = nonce;
+        }
+    }
+
+    /**
+     * The peer a forwarded recursive request came from.
+     */
+    private static final class Relay {
+        private final PeerAddress previous;
+        private final int messageId;
+
+        private Relay(final PeerAddress previous, final int messageId) {
+            this.previous = previous;
+            this.messageId = messageId;
+        }
+    }
+
     /**
 	 * The search values for fast get. You can either provide one content key. If you want to check for
 	 * multiple keys,
@@ -29,7 +29,8 @@ public class RPC {
 		GET_LATEST_WITH_DIGEST(),
 		GCM(),
 		REPLICA_PUT(), 
-		DIGEST_ALL_BLOOMFILTER();
+		DIGEST_ALL_BLOOMFILTER(),
+		ANTI_ENTROPY();
 	public byte getNr() {
 		return (byte) ordinal();
 	}
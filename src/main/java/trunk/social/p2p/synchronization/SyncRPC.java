@@ -266,7 +266,9 @@ public class SyncRPC extends DispatchHandler {
                     // TODO: don't copy data, toBytes does a copy!
                     DataBuffer reconstructedValue = RSync.reconstruct(dataOld.toBytes(), instructions, blockSize);
                     //TODO: domain protection?, make the flags configurable
-                    Enum<?> status = storageLayer.put(entry.getKey(), new Data(reconstructedValue), publicKey, false, false, false);
+                    // the data comes from another replica, it is not recorded in the change log
+                    Enum<?> status = storageLayer.put(entry.getKey(), new Data(reconstructedValue), publicKey, false, false,
+                            false, true);
                     if (status == PutStatus.OK) {
                         retVal.add(entry.getKey());
                         if (replicationListener != null) {
@@ -280,7 +282,7 @@ public class SyncRPC extends DispatchHandler {
                 	LOG.debug("handle copy {}", entry.getKey());
                     //TODO: domain protection?, make the flags configurable
                     Enum<?> status = storageLayer.put(entry.getKey(), entry.getValue(),
-                            message.publicKey(0), false, false, false);
+                            message.publicKey(0), false, false, false, true);
                     if (status == PutStatus.OK) {
                         retVal.add(entry.getKey());
                         if (replicationListener != null) {
@@ -141,6 +141,7 @@ public abstract class TrackerBuilder<K extends TrackerBuilder<K>> extends Defaul
     public RoutingBuilder createBuilder(RoutingConfiguration routingConfiguration2) {
         RoutingBuilder routingBuilder = new RoutingBuilder();
         routingBuilder.parallel(routingConfiguration.parallel());
+        routingBuilder.maxExtraParallel(routingConfiguration.maxExtraParallel());
         routingBuilder.setMaxNoNewInfo(routingConfiguration.maxNoNewInfo(0));
         routingBuilder.maxDirectHits(routingConfiguration.maxDirectHits());
         routingBuilder.maxFailures(routingConfiguration.maxFailures());
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2013 Thomas Bocek
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package trunk.social.p2p.utils;
+
+import java.util.Arrays;
+
+/**
+ * A systematic Reed-Solomon code over GF(2^8). A value is split into {@link #dataShards()} shards of equal length, and
+ * {@link #parityShards()} parity shards are computed from them. Any {@link #dataShards()} of the shards are enough to
+ * reconstruct all the others. The data shards are the first rows of the encoding matrix and stay unchanged, the parity
+ * rows are derived from a Vandermonde matrix, so that every square sub-matrix built from any rows is invertible.
+ * <p>
+ * The code needs dataShards + parityShards <= 256. This class is immutable and thread-safe.
+ *
+ * @author Thomas Bocek
+ */
+public final class ReedSolomon {
+
+    private static final int FIELD_SIZE = 256;
+
+    // x^8 + x^4 + x^3 + x^2 + 1, the generator 2 is primitive for this polynomial
+    private static final int POLYNOMIAL = 0x11D;
+
+    private static final int[] EXP = new int[FIELD_SIZE * 2];
+
+    private static final int[] LOG = new int[FIELD_SIZE];
+
+    private static final byte[][] MULTIPLY = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < FIELD_SIZE - 1; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= FIELD_SIZE) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = FIELD_SIZE - 1; i < EXP.length; i++) {
+            EXP[i] = EXP[i - (FIELD_SIZE - 1)];
+        }
+        for (int a = 0; a < FIELD_SIZE; a++) {
+            for (int b = 0; b < FIELD_SIZE; b++) {
+                MULTIPLY[a][b] = (byte) multiply(a, b);
+            }
+        }
+    }
+
+    private final int dataShards;
+
+    private final int parityShards;
+
+    // (dataShards + parityShards) x dataShards, the first dataShards rows are the identity
+    private final int[][] matrix;
+
+    /**
+     * Creates a code.
+     *
+     * @param dataShards
+     *            The number of shards the value is split into, also the number of shards needed to decode
+     * @param parityShards
+     *            The number of additional shards, also the number of shards that can be lost
+     */
+    public ReedSolomon(final int dataShards, final int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > FIELD_SIZE) {
+            throw new IllegalArgumentException("Need at least one data shard and at most " + FIELD_SIZE
+                    + " shards in total.");
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        final int totalShards = dataShards + parityShards;
+        final int[][] vandermonde = new int[totalShards][dataShards];
+        for (int row = 0; row < totalShards; row++) {
+            for (int column = 0; column < dataShards; column++) {
+                vandermonde[row][column] = power(row, column);
+            }
+        }
+        final int[][] top = new int[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int dataShards() {
+        return dataShards;
+    }
+
+    public int parityShards() {
+        return parityShards;
+    }
+
+    public int totalShards() {
+        return dataShards + parityShards;
+    }
+
+    /**
+     * Computes the parity shards.
+     *
+     * @param shards
+     *            All shards with equal length, the first {@link #dataShards()} are read and the others are overwritten
+     */
+    public void encodeParity(final byte[][] shards) {
+        checkShards(shards);
+        final byte[][] data = new byte[dataShards][];
+        System.arraycopy(shards, 0, data, 0, dataShards);
+        for (int row = dataShards; row < shards.length; row++) {
+            encodeRow(matrix[row], data, shards[row]);
+        }
+    }
+
+    /**
+     * Reconstructs the missing shards in place.
+     *
+     * @param shards
+     *            All shards, the missing ones may be null or contain anything, they are replaced
+     * @param present
+     *            True for every shard that is available
+     * @throws IllegalArgumentException
+     *             If less than {@link #dataShards()} shards are available
+     */
+    public void decode(final byte[][] shards, final boolean[] present) {
+        if (present.length != totalShards()) {
+            throw new IllegalArgumentException("Need " + totalShards() + " present flags.");
+        }
+        final int[] available = new int[dataShards];
+        int count = 0;
+        int length = -1;
+        for (int i = 0; i < present.length && count < dataShards; i++) {
+            if (present[i]) {
+                available[count++] = i;
+                length = shards[i].length;
+            }
+        }
+        if (count < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards to decode, only " + count
+                    + " available.");
+        }
+        final int[][] subMatrix = new int[dataShards][];
+        final byte[][] inputs = new byte[dataShards][];
+        for (int i = 0; i < dataShards; i++) {
+            subMatrix[i] = matrix[available[i]];
+            inputs[i] = shards[available[i]];
+        }
+        final int[][] decoding = invert(subMatrix);
+        final byte[][] data = new byte[dataShards][];
+        for (int row = 0; row < dataShards; row++) {
+            if (present[row]) {
+                data[row] = shards[row];
+            } else {
+                data[row] = new byte[length];
+                encodeRow(decoding[row], inputs, data[row]);
+                shards[row] = data[row];
+            }
+        }
+        for (int row = dataShards; row < shards.length; row++) {
+            if (!present[row]) {
+                shards[row] = new byte[length];
+                encodeRow(matrix[row], data, shards[row]);
+            }
+        }
+    }
+
+    private void checkShards(final byte[][] shards) {
+        if (shards.length != totalShards()) {
+            throw new IllegalArgumentException("Need " + totalShards() + " shards.");
+        }
+        for (byte[] shard : shards) {
+            if (shard == null || shard.length != shards[0].length) {
+                throw new IllegalArgumentException("All shards need the same length.");
+            }
+        }
+    }
+
+    private static void encodeRow(final int[] coefficients, final byte[][] inputs, final byte[] output) {
+        Arrays.fill(output, (byte) 0);
+        for (int column = 0; column < coefficients.length; column++) {
+            final byte[] table = MULTIPLY[coefficients[column]];
+            final byte[] input = inputs[column];
+            for (int i = 0; i < output.length; i++) {
+                output[i] ^= table[input[i] & 0xff];
+            }
+        }
+    }
+
+    private static int multiply(final int a, final int b) {
+        if (a == 0 || b == 0) {
+            return 0;
+        }
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    private static int power(final int a, final int n) {
+        if (n == 0) {
+            return 1;
+        }
+        if (a == 0) {
+            return 0;
+        }
+        return EXP[(LOG[a] * n) % (FIELD_SIZE - 1)];
+    }
+
+    private static int inverse(final int a) {
+        return EXP[FIELD_SIZE - 1 - LOG[a]];
+    }
+
+    private static int[][] multiply(final int[][] left, final int[][] right) {
+        final int[][] result = new int[left.length][right[0].length];
+        for (int row = 0; row < left.length; row++) {
+            for (int column = 0; column < right[0].length; column++) {
+                int value = 0;
+                for (int i = 0; i < right.length; i++) {
+                    value ^= multiply(left[row][i], right[i][column]);
+                }
+                result[row][column] = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Inverts a square matrix with Gauss-Jordan elimination, the input is not modified.
+     */
+    private static int[][] invert(final int[][] input) {
+        final int size = input.length;
+        final int[][] work = new int[size][size * 2];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(input[row], 0, work[row], 0, size);
+            work[row][size + row] = 1;
+        }
+        for (int column = 0; column < size; column++) {
+            int pivot = column;
+            while (pivot < size && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == size) {
+                throw new IllegalArgumentException("Matrix is singular.");
+            }
+            final int[] swap = work[pivot];
+            work[pivot] = work[column];
+            work[column] = swap;
+            final int scale = inverse(work[column][column]);
+            for (int i = 0; i < size * 2; i++) {
+                work[column][i] = multiply(work[column][i], scale);
+            }
+            for (int row = 0; row < size; row++) {
+                final int factor = work[row][column];
+                if (row != column && factor != 0) {
+                    for (int i = 0; i < size * 2; i++) {
+                        work[row][i] ^= multiply(factor, work[column][i]);
+                    }
+                }
+            }
+        }
+        final int[][] result = new int[size][size];
+        for (int row = 0; row < size; row++) {
+            System.arraycopy(work[row], size, result[row], 0, size);
+        }
+        return result;
+    }
+}